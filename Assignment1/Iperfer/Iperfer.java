@@ -1,29 +1,115 @@
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Iperfer {
     public static void main(String[] args) throws IOException {
-        if (args.length == 7 && args[0].equals("-c") && args[1].equals("-h") && args[3].equals("-p")
-                && args[5].equals("-t")) {
-            // Case 1: java Iperfer -c -h <server hostname> -p <server port> -t <time>
-            int port = parsePort(args[4]);
-            int time = 0;
-            try {
-                time = Integer.parseInt(args[6]);
-            } catch (Exception e) {
-                printInvalidArguments();
+        Options options = Options.parse(args);
+        if (options.client) {
+            // java Iperfer -c -h <server hostname> -p <server port> -t <time> [options]
+            if (options.udp) {
+                UdpClient.run(options);
+            } else {
+                Client.run(options);
             }
-            Client.run(args[2], port, time);
-        } else if (args.length == 3 && args[0].equals("-s") && args[1].equals("-p")) {
-            // Case 2: java Iperfer -s -p <listen port>
-            int port = parsePort(args[2]);
-            Server.run(port);
         } else {
+            // java Iperfer -s -p <listen port> [options]
+            Server.run(options);
+        }
+    }
+}
+
+/**
+ * Command line options shared by the client and the server.
+ */
+class Options {
+    boolean client;
+    String host;
+    int port;
+    int time;
+
+    /** Number of parallel streams (-P) */
+    int streams = 1;
+
+    /** Bytes per write, or per datagram in UDP mode (-l) */
+    int length = 0;
+
+    /** Seconds between interval reports, 0 to only print totals (-i) */
+    double interval = 0;
+
+    /** Use UDP instead of TCP (-u) */
+    boolean udp;
+
+    /** Target rate in Mbps per stream for UDP (-b) */
+    double bandwidth = 1;
+
+    /** Server sends and client receives (-R) */
+    boolean reverse;
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        boolean server = false;
+        boolean hasPort = false, hasTime = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-c")) {
+                    options.client = true;
+                } else if (arg.equals("-s")) {
+                    server = true;
+                } else if (arg.equals("-h")) {
+                    options.host = args[++i];
+                } else if (arg.equals("-p")) {
+                    options.port = parsePort(args[++i]);
+                    hasPort = true;
+                } else if (arg.equals("-t")) {
+                    options.time = Integer.parseInt(args[++i]);
+                    hasTime = true;
+                } else if (arg.equals("-P")) {
+                    options.streams = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-l")) {
+                    options.length = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-i")) {
+                    options.interval = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-u")) {
+                    options.udp = true;
+                } else if (arg.equals("-b")) {
+                    options.bandwidth = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-R")) {
+                    options.reverse = true;
+                } else {
+                    printInvalidArguments();
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            printInvalidArguments();
+        }
+
+        if (options.length == 0) {
+            options.length = options.udp ? 1470 : 1000;
+        }
+        if (server == options.client || !hasPort
+                || (options.client && (options.host == null || !hasTime))
+                || options.streams < 1 || options.interval < 0 || options.bandwidth <= 0
+                || options.length < (options.udp ? UdpClient.HEADER_LENGTH : 1)
+                || (options.udp && (options.length > 65507 || options.reverse))) {
             printInvalidArguments();
         }
+        return options;
     }
 
     private static int parsePort(String portString) {
@@ -43,53 +129,494 @@ public class Iperfer {
 
     private static void printInvalidArguments() {
         System.out.println("Error: invalid arguments");
+        System.out.println("Usage: java Iperfer -c -h <server hostname> -p <server port> -t <time>");
+        System.out.println("                   [-P streams] [-l length] [-i interval] [-R] [-u [-b Mbps]]");
+        System.out.println("       java Iperfer -s -p <listen port> [-i interval] [-l length]");
         System.exit(1);
     }
 }
 
+/**
+ * Prints throughput in the units used by the original client: KB are 1000 bytes and rates are
+ * in megabits per second.
+ */
+class Report {
+    static String format(String verb, long bytes, double seconds) {
+        return String.format("%s=%d KB\trate=%.3f Mbps", verb, bytes / 1000,
+                seconds > 0 ? bytes / 1000.0 / 1000 * 8 / seconds : 0.0);
+    }
+
+    static String interval(String id, double from, double to, String verb, long bytes) {
+        return String.format("[%4s] %6.1f-%6.1f sec\t%s", id, from, to,
+                format(verb, bytes, to - from));
+    }
+}
+
+/**
+ * TCP stream header the client sends first on every connection, so the server knows which
+ * direction the data flows. Servers that predate it just count the header as data.
+ */
+class StreamHeader {
+    static final int MAGIC = 0x49504652;
+    static final int LENGTH = 16;
+    static final int FLAG_REVERSE = 1;
+
+    static ByteBuffer create(Options options) {
+        ByteBuffer header = ByteBuffer.allocate(LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(options.reverse ? FLAG_REVERSE : 0);
+        header.putInt(options.time);
+        header.putInt(options.length);
+        header.flip();
+        return header;
+    }
+}
+
 class Client {
-    static void run(String host, int portNumber, int time) throws IOException {
-        long startTime = System.currentTimeMillis();
+    static void run(final Options options) throws IOException {
+        final AtomicLong[] counters = new AtomicLong[options.streams];
+        List<Thread> threads = new ArrayList<Thread>();
+        final long startTime = System.nanoTime();
+        final long endTime = startTime + options.time * 1000000000L;
 
-        Socket clientSoc = new Socket(host, portNumber);
-        OutputStream outStream = clientSoc.getOutputStream();
+        for (int i = 0; i < options.streams; i++) {
+            final SocketChannel channel = SocketChannel.open(
+                    new InetSocketAddress(options.host, options.port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer header = StreamHeader.create(options);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
 
-        long sentByte = 0;
-        byte[] data = new byte[1000];
+            final AtomicLong counter = counters[i] = new AtomicLong();
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if (options.reverse) {
+                            receive(channel, options, counter);
+                        } else {
+                            send(channel, options, counter, endTime);
+                        }
+                        channel.close();
+                    } catch (IOException e) {
+                        System.out.println("Error: " + e.getMessage());
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
 
-        while (System.currentTimeMillis() - startTime <= time * 1000) {
-            outStream.write(data);
-            sentByte += data.length;
+        reportIntervals(options, counters, threads, startTime, options.reverse ? "received" : "sent");
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        if (!options.reverse) {
+            // Match the original client, which reports over the requested time
+            seconds = options.time;
         }
+        System.out.println(Report.format(options.reverse ? "received" : "sent", sum(counters), seconds));
+    }
+
+    private static void send(SocketChannel channel, Options options, AtomicLong counter, long endTime)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(options.length);
+        while (System.nanoTime() <= endTime) {
+            data.clear();
+            while (data.hasRemaining()) {
+                counter.addAndGet(channel.write(data));
+            }
+        }
+    }
+
+    static void receive(SocketChannel channel, Options options, AtomicLong counter) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(Math.max(options.length, 64 * 1024));
+        int bytesRead;
+        while ((bytesRead = channel.read(data)) != -1) {
+            counter.addAndGet(bytesRead);
+            data.clear();
+        }
+    }
 
-        System.out.printf("sent=%d KB\trate=%.3f Mbps\n", (int) (sentByte / 1000), sentByte / 1000.0 / 1000 * 8 / time);
+    /**
+     * Wait for the streams to finish, printing per-stream and summed byte counts every interval.
+     */
+    static void reportIntervals(Options options, AtomicLong[] counters, List<Thread> threads,
+            long startTime, String verb) {
+        long intervalNanos = (long) (options.interval * 1e9);
+        long[] last = new long[counters.length];
+        long nextReport = startTime + intervalNanos;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    if (intervalNanos > 0) {
+                        long wait = nextReport - System.nanoTime();
+                        if (wait > 0) {
+                            thread.join(wait / 1000000, (int) (wait % 1000000));
+                        }
+                        if (System.nanoTime() >= nextReport) {
+                            printInterval(counters, last, (nextReport - startTime - intervalNanos) / 1e9,
+                                    (nextReport - startTime) / 1e9, verb);
+                            nextReport += intervalNanos;
+                        }
+                    } else {
+                        thread.join();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
 
-        clientSoc.close();
+    private static void printInterval(AtomicLong[] counters, long[] last, double from, double to, String verb) {
+        long total = 0;
+        for (int i = 0; i < counters.length; i++) {
+            long bytes = counters[i].get();
+            System.out.println(Report.interval(Integer.toString(i + 1), from, to, verb, bytes - last[i]));
+            total += bytes - last[i];
+            last[i] = bytes;
+        }
+        if (counters.length > 1) {
+            System.out.println(Report.interval("SUM", from, to, verb, total));
+        }
+    }
+
+    static long sum(AtomicLong[] counters) {
+        long total = 0;
+        for (AtomicLong counter : counters) {
+            total += counter.get();
+        }
+        return total;
     }
 }
 
+/**
+ * Sends paced datagrams carrying a sequence number and send time, and ends each stream with
+ * a few FIN datagrams that carry the number of datagrams sent.
+ */
+class UdpClient {
+    static final int MAGIC = 0x49505544;
+    static final int HEADER_LENGTH = 16;
+    static final int FIN = -1;
+    private static final int FIN_COUNT = 10;
+
+    static void run(final Options options) throws IOException {
+        final AtomicLong[] counters = new AtomicLong[options.streams];
+        List<Thread> threads = new ArrayList<Thread>();
+        final long startTime = System.nanoTime();
+        final long endTime = startTime + options.time * 1000000000L;
+        final InetSocketAddress server = new InetSocketAddress(options.host, options.port);
+
+        for (int i = 0; i < options.streams; i++) {
+            final DatagramChannel channel = DatagramChannel.open();
+            channel.connect(server);
+            final AtomicLong counter = counters[i] = new AtomicLong();
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        send(channel, options, counter, startTime, endTime);
+                        channel.close();
+                    } catch (IOException e) {
+                        System.out.println("Error: " + e.getMessage());
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        Client.reportIntervals(options, counters, threads, startTime, "sent");
+        System.out.println(Report.format("sent", Client.sum(counters), options.time));
+    }
+
+    private static void send(DatagramChannel channel, Options options, AtomicLong counter,
+            long startTime, long endTime) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(options.length);
+        double nanosPerDatagram = options.length * 8 * 1000.0 / options.bandwidth;
+        int seq = 0;
+        long now;
+        while ((now = System.nanoTime()) <= endTime) {
+            long due = startTime + (long) (seq * nanosPerDatagram);
+            if (due > now) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+            data.clear();
+            data.putInt(MAGIC).putInt(seq++).putLong(System.nanoTime());
+            data.position(0);
+            counter.addAndGet(channel.write(data));
+        }
+
+        for (int i = 0; i < FIN_COUNT; i++) {
+            data.clear();
+            data.putInt(MAGIC).putInt(FIN).putLong(seq);
+            data.flip();
+            channel.write(data);
+            LockSupport.parkNanos(10000000);
+        }
+    }
+}
+
+/**
+ * Accepts any number of TCP clients and UDP senders on one port, serving all of them from a
+ * single thread through a {@link Selector}.
+ */
 class Server {
-    static void run(int serverPort) throws IOException {
-        ServerSocket serverSoc = new ServerSocket(serverPort);
-        Socket clientSoc = serverSoc.accept();
-        long startTime = System.currentTimeMillis();
+    static void run(Options options) throws IOException {
+        Selector selector = Selector.open();
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(options.port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        DatagramChannel udpChannel = DatagramChannel.open();
+        udpChannel.bind(new InetSocketAddress(options.port));
+        udpChannel.configureBlocking(false);
+        udpChannel.register(selector, SelectionKey.OP_READ);
+
+        ByteBuffer data = ByteBuffer.allocateDirect(Math.max(options.length, 64 * 1024));
+        Map<SocketAddress, UdpStream> udpStreams = new HashMap<SocketAddress, UdpStream>();
+        long intervalNanos = (long) (options.interval * 1e9);
+        long nextReport = System.nanoTime() + intervalNanos;
+        int nextId = 1;
+
+        while (true) {
+            long timeout = 0;
+            if (intervalNanos > 0) {
+                timeout = Math.max(1, (nextReport - System.nanoTime()) / 1000000);
+            }
+            selector.select(timeout);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    SocketChannel channel = serverChannel.accept();
+                    if (channel != null) {
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ, new TcpStream(nextId++));
+                    }
+                } else if (key.channel() == udpChannel) {
+                    SocketAddress source;
+                    while ((source = udpChannel.receive(data)) != null) {
+                        data.flip();
+                        UdpStream stream = udpStreams.get(source);
+                        if (stream == null && UdpStream.isFin(data)) {
+                            // Repeated FIN from a sender we already reported
+                            data.clear();
+                            continue;
+                        }
+                        if (stream == null) {
+                            stream = new UdpStream(nextId++, source);
+                            udpStreams.put(source, stream);
+                        }
+                        if (stream.receive(data)) {
+                            stream.printTotal();
+                            udpStreams.remove(source);
+                        }
+                        data.clear();
+                    }
+                } else {
+                    ((TcpStream) key.attachment()).handle(key, data);
+                }
+            }
+
+            if (intervalNanos > 0 && System.nanoTime() >= nextReport) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof TcpStream) {
+                        ((TcpStream) key.attachment()).printInterval();
+                    }
+                }
+                for (UdpStream stream : udpStreams.values()) {
+                    stream.printInterval();
+                }
+                nextReport += intervalNanos;
+            }
+        }
+    }
+}
+
+class TcpStream {
+    private final int id;
+    private final ByteBuffer header = ByteBuffer.allocate(StreamHeader.LENGTH);
+    private ByteBuffer sendBuffer;
+    private long startTime;
+    private long endTime;
+    private long bytes;
+    private long intervalStart;
+    private long intervalBytes;
+    private boolean reverse;
+
+    TcpStream(int id) {
+        this.id = id;
+        this.startTime = this.intervalStart = System.nanoTime();
+    }
+
+    void handle(SelectionKey key, ByteBuffer data) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isReadable()) {
+                read(key, channel, data);
+            } else if (key.isWritable()) {
+                write(key, channel);
+            }
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    private void read(SelectionKey key, SocketChannel channel, ByteBuffer data) throws IOException {
+        if (header.hasRemaining()) {
+            if (channel.read(header) < 0) {
+                close(key);
+                return;
+            }
+            if (header.hasRemaining()) {
+                return;
+            }
+            header.flip();
+            if (header.getInt() == StreamHeader.MAGIC) {
+                reverse = (header.getInt() & StreamHeader.FLAG_REVERSE) != 0;
+                endTime = System.nanoTime() + header.getInt() * 1000000000L;
+                sendBuffer = ByteBuffer.allocateDirect(header.getInt());
+                if (reverse) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            } else {
+                // Old client without a header: the bytes were data
+                count(StreamHeader.LENGTH);
+            }
+        }
+
+        int bytesRead;
+        while ((bytesRead = channel.read(data)) > 0) {
+            count(bytesRead);
+            data.clear();
+        }
+        data.clear();
+        if (bytesRead < 0) {
+            close(key);
+        }
+    }
+
+    private void write(SelectionKey key, SocketChannel channel) throws IOException {
+        if (System.nanoTime() > endTime) {
+            close(key);
+            return;
+        }
+        int written;
+        do {
+            if (!sendBuffer.hasRemaining()) {
+                sendBuffer.clear();
+            }
+            written = channel.write(sendBuffer);
+            count(written);
+        } while (written > 0 && System.nanoTime() <= endTime);
+    }
 
-        DataInputStream inStream = new DataInputStream(clientSoc.getInputStream());
+    private void count(long n) {
+        bytes += n;
+        intervalBytes += n;
+    }
 
-        byte[] data = new byte[1000];
+    private void close(SelectionKey key) throws IOException {
+        key.cancel();
+        key.channel().close();
+        System.out.println(String.format("[%4d] %s", id,
+                Report.format(reverse ? "sent" : "received", bytes, (System.nanoTime() - startTime) / 1e9)));
+    }
+
+    void printInterval() {
+        long now = System.nanoTime();
+        System.out.println(Report.interval(Integer.toString(id), (intervalStart - startTime) / 1e9,
+                (now - startTime) / 1e9, reverse ? "sent" : "received", intervalBytes));
+        intervalStart = now;
+        intervalBytes = 0;
+    }
+}
 
-        long getByte = 0;
-        long readBytes;
-        while ((readBytes = inStream.read(data)) != -1) {
-            getByte += readBytes;
+/**
+ * Receive statistics for one UDP sender: loss from sequence gaps, reordering, and interarrival
+ * jitter as defined in RFC 3550.
+ */
+class UdpStream {
+    private final int id;
+    private final SocketAddress source;
+    private final long startTime;
+    private long bytes;
+    private long datagrams;
+    private int nextSeq;
+    private long outOfOrder;
+    private long sent = -1;
+    private long lastTransit;
+    private double jitter;
+    private long intervalStart;
+    private long intervalBytes;
+
+    UdpStream(int id, SocketAddress source) {
+        this.id = id;
+        this.source = source;
+        this.startTime = this.intervalStart = System.nanoTime();
+    }
+
+    static boolean isFin(ByteBuffer data) {
+        return data.remaining() >= UdpClient.HEADER_LENGTH
+                && data.getInt(data.position() + 4) == UdpClient.FIN;
+    }
+
+    /**
+     * @return true if the sender has finished
+     */
+    boolean receive(ByteBuffer data) {
+        long arrival = System.nanoTime();
+        if (data.remaining() < UdpClient.HEADER_LENGTH || data.getInt() != UdpClient.MAGIC) {
+            return false;
+        }
+        int seq = data.getInt();
+        long sendTime = data.getLong();
+        if (seq == UdpClient.FIN) {
+            sent = sendTime;
+            return true;
         }
 
-        long endTime = System.currentTimeMillis();
-        long time = endTime - startTime;
+        bytes += data.limit();
+        intervalBytes += data.limit();
+        datagrams++;
+        if (seq < nextSeq) {
+            outOfOrder++;
+        } else {
+            nextSeq = seq + 1;
+        }
+
+        // Sender and receiver clocks differ, but the offset cancels out
+        long transit = arrival - sendTime;
+        if (datagrams > 1) {
+            jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+        }
+        lastTransit = transit;
+        return false;
+    }
 
-        System.out.printf("received=%d KB\trate=%.3f Mbps\n", (int) (getByte / 1000), getByte / 1000.0 * 8 / time);
+    void printTotal() {
+        long expected = sent >= 0 ? sent : nextSeq;
+        long lost = Math.max(0, expected - datagrams);
+        System.out.println(String.format("[%4d] %s\tjitter=%.3f ms\tlost=%d/%d (%.2f%%)\tout-of-order=%d\tfrom %s",
+                id, Report.format("received", bytes, (System.nanoTime() - startTime) / 1e9), jitter / 1e6,
+                lost, expected, expected > 0 ? 100.0 * lost / expected : 0.0, outOfOrder, source));
+    }
 
-        clientSoc.close();
-        serverSoc.close();
+    void printInterval() {
+        long now = System.nanoTime();
+        System.out.println(String.format("%s\tjitter=%.3f ms", Report.interval(Integer.toString(id),
+                (intervalStart - startTime) / 1e9, (now - startTime) / 1e9, "received", intervalBytes),
+                jitter / 1e6));
+        intervalStart = now;
+        intervalBytes = 0;
     }
-}
\ No newline at end of file
+}
@@ -24,6 +24,9 @@ public abstract class Device
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
 	
+	/** Timers for the device's tables and protocols */
+	private TimerWheel timers;
+	
 	/**
 	 * Creates a device.
 	 * @param host hostname for the device
@@ -35,6 +38,7 @@ public abstract class Device
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
 		this.vnsComm = null;
+		this.timers = new TimerWheel(host + "-timers");
 	}
 	
 	/**
@@ -64,6 +68,12 @@ public abstract class Device
 	public Map<String,Iface> getInterfaces()
 	{ return this.interfaces; }
 	
+	/**
+	 * @return timing wheel that runs the device's timers
+	 */
+	public TimerWheel getTimers()
+	{ return this.timers; }
+	
 	/**
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
@@ -71,10 +81,12 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * Stop the device's timers and close the PCAP dump file for the router,
+	 * if logging is enabled.
 	 */
 	public void destroy()
 	{
+		this.timers.stop();
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -112,5 +124,32 @@ public abstract class Device
 		return this.vnsComm.sendPacket(etherPacket, iface.getName()); 
 	}
 	
+	/**
+	 * Send a raw Ethernet frame out a specific interface without building a
+	 * packet object.
+	 * @param frame buffer holding the frame; may be reused once this returns
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, Iface iface)
+	{ return this.vnsComm.sendFrame(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface before it
+	 * is parsed. Devices may override this to process common packets without
+	 * building packet objects; the frame may be modified and sent in place.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed and
+	 *         passed to {@link #handlePacket}
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -1,13 +1,29 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import net.floodlightcontroller.packet.Ethernet;
 
-public class DumpFile
+/**
+ * Packet capture file in pcap or pcapng format. Dumping a frame only copies
+ * it into a ring buffer; a background thread moves the frames from the ring
+ * into the file in large writes. Frames are dropped and counted when the
+ * ring is full. The capture can optionally move on to a new file once the
+ * current one reaches a size or age; files after the first get a numeric
+ * suffix.
+ */
+public class DumpFile implements Runnable
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
 	private static final short PCAP_VERSION_MAJOR = 2;
@@ -16,92 +32,435 @@ public class DumpFile
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
-	
-	private FileOutputStream fileStream;
-	DataOutputStream outStream;
-	
-	private DumpFile(FileOutputStream fileStream)
+
+	private static final int PCAPNG_SECTION_HEADER = 0x0a0d0d0a;
+	private static final int PCAPNG_INTERFACE_DESCRIPTION = 1;
+	private static final int PCAPNG_ENHANCED_PACKET = 6;
+	private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+	private static final short PCAPNG_OPTION_IF_NAME = 2;
+
+	/** Name recorded for frames dumped without an interface */
+	private static final String DEFAULT_IFACE = "vnet";
+
+	/** Size of the ring buffer; a power of two */
+	private static final int RING_SIZE = 4 * 1024 * 1024;
+
+	/** Ring record header: captured length, original length, interface id,
+	 *  and timestamp (in microseconds) */
+	private static final int RECORD_HEADER = 4 + 4 + 4 + 8;
+
+	/** Marks the unused end of the ring when a record did not fit there */
+	private static final int SKIP = -1;
+
+	/** Size of the buffer the writer fills before each write to the file */
+	private static final int OUT_SIZE = 256 * 1024;
+
+	/** Time (in nanoseconds) the writer waits between batches, unless the
+	 *  ring is more than half full */
+	private static final long WRITE_INTERVAL = 10 * 1000 * 1000;
+
+	private final String filename;
+	private final boolean pcapng;
+	private final long rotateBytes;
+	private final long rotateMillis;
+
+	private final byte[] ring;
+	private final ByteBuffer ringView;
+
+	/** Total bytes ever added to and removed from the ring */
+	private volatile long head;
+	private volatile long tail;
+
+	private final AtomicLong dropped;
+
+	/** Interface ids by name, and names by id */
+	private final Map<String,Integer> ifaceIds;
+	private final List<String> ifaceNames;
+
+	/** State of the current file; only used by the writer thread */
+	private WritableByteChannel channel;
+	private final ByteBuffer out;
+	private int fileIndex;
+	private long fileBytes;
+	private long fileOpened;
+	private final BitSet describedIfaces;
+
+	private final Thread writer;
+	private volatile boolean closed;
+
+	private DumpFile(String filename, boolean pcapng, long rotateBytes,
+			long rotateSeconds)
 	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
+		this.filename = filename;
+		this.pcapng = pcapng;
+		this.rotateBytes = rotateBytes;
+		this.rotateMillis = rotateSeconds * 1000;
+		this.ring = new byte[RING_SIZE];
+		this.ringView = ByteBuffer.wrap(this.ring);
+		this.head = 0;
+		this.tail = 0;
+		this.dropped = new AtomicLong();
+		this.ifaceIds = new ConcurrentHashMap<String,Integer>();
+		this.ifaceNames = new ArrayList<String>();
+		this.out = ByteBuffer.allocateDirect(OUT_SIZE);
+		this.fileIndex = 0;
+		this.describedIfaces = new BitSet();
+		this.writer = new Thread(this, "pcap-writer");
+		this.writer.setDaemon(true);
 	}
-	
-	private DumpFile()
+
+	/**
+	 * Open a pcap file that is never rotated.
+	 * @param filename name of the file; "-" for standard output
+	 * @return the dump file, or null if it could not be opened
+	 */
+	public static DumpFile open(String filename)
+	{ return open(filename, false, 0, 0); }
+
+	/**
+	 * Open a capture file.
+	 * @param filename name of the file; "-" for standard output, which is
+	 *        never rotated
+	 * @param pcapng true to write pcapng, recording the interface of each
+	 *        frame; false to write pcap
+	 * @param rotateBytes size (in bytes) after which to start a new file; 0
+	 *        to never rotate by size
+	 * @param rotateSeconds age (in seconds) after which to start a new file;
+	 *        0 to never rotate by age
+	 * @return the dump file, or null if it could not be opened
+	 */
+	public static DumpFile open(String filename, boolean pcapng,
+			long rotateBytes, long rotateSeconds)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		DumpFile dumpFile = new DumpFile(filename, pcapng, rotateBytes,
+				rotateSeconds);
+		if (!dumpFile.openFile())
+		{ return null; }
+		dumpFile.writer.start();
+		return dumpFile;
 	}
-	
-	public static DumpFile open(String filename)
+
+	/**
+	 * @return number of frames dropped because the ring buffer was full
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	public void dump(Ethernet etherPacket)
 	{
-		DumpFile dumpFile = null;
-		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
-		else
+		byte[] buf = etherPacket.serialize();
+		this.dump(buf, 0, buf.length);
+	}
+
+	public void dump(byte[] buf, int offset, int length)
+	{ this.dump(buf, offset, length, null); }
+
+	/**
+	 * Record a frame. The frame is copied, so the buffer may be reused as
+	 * soon as this returns.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface the frame was sent or received
+	 *        on; null if unknown
+	 */
+	public void dump(byte[] buf, int offset, int length, String ifaceName)
+	{
+		int ifaceId = this.ifaceId(ifaceName);
+		long time = System.currentTimeMillis() * 1000;
+		int captured = Math.min(length, SNAP_LEN);
+		int size = RECORD_HEADER + captured;
+
+		synchronized (this.ring)
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			long start = this.head;
+			int index = (int)(start & (RING_SIZE - 1));
+
+			// Records never wrap; skip the end of the ring if it is too short
+			int skip = (RING_SIZE - index < size) ? RING_SIZE - index : 0;
+			if (this.closed || start + skip + size - this.tail > RING_SIZE)
 			{
-				System.err.println("Cannot open " + filename);
-				return null;
+				this.dropped.incrementAndGet();
+				return;
 			}
+			if (skip > 0)
+			{
+				if (skip >= 4)
+				{ this.ringView.putInt(index, SKIP); }
+				index = 0;
+			}
+
+			this.ringView.putInt(index, captured);
+			this.ringView.putInt(index + 4, length);
+			this.ringView.putInt(index + 8, ifaceId);
+			this.ringView.putLong(index + 12, time);
+			System.arraycopy(buf, offset, this.ring, index + RECORD_HEADER,
+					captured);
+			this.head = start + skip + size;
+		}
+	}
+
+	/**
+	 * Write the frames still in the ring buffer and close the file.
+	 */
+	public void close()
+	{
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		if (this.getDropped() > 0)
+		{
+			System.err.println(String.format("%d packets dropped from %s",
+					this.getDropped(), this.filename));
 		}
-		
-		if (!dumpFile.writeHeader())
-		{ return null; }
-		return dumpFile;
 	}
-	
-	private boolean writeHeader()
-	{        
-		try 
+
+	/**
+	 * Move frames from the ring buffer to the file until the file is closed.
+	 */
+	public void run()
+	{
+		try
 		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
-			this.outStream.writeShort(PCAP_VERSION_MAJOR);
-			this.outStream.writeShort(PCAP_VERSION_MINOR);
-			this.outStream.writeInt(THIS_ZONE);
-			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
-			this.outStream.writeInt(LINKTYPE_ETHERNET);
-	        this.outStream.flush();
-	        return true;
+			while (true)
+			{
+				boolean stopping = this.closed;
+				this.drainRing();
+				this.flush();
+				if (stopping)
+				{ break; }
+				if (this.head - this.tail < RING_SIZE / 2)
+				{ LockSupport.parkNanos(WRITE_INTERVAL); }
+			}
 		}
 		catch (IOException e)
 		{
-			e.printStackTrace();
-			return false;
+			System.err.println("Error writing " + this.filename + ": " + e);
+			this.closed = true;
+		}
+		this.closeFile();
+	}
+
+	private void drainRing() throws IOException
+	{
+		long position = this.tail;
+		long end = this.head;
+		while (position < end)
+		{
+			int index = (int)(position & (RING_SIZE - 1));
+			if (RING_SIZE - index < RECORD_HEADER
+					|| this.ringView.getInt(index) == SKIP)
+			{
+				position += RING_SIZE - index;
+				continue;
+			}
+
+			int captured = this.ringView.getInt(index);
+			int length = this.ringView.getInt(index + 4);
+			int ifaceId = this.ringView.getInt(index + 8);
+			long time = this.ringView.getLong(index + 12);
+			this.rotateIfNeeded();
+			this.writeRecord(index + RECORD_HEADER, captured, length, ifaceId,
+					time);
+
+			position += RECORD_HEADER + captured;
+			// The record has been copied out, so its space can be reused
+			this.tail = position;
 		}
+		this.tail = position;
+	}
 
+	private void writeRecord(int index, int captured, int length, int ifaceId,
+			long time) throws IOException
+	{
+		if (this.pcapng)
+		{
+			if (!this.describedIfaces.get(ifaceId))
+			{
+				this.writeInterfaceDescription(ifaceId);
+				this.describedIfaces.set(ifaceId);
+			}
+			int padded = (captured + 3) & ~3;
+			int blockLength = 32 + padded;
+			this.reserve(blockLength);
+			this.out.putInt(PCAPNG_ENHANCED_PACKET);
+			this.out.putInt(blockLength);
+			this.out.putInt(ifaceId);
+			this.out.putInt((int)(time >>> 32));
+			this.out.putInt((int)time);
+			this.out.putInt(captured);
+			this.out.putInt(length);
+			this.out.put(this.ring, index, captured);
+			for (int i = captured; i < padded; i++)
+			{ this.out.put((byte)0); }
+			this.out.putInt(blockLength);
+		}
+		else
+		{
+			this.reserve(16 + captured);
+			this.out.putInt((int)(time / 1000000));
+			this.out.putInt((int)(time % 1000000));
+			this.out.putInt(captured);
+			this.out.putInt(length);
+			this.out.put(this.ring, index, captured);
+		}
 	}
-	
-	public void dump(Ethernet etherPacket)
+
+	private void writeInterfaceDescription(int ifaceId) throws IOException
 	{
-		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		String name;
+		synchronized (this.ifaceNames)
+		{ name = this.ifaceNames.get(ifaceId); }
+		byte[] nameBytes = name.getBytes();
+		int padded = (nameBytes.length + 3) & ~3;
+		int blockLength = 20 + 4 + padded + 4;
+		this.reserve(blockLength);
+		this.out.putInt(PCAPNG_INTERFACE_DESCRIPTION);
+		this.out.putInt(blockLength);
+		this.out.putShort((short)LINKTYPE_ETHERNET);
+		this.out.putShort((short)0);
+		this.out.putInt(SNAP_LEN);
+		this.out.putShort(PCAPNG_OPTION_IF_NAME);
+		this.out.putShort((short)nameBytes.length);
+		this.out.put(nameBytes);
+		for (int i = nameBytes.length; i < padded; i++)
+		{ this.out.put((byte)0); }
+		this.out.putInt(0);
+		this.out.putInt(blockLength);
+	}
+
+	/**
+	 * Make room for a number of bytes in the output buffer.
+	 */
+	private void reserve(int bytes) throws IOException
+	{
+		if (this.out.remaining() < bytes)
+		{ this.flush(); }
+		this.fileBytes += bytes;
+	}
+
+	private void flush() throws IOException
+	{
+		this.out.flip();
+		while (this.out.hasRemaining())
+		{ this.channel.write(this.out); }
+		this.out.clear();
+	}
+
+	private void rotateIfNeeded() throws IOException
+	{
+		if (this.filename.equals("-"))
+		{ return; }
+		boolean full = this.rotateBytes > 0
+				&& this.fileBytes >= this.rotateBytes;
+		boolean old = this.rotateMillis > 0
+				&& System.currentTimeMillis() - this.fileOpened
+					>= this.rotateMillis;
+		if (!full && !old)
+		{ return; }
+
+		this.flush();
+		this.closeFile();
+		this.fileIndex++;
+		if (!this.openFile())
+		{ throw new IOException("cannot open next capture file"); }
+	}
+
+	private boolean openFile()
+	{
+		if (this.filename.equals("-"))
+		{ this.channel = Channels.newChannel(System.out); }
+		else
+		{
+			String name = (0 == this.fileIndex) ? this.filename
+					: this.filename + "." + this.fileIndex;
+			try
+			{ this.channel = new FileOutputStream(name).getChannel(); }
+			catch (IOException e)
+			{
+				System.err.println("Cannot open " + name);
+				return false;
+			}
+		}
+		this.fileBytes = 0;
+		this.fileOpened = System.currentTimeMillis();
+		this.describedIfaces.clear();
+
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			this.writeHeader();
+			this.flush();
+			return true;
 		}
 		catch (IOException e)
-		{ e.printStackTrace(); }
+		{
+			e.printStackTrace();
+			return false;
+		}
 	}
-	
-	public void close()
+
+	private void writeHeader() throws IOException
+	{
+		if (this.pcapng)
+		{
+			this.reserve(28);
+			this.out.putInt(PCAPNG_SECTION_HEADER);
+			this.out.putInt(28);
+			this.out.putInt(PCAPNG_BYTE_ORDER_MAGIC);
+			this.out.putShort((short)1);
+			this.out.putShort((short)0);
+			// Section length is not known in advance
+			this.out.putLong(-1);
+			this.out.putInt(28);
+		}
+		else
+		{
+			this.reserve(24);
+			this.out.putInt(TCPDUMP_MAGIC);
+			this.out.putShort(PCAP_VERSION_MAJOR);
+			this.out.putShort(PCAP_VERSION_MINOR);
+			this.out.putInt(THIS_ZONE);
+			this.out.putInt(SIG_FIGS);
+			this.out.putInt(SNAP_LEN);
+			this.out.putInt(LINKTYPE_ETHERNET);
+		}
+	}
+
+	private void closeFile()
 	{
 		try
 		{
-			this.outStream.flush();
-			if (this.fileStream != null)
-			{ this.outStream.close(); }
+			if (this.filename.equals("-"))
+			{ System.out.flush(); }
+			else
+			{ this.channel.close(); }
 		}
 		catch(IOException e) { }
 	}
+
+	/**
+	 * @return the id for an interface, assigning the next one if needed
+	 */
+	private int ifaceId(String ifaceName)
+	{
+		if (null == ifaceName)
+		{ ifaceName = DEFAULT_IFACE; }
+		Integer id = this.ifaceIds.get(ifaceName);
+		if (id != null)
+		{ return id; }
+		synchronized (this.ifaceNames)
+		{
+			id = this.ifaceIds.get(ifaceName);
+			if (null == id)
+			{
+				id = this.ifaceNames.size();
+				this.ifaceNames.add(ifaceName);
+				this.ifaceIds.put(ifaceName, id);
+			}
+			return id;
+		}
+	}
 }
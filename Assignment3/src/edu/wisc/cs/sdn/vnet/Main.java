@@ -17,6 +17,9 @@ public class Main
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		boolean pcapng = false;
+		long rotateBytes = 0;
+		long rotateSeconds = 0;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -38,6 +41,12 @@ public class Main
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
+			else if (arg.equals("-n"))
+			{ pcapng = true; }
+			else if (arg.equals("-C"))
+			{ rotateBytes = Long.parseLong(args[++i]) * 1000 * 1000; }
+			else if (arg.equals("-G"))
+			{ rotateSeconds = Long.parseLong(args[++i]); }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
@@ -54,7 +63,7 @@ public class Main
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = DumpFile.open(logfile, pcapng, rotateBytes, rotateSeconds);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -110,6 +119,7 @@ public class Main
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-n] [-C file_size_MB] [-G rotate_seconds]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
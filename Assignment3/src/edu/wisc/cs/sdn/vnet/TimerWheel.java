@@ -0,0 +1,298 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel that runs the timers of a device, such as ARP
+ * retries, MAC table aging, and RIP updates, on a single driver thread.
+ * Scheduling and cancelling a timer take constant time regardless of how
+ * many timers are pending. Each level of the wheel has 64 slots; a timer is
+ * placed on the lowest level that can hold its deadline and moves down a
+ * level each time the slot it is in comes around. Timers run on the driver
+ * thread and should be short.
+ */
+public class TimerWheel implements Runnable
+{
+	/** Resolution (in milliseconds) of the wheel */
+	public static final long TICK = 100;
+
+	private static final int WHEEL_BITS = 6;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int LEVELS = 4;
+
+	/** Furthest deadline (in ticks from now) the wheel can hold; later
+	 * timers wait on the top level and are placed again when it turns */
+	private static final long MAX_TICKS = 1L << (WHEEL_BITS * LEVELS);
+
+	/** Sentinel heads of the slot lists, by level then slot */
+	private final Timeout[][] slots;
+
+	/** Time (in nanoseconds) at which the wheel started */
+	private final long startTime;
+
+	/** Next tick to be processed; guarded by the wheel's lock */
+	private long tick;
+
+	/** Thread that advances the wheel and runs expired timers */
+	private final Thread driver;
+
+	private volatile boolean running;
+
+	/**
+	 * Create a timing wheel and start its driver thread.
+	 * @param name name of the driver thread
+	 */
+	public TimerWheel(String name)
+	{
+		this.slots = new Timeout[LEVELS][WHEEL_SIZE];
+		for (int level = 0; level < LEVELS; level++)
+		{
+			for (int slot = 0; slot < WHEEL_SIZE; slot++)
+			{ this.slots[level][slot] = new Timeout(null, 0); }
+		}
+		this.startTime = System.nanoTime();
+		this.tick = 0;
+		this.running = true;
+		this.driver = new Thread(this, name);
+		this.driver.setDaemon(true);
+		this.driver.start();
+	}
+
+	/**
+	 * Run a task once after a delay.
+	 * @param delay time (in milliseconds) to wait before running the task
+	 * @param task task to run on the driver thread
+	 * @return a handle for cancelling the task
+	 */
+	public Timeout schedule(long delay, Runnable task)
+	{ return this.schedule(delay, 0, task); }
+
+	/**
+	 * Run a task repeatedly at a fixed rate.
+	 * @param delay time (in milliseconds) to wait before the first run
+	 * @param period time (in milliseconds) between the start of each run
+	 * @param task task to run on the driver thread
+	 * @return a handle for cancelling all future runs of the task
+	 */
+	public Timeout scheduleAtFixedRate(long delay, long period, Runnable task)
+	{
+		if (period <= 0)
+		{ throw new IllegalArgumentException("period must be positive"); }
+		return this.schedule(delay, period, task);
+	}
+
+	private Timeout schedule(long delay, long period, Runnable task)
+	{
+		if (null == task)
+		{ throw new NullPointerException("task"); }
+		Timeout timeout = new Timeout(task, ticks(period));
+		long now = this.elapsed();
+		// Round up, so a timer never runs early
+		timeout.deadline = (now + Math.max(delay, 0) + TICK - 1) / TICK;
+		synchronized (this)
+		{ this.insert(timeout); }
+		return timeout;
+	}
+
+	/**
+	 * Stop the driver thread; pending timers never run.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		this.driver.interrupt();
+	}
+
+	/**
+	 * Advance the wheel every tick and run the timers that expire.
+	 */
+	public void run()
+	{
+		List<Timeout> expired = new ArrayList<Timeout>();
+		while (this.running)
+		{
+			long now = this.elapsed();
+			synchronized (this)
+			{
+				while (this.tick * TICK <= now)
+				{
+					this.cascade();
+					this.drain(this.slots[0][(int)(this.tick & WHEEL_MASK)],
+							expired);
+					this.tick++;
+				}
+			}
+
+			for (Timeout timeout : expired)
+			{ this.fire(timeout); }
+			expired.clear();
+
+			long wait = this.tick * TICK - this.elapsed();
+			try
+			{
+				if (wait > 0)
+				{ Thread.sleep(wait); }
+			}
+			catch (InterruptedException e)
+			{ break; }
+		}
+	}
+
+	private void fire(Timeout timeout)
+	{
+		try
+		{ timeout.task.run(); }
+		catch (RuntimeException e)
+		{
+			System.err.println("Timer task failed: " + e);
+			e.printStackTrace();
+		}
+
+		if (timeout.period > 0)
+		{
+			synchronized (this)
+			{
+				if (!timeout.cancelled)
+				{
+					timeout.deadline += timeout.period;
+					this.insert(timeout);
+				}
+			}
+		}
+	}
+
+	/**
+	 * When the current tick completes a turn of one or more levels, move the
+	 * timers in the next slot of each such level down the wheel.
+	 * Caller must hold the wheel's lock.
+	 */
+	private void cascade()
+	{
+		List<Timeout> moved = null;
+		for (int level = 1; level < LEVELS; level++)
+		{
+			if ((this.tick & ((1L << (WHEEL_BITS * level)) - 1)) != 0)
+			{ break; }
+			int slot = (int)((this.tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+			if (null == moved)
+			{ moved = new ArrayList<Timeout>(); }
+			this.drain(this.slots[level][slot], moved);
+		}
+
+		if (moved != null)
+		{
+			for (Timeout timeout : moved)
+			{ this.insert(timeout); }
+		}
+	}
+
+	/**
+	 * Remove every timer in a slot. Caller must hold the wheel's lock.
+	 */
+	private void drain(Timeout head, List<Timeout> timeouts)
+	{
+		Timeout timeout = head.next;
+		while (timeout != head)
+		{
+			Timeout next = timeout.next;
+			timeout.prev = null;
+			timeout.next = null;
+			timeouts.add(timeout);
+			timeout = next;
+		}
+		head.prev = head;
+		head.next = head;
+	}
+
+	/**
+	 * Add a timer to the slot for its deadline. Caller must hold the wheel's
+	 * lock.
+	 */
+	private void insert(Timeout timeout)
+	{
+		long deadline = Math.max(timeout.deadline, this.tick);
+		long delta = Math.min(deadline - this.tick, MAX_TICKS - 1);
+		int level = 0;
+		while (delta >= (1L << (WHEEL_BITS * (level + 1))))
+		{ level++; }
+		int slot = (int)(((this.tick + delta) >>> (WHEEL_BITS * level))
+				& WHEEL_MASK);
+
+		Timeout head = this.slots[level][slot];
+		timeout.prev = head.prev;
+		timeout.next = head;
+		head.prev.next = timeout;
+		head.prev = timeout;
+	}
+
+	/**
+	 * @return time (in milliseconds) since the wheel started
+	 */
+	private long elapsed()
+	{ return (System.nanoTime() - this.startTime) / 1000000; }
+
+	private static long ticks(long millis)
+	{ return (millis + TICK - 1) / TICK; }
+
+	/**
+	 * A pending timer.
+	 */
+	public class Timeout
+	{
+		private final Runnable task;
+
+		/** Ticks between runs; 0 if the timer only runs once */
+		private final long period;
+
+		/** Tick at which the timer next expires */
+		private long deadline;
+
+		private boolean cancelled;
+
+		/** Neighbours in the slot list; null if the timer is not pending */
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task, long period)
+		{
+			this.task = task;
+			this.period = period;
+			this.prev = this;
+			this.next = this;
+		}
+
+		/**
+		 * Cancel the timer. A timer that is already running is not
+		 * interrupted, but a periodic timer will not run again.
+		 * @return true if the timer was pending and will now never run,
+		 *         false if it already ran or was cancelled
+		 */
+		public boolean cancel()
+		{
+			synchronized (TimerWheel.this)
+			{
+				if (this.cancelled)
+				{ return false; }
+				this.cancelled = true;
+				if (null == this.next)
+				{ return false; }
+				this.prev.next = this.next;
+				this.next.prev = this.prev;
+				this.prev = null;
+				this.next = null;
+				return true;
+			}
+		}
+
+		/**
+		 * @return true if the timer has been cancelled
+		 */
+		public boolean isCancelled()
+		{
+			synchronized (TimerWheel.this)
+			{ return this.cancelled; }
+		}
+	}
+}
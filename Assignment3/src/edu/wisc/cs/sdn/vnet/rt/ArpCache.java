@@ -9,32 +9,54 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
- * A cache of MAC address to IP address mappings.
+ * A cache of MAC address to IP address mappings. Learned mappings expire
+ * {@link #TIMEOUT} after they were added, so a host that changes its MAC
+ * address is re-resolved; mappings loaded from a file never expire.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {		
+	/** Timeout (in milliseconds) for learned entries in the cache */
+	public static final int TIMEOUT = 60 * 1000;
+	
 	/** Entries in the cache; maps an IP address to an entry */
 	private Map<Integer,ArpEntry> entries;
 	
+	/** Timing wheel for expiring entries */
+	private TimerWheel timers;
+	
 	/**
 	 * Initializes an empty ARP cache for a router.
+	 * @param timers timing wheel of the router
 	 */
-	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	public ArpCache(TimerWheel timers)
+	{
+		this.entries = new ConcurrentHashMap<Integer,ArpEntry>();
+		this.timers = timers;
+	}
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * pair. The entry expires after {@link #TIMEOUT}.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{
+		final ArpEntry entry = new ArpEntry(mac, ip);
+		this.entries.put(ip, entry);
+		// A newer entry for the same address is left alone
+		this.timers.schedule(TIMEOUT, new Runnable()
+		{
+			public void run()
+			{ entries.remove(entry.getIp(), entry); }
+		});
+	}
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -117,8 +139,8 @@ public class ArpCache
 				return false;
 			}
 			
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			// Add a static entry to the ACP cache
+			this.entries.put(ip, new ArpEntry(mac, ip));
 		}
 	
 		// Close the file
@@ -72,9 +72,12 @@ class ArpHandler {
         }
     }
 
-    void removeQueueFromTable(int ipAddr) {
+    /**
+     * @return true if the queue was still waiting for a reply and is now removed
+     */
+    boolean removeQueueFromTable(int ipAddr, ArpRequestQueue queue) {
         synchronized (map) {
-            map.remove(ipAddr);
+            return map.remove(ipAddr, queue);
         }
     }
 
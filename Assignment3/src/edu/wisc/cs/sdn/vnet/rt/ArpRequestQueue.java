@@ -4,10 +4,19 @@ import java.util.LinkedList;
 import java.util.Queue;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
+/**
+ * Packets waiting for an ARP reply. The request is retried on the router's
+ * timing wheel; the queue is accessed under the ArpHandler's lock, and the
+ * retry state under the queue's own lock.
+ */
 class ArpRequestQueue {
+    private static final int MAX_REQUESTS = 3;
+    private static final long RETRY_INTERVAL = 1000;
+
     static private class QueueElement {
         Ethernet ethernetPacket;
         Iface inIface;
@@ -19,39 +28,57 @@ class ArpRequestQueue {
     }
 
     private ArpHandler arpHandler;
+    private int ipAddress;
     private Iface outIface;
     private final Queue<QueueElement> queue;
-    private Thread thread;
+    private int requests;
+    private TimerWheel.Timeout retry;
+    private boolean answered;
 
-    ArpRequestQueue(final ArpHandler arpHandler, final int ipAddress, final Iface outIface) {
+    ArpRequestQueue(ArpHandler arpHandler, int ipAddress, Iface outIface) {
         this.arpHandler = arpHandler;
+        this.ipAddress = ipAddress;
         this.outIface = outIface;
         this.queue = new LinkedList<>();
-        this.thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                for (int i = 0; i < 3; i++) {
-                    arpHandler.sendRequest(outIface, ipAddress);
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        return;
-                    }
-                }
-
-                for (QueueElement e : queue) {
-                    arpHandler.icmpHandler.sendMessage(e.inIface, e.ethernetPacket, 3, 1);
-                }
+        this.requests = 0;
+        sendRequest();
+    }
 
-                arpHandler.removeQueueFromTable(ipAddress);
+    /**
+     * Send the next ARP request, or give up once all of them went unanswered.
+     */
+    private void sendRequest() {
+        synchronized (this) {
+            if (answered) return;
+            if (requests < MAX_REQUESTS) {
+                requests++;
+                arpHandler.sendRequest(outIface, ipAddress);
+                retry = arpHandler.router.getTimers().schedule(RETRY_INTERVAL, new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRequest();
+                    }
+                });
+                return;
             }
-        });
+        }
+        expire();
+    }
 
-        this.thread.start();
+    private void expire() {
+        // A reply may have arrived just before the timer ran
+        if (!arpHandler.removeQueueFromTable(ipAddress, this)) return;
+        for (QueueElement e : queue) {
+            arpHandler.icmpHandler.sendMessage(e.inIface, e.ethernetPacket, 3, 1);
+        }
+        queue.clear();
     }
 
     void handleResponse(MACAddress macAddress) {
-        this.thread.interrupt();
+        synchronized (this) {
+            answered = true;
+            retry.cancel();
+        }
         for (QueueElement e : queue) {
             e.ethernetPacket.setDestinationMACAddress(macAddress.toBytes());
             arpHandler.router.sendPacket(e.ethernetPacket, outIface);
@@ -0,0 +1,238 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Route index using DIR-24-8 style flat tables: one array read resolves
+ * any prefix up to /24, and a second 256-entry table resolves /25 to /32.
+ * The 2^24 first-level table is split into 256 lazily allocated chunks,
+ * one per /8, so an update only copies the chunks it touches and a /8 that
+ * is covered by a single route costs no memory at all.
+ * <p>
+ * Every slot holds the route entry itself (or a second-level table), so a
+ * lookup is at most three array reads and never touches the trie below,
+ * which is only used to find the covering route when an entry is removed.
+ */
+public class Dir248RouteIndex implements RouteIndex
+{
+	/** Number of slots in a first-level chunk (bits 8 to 23) */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/** Number of slots in a second-level table (bits 24 to 31) */
+	private static final int TBL8_SIZE = 1 << 8;
+
+	/** One slot per /8: null, a {@link RouteEntry}, or an Object[] chunk whose
+	 *  slots are null, a {@link RouteEntry}, or a RouteEntry[] table */
+	private final Object[] roots;
+
+	/** All prefixes in the index, used to find covering routes */
+	private final PatriciaRouteIndex prefixes;
+
+	/**
+	 * Create an empty index.
+	 */
+	public Dir248RouteIndex()
+	{ this(new Object[TBL8_SIZE], new PatriciaRouteIndex()); }
+
+	private Dir248RouteIndex(Object[] roots, PatriciaRouteIndex prefixes)
+	{
+		this.roots = roots;
+		this.prefixes = prefixes;
+	}
+
+	public RouteEntry lookup(int ip)
+	{
+		Object slot = this.roots[ip >>> 24];
+		if (slot instanceof Object[])
+		{
+			slot = ((Object[])slot)[(ip >>> 8) & 0xFFFF];
+			if (slot instanceof RouteEntry[])
+			{ return ((RouteEntry[])slot)[ip & 0xFF]; }
+		}
+		return (RouteEntry)slot;
+	}
+
+	public RouteIndex insert(RouteEntry entry)
+	{ return this.insertAll(Arrays.asList(entry)); }
+
+	public RouteIndex insertAll(Collection<RouteEntry> entries)
+	{
+		Update update = new Update(this.roots);
+		PatriciaRouteIndex prefixes = (PatriciaRouteIndex)
+				this.prefixes.insertAll(entries);
+		for (RouteEntry entry : entries)
+		{ update.paint(entry, null, entry); }
+		return new Dir248RouteIndex(update.roots, prefixes);
+	}
+
+	public RouteIndex remove(RouteEntry entry)
+	{
+		PatriciaRouteIndex prefixes = (PatriciaRouteIndex)
+				this.prefixes.remove(entry);
+		if (prefixes == this.prefixes)
+		{ return this; }
+
+		// Slots that pointed at the entry fall back to the covering route
+		int length = entry.getPrefixLength();
+		RouteEntry covering = (0 == length) ? null
+				: prefixes.lookup(entry.getDestinationAddress(), length - 1);
+		Update update = new Update(this.roots);
+		update.paint(entry, entry, covering);
+		return new Dir248RouteIndex(update.roots, prefixes);
+	}
+
+	/**
+	 * A batch of changes applied copy-on-write. Arrays copied during the batch
+	 * are remembered so that each is copied at most once.
+	 */
+	private static class Update
+	{
+		/** Copy of the first-level table being updated */
+		final Object[] roots;
+
+		/** Arrays created by this update, which may be modified in place */
+		final Map<Object,Boolean> owned;
+
+		Update(Object[] roots)
+		{
+			this.roots = roots.clone();
+			this.owned = new IdentityHashMap<Object,Boolean>();
+		}
+
+		/**
+		 * Overwrite slots in the range of a prefix.
+		 * @param prefix entry whose prefix selects the range
+		 * @param target if non-null, only slots holding this entry are
+		 *        overwritten; otherwise slots holding a shorter prefix are
+		 * @param replacement entry to store
+		 */
+		void paint(RouteEntry prefix, RouteEntry target,
+				RouteEntry replacement)
+		{
+			int length = prefix.getPrefixLength();
+			int ip = prefix.getDestinationAddress()
+					& PatriciaRouteIndex.mask(length);
+
+			int first = ip >>> 24;
+			int count = (length < 8) ? (1 << (8 - length)) : 1;
+			for (int i = first; i < first + count; i++)
+			{
+				if (length <= 8)
+				{
+					this.roots[i] = this.paintSlot(this.roots[i], length,
+							target, replacement, 0, CHUNK_SIZE, true);
+				}
+				else
+				{
+					Object[] chunk = this.chunk(i);
+					int start = (ip >>> 8) & 0xFFFF;
+					int width = (length < 24) ? (1 << (24 - length)) : 1;
+					if (length <= 24)
+					{
+						for (int j = start; j < start + width; j++)
+						{
+							chunk[j] = this.paintSlot(chunk[j], length,
+									target, replacement, 0, TBL8_SIZE, false);
+						}
+					}
+					else
+					{
+						RouteEntry[] tbl8 = this.tbl8(chunk, start);
+						int low = ip & 0xFF;
+						for (int k = low; k < low + (1 << (32 - length)); k++)
+						{
+							if (this.replaces(tbl8[k], length, target))
+							{ tbl8[k] = replacement; }
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Apply a change that covers an entire slot, descending into any
+		 * tables hanging off the slot.
+		 */
+		private Object paintSlot(Object slot, int length, RouteEntry target,
+				RouteEntry replacement, int from, int to, boolean isRoot)
+		{
+			if (isRoot && slot instanceof Object[])
+			{
+				Object[] chunk = this.own((Object[])slot);
+				for (int j = from; j < to; j++)
+				{
+					chunk[j] = this.paintSlot(chunk[j], length, target,
+							replacement, 0, TBL8_SIZE, false);
+				}
+				return chunk;
+			}
+			if (slot instanceof RouteEntry[])
+			{
+				RouteEntry[] tbl8 = this.own((RouteEntry[])slot);
+				for (int k = from; k < to; k++)
+				{
+					if (this.replaces(tbl8[k], length, target))
+					{ tbl8[k] = replacement; }
+				}
+				return tbl8;
+			}
+			return this.replaces((RouteEntry)slot, length, target)
+					? replacement : slot;
+		}
+
+		private boolean replaces(RouteEntry current, int length,
+				RouteEntry target)
+		{
+			if (target != null)
+			{ return current == target; }
+			return (null == current) || (current.getPrefixLength() <= length);
+		}
+
+		/**
+		 * @return a writable chunk for a /8, expanding a uniform slot
+		 */
+		private Object[] chunk(int i)
+		{
+			if (this.roots[i] instanceof Object[])
+			{ this.roots[i] = this.own((Object[])this.roots[i]); }
+			else
+			{
+				Object[] chunk = new Object[CHUNK_SIZE];
+				Arrays.fill(chunk, this.roots[i]);
+				this.owned.put(chunk, Boolean.TRUE);
+				this.roots[i] = chunk;
+			}
+			return (Object[])this.roots[i];
+		}
+
+		/**
+		 * @return a writable second-level table for a /24, expanding a
+		 *         uniform slot
+		 */
+		private RouteEntry[] tbl8(Object[] chunk, int j)
+		{
+			if (chunk[j] instanceof RouteEntry[])
+			{ chunk[j] = this.own((RouteEntry[])chunk[j]); }
+			else
+			{
+				RouteEntry[] tbl8 = new RouteEntry[TBL8_SIZE];
+				Arrays.fill(tbl8, (RouteEntry)chunk[j]);
+				this.owned.put(tbl8, Boolean.TRUE);
+				chunk[j] = tbl8;
+			}
+			return (RouteEntry[])chunk[j];
+		}
+
+		private <T> T[] own(T[] array)
+		{
+			if (this.owned.containsKey(array))
+			{ return array; }
+			T[] copy = array.clone();
+			this.owned.put(copy, Boolean.TRUE);
+			return copy;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Route index that scans every entry on each lookup. Kept as the reference
+ * implementation and as the baseline for {@link RouteTableBenchmark}.
+ */
+public class LinearRouteIndex implements RouteIndex
+{
+	/** Entries in the index */
+	private final RouteEntry[] entries;
+
+	/**
+	 * Create an empty index.
+	 */
+	public LinearRouteIndex()
+	{ this(new RouteEntry[0]); }
+
+	private LinearRouteIndex(RouteEntry[] entries)
+	{ this.entries = entries; }
+
+	public RouteEntry lookup(int ip)
+	{
+		RouteEntry bestMatch = null;
+		for (RouteEntry entry : this.entries)
+		{
+			int mask = entry.getMaskAddress();
+			if ((ip & mask) == (entry.getDestinationAddress() & mask))
+			{
+				// Longer contiguous masks are larger when compared unsigned
+				if ((null == bestMatch) || ((mask ^ Integer.MIN_VALUE)
+						> (bestMatch.getMaskAddress() ^ Integer.MIN_VALUE)))
+				{ bestMatch = entry; }
+			}
+		}
+		return bestMatch;
+	}
+
+	public RouteIndex insert(RouteEntry entry)
+	{ return this.insertAll(Arrays.asList(entry)); }
+
+	public RouteIndex insertAll(Collection<RouteEntry> added)
+	{
+		RouteEntry[] result = Arrays.copyOf(this.entries,
+				this.entries.length + added.size());
+		Map<Long,Integer> positions = new HashMap<Long,Integer>();
+		for (int i = 0; i < this.entries.length; i++)
+		{ positions.put(key(this.entries[i]), i); }
+
+		int size = this.entries.length;
+		for (RouteEntry entry : added)
+		{
+			Integer i = positions.get(key(entry));
+			if (null == i)
+			{
+				positions.put(key(entry), size);
+				result[size++] = entry;
+			}
+			else
+			{ result[i] = entry; }
+		}
+		return new LinearRouteIndex(Arrays.copyOf(result, size));
+	}
+
+	public RouteIndex remove(RouteEntry entry)
+	{
+		int i = this.indexOf(this.entries, this.entries.length, entry);
+		if (i < 0 || this.entries[i] != entry)
+		{ return this; }
+		RouteEntry[] result = new RouteEntry[this.entries.length - 1];
+		System.arraycopy(this.entries, 0, result, 0, i);
+		System.arraycopy(this.entries, i + 1, result, i, result.length - i);
+		return new LinearRouteIndex(result);
+	}
+
+	private static long key(RouteEntry entry)
+	{
+		int mask = entry.getMaskAddress();
+		return ((long)mask << 32)
+				| ((entry.getDestinationAddress() & mask) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Find the position of the entry with the same prefix as a given entry.
+	 */
+	private int indexOf(RouteEntry[] entries, int size, RouteEntry entry)
+	{
+		int mask = entry.getMaskAddress();
+		int prefix = entry.getDestinationAddress() & mask;
+		for (int i = 0; i < size; i++)
+		{
+			if ((entries[i].getMaskAddress() == mask)
+					&& ((entries[i].getDestinationAddress() & mask) == prefix))
+			{ return i; }
+		}
+		return -1;
+	}
+}
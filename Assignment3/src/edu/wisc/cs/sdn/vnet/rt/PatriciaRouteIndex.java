@@ -0,0 +1,202 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Collection;
+
+/**
+ * Route index backed by a path-compressed binary (Patricia) trie. Nodes are
+ * never modified once created; an update copies only the nodes on the path
+ * from the root to the changed prefix, so at most 32 nodes per update.
+ */
+public class PatriciaRouteIndex implements RouteIndex
+{
+	/** A trie node covering all addresses that share a prefix */
+	private static class Node
+	{
+		/** Prefix bits; bits beyond the prefix length are zero */
+		final int prefix;
+
+		/** Number of significant bits in the prefix */
+		final int length;
+
+		/** Route entry for exactly this prefix; null for internal nodes */
+		final RouteEntry entry;
+
+		/** Subtries whose next bit after the prefix is 0 and 1 */
+		final Node left, right;
+
+		Node(int prefix, int length, RouteEntry entry, Node left, Node right)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.entry = entry;
+			this.left = left;
+			this.right = right;
+		}
+
+		Node withChildren(Node left, Node right)
+		{
+			if (left == this.left && right == this.right)
+			{ return this; }
+			return new Node(this.prefix, this.length, this.entry, left, right);
+		}
+	}
+
+	/** Root of the trie; null if the index is empty */
+	private final Node root;
+
+	/**
+	 * Create an empty index.
+	 */
+	public PatriciaRouteIndex()
+	{ this(null); }
+
+	private PatriciaRouteIndex(Node root)
+	{ this.root = root; }
+
+	public RouteEntry lookup(int ip)
+	{ return this.lookup(ip, 32); }
+
+	/**
+	 * Find the longest matching prefix no longer than a given length.
+	 * @param ip IP address
+	 * @param maxLength maximum prefix length to consider
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip, int maxLength)
+	{
+		RouteEntry bestMatch = null;
+		Node node = this.root;
+		while (node != null && node.length <= maxLength)
+		{
+			if (((ip ^ node.prefix) & mask(node.length)) != 0)
+			{ break; }
+			if (node.entry != null)
+			{ bestMatch = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = (0 == bit(ip, node.length)) ? node.left : node.right;
+		}
+		return bestMatch;
+	}
+
+	public RouteIndex insert(RouteEntry entry)
+	{
+		int length = entry.getPrefixLength();
+		int prefix = entry.getDestinationAddress() & mask(length);
+		return new PatriciaRouteIndex(insert(this.root, prefix, length, entry));
+	}
+
+	public RouteIndex insertAll(Collection<RouteEntry> entries)
+	{
+		Node node = this.root;
+		for (RouteEntry entry : entries)
+		{
+			int length = entry.getPrefixLength();
+			int prefix = entry.getDestinationAddress() & mask(length);
+			node = insert(node, prefix, length, entry);
+		}
+		return new PatriciaRouteIndex(node);
+	}
+
+	public RouteIndex remove(RouteEntry entry)
+	{
+		int length = entry.getPrefixLength();
+		int prefix = entry.getDestinationAddress() & mask(length);
+		Node node = remove(this.root, prefix, length, entry);
+		if (node == this.root)
+		{ return this; }
+		return new PatriciaRouteIndex(node);
+	}
+
+	private static Node insert(Node node, int prefix, int length,
+			RouteEntry entry)
+	{
+		if (null == node)
+		{ return new Node(prefix, length, entry, null, null); }
+
+		int common = Math.min(Math.min(node.length, length),
+				Integer.numberOfLeadingZeros(node.prefix ^ prefix));
+
+		// Same prefix: replace the entry
+		if (common == node.length && common == length)
+		{ return new Node(prefix, length, entry, node.left, node.right); }
+
+		// New prefix lies below this node
+		if (common == node.length)
+		{
+			if (0 == bit(prefix, node.length))
+			{
+				return node.withChildren(
+						insert(node.left, prefix, length, entry), node.right);
+			}
+			return node.withChildren(node.left,
+					insert(node.right, prefix, length, entry));
+		}
+
+		// New prefix lies above this node
+		if (common == length)
+		{
+			if (0 == bit(node.prefix, length))
+			{ return new Node(prefix, length, entry, node, null); }
+			return new Node(prefix, length, entry, null, node);
+		}
+
+		// Prefixes diverge: join them under an internal node
+		Node leaf = new Node(prefix, length, entry, null, null);
+		int joint = prefix & mask(common);
+		if (0 == bit(prefix, common))
+		{ return new Node(joint, common, null, leaf, node); }
+		return new Node(joint, common, null, node, leaf);
+	}
+
+	private static Node remove(Node node, int prefix, int length,
+			RouteEntry entry)
+	{
+		if (null == node || node.length > length
+				|| ((prefix ^ node.prefix) & mask(node.length)) != 0)
+		{ return node; }
+
+		if (node.length == length)
+		{
+			if (node.entry != entry)
+			{ return node; }
+			return collapse(new Node(node.prefix, node.length, null,
+					node.left, node.right));
+		}
+
+		Node left = node.left, right = node.right;
+		if (0 == bit(prefix, node.length))
+		{ left = remove(left, prefix, length, entry); }
+		else
+		{ right = remove(right, prefix, length, entry); }
+		Node result = node.withChildren(left, right);
+		return (result == node) ? node : collapse(result);
+	}
+
+	/**
+	 * Drop internal nodes that no longer join two subtries.
+	 */
+	private static Node collapse(Node node)
+	{
+		if (node.entry != null)
+		{ return node; }
+		if (null == node.left)
+		{ return node.right; }
+		if (null == node.right)
+		{ return node.left; }
+		return node;
+	}
+
+	/**
+	 * @return a subnet mask with the given number of leading one bits
+	 */
+	static int mask(int length)
+	{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+	/**
+	 * @return the bit at a given position, counting from the most
+	 *         significant bit
+	 */
+	private static int bit(int value, int position)
+	{ return (value >>> (31 - position)) & 1; }
+}
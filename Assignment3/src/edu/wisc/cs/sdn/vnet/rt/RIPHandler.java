@@ -13,11 +13,18 @@ class RIPHandler {
 
     private final static int RIP_IP_ADDRESS = IPv4.toIPv4Address("224.0.0.9");
     private final static long TIMEOUT = 30000;
+    private final static long UPDATE_INTERVAL = 10000;
 
     RIPHandler(final Router router) {
         this.router = router;
         this.routeTable = router.getRouteTable();
+    }
 
+    /**
+     * Add routes for the router's interfaces, ask the neighbours for their
+     * routes, and start sending periodic updates.
+     */
+    void start() {
         for (Iface iface : router.getInterfaces().values()) {
             int mask = iface.getSubnetMask();
             int ip = iface.getIpAddress();
@@ -27,17 +34,29 @@ class RIPHandler {
 
         sendRequest();
 
-        new Thread(new Runnable() {
+        router.getTimers().scheduleAtFixedRate(0, UPDATE_INTERVAL, new Runnable() {
             @Override
             public void run() {
-                while (true) {
-                    try {
-                        sendResponse();
-                        Thread.sleep(10000);
-                    } catch (InterruptedException ignored) {}
-                }
+                sendResponse();
+            }
+        });
+    }
+
+    /**
+     * Remove a learned route once it has not been refreshed in time; a route
+     * that was refreshed is checked again when its new lifetime ends.
+     */
+    private void expireAt(final RouteEntry routeEntry, long lastValidTime) {
+        router.getTimers().schedule(lastValidTime - System.currentTimeMillis(), new Runnable() {
+            @Override
+            public void run() {
+                long validUntil = routeEntry.lastValidTime;
+                if (validUntil >= System.currentTimeMillis())
+                    expireAt(routeEntry, validUntil);
+                else
+                    routeTable.removeIfInvalid(routeEntry);
             }
-        }).start();
+        });
     }
 
     private RIPv2 createRipResponsePacket() {
@@ -128,6 +147,7 @@ class RIPHandler {
                 routeEntry.distance = distance;
                 routeEntry.lastValidTime = System.currentTimeMillis() + TIMEOUT;
                 routeTable.insert(routeEntry);
+                expireAt(routeEntry, routeEntry.lastValidTime);
                 update = true;
             } else {
                 if (routeEntry.distance > distance) {
@@ -13,7 +13,7 @@ public class RouteEntry
 	private int destinationAddress;
 	
 	/** Gateway IP address */
-	private int gatewayAddress;
+	private volatile int gatewayAddress;
 	
 	/** Subnet mask */
 	private int maskAddress;
@@ -22,11 +22,11 @@ public class RouteEntry
 	int distance = 0;
 
 	/** The entry is invalid if current time > lastValidTime */
-	long lastValidTime = Long.MAX_VALUE;
+	volatile long lastValidTime = Long.MAX_VALUE;
 	
 	/** Router interface out which packets should be sent to reach
 	 * the destination or gateway */
-	private Iface iface;
+	private volatile Iface iface;
 	
 	/**
 	 * Create a new route table entry.
@@ -65,6 +65,12 @@ public class RouteEntry
 	 */
 	public int getMaskAddress()
 	{ return this.maskAddress; }
+
+	/**
+	 * @return number of leading one bits in the subnet mask
+	 */
+	public int getPrefixLength()
+	{ return Integer.bitCount(this.maskAddress); }
 	
 	/**
 	 * @return the router interface out which packets should be sent to 
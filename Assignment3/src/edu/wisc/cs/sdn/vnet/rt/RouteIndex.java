@@ -0,0 +1,39 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Collection;
+
+/**
+ * A longest-prefix-match index over route table entries. Indexes are
+ * immutable once published: updates return a new index and leave the
+ * receiver untouched, so lookups never need to take a lock.
+ */
+public interface RouteIndex
+{
+	/**
+	 * Find the entry with the longest prefix that matches an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip);
+
+	/**
+	 * Add an entry, replacing any entry with the same prefix.
+	 * @param entry entry to add
+	 * @return a new index containing the entry
+	 */
+	public RouteIndex insert(RouteEntry entry);
+
+	/**
+	 * Add several entries at once; cheaper than repeated single inserts.
+	 * @param entries entries to add
+	 * @return a new index containing the entries
+	 */
+	public RouteIndex insertAll(Collection<RouteEntry> entries);
+
+	/**
+	 * Remove an entry.
+	 * @param entry entry to remove
+	 * @return a new index without the entry; this index if it was not present
+	 */
+	public RouteIndex remove(RouteEntry entry);
+}
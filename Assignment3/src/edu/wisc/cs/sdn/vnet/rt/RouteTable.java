@@ -4,8 +4,11 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,7 +16,9 @@ import edu.wisc.cs.sdn.vnet.Iface;
 import net.floodlightcontroller.packet.IPv4;
 
 /**
- * Route table for a router.
+ * Route table for a router. Lookups go through an immutable
+ * {@link RouteIndex} that is replaced on every update, so forwarding never
+ * blocks on route changes.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
@@ -21,25 +26,45 @@ public class RouteTable
 	/** Entries in the route table */
 	private List<RouteEntry> entries; 
 
+	/** Index used for lookups; rebuilt copy-on-write whenever entries change */
+	private volatile RouteIndex index;
+
 	boolean isRipEnabled = false;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this(new PatriciaRouteIndex()); }
 
-	public List<RouteEntry> getEntries(){
-		removeInvalidEntry();
-		return this.entries;
+	/**
+	 * Initialize an empty route table that uses a specific index for lookups.
+	 * @param index an empty route index
+	 */
+	public RouteTable(RouteIndex index)
+	{ 
+		this.entries = new CopyOnWriteArrayList<RouteEntry>();
+		this.index = index;
 	}
 
-	public void removeInvalidEntry() {
-		if (!isRipEnabled) return;
-		for (RouteEntry entry : new LinkedList<RouteEntry>(entries)) {
-			if (System.currentTimeMillis() > entry.lastValidTime) {
-				entries.remove(entry);
-			}
+	public List<RouteEntry> getEntries()
+	{ return this.entries; }
+
+	/**
+	 * Remove a RIP-learned entry if it has not been refreshed in time. Called
+	 * from the entry's expiry timer rather than on every lookup.
+	 * @param entry the entry to check
+	 * @return true if the entry was removed
+	 */
+	public boolean removeIfInvalid(RouteEntry entry) {
+		if (!isRipEnabled) return false;
+		synchronized(this.entries)
+		{
+			if (System.currentTimeMillis() <= entry.lastValidTime
+					|| !this.entries.contains(entry))
+			{ return false; }
+			this.removeEntry(entry);
+			return true;
 		}
 	}
 	
@@ -49,32 +74,7 @@ public class RouteTable
 	 * @return the matching route entry, null if none exists
 	 */
 	public RouteEntry lookup(int ip)
-	{
-		synchronized(this.entries)
-        {
-			removeInvalidEntry();
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-			
-	        RouteEntry bestMatch = null;
-	        for (RouteEntry entry : this.entries)
-	        {
-	           int maskedDst = ip & entry.getMaskAddress();
-	           int entrySubnet = entry.getDestinationAddress() 
-	               & entry.getMaskAddress();
-	           if (maskedDst == entrySubnet)
-	           {
-	        	   if ((null == bestMatch) 
-	        		   || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-	        	   { bestMatch = entry; }
-	           }
-	        }
-			
-			return bestMatch;
-			
-			/*****************************************************************/
-        }
-	}
+	{ return this.index.lookup(ip); }
 	
 	/**
 	 * Populate the route table from a file.
@@ -97,6 +97,7 @@ public class RouteTable
 			return false;
 		}
 		
+		List<RouteEntry> loaded = new ArrayList<RouteEntry>();
 		while (true)
 		{
 			// Read a route entry from the file
@@ -159,11 +160,12 @@ public class RouteTable
 			}
 			
 			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			loaded.add(new RouteEntry(dstIp, gwIp, maskIp, iface));
 		}
 	
 		// Close the file
 		try { reader.close(); } catch (IOException f) {};
+		this.insertAll(loaded);
 		return true;
 	}
 	
@@ -176,19 +178,35 @@ public class RouteTable
 	 *        destination or gateway
 	 */
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
+	{ this.insert(new RouteEntry(dstIp, gwIp, maskIp, iface)); }
+
+	public void insert(RouteEntry entry)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
-        }
+		List<RouteEntry> added = new ArrayList<RouteEntry>(1);
+		added.add(entry);
+		this.insertAll(added);
 	}
 
-	public void insert(RouteEntry entry)
+	/**
+	 * Add several entries to the route table with a single index update.
+	 * @param added entries to add
+	 */
+	public void insertAll(List<RouteEntry> added)
 	{
         synchronized(this.entries)
         { 
-            this.entries.add(entry);
+            // The first entry for a prefix wins, as with a linear scan
+            Set<Long> prefixes = new HashSet<Long>();
+            for (RouteEntry entry : this.entries)
+            { prefixes.add(prefixKey(entry)); }
+            List<RouteEntry> indexed = new ArrayList<RouteEntry>();
+            for (RouteEntry entry : added)
+            {
+                if (prefixes.add(prefixKey(entry)))
+                { indexed.add(entry); }
+            }
+            this.entries.addAll(added);
+            this.index = this.index.insertAll(indexed);
         }
 	}
 	
@@ -205,10 +223,42 @@ public class RouteTable
             RouteEntry entry = this.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            this.entries.remove(entry);
+            this.removeEntry(entry);
         }
         return true;
     }
+
+	/**
+	 * Remove a specific entry, promoting any duplicate for the same prefix.
+	 * Caller must hold the entries lock.
+	 */
+	private void removeEntry(RouteEntry entry)
+	{
+		this.entries.remove(entry);
+		RouteIndex updated = this.index.remove(entry);
+		if (updated != this.index)
+		{
+			for (RouteEntry duplicate : this.entries)
+			{
+				if (prefixKey(duplicate) == prefixKey(entry))
+				{
+					updated = updated.insert(duplicate);
+					break;
+				}
+			}
+		}
+		this.index = updated;
+	}
+
+	/**
+	 * @return a key identifying the masked destination and mask of an entry
+	 */
+	private static long prefixKey(RouteEntry entry)
+	{
+		int mask = entry.getMaskAddress();
+		return ((long)mask << 32)
+				| ((entry.getDestinationAddress() & mask) & 0xFFFFFFFFL);
+	}
 	
 	/**
 	 * Update an entry in the route table.
@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares lookup cost of the route indexes on random route tables.
+ * Run with: java edu.wisc.cs.sdn.vnet.rt.RouteTableBenchmark [sizes...]
+ */
+public class RouteTableBenchmark
+{
+	/** Number of random destinations looked up per pass */
+	private static final int LOOKUPS = 1 << 16;
+
+	/** Number of destinations checked against the linear scan */
+	private static final int VERIFY_LOOKUPS = 1024;
+
+	/** Number of lookups between checks of the elapsed time */
+	private static final int BATCH = 256;
+
+	/** Minimum time (in milliseconds) spent measuring each index */
+	private static final long MEASURE_TIME = 2000;
+
+	public static void main(String[] args)
+	{
+		int[] sizes = { 100, 10000, 500000 };
+		if (args.length > 0)
+		{
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+			{ sizes[i] = Integer.parseInt(args[i]); }
+		}
+
+		System.out.println(String.format("%-10s%-20s%-12s%s", "Prefixes",
+				"Index", "Build (ms)", "Lookup (ns)"));
+		for (int size : sizes)
+		{
+			Random random = new Random(size);
+			List<RouteEntry> entries = randomEntries(random, size);
+			int[] destinations = randomDestinations(random, entries);
+
+			RouteIndex[] indexes = { new LinearRouteIndex(),
+					new PatriciaRouteIndex(), new Dir248RouteIndex() };
+			RouteIndex reference = null;
+			for (RouteIndex index : indexes)
+			{
+				long start = System.nanoTime();
+				index = index.insertAll(entries);
+				long buildTime = System.nanoTime() - start;
+
+				if (null == reference)
+				{ reference = index; }
+				else
+				{ verify(reference, index, destinations); }
+
+				System.out.println(String.format("%-10d%-20s%-12d%.1f",
+						size, index.getClass().getSimpleName(),
+						buildTime / 1000000, measure(index, destinations)));
+			}
+		}
+	}
+
+	/**
+	 * @return average time (in nanoseconds) per lookup
+	 */
+	private static double measure(RouteIndex index, int[] destinations)
+	{
+		// Warm up, then measure; time is checked once per batch so that a
+		// slow index still finishes quickly on large tables
+		run(index, destinations, MEASURE_TIME / 4);
+		return run(index, destinations, MEASURE_TIME);
+	}
+
+	private static double run(RouteIndex index, int[] destinations,
+			long duration)
+	{
+		int hits = 0;
+		long lookups = 0;
+		long start = System.nanoTime();
+		long elapsed = 0;
+		while (elapsed < duration * 1000000)
+		{
+			int offset = (int)(lookups % destinations.length);
+			for (int i = offset; i < offset + BATCH; i++)
+			{
+				if (index.lookup(destinations[i]) != null)
+				{ hits++; }
+			}
+			lookups += BATCH;
+			elapsed = System.nanoTime() - start;
+		}
+		if (hits < 0)
+		{ System.out.println(); }
+		return (double)elapsed / lookups;
+	}
+
+	private static void verify(RouteIndex expected, RouteIndex actual,
+			int[] destinations)
+	{
+		for (int i = 0; i < VERIFY_LOOKUPS; i++)
+		{
+			int ip = destinations[i];
+			RouteEntry a = expected.lookup(ip), b = actual.lookup(ip);
+			if ((null == a) ? (b != null) : (null == b
+					|| a.getMaskAddress() != b.getMaskAddress()
+					|| a.getDestinationAddress() != b.getDestinationAddress()))
+			{ throw new IllegalStateException("Lookup mismatch"); }
+		}
+	}
+
+	/**
+	 * Generate prefixes with a length mix resembling a BGP table: mostly /24,
+	 * some /16 to /23, and a few longer and shorter prefixes.
+	 */
+	private static List<RouteEntry> randomEntries(Random random, int size)
+	{
+		List<RouteEntry> entries = new ArrayList<RouteEntry>(size);
+		for (int i = 0; i < size; i++)
+		{
+			int r = random.nextInt(100);
+			int length;
+			if (r < 55)
+			{ length = 24; }
+			else if (r < 90)
+			{ length = 16 + random.nextInt(8); }
+			else if (r < 97)
+			{ length = 8 + random.nextInt(8); }
+			else
+			{ length = 25 + random.nextInt(8); }
+			int mask = PatriciaRouteIndex.mask(length);
+			entries.add(new RouteEntry(random.nextInt() & mask, 0, mask, null));
+		}
+		return entries;
+	}
+
+	/**
+	 * Generate destinations, half of which fall inside known prefixes.
+	 */
+	private static int[] randomDestinations(Random random,
+			List<RouteEntry> entries)
+	{
+		int[] destinations = new int[LOOKUPS];
+		for (int i = 0; i < destinations.length; i++)
+		{
+			if (random.nextBoolean())
+			{
+				RouteEntry entry = entries.get(random.nextInt(entries.size()));
+				destinations[i] = entry.getDestinationAddress()
+						| (random.nextInt() & ~entry.getMaskAddress());
+			}
+			else
+			{ destinations[i] = random.nextInt(); }
+		}
+		return destinations;
+	}
+}
@@ -16,6 +16,12 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class Router extends Device
 {
+	/** Length of an untagged Ethernet header */
+	private static final int ETHER_HEADER_LENGTH = 14;
+
+	/** Length of an IPv4 header without options */
+	private static final int IP_MIN_HEADER_LENGTH = 20;
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
@@ -46,7 +52,7 @@ public class Router extends Device
 	{
 		super(host,logfile);
 		this.routeTable = new RouteTable();
-		this.arpCache = new ArpCache();
+		this.arpCache = new ArpCache(this.getTimers());
 		this.icmpHandler = new ICMPHandler(this);
 		this.arpHandler = new ArpHandler(this, icmpHandler);
 		this.ripHandler = new RIPHandler(this);
@@ -60,7 +66,7 @@ public class Router extends Device
 
 	public void enableRIP(){
 		this.routeTable.isRipEnabled = true;
-		this.ripHandler = new RIPHandler(this);
+		this.ripHandler.start();
 	}
 
 	/**
@@ -119,6 +125,108 @@ public class Router extends Device
 		}
 	}
 
+	/**
+	 * Forward a transit IPv4 frame by rewriting it in place, without parsing 
+	 * it into packet objects. Packets for the router itself, and packets that
+	 * need an ICMP error or an ARP request, are left to {@link #handlePacket}.
+	 * @param frame buffer holding the Ethernet frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was forwarded or dropped, false if it should
+	 *         take the slow path
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		if (length < ETHER_HEADER_LENGTH + IP_MIN_HEADER_LENGTH
+				|| getShort(frame, offset + 12) != Ethernet.TYPE_IPv4)
+		{ return false; }
+
+		int ip = offset + ETHER_HEADER_LENGTH;
+		int headerLength = (frame[ip] & 0xf) * 4;
+		if (((frame[ip] >> 4) & 0xf) != 4 
+				|| headerLength < IP_MIN_HEADER_LENGTH
+				|| ETHER_HEADER_LENGTH + headerLength > length)
+		{ return false; }
+
+		// Drop packets with a bad checksum
+		if (onesComplementSum(frame, ip, headerLength) != 0xffff)
+		{ return true; }
+
+		// Packets that expire, are multicast, or are for the router itself
+		// take the slow path
+		int ttl = frame[ip + 8] & 0xff;
+		int dstAddr = getInt(frame, ip + 16);
+		if (ttl <= 1 || (dstAddr >>> 28) == 0xe)
+		{ return false; }
+		for (Iface iface : this.interfaces.values())
+		{
+			if (dstAddr == iface.getIpAddress())
+			{ return false; }
+		}
+
+		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		if (null == bestMatch)
+		{ return false; }
+		Iface outIface = bestMatch.getInterface();
+		if (outIface == inIface)
+		{ return true; }
+
+		int nextHop = bestMatch.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = dstAddr; }
+		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		if (null == arpEntry)
+		{ return false; }
+
+		// Decrement TTL and update the checksum incrementally (RFC 1624)
+		int oldWord = getShort(frame, ip + 8);
+		frame[ip + 8] = (byte)(ttl - 1);
+		int newWord = getShort(frame, ip + 8);
+		int sum = (~getShort(frame, ip + 10) & 0xffff) 
+				+ (~oldWord & 0xffff) + newWord;
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		putShort(frame, ip + 10, ~sum & 0xffff);
+
+		// Rewrite MAC addresses and send the same buffer
+		putMac(frame, offset, arpEntry.getMac().toLong());
+		putMac(frame, offset + 6, outIface.getMacAddress().toLong());
+		this.sendFrame(frame, offset, length, outIface);
+		return true;
+	}
+
+	/**
+	 * @return the 16-bit one's complement sum of a range of bytes
+	 */
+	private static int onesComplementSum(byte[] data, int offset, int length)
+	{
+		int sum = 0;
+		for (int i = offset; i < offset + length; i += 2)
+		{ sum += getShort(data, i); }
+		sum = (sum & 0xffff) + (sum >>> 16);
+		return (sum & 0xffff) + (sum >>> 16);
+	}
+
+	private static int getShort(byte[] data, int offset)
+	{ return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff); }
+
+	private static int getInt(byte[] data, int offset)
+	{ return (getShort(data, offset) << 16) | getShort(data, offset + 2); }
+
+	private static void putShort(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte)(value >>> 8);
+		data[offset + 1] = (byte)value;
+	}
+
+	private static void putMac(byte[] data, int offset, long mac)
+	{
+		for (int i = 0; i < MACAddress.MAC_ADDRESS_LENGTH; i++)
+		{ data[offset + i] = (byte)(mac >>> (8 * (5 - i))); }
+	}
+
 	private void handleArpPacket(Ethernet etherPacket, Iface inIface) {
 		ARP arpPacket = (ARP) etherPacket.getPayload();
 		int targetIp = ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt();
@@ -4,14 +4,18 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.TimerWheel;
 
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
- * A MAC learning table.
+ * A MAC learning table. Each entry has a timer on the device's timing wheel
+ * that removes it once it has not been updated for {@link #TIMEOUT}; updates
+ * only refresh the entry's timestamp, and the timer waits out the remainder
+ * when it finds the entry was refreshed.
  * @author Aaron Gember-Jacobson
  */
-public class MACTable implements Runnable
+public class MACTable
 {
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
@@ -19,18 +23,17 @@ public class MACTable implements Runnable
 	/** Entries in the MAC table */
 	private Map<MACAddress,MACTableEntry> entries;
 	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+	/** Timing wheel for aging entries */
+	private TimerWheel timers;
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
-	 * @param sw switch to which this table belongs
+	 * @param timers timing wheel of the switch to which this table belongs
 	 */
-	public MACTable()
+	public MACTable(TimerWheel timers)
 	{
 		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		this.timers = timers;
 	}
 	
 	public void insert(MACAddress macAddress, Iface iface)
@@ -42,36 +45,30 @@ public class MACTable implements Runnable
 		{ 
 			entry = new MACTableEntry(macAddress, iface);
 			this.entries.put(macAddress, entry); 
+			this.age(entry, TIMEOUT);
 		}
 	}
 	
 	public MACTableEntry lookup(MACAddress macAddress) 
-	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
-	}
+	{ return this.entries.get(macAddress); }
 	
 	/**
-	 * Every second: timeout MAC table entries.
+	 * Remove an entry once it times out, unless it is updated in the meantime.
+	 * @param entry entry to age
+	 * @param delay time (in milliseconds) until the entry times out
 	 */
-	public void run()
+	private void age(final MACTableEntry entry, long delay)
 	{
-		while (true)
+		this.timers.schedule(delay, new Runnable()
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
+			public void run()
 			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
+				long idle = System.currentTimeMillis() - entry.getTimeUpdated();
+				if (idle < TIMEOUT)
+				{ age(entry, TIMEOUT - idle); }
+				else
+				{ entries.remove(entry.getMACAddress(), entry); }
 			}
-		}
+		});
 	}
 }
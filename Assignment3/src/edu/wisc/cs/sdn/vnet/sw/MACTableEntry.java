@@ -16,7 +16,7 @@ public class MACTableEntry
 	private Iface iface;
 	
 	/** Time (in milliseconds since the epoch) the entry was updated */
-	private long timeUpdated;
+	private volatile long timeUpdated;
 	
 	/**
 	 * Create a new MAC table entry.
@@ -19,7 +19,7 @@ public class Switch extends Device
 	public Switch(String host, DumpFile logfile)
 	{
 		super(host,logfile);
-		this.macTable = new MACTable();
+		this.macTable = new MACTable(this.getTimers());
 	}
 
 	/**
@@ -12,7 +12,27 @@ public class CommandPacket extends Command
 	public CommandPacket()
 	{ super(Command.VNS_PACKET); }
 	
+	/** Size of the command header that precedes the Ethernet frame */
+	public static final int HEADER_SIZE = 4 + 4 + 16;
+	
 	protected CommandPacket deserialize(ByteBuffer buf)
+	{
+		this.deserializeHeader(buf);
+		
+		// Copy the frame, since the buffer it was read into is reused
+		byte[] frame = new byte[buf.remaining()];
+		buf.get(frame);
+        this.etherPacket = new Ethernet();
+		this.etherPacket.deserialize(frame, 0, frame.length);
+		
+		return this;
+	}
+	
+	/**
+	 * Read the command header, leaving the buffer positioned at the start of
+	 * the Ethernet frame.
+	 */
+	protected CommandPacket deserializeHeader(ByteBuffer buf)
 	{
 		super.deserialize(buf);
 				
@@ -20,13 +40,25 @@ public class CommandPacket extends Command
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
-        this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
-		
 		return this;
 	}
 	
+	/**
+	 * Write a command header at a buffer's position, to be followed by a
+	 * raw Ethernet frame.
+	 * @param bb buffer to write the header into
+	 * @param frameLength length of the frame
+	 * @param ifaceName name of the interface to send the frame out
+	 */
+	protected static void serializeHeader(ByteBuffer bb, int frameLength,
+			String ifaceName)
+	{
+		bb.putInt(HEADER_SIZE + frameLength);
+		bb.putInt(Command.VNS_PACKET);
+		for (int i = 0; i < 16; i++)
+		{ bb.put((i < ifaceName.length()) ? (byte)ifaceName.charAt(i) : 0); }
+	}
+	
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
@@ -0,0 +1,154 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends commands to the VNS server from a single writer thread. Any thread
+ * may queue a command; the writer takes every command that is waiting, up
+ * to a limit, and sends them with one gathering write. Commands are built in
+ * pooled direct buffers, so the channel does not copy them again.
+ */
+class CommandWriter implements Runnable
+{
+	/** Size of pooled buffers; large enough for a command with any frame */
+	static final int BUFFER_SIZE = 2048;
+
+	/** Number of commands that may wait to be sent */
+	private static final int QUEUE_SIZE = 1024;
+
+	/** Most commands sent with one write */
+	private static final int MAX_BATCH = 128;
+
+	/** Time (in milliseconds) between checks that the writer is still
+	 * running while waiting for room in the queue */
+	private static final long STALL_WAIT = 100;
+
+	private final SocketChannel channel;
+	private final BlockingQueue<ByteBuffer> queue;
+	private final Queue<ByteBuffer> pool;
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	/**
+	 * Create a writer for a connected channel and start its thread.
+	 */
+	CommandWriter(SocketChannel channel)
+	{
+		this.channel = channel;
+		this.queue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+		this.pool = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.closed = false;
+		this.thread = new Thread(this, "vns-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Get an empty buffer for building a command.
+	 * @param size size of the command
+	 */
+	ByteBuffer allocate(int size)
+	{
+		if (size > BUFFER_SIZE)
+		{ return ByteBuffer.allocateDirect(size); }
+		ByteBuffer buf = this.pool.poll();
+		if (null == buf)
+		{ buf = ByteBuffer.allocateDirect(BUFFER_SIZE); }
+		return buf;
+	}
+
+	/**
+	 * Queue a command to be sent, waiting for room if the queue is full so
+	 * the device slows down to the speed of the connection. The buffer
+	 * belongs to the writer afterwards.
+	 * @param buf buffer from {@link #allocate} holding the command between
+	 *        its position and limit
+	 * @return true if the command was queued, false if the connection failed
+	 */
+	boolean send(ByteBuffer buf)
+	{
+		boolean queued = this.queue.offer(buf);
+		if (!queued)
+		{
+			try
+			{
+				// Give up if the writer stops while we wait
+				while (!this.closed && !queued)
+				{ queued = this.queue.offer(buf, STALL_WAIT, TimeUnit.MILLISECONDS); }
+			}
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+		if (queued && this.closed)
+		{ queued = !this.queue.remove(buf); }
+		if (!queued)
+		{ this.release(buf); }
+		return queued;
+	}
+
+	/**
+	 * Stop the writer; queued commands are discarded.
+	 */
+	void close()
+	{
+		this.closed = true;
+		this.thread.interrupt();
+	}
+
+	public void run()
+	{
+		ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+		try
+		{
+			while (!this.closed)
+			{
+				batch[0] = this.queue.take();
+				int count = 1;
+				ByteBuffer buf;
+				while (count < MAX_BATCH && (buf = this.queue.poll()) != null)
+				{ batch[count++] = buf; }
+
+				// Keep writing until the socket has taken every buffer
+				int first = 0;
+				while (first < count)
+				{
+					this.channel.write(batch, first, count - first);
+					while (first < count && !batch[first].hasRemaining())
+					{ first++; }
+				}
+
+				for (int i = 0; i < count; i++)
+				{
+					this.release(batch[i]);
+					batch[i] = null;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{ }
+		catch (IOException e)
+		{
+			if (!this.closed)
+			{ System.err.println("Error writing to VNS server: " + e); }
+		}
+		this.closed = true;
+		this.queue.clear();
+	}
+
+	private void release(ByteBuffer buf)
+	{
+		if (buf.capacity() == BUFFER_SIZE && buf.isDirect())
+		{
+			buf.clear();
+			this.pool.offer(buf);
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for the VNS server that measures how many packets per second a
+ * device can forward. It gives the device two interfaces, floods eth0 with
+ * UDP packets for a host on eth1's subnet, and counts the packets the
+ * device sends back. The route table and ARP cache a router needs are
+ * written to temporary files, and the command line for running the device
+ * is printed on startup.
+ * Run with: java edu.wisc.cs.sdn.vnet.vns.LoadGenerator [-p port]
+ *     [-t seconds] [-s frame_size]
+ */
+public class LoadGenerator
+{
+	private static final short DEFAULT_PORT = 8888;
+	private static final int DEFAULT_SECONDS = 10;
+	private static final int DEFAULT_FRAME_SIZE = 100;
+
+	/** Time (in milliseconds) the device gets to load its tables */
+	private static final long SETUP_TIME = 1000;
+
+	/** Number of commands sent with each write */
+	private static final int BATCH = 64;
+
+	private static final String[] IFACES = { "eth0", "eth1" };
+	private static final int[] IPS = { 0x0a000101, 0x0a000201 };
+	private static final long[] MACS = { 0x000000000101L, 0x000000000201L };
+	private static final int MASK = 0xffffff00;
+	private static final int SRC_HOST = 0x0a000164;
+	private static final int DST_HOST = 0x0a000264;
+	private static final long SRC_HOST_MAC = 0x000000000164L;
+	private static final String DST_HOST_MAC = "00:00:00:00:02:64";
+
+	private static final AtomicLong received = new AtomicLong();
+
+	private static volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception
+	{
+		short port = DEFAULT_PORT;
+		int seconds = DEFAULT_SECONDS;
+		int frameSize = DEFAULT_FRAME_SIZE;
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-p"))
+			{ port = Short.parseShort(args[++i]); }
+			else if (args[i].equals("-t"))
+			{ seconds = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-s"))
+			{ frameSize = Math.max(42, Integer.parseInt(args[++i])); }
+		}
+
+		File routeTable = writeFile("rtable",
+				"10.0.1.0 0.0.0.0 255.255.255.0 eth0\n"
+				+ "10.0.2.0 0.0.0.0 255.255.255.0 eth1\n");
+		File arpCache = writeFile("arp", "10.0.2.100 " + DST_HOST_MAC + "\n");
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		System.out.println(String.format("Waiting for a device on port %d; "
+				+ "run:%n  java edu.wisc.cs.sdn.vnet.Main -v r1 -p %d -r %s -a %s",
+				port, port, routeTable, arpCache));
+
+		final SocketChannel device = server.accept();
+		server.close();
+		readCommand(device, ByteBuffer.allocate(Command.ID_SIZE + 64));
+		writeFully(device, hwInfo());
+		System.out.println("Device connected");
+
+		Thread reader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+				try
+				{
+					while (true)
+					{
+						if (Command.VNS_PACKET == readCommand(device, buf))
+						{ received.incrementAndGet(); }
+					}
+				}
+				catch (IOException e)
+				{ }
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+		Thread.sleep(SETUP_TIME);
+
+		// Send batches of packets from a separate thread, so the device is
+		// only slowed down by its own receive window
+		final ByteBuffer batch = packetBatch(frameSize);
+		final AtomicLong sent = new AtomicLong();
+		Thread writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					while (running)
+					{
+						batch.rewind();
+						writeFully(device, batch);
+						sent.addAndGet(BATCH);
+					}
+				}
+				catch (IOException e)
+				{ }
+			}
+		});
+		writer.setDaemon(true);
+		writer.start();
+
+		// Skip the first second while the device warms up
+		long firstReceived = 0;
+		long lastSent = 0, lastReceived = 0;
+		for (int second = 1; second <= seconds; second++)
+		{
+			Thread.sleep(1000);
+			long nowSent = sent.get(), nowReceived = received.get();
+			System.out.println(String.format("%3d s: sent %8d pps, received %8d pps",
+					second, nowSent - lastSent, nowReceived - lastReceived));
+			if (1 == second)
+			{ firstReceived = nowReceived; }
+			lastSent = nowSent;
+			lastReceived = nowReceived;
+		}
+		if (seconds > 1)
+		{
+			System.out.println(String.format("Average: %.0f pps forwarded with %d byte frames",
+					(double)(lastReceived - firstReceived) / (seconds - 1), frameSize));
+		}
+
+		running = false;
+		writer.join();
+		writeFully(device, close());
+		device.close();
+		routeTable.delete();
+		arpCache.delete();
+	}
+
+	private static File writeFile(String prefix, String contents)
+			throws IOException
+	{
+		File file = File.createTempFile(prefix, ".txt");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write(contents);
+		writer.close();
+		return file;
+	}
+
+	/**
+	 * Read one length-prefixed command.
+	 * @param buf buffer large enough for any command; may hold bytes that
+	 *        were read past the previous command
+	 * @return type of the command
+	 */
+	private static int readCommand(SocketChannel channel, ByteBuffer buf)
+			throws IOException
+	{
+		while (buf.position() < 8 || buf.position() < buf.getInt(0))
+		{
+			if (channel.read(buf) < 0)
+			{ throw new EOFException(); }
+		}
+		int len = buf.getInt(0);
+		int type = buf.getInt(4);
+		buf.flip();
+		buf.position(len);
+		buf.compact();
+		return type;
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buf)
+			throws IOException
+	{
+		while (buf.hasRemaining())
+		{ channel.write(buf); }
+	}
+
+	private static ByteBuffer hwInfo()
+	{
+		int entrySize = 4 + 32;
+		ByteBuffer buf = ByteBuffer.allocate(8 + IFACES.length * 4 * entrySize);
+		buf.putInt(buf.capacity());
+		buf.putInt(Command.VNS_HW_INFO);
+		for (int i = 0; i < IFACES.length; i++)
+		{
+			putEntry(buf, CommandHwEntry.HW_INTERFACE, IFACES[i].getBytes());
+			putEntry(buf, CommandHwEntry.HW_ETHER, macBytes(MACS[i]));
+			putEntry(buf, CommandHwEntry.HW_ETH_IP,
+					ByteBuffer.allocate(4).putInt(IPS[i]).array());
+			putEntry(buf, CommandHwEntry.HW_MASK,
+					ByteBuffer.allocate(4).putInt(MASK).array());
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static void putEntry(ByteBuffer buf, int key, byte[] value)
+	{
+		buf.putInt(key);
+		buf.put(value);
+		buf.position(buf.position() + 32 - value.length);
+	}
+
+	private static ByteBuffer close()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(8 + 256);
+		buf.putInt(buf.capacity());
+		buf.putInt(Command.VNS_CLOSE);
+		buf.put("Load test finished".getBytes());
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * @return BATCH copies of a VNS_PACKET command carrying a UDP packet
+	 *         from a host on eth0's subnet to a host on eth1's subnet
+	 */
+	private static ByteBuffer packetBatch(int frameSize)
+	{
+		byte[] frame = new byte[frameSize];
+		ByteBuffer bb = ByteBuffer.wrap(frame);
+		bb.put(macBytes(MACS[0]));
+		bb.put(macBytes(SRC_HOST_MAC));
+		bb.putShort((short)0x0800);
+
+		int ip = bb.position();
+		bb.put((byte)0x45).put((byte)0);
+		bb.putShort((short)(frameSize - ip));
+		bb.putInt(0);
+		bb.put((byte)64).put((byte)17).putShort((short)0);
+		bb.putInt(SRC_HOST).putInt(DST_HOST);
+		int sum = 0;
+		for (int i = ip; i < ip + 20; i += 2)
+		{ sum += ((frame[i] & 0xff) << 8) | (frame[i + 1] & 0xff); }
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		bb.putShort(ip + 10, (short)~sum);
+
+		int udp = bb.position();
+		bb.putShort((short)5000).putShort((short)5001);
+		bb.putShort((short)(frameSize - udp)).putShort((short)0);
+
+		ByteBuffer batch = ByteBuffer.allocateDirect(
+				BATCH * (CommandPacket.HEADER_SIZE + frameSize));
+		for (int i = 0; i < BATCH; i++)
+		{
+			batch.putInt(CommandPacket.HEADER_SIZE + frameSize);
+			batch.putInt(Command.VNS_PACKET);
+			byte[] name = new byte[16];
+			System.arraycopy(IFACES[0].getBytes(), 0, name, 0, IFACES[0].length());
+			batch.put(name);
+			batch.put(frame);
+		}
+		batch.flip();
+		return batch;
+	}
+
+	private static byte[] macBytes(long mac)
+	{
+		byte[] bytes = new byte[6];
+		for (int i = 5; i >= 0; i--, mac >>>= 8)
+		{ bytes[i] = (byte)mac; }
+		return bytes;
+	}
+}
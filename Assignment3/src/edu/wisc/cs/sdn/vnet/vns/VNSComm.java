@@ -1,12 +1,12 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
@@ -14,15 +14,39 @@ import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
 
+/**
+ * Connection to the VNS server. Commands from the server are read into one
+ * buffer and handled in place; when a command would run past the end of the
+ * buffer, the part already read is moved back to the start, so the buffer
+ * is used as a ring without ever splitting a command. Commands to the
+ * server are queued for a {@link CommandWriter}, which sends whatever has
+ * accumulated with a single write.
+ */
 public class VNSComm 
 {
-	private Socket socket;
+	/** Largest command the server may send */
+	private static final int MAX_COMMAND_SIZE = 10000;
+	
+	/** Size of the buffer commands are read into */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private SocketChannel channel;
+	private CommandWriter writer;
 	private Device device;
 	
+	/** Buffer commands are read into; the bytes from readStart up to the
+	 *  buffer's position have been read but not handled */
+	private byte[] readBytes;
+	private ByteBuffer readBuf;
+	private int readStart;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.readBytes = new byte[READ_BUFFER_SIZE];
+		this.readBuf = ByteBuffer.wrap(this.readBytes);
+		this.readStart = 0;
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -39,31 +63,37 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			this.channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			// Commands are already batched by the writer
+			this.channel.socket().setTcpNoDelay(true);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 			return false;
 		}
+		this.writer = new CommandWriter(this.channel);
 		
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		return true; 
+		ByteBuffer out = this.writer.allocate(buf.length);
+		out.put(buf);
+		out.flip();
+		return this.writer.send(out); 
+	}
+	
+	/**
+	 * Close the connection to the server.
+	 */
+	public void close()
+	{
+		if (this.writer != null)
+		{ this.writer.close(); }
+		try { this.channel.close(); } catch (IOException e) { }
 	}
 	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
@@ -108,73 +138,43 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		// Start from the beginning of the buffer when everything was handled
+		if (this.readStart == this.readBuf.position())
 		{
-			e.printStackTrace();
-			return false;
+			this.readStart = 0;
+			this.readBuf.clear();
 		}
 		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		// Read the size of the incoming command, then the rest of it
+		int len;
+		try
 		{
-			try 
+			this.fill(4);
+			len = this.readBuf.getInt(this.readStart);
+			if (len > MAX_COMMAND_SIZE || len < 8)
 			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
+				System.err.println(String.format(
+						"Error: comamnd length too large %d", len));
+				this.close();
 				return false;
 			}
+			this.fill(len);
 		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
+		catch (IOException e)
 		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
+			e.printStackTrace();
+			System.err.println("Error: failed reading command body");
+			this.close();
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
-		}
+		// The command is handled where it was read
+		ByteBuffer buf = ByteBuffer.wrap(this.readBytes, this.readStart, len)
+				.slice();
+		this.readStart += len;
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = buf.getInt(4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -191,15 +191,27 @@ public class VNSComm
 		{
 		case Command.VNS_PACKET:
 			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			cmdPkt.deserializeHeader(buf);
+			int frameOffset = buf.arrayOffset() + buf.position();
+			int frameLength = buf.remaining();
+			Iface inIface = this.device.getInterface(cmdPkt.mInterfaceName);
 			
 			// Log packet
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+            { 
+            	this.device.getLogFile().dump(this.readBytes, frameOffset,
+            			frameLength, cmdPkt.mInterfaceName); 
+            }
 			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			// Give the device a chance to handle the raw frame; otherwise
+            // parse it and pass to device, student's code should take over
+			if (!this.device.handleFrame(this.readBytes, frameOffset, 
+					frameLength, inIface))
+			{
+				buf.position(0);
+				cmdPkt.deserialize(buf);
+				this.device.handlePacket(cmdPkt.etherPacket, inIface);
+			}
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -223,6 +235,29 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Read from the server until a number of bytes past readStart are in the
+	 * buffer, first moving the unhandled bytes to the start of the buffer if
+	 * they would not fit at the end.
+	 * @param count number of bytes needed; at most MAX_COMMAND_SIZE
+	 */
+	private void fill(int count) throws IOException
+	{
+		if (this.readStart + count > this.readBytes.length)
+		{
+			int available = this.readBuf.position() - this.readStart;
+			System.arraycopy(this.readBytes, this.readStart, this.readBytes, 0,
+					available);
+			this.readBuf.position(available);
+			this.readStart = 0;
+		}
+		while (this.readBuf.position() - this.readStart < count)
+		{
+			if (this.channel.read(this.readBuf) < 0)
+			{ throw new EOFException(); }
+		}
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -241,14 +276,32 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Send a raw Ethernet frame. The frame is copied into a command for the
+	 * writer, so the buffer may be reused as soon as this returns.
+	 * @param buf buffer holding the frame
+	 * @param frameOffset offset of the frame
+	 * @param frameLength length of the frame
+	 * @param ifaceName name of the interface to send the frame out
+	 * @return true if the frame was queued to be sent, otherwise false
+	 */
+	public boolean sendFrame(byte[] buf, int frameOffset, int frameLength,
+			String ifaceName)
+	{
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { 
+        	this.device.getLogFile().dump(buf, frameOffset, frameLength,
+        			ifaceName); 
+        }
+        
+		return this.queueFrame(buf, frameOffset, frameLength, ifaceName);
+	}
+	
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
+		byte[] frame = etherPacket.serialize();
 		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
@@ -258,15 +311,20 @@ public class VNSComm
 		
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+        { this.device.getLogFile().dump(frame, 0, frame.length, ifaceName); }
 		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
+		return this.queueFrame(frame, 0, frame.length, ifaceName);
+	}
+	
+	private boolean queueFrame(byte[] frame, int offset, int length,
+			String ifaceName)
+	{
+		ByteBuffer out = this.writer.allocate(
+				CommandPacket.HEADER_SIZE + length);
+		CommandPacket.serializeHeader(out, length, ifaceName);
+		out.put(frame, offset, length);
+		out.flip();
+		if (!this.writer.send(out))
 		{
 			System.err.println("Error writing packet");
 			return false;
@@ -12,7 +12,8 @@ class CSVParser {
         List<String> lines = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
         List<Subnet> result = new ArrayList<>();
         for (String line : lines) {
-            result.add(new Subnet(line));
+            if (line.trim().isEmpty()) continue;
+            result.add(new Subnet(line.trim()));
         }
         return result;
     }
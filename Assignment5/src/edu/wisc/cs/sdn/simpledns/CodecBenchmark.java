@@ -0,0 +1,125 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures parsing, serializing and cloning of a typical TLD referral and a
+ * typical answer with the DNS packet classes.
+ * Run with: java edu.wisc.cs.sdn.simpledns.CodecBenchmark
+ */
+public class CodecBenchmark {
+    private static final int ITERATIONS = 1 << 12;
+    private static final long MEASURE_TIME_MS = 2000;
+
+    public static void main(String[] args) throws UnknownHostException {
+        run("referral", referral());
+        run("answer", answer());
+    }
+
+    private interface Operation {
+        Object run();
+    }
+
+    private static void run(String name, DNS message) {
+        byte[] wire = message.serialize();
+        DNS parsed = DNS.deserialize(wire, wire.length);
+        if (!parsed.toString().equals(message.toString()) || !message.clone().toString().equals(message.toString())) {
+            throw new IllegalStateException("Round trip changed the " + name + " message");
+        }
+        System.out.println(String.format("%s: %d bytes, %d without compression", name, wire.length, message.getLength()));
+
+        ByteBuffer buffer = ByteBuffer.allocate(message.getLength());
+        DNSNameCompressor names = new DNSNameCompressor();
+        report("parse", () -> DNS.deserialize(wire, wire.length));
+        report("parse and read names", () -> {
+            DNS dns = DNS.deserialize(wire, wire.length);
+            int length = 0;
+            for (DNSResourceRecord record : dns.getAuthorities()) length += record.getName().length();
+            for (DNSResourceRecord record : dns.getAdditional()) length += record.getName().length();
+            return length;
+        });
+        report("serialize to byte[]", message::serialize);
+        report("serialize to buffer", () -> {
+            buffer.clear();
+            message.serialize(buffer, names);
+            return buffer;
+        });
+        report("clone", message::clone);
+    }
+
+    private static void report(String name, Operation operation) {
+        measure(operation, MEASURE_TIME_MS / 4);
+        System.out.println(String.format("  %-24s%.1f ns/op", name, measure(operation, MEASURE_TIME_MS)));
+    }
+
+    /**
+     * @return average time (in nanoseconds) per operation
+     */
+    private static double measure(Operation operation, long durationMs) {
+        int sink = 0;
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed = 0;
+        while (elapsed < durationMs * 1000000) {
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (operation.run() == null) sink++;
+            }
+            operations += ITERATIONS;
+            elapsed = System.nanoTime() - start;
+        }
+        if (sink < 0) System.out.println();
+        return (double) elapsed / operations;
+    }
+
+    /**
+     * A referral from a root server to the com servers, with glue.
+     */
+    private static DNS referral() throws UnknownHostException {
+        DNS dns = response("www.example.com", DNS.TYPE_A);
+        for (char c = 'a'; c <= 'm'; c++) {
+            String server = c + ".gtld-servers.net";
+            dns.addAuthority(record("com", DNS.TYPE_NS, 172800, new DNSRdataName(server)));
+            dns.addAdditional(record(server, DNS.TYPE_A, 172800,
+                    new DNSRdataAddress(InetAddress.getByName("192.5." + (c - 'a') + ".30"))));
+        }
+        return dns;
+    }
+
+    /**
+     * An answer through a CNAME, with the authoritative name servers.
+     */
+    private static DNS answer() throws UnknownHostException {
+        DNS dns = response("www.example.com", DNS.TYPE_A);
+        dns.setAuthoritative(true);
+        dns.addAnswer(record("www.example.com", DNS.TYPE_CNAME, 300, new DNSRdataName("www.example.com.cdn.example.net")));
+        for (int i = 1; i <= 4; i++) {
+            dns.addAnswer(record("www.example.com.cdn.example.net", DNS.TYPE_A, 60,
+                    new DNSRdataAddress(InetAddress.getByName("54.239.28." + i))));
+        }
+        for (int i = 1; i <= 2; i++) {
+            String server = "ns" + i + ".example.net";
+            dns.addAuthority(record("example.net", DNS.TYPE_NS, 86400, new DNSRdataName(server)));
+            dns.addAdditional(record(server, DNS.TYPE_A, 86400,
+                    new DNSRdataAddress(InetAddress.getByName("205.251.192." + i))));
+        }
+        return dns;
+    }
+
+    private static DNS response(String name, short type) {
+        DNS dns = new DNS();
+        dns.setId((short) 0x1234);
+        dns.setQuery(false);
+        dns.addQuestion(new DNSQuestion(name, type));
+        return dns;
+    }
+
+    private static DNSResourceRecord record(String name, short type, int ttl, DNSRdata data) {
+        DNSResourceRecord record = new DNSResourceRecord(name, type, data);
+        record.setTtl(ttl);
+        return record;
+    }
+}
@@ -0,0 +1,366 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Resolver cache keyed by (name, type, class).
+ *
+ * Positive entries hold an RRset and expire with the smallest TTL in the set.
+ * Negative entries (RFC 2308) remember NXDOMAIN and NODATA answers, along
+ * with the SOA record, for the SOA minimum TTL. NS records and glue addresses
+ * from referrals are cached like any other RRset, which lets a recursion
+ * start at the closest zone cut whose name servers are known. The number of entries is bounded and the
+ * least recently used entry is evicted first.
+ *
+ * A name server is only believed about names in the zone it was delegated
+ * for, so a response cannot overwrite records of a parent or sibling zone.
+ */
+class DNSCache {
+    static final int DEFAULT_CAPACITY = 10000;
+
+    /** Upper bound on negative TTLs, as recommended by RFC 2308 section 5 */
+    private static final int MAX_NEGATIVE_TTL = 3 * 60 * 60;
+
+    /** Type under which NXDOMAIN is cached, since it holds for every type */
+    private static final short TYPE_ANY_NAME = 0;
+
+    private final int capacity;
+    private final Map<Key, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    DNSCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    DNSCache(final int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() <= DNSCache.this.capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Look up a cached answer, counting a hit or a miss. When no records of
+     * the requested type are cached, a CNAME for the name is returned instead.
+     *
+     * @return the entry with TTLs reduced by the time spent in the cache,
+     * or null if nothing unexpired is cached for the question
+     */
+    synchronized Entry lookup(String name, short type, short cls) {
+        Entry entry = peek(name, type, cls);
+        if (entry == null && type != DNS.TYPE_CNAME) entry = peek(name, DNS.TYPE_CNAME, cls);
+        if (entry == null) entry = peek(name, TYPE_ANY_NAME, cls);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.withRemainingTtl(System.currentTimeMillis());
+    }
+
+    /**
+     * Find the name servers for the closest enclosing zone whose NS records
+     * and at least one of their addresses are cached. The root zone is not
+     * considered; callers fall back to the root server instead.
+     *
+     * @return the zone and the cached addresses of its name servers, or null
+     * if none are known
+     */
+    synchronized Delegation findClosestServers(String name) {
+        for (String zone = normalize(name); !zone.isEmpty(); zone = parent(zone)) {
+            List<InetAddress> addresses = new ArrayList<>();
+            Entry ns = peek(zone, DNS.TYPE_NS, DNS.CLASS_IN);
+            if (ns == null || ns.isNegative()) continue;
+            for (DNSResourceRecord record : ns.records) {
+                String server = ((DNSRdataName) record.getData()).getName();
+                Entry glue = peek(server, DNS.TYPE_A, DNS.CLASS_IN);
+                if (glue == null || glue.isNegative()) continue;
+                for (DNSResourceRecord address : glue.records) {
+                    addresses.add(((DNSRdataAddress) address.getData()).getAddress());
+                }
+            }
+            if (!addresses.isEmpty()) return new Delegation(zone, addresses);
+        }
+        return null;
+    }
+
+    /**
+     * Cache the records in an upstream response to a question that were
+     * within the authority of the name server that sent it: answers along
+     * the chain of CNAMEs from the question's name, NS records for zones
+     * between the server's zone and the name, addresses under the server's
+     * zone of those name servers, and a negative entry for NXDOMAIN or
+     * NODATA responses that carry an SOA record.
+     *
+     * @param zone the zone the name server was delegated for, "" for the
+     * root
+     */
+    synchronized void cacheResponse(DNSQuestion question, DNS response, String zone) {
+        long now = System.currentTimeMillis();
+        String qname = normalize(question.getName());
+        zone = normalize(zone);
+        if (!isSubdomain(qname, zone)) return;
+
+        putAll(chain(response, qname, zone), now);
+
+        Set<String> servers = new HashSet<>();
+        List<DNSResourceRecord> delegation = new ArrayList<>();
+        DNSResourceRecord soa = null;
+        for (DNSResourceRecord record : response.getAuthorities()) {
+            String owner = normalize(record.getName());
+            if (!isSubdomain(owner, zone)) continue;
+            if (record.getType() == DNS.TYPE_SOA) soa = record;
+            if (record.getType() != DNS.TYPE_NS) continue;
+            if (!isSubdomain(qname, owner)) continue;
+            delegation.add(record);
+            servers.add(normalize(((DNSRdataName) record.getData()).getName()));
+        }
+        putAll(delegation, now);
+
+        List<DNSResourceRecord> glue = new ArrayList<>();
+        for (DNSResourceRecord record : response.getAdditional()) {
+            if (record.getType() != DNS.TYPE_A && record.getType() != DNS.TYPE_AAAA) continue;
+            String owner = normalize(record.getName());
+            if (servers.contains(owner) && isSubdomain(owner, zone)) glue.add(record);
+        }
+        putAll(glue, now);
+
+        if (soa == null || !delegation.isEmpty()) return;
+        if (response.getRcode() == DNS.RCODE_NAME_ERROR) {
+            putNegative(qname, TYPE_ANY_NAME, question.getCls(), DNS.RCODE_NAME_ERROR, soa, now);
+        } else if (response.getRcode() == DNS.RCODE_NO_ERROR && !answers(response, qname, question.getType())) {
+            putNegative(qname, question.getType(), question.getCls(), DNS.RCODE_NO_ERROR, soa, now);
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Cache: %d entries, %d hits, %d misses, %d evictions",
+                entries.size(), hits, misses, evictions);
+    }
+
+    /**
+     * Get an unexpired entry without counting a hit or a miss.
+     */
+    private Entry peek(String name, short type, short cls) {
+        Key key = new Key(normalize(name), type, cls);
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Group records into RRsets and cache each set with its smallest TTL.
+     */
+    private void putAll(List<DNSResourceRecord> records, long now) {
+        Map<Key, List<DNSResourceRecord>> sets = new LinkedHashMap<>();
+        for (DNSResourceRecord record : records) {
+            Key key = new Key(normalize(record.getName()), record.getType(), record.getCls());
+            List<DNSResourceRecord> set = sets.get(key);
+            if (set == null) {
+                set = new ArrayList<>();
+                sets.put(key, set);
+            }
+            if (!set.contains(record)) set.add(record);
+        }
+        for (Map.Entry<Key, List<DNSResourceRecord>> set : sets.entrySet()) {
+            int ttl = Integer.MAX_VALUE;
+            for (DNSResourceRecord record : set.getValue()) ttl = Math.min(ttl, record.getTtl());
+            if (ttl <= 0) continue;
+            entries.put(set.getKey(), new Entry(set.getValue(), false, DNS.RCODE_NO_ERROR, now + ttl * 1000L, now));
+        }
+    }
+
+    private void putNegative(String name, short type, short cls, byte rcode, DNSResourceRecord soa, long now) {
+        int ttl = Math.min(soa.getTtl(), soaMinimum(soa));
+        ttl = Math.min(ttl, MAX_NEGATIVE_TTL);
+        if (ttl <= 0) return;
+        DNSResourceRecord copy = new DNSResourceRecord(soa.getName(), soa.getType(), soa.getData());
+        copy.setTtl(ttl);
+        entries.put(new Key(name, type, cls),
+                new Entry(Collections.singletonList(copy), true, rcode, now + ttl * 1000L, now));
+    }
+
+    /**
+     * @return the MINIMUM field of an SOA record, which is the last four
+     * bytes of its data even when the names in it are compressed
+     */
+    private static int soaMinimum(DNSResourceRecord soa) {
+        if (!(soa.getData() instanceof DNSRdataBytes)) return 0;
+        byte[] bytes = ((DNSRdataBytes) soa.getData()).getBytes();
+        if (bytes.length < 4) return 0;
+        return ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt();
+    }
+
+    /**
+     * @return the answers owned by the question's name or by the targets of
+     * the CNAMEs leading from it, as long as the names stay in the zone
+     */
+    private static List<DNSResourceRecord> chain(DNS response, String qname, String zone) {
+        List<DNSResourceRecord> records = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        String name = qname;
+        while (name != null && isSubdomain(name, zone) && names.add(name)) {
+            String next = null;
+            for (DNSResourceRecord record : response.getAnswers()) {
+                if (!normalize(record.getName()).equals(name)) continue;
+                records.add(record);
+                if (record.getType() == DNS.TYPE_CNAME)
+                    next = normalize(((DNSRdataName) record.getData()).getName());
+            }
+            name = next;
+        }
+        return records;
+    }
+
+    private static boolean answers(DNS response, String qname, short type) {
+        for (DNSResourceRecord record : response.getAnswers()) {
+            if (!normalize(record.getName()).equals(qname)) continue;
+            if (record.getType() == type || record.getType() == DNS.TYPE_CNAME) return true;
+        }
+        return false;
+    }
+
+    static boolean isSubdomain(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static final class Key {
+        private final String name;
+        private final short type;
+        private final short cls;
+
+        Key(String name, short type, short cls) {
+            this.name = name;
+            this.type = type;
+            this.cls = cls;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return type == key.type && cls == key.cls && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, type, cls);
+        }
+    }
+
+    /**
+     * The addresses of the name servers of a zone
+     */
+    static final class Delegation {
+        private final String zone;
+        private final List<InetAddress> addresses;
+
+        Delegation(String zone, List<InetAddress> addresses) {
+            this.zone = zone;
+            this.addresses = addresses;
+        }
+
+        String getZone() {
+            return zone;
+        }
+
+        List<InetAddress> getAddresses() {
+            return addresses;
+        }
+    }
+
+    /**
+     * A cached RRset, or a negative answer whose only record is the SOA
+     * that belongs in the authority section.
+     */
+    static final class Entry {
+        private final List<DNSResourceRecord> records;
+        private final boolean negative;
+        private final byte rcode;
+        private final long expires;
+        private final long stored;
+
+        private Entry(List<DNSResourceRecord> records, boolean negative, byte rcode, long expires, long stored) {
+            this.records = records;
+            this.negative = negative;
+            this.rcode = rcode;
+            this.expires = expires;
+            this.stored = stored;
+        }
+
+        List<DNSResourceRecord> getRecords() {
+            return records;
+        }
+
+        boolean isNegative() {
+            return negative;
+        }
+
+        byte getRcode() {
+            return rcode;
+        }
+
+        private Entry withRemainingTtl(long now) {
+            int elapsed = (int) ((now - stored) / 1000);
+            List<DNSResourceRecord> copies = new ArrayList<>(records.size());
+            for (DNSResourceRecord record : records) {
+                DNSResourceRecord copy = new DNSResourceRecord(record.getName(), record.getType(), record.getData());
+                copy.setTtl(Math.max(1, record.getTtl() - elapsed));
+                copies.add(copy);
+            }
+            return new Entry(copies, negative, rcode, expires, now);
+        }
+    }
+}
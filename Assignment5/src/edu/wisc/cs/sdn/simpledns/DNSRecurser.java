@@ -2,14 +2,23 @@ package edu.wisc.cs.sdn.simpledns;
 
 import edu.wisc.cs.sdn.simpledns.packet.*;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Resolves one client query. Each step that asks a name server returns a
+ * future, and the next step is chained on to it, so a recursion holds no
+ * thread while it waits; the steps of one recursion still run one after
+ * another.
+ */
 class DNSRecurser {
     private final int MAX_DEPTH = 64;
+    /** Attempts per hop when a zone has a single name server address */
+    private final int MIN_ATTEMPTS = 2;
     private DNS origPacket;
     private int currentDepth = 0;
 
@@ -17,11 +26,50 @@ class DNSRecurser {
         this.origPacket = origPacket;
     }
 
-    DNS recurse(InetAddress dnsServer, DNSQuestion question) throws IOException {
+    /**
+     * Resolve a question starting at the closest zone whose name servers
+     * are cached, or at the root server.
+     */
+    CompletableFuture<DNS> recurse(DNSQuestion question) {
+        DNSCache.Delegation closest = DNSServer.cache.findClosestServers(question.getName());
+        if (closest == null) return recurse("", Collections.singletonList(DNSServer.rootServer), question);
+        return recurse(closest.getZone(), closest.getAddresses(), question);
+    }
+
+    /**
+     * Resolve a question by asking the given name servers, which are
+     * alternate addresses for the same zone.
+     *
+     * @param zone the zone the name servers were delegated for, "" for the
+     * root; they are only believed about names in it
+     */
+    CompletableFuture<DNS> recurse(String zone, List<InetAddress> dnsServers, DNSQuestion question) {
         DNS resultPacket = createNewPacket(question);
-        if (currentDepth++ > MAX_DEPTH) return resultPacket;
+        if (currentDepth++ > MAX_DEPTH) return CompletableFuture.completedFuture(resultPacket);
+
+        // Check cache
+        DNSCache.Entry cached = DNSServer.cache.lookup(question.getName(), question.getType(), question.getCls());
+        if (cached != null) return answerFromCache(resultPacket, question, cached);
 
-        DNS responsePacket = DNSServer.askDNSServer(dnsServer, resultPacket);
+        return ask(dnsServers, resultPacket, 0)
+                .thenCompose(responsePacket -> handleResponse(zone, question, resultPacket, responsePacket));
+    }
+
+    private CompletableFuture<DNS> handleResponse(String zone, DNSQuestion question, DNS resultPacket,
+                                                  DNS responsePacket) {
+        if (responsePacket == null) {
+            resultPacket.setRcode(DNS.RCODE_SERVER_FAILURE);
+            return CompletableFuture.completedFuture(resultPacket);
+        }
+        DNSServer.cache.cacheResponse(question, responsePacket, zone);
+
+        // Check negative answer
+        DNSResourceRecord soa = findNegativeAnswer(responsePacket);
+        if (soa != null) {
+            resultPacket.setRcode(responsePacket.getRcode());
+            resultPacket.setAuthorities(Collections.singletonList(soa));
+            return CompletableFuture.completedFuture(resultPacket);
+        }
 
         // Check answer
         boolean found = false;
@@ -29,15 +77,14 @@ class DNSRecurser {
             if (answer.getType() == question.getType()) {
                 resultPacket.addAnswer(answer);
                 if (answer.getType() == DNS.TYPE_A) {
-                    String hostAddress = getAddressFromRecord(answer).getHostAddress();
-                    addEc2TXT(resultPacket, hostAddress);
+                    addEc2TXT(resultPacket, getAddressFromRecord(answer));
                 }
                 found = true;
             } else if (answer.getType() == DNS.TYPE_CNAME) {
                 resultPacket.addAnswer(answer);
             }
         }
-        if (found) return resultPacket;
+        if (found) return CompletableFuture.completedFuture(resultPacket);
 
         for (DNSResourceRecord answer : new ArrayList<>(resultPacket.getAnswers())) {
             if (!answer.getName().equals(question.getName()))
@@ -49,48 +96,149 @@ class DNSRecurser {
             if (answer.getType() != DNS.TYPE_CNAME) continue;
             if (!answer.getName().equals(question.getName())) continue;
             String name = ((DNSRdataName) answer.getData()).getName();
-            DNS newResponse = recurse(DNSServer.rootServer, new DNSQuestion(name, question.getType()));
-            for (DNSResourceRecord ans : newResponse.getAnswers()) {
-                resultPacket.addAnswer(ans);
-            }
-            return resultPacket;
+            return followCname(resultPacket, question, name);
         }
 
-        List<DNSResourceRecord> authorities = new ArrayList<>(responsePacket.getAuthorities());
+        // Only follow a referral to a zone below the one asked
+        String subzone = findReferral(zone, question, responsePacket);
+        List<DNSResourceRecord> authorities = new ArrayList<>();
 
         // Check Authorities in Additional Section
+        List<InetAddress> addresses = new ArrayList<>();
         for (DNSResourceRecord authority : responsePacket.getAuthorities()) {
             if (authority.getType() != DNS.TYPE_NS) continue;
+            if (!DNSCache.normalize(authority.getName()).equals(subzone)) continue;
             String name = ((DNSRdataName) authority.getData()).getName();
-            InetAddress address = findNameServerAddressInAdditional(name, responsePacket);
+            InetAddress address = DNSCache.isSubdomain(DNSCache.normalize(name), zone)
+                    ? findNameServerAddressInAdditional(name, responsePacket) : null;
 
-            if (address == null) // cannot find in the additional section
+            if (address == null) { // no glue the server may give
+                authorities.add(authority);
                 continue;
-
-            authorities.remove(authority);
-            DNS newPacket = recurse(address, question);
-            for (DNSResourceRecord answer : newPacket.getAnswers()) {
-                if (answer.getType() == question.getType())
-                    return newPacket;
             }
+            addresses.add(address);
         }
+        CompletableFuture<DNS> glued = addresses.isEmpty()
+                ? CompletableFuture.completedFuture(null)
+                : recurse(subzone, addresses, question);
+        return glued.thenCompose(newPacket -> {
+            if (newPacket != null && isFinal(newPacket, question))
+                return CompletableFuture.completedFuture(newPacket);
+            return askAuthorities(subzone, authorities.iterator(), question, resultPacket);
+        });
+    }
 
-        // Find Authorities' IP from Root
-        for (DNSResourceRecord authority : authorities) {
-            if (authority.getType() != DNS.TYPE_NS) continue;
-            String name = ((DNSRdataName) authority.getData()).getName();
-            DNS newResponse = recurse(DNSServer.rootServer, new DNSQuestion(name, DNS.TYPE_A));
+    /**
+     * Find the address of each name server without glue from the root in
+     * turn, and ask it, until one gives a final answer.
+     */
+    private CompletableFuture<DNS> askAuthorities(String zone, Iterator<DNSResourceRecord> authorities,
+                                                  DNSQuestion question, DNS resultPacket) {
+        if (!authorities.hasNext()) {
+            // No name server for the zone answered
+            resultPacket.setRcode(DNS.RCODE_SERVER_FAILURE);
+            return CompletableFuture.completedFuture(resultPacket);
+        }
+        String name = ((DNSRdataName) authorities.next().getData()).getName();
+        return recurse(new DNSQuestion(name, DNS.TYPE_A)).thenCompose(newResponse -> {
             InetAddress address = getARecordFromDNSPacket(newResponse);
             if (address == null) // cannot find the Authorities' IP from Root
-                continue;
-            DNS newPacket = recurse(address, question);
-            for (DNSResourceRecord answer : newPacket.getAnswers()) {
-                if (answer.getType() == question.getType())
-                    return newPacket;
+                return askAuthorities(zone, authorities, question, resultPacket);
+            return recurse(zone, Collections.singletonList(address), question).thenCompose(newPacket -> {
+                if (isFinal(newPacket, question)) return CompletableFuture.completedFuture(newPacket);
+                return askAuthorities(zone, authorities, question, resultPacket);
+            });
+        });
+    }
+
+    /**
+     * Send a query to each of the name servers in turn, starting with the
+     * given attempt, until one answers within the per-hop timeout.
+     *
+     * @return a future completed with the response, or with null if no
+     * name server answered
+     */
+    private CompletableFuture<DNS> ask(List<InetAddress> dnsServers, DNS packet, int attempt) {
+        int attempts = Math.max(MIN_ATTEMPTS, dnsServers.size());
+        if (attempt >= attempts) return CompletableFuture.completedFuture(null);
+        return DNSServer.askDNSServer(dnsServers.get(attempt % dnsServers.size()), packet)
+                .thenCompose(response -> response != null
+                        ? CompletableFuture.completedFuture(response)
+                        : ask(dnsServers, packet, attempt + 1));
+    }
+
+    private CompletableFuture<DNS> answerFromCache(DNS resultPacket, DNSQuestion question,
+                                                   DNSCache.Entry cached) {
+        if (cached.isNegative()) {
+            resultPacket.setRcode(cached.getRcode());
+            resultPacket.setAuthorities(cached.getRecords());
+            return CompletableFuture.completedFuture(resultPacket);
+        }
+        for (DNSResourceRecord answer : cached.getRecords()) {
+            resultPacket.addAnswer(answer);
+            if (answer.getType() == DNS.TYPE_A) {
+                addEc2TXT(resultPacket, getAddressFromRecord(answer));
             }
         }
+        DNSResourceRecord first = cached.getRecords().get(0);
+        if (first.getType() == DNS.TYPE_CNAME && question.getType() != DNS.TYPE_CNAME) {
+            return followCname(resultPacket, question, ((DNSRdataName) first.getData()).getName());
+        }
+        return CompletableFuture.completedFuture(resultPacket);
+    }
+
+    private CompletableFuture<DNS> followCname(DNS resultPacket, DNSQuestion question, String name) {
+        return recurse(new DNSQuestion(name, question.getType())).thenApply(newResponse -> {
+            for (DNSResourceRecord ans : newResponse.getAnswers()) {
+                resultPacket.addAnswer(ans);
+            }
+            resultPacket.setRcode(newResponse.getRcode());
+            resultPacket.setAuthorities(newResponse.getAuthorities());
+            return resultPacket;
+        });
+    }
+
+    /**
+     * @return the SOA record of an NXDOMAIN or NODATA response, or null if
+     * the response is not a negative answer
+     */
+    private DNSResourceRecord findNegativeAnswer(DNS responsePacket) {
+        if (responsePacket.getRcode() != DNS.RCODE_NO_ERROR && responsePacket.getRcode() != DNS.RCODE_NAME_ERROR)
+            return null;
+        if (!responsePacket.getAnswers().isEmpty()) return null;
+        DNSResourceRecord soa = null;
+        for (DNSResourceRecord authority : responsePacket.getAuthorities()) {
+            if (authority.getType() == DNS.TYPE_NS) return null;
+            if (authority.getType() == DNS.TYPE_SOA) soa = authority;
+        }
+        return soa;
+    }
 
-        return origPacket;
+    /**
+     * @return the zone a response delegates the question to, which must be
+     * below the zone of the server that sent it, or null if it delegates
+     * nowhere the server may
+     */
+    private String findReferral(String zone, DNSQuestion question, DNS responsePacket) {
+        String qname = DNSCache.normalize(question.getName());
+        for (DNSResourceRecord authority : responsePacket.getAuthorities()) {
+            if (authority.getType() != DNS.TYPE_NS) continue;
+            String owner = DNSCache.normalize(authority.getName());
+            if (owner.equals(zone)) continue;
+            if (DNSCache.isSubdomain(owner, zone) && DNSCache.isSubdomain(qname, owner)) return owner;
+        }
+        return null;
+    }
+
+    private boolean isFinal(DNS packet, DNSQuestion question) {
+        if (packet.getRcode() == DNS.RCODE_NAME_ERROR) return true;
+        for (DNSResourceRecord answer : packet.getAnswers()) {
+            if (answer.getType() == question.getType()) return true;
+        }
+        for (DNSResourceRecord authority : packet.getAuthorities()) {
+            if (authority.getType() == DNS.TYPE_SOA) return true;
+        }
+        return false;
     }
 
     private InetAddress getAddressFromRecord(DNSResourceRecord answer) {
@@ -116,15 +264,13 @@ class DNSRecurser {
     }
 
 
-    private void addEc2TXT(DNS returnDNSPacket, String hostAddress) {
+    private void addEc2TXT(DNS returnDNSPacket, InetAddress address) {
+        Subnet subnet = DNSServer.ec2Region.lookup(address);
+        if (subnet == null) return;
         String hostName = origPacket.getQuestions().get(0).getName();
-        for (Subnet subnet : DNSServer.ec2Region) {
-            if (!subnet.inRange(hostAddress)) continue;
-            DNSRdataString string = new DNSRdataString(subnet.toString(hostAddress));
-            DNSResourceRecord record = new DNSResourceRecord(hostName, DNS.TYPE_TXT, string);
-            returnDNSPacket.addAnswer(record);
-            return;
-        }
+        DNSRdataString string = new DNSRdataString(subnet.toString(address.getHostAddress()));
+        DNSResourceRecord record = new DNSResourceRecord(hostName, DNS.TYPE_TXT, string);
+        returnDNSPacket.addAnswer(record);
     }
 
     private DNS createNewPacket(DNSQuestion question) {
@@ -4,80 +4,212 @@ import edu.wisc.cs.sdn.simpledns.packet.DNS;
 import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.List;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * DNS server driven by a single selector thread that reads client queries
+ * and upstream responses. A recursion is a chain of futures, one per
+ * upstream query, that moves on when the response arrives or the per-hop
+ * timer fires, so no thread waits on a name server and a slow one delays
+ * nothing but the clients asking about names it serves. Recursive queries
+ * for a question that is already being resolved wait for that resolution
+ * instead of starting another one.
+ */
 class DNSServer {
     private static final int BUFFER_SIZE = 8192;
     private static final int DNS_PORT = 53;
     private static final int PORT = 8053;
 
+    /** Time to wait for an upstream name server before trying another */
+    private static final long HOP_TIMEOUT_MS = 2000;
+
     static InetAddress rootServer;
-    static List<Subnet> ec2Region;
+    static RegionTable ec2Region;
+    static DNSCache cache;
+    private static UpstreamChannel upstream;
+    private static ScheduledExecutorService timer;
 
-    private DatagramSocket clientSocket;
+    private final Selector selector;
+    private final DatagramChannel clientChannel;
+    private final ByteBuffer clientBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Map<String, CompletableFuture<DNS>> inFlight = new ConcurrentHashMap<>();
 
 
     DNSServer(String rootServerIp, String ec2Csv) throws IOException {
+        this(rootServerIp, ec2Csv, PORT, DNS_PORT, DNSCache.DEFAULT_CAPACITY);
+    }
+
+    DNSServer(String rootServerIp, String ec2Csv, int port, int upstreamPort, int cacheSize) throws IOException {
         rootServer = Inet4Address.getByName(rootServerIp);
-        ec2Region = CSVParser.parse(ec2Csv);
-        this.clientSocket = new DatagramSocket(PORT);
+        ec2Region = new RegionTable(ec2Csv);
+        ec2Region.watch();
+        cache = new DNSCache(cacheSize);
+        this.selector = Selector.open();
+        upstream = new UpstreamChannel(this.selector, upstreamPort, BUFFER_SIZE);
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hop-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.clientChannel = DatagramChannel.open();
+        this.clientChannel.bind(new InetSocketAddress(port));
+        this.clientChannel.configureBlocking(false);
+        this.clientChannel.register(this.selector, SelectionKey.OP_READ);
     }
 
     void start() throws IOException {
-        while (true) {
-            DNS dnsPacket = receiveDNSPacket(this.clientSocket);
-            if (dnsPacket.getOpcode() != DNS.OPCODE_STANDARD_QUERY) continue;
-            handleDNSPacket(dnsPacket);
+        try {
+            while (true) {
+                upstream.register();
+                this.selector.select();
+                for (SelectionKey key : this.selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.channel() == this.clientChannel) {
+                        receiveClientPackets();
+                    } else {
+                        upstream.receive(key);
+                    }
+                }
+                this.selector.selectedKeys().clear();
+            }
+        } finally {
+            close();
         }
     }
 
-    private static DNS receiveDNSPacket(DatagramSocket socket) throws IOException {
-        DatagramPacket datagramPacket = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
-        socket.receive(datagramPacket);
-        socket.connect(datagramPacket.getSocketAddress());
-        return DNS.deserialize(datagramPacket.getData(), BUFFER_SIZE);
+    void close() throws IOException {
+        timer.shutdownNow();
+        upstream.close();
+        this.clientChannel.close();
+        this.selector.close();
     }
 
-    private static void sendDNSPacket(DatagramSocket socket, DNS dnsPacket) throws IOException {
-        byte[] buffer = dnsPacket.serialize();
-        socket.send(new DatagramPacket(buffer, buffer.length));
-        socket.disconnect();
+    private void receiveClientPackets() throws IOException {
+        SocketAddress client;
+        while ((client = this.clientChannel.receive(this.clientBuffer)) != null) {
+            try {
+                DNS dnsPacket = DNS.deserialize(this.clientBuffer.array(), this.clientBuffer.position());
+                if (dnsPacket.isQuery() && dnsPacket.getOpcode() == DNS.OPCODE_STANDARD_QUERY) {
+                    handleDNSPacket(dnsPacket, client);
+                }
+            } catch (RuntimeException e) {
+                // Ignore malformed queries
+            } finally {
+                this.clientBuffer.clear();
+            }
+        }
     }
 
+    private void sendDNSPacket(DNS query, DNS response, SocketAddress client) {
+        DNS packet = response.clone();
+        packet.setId(query.getId());
+        packet.setQuery(false);
+        packet.setRecursionDesired(query.isRecursionDesired());
+        packet.setQuestions(query.getQuestions());
+        try {
+            this.clientChannel.send(ByteBuffer.wrap(packet.serialize()), client);
+        } catch (IOException e) {
+            System.err.println("Failed to answer " + client + ": " + e);
+        }
+    }
 
-    static DNS askDNSServer(InetAddress dnsServer, DNS dnsPacket) throws IOException {
-        try (DatagramSocket socket = new DatagramSocket(DNS_PORT)) {
-            socket.connect(dnsServer, DNS_PORT);
-            sendDNSPacket(socket, dnsPacket);
-            DNS dns = receiveDNSPacket(socket);
+    /**
+     * Query a name server, giving up after the per-hop timeout.
+     *
+     * @return a future completed with the response, or with null if the
+     * name server did not answer in time
+     */
+    static CompletableFuture<DNS> askDNSServer(InetAddress dnsServer, DNS dnsPacket) {
+        CompletableFuture<DNS> future = upstream.query(dnsServer, dnsPacket);
+        ScheduledFuture<?> timeout = timer.schedule(() -> future.cancel(false), HOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return future.handle((dns, error) -> {
+            timeout.cancel(false);
+            if (error instanceof CancellationException) {
+                System.out.println(" ================== Timed out " + dnsServer + " ================== ");
+                return null;
+            }
+            if (error != null) throw new CompletionException(error);
             System.out.println(" ================== Requested " + dnsServer + " ================== ");
             System.out.println(dns);
             return dns;
-        }
+        });
     }
 
-    private void handleDNSPacket(DNS inDNSPacket) throws IOException {
+    private void handleDNSPacket(DNS inDNSPacket, SocketAddress client) {
         if (inDNSPacket.getQuestions().size() == 0) return;
-        switch (inDNSPacket.getQuestions().get(0).getType()) {
+        DNSQuestion question = inDNSPacket.getQuestions().get(0);
+        switch (question.getType()) {
             case DNS.TYPE_A:
             case DNS.TYPE_AAAA:
             case DNS.TYPE_NS:
             case DNS.TYPE_CNAME:
+                CompletableFuture<DNS> result;
                 if (inDNSPacket.isRecursionDesired()) {
-                    DNSQuestion question =  inDNSPacket.getQuestions().get(0);
-                    DNS packet = new DNSRecurser(inDNSPacket).recurse(DNSServer.rootServer, question);
-                    packet.setQuery(false);
-                    sendDNSPacket(this.clientSocket, packet);
+                    result = resolve(inDNSPacket, question);
                 } else {
-                    sendDNSPacket(this.clientSocket, askDNSServer(rootServer, inDNSPacket));
+                    result = forward(inDNSPacket);
                 }
+                result.whenComplete((packet, error) -> {
+                    if (error != null) {
+                        System.err.println("Failed to resolve " + question + ": " + error);
+                        return;
+                    }
+                    sendDNSPacket(inDNSPacket, packet, client);
+                });
                 break;
             default:
-                this.clientSocket.disconnect();
+                break;
+        }
+    }
+
+    /**
+     * Start a recursion for a question, or join the one already in flight.
+     */
+    private CompletableFuture<DNS> resolve(DNS inDNSPacket, DNSQuestion question) {
+        String key = question.getName().toLowerCase(Locale.ROOT) + '/' + question.getType() + '/' + question.getCls();
+        CompletableFuture<DNS> result = new CompletableFuture<>();
+        CompletableFuture<DNS> existing = this.inFlight.putIfAbsent(key, result);
+        if (existing != null) return existing;
+
+        CompletableFuture<DNS> recursion;
+        try {
+            recursion = new DNSRecurser(inDNSPacket).recurse(question);
+        } catch (RuntimeException e) {
+            recursion = new CompletableFuture<>();
+            recursion.completeExceptionally(e);
         }
+        recursion.whenComplete((packet, error) -> {
+            this.inFlight.remove(key, result);
+            if (error != null) result.completeExceptionally(error);
+            else result.complete(packet);
+        });
+        return result;
+    }
+
+    private CompletableFuture<DNS> forward(DNS inDNSPacket) {
+        return askDNSServer(rootServer, inDNSPacket).thenApply(response -> {
+            if (response == null) {
+                response = inDNSPacket.clone();
+                response.setRcode(DNS.RCODE_SERVER_FAILURE);
+            }
+            return response;
+        });
     }
 }
@@ -0,0 +1,135 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the EC2 region lookup through {@link RegionTable} with the
+ * original scan over every subnet, on a random table the size of the AWS
+ * ip-ranges IPv4 list.
+ * Run with: java edu.wisc.cs.sdn.simpledns.RegionBenchmark [prefixes]
+ */
+public class RegionBenchmark {
+    private static final int DEFAULT_PREFIXES = 7500;
+    private static final int LOOKUPS = 1 << 14;
+    private static final long MEASURE_TIME_MS = 2000;
+    private static final String[] REGIONS = {
+            "Virginia", "Ohio", "California", "Oregon", "Ireland", "Frankfurt",
+            "London", "Tokyo", "Seoul", "Singapore", "Sydney", "Mumbai", "SaoPaulo"
+    };
+
+    public static void main(String[] args) throws UnknownHostException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PREFIXES;
+        Random random = new Random(size);
+        List<Subnet> subnets = randomSubnets(random, size);
+        String[] hosts = randomHosts(random, subnets);
+        InetAddress[] addresses = new InetAddress[hosts.length];
+        int[] ips = new int[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            addresses[i] = InetAddress.getByName(hosts[i]);
+            ips[i] = Subnet.parseIp(hosts[i]);
+        }
+
+        long start = System.nanoTime();
+        RegionTrie trie = new RegionTrie(subnets);
+        long buildTime = System.nanoTime() - start;
+        System.out.println(String.format("%d prefixes, %d trie nodes, built in %.1f ms",
+                size, trie.size(), buildTime / 1e6));
+
+        for (int i = 0; i < hosts.length; i++) {
+            if ((scan(subnets, hosts[i]) == null) != (trie.lookup(ips[i]) == null)) {
+                throw new IllegalStateException("Lookup mismatch for " + hosts[i]);
+            }
+        }
+
+        System.out.println(String.format("%-24s%s", "Lookup", "ns/op"));
+        System.out.println(String.format("%-24s%.1f", "Linear scan", measure(i -> scan(subnets, hosts[i]) != null)));
+        System.out.println(String.format("%-24s%.1f", "Trie (InetAddress)", measure(i -> {
+            int ip = ByteBuffer.wrap(addresses[i].getAddress()).getInt();
+            return trie.lookup(ip) != null;
+        })));
+        System.out.println(String.format("%-24s%.1f", "Trie (int)", measure(i -> trie.lookup(ips[i]) != null)));
+    }
+
+    private interface Lookup {
+        boolean run(int i);
+    }
+
+    /**
+     * @return average time (in nanoseconds) per lookup
+     */
+    private static double measure(Lookup lookup) {
+        run(lookup, MEASURE_TIME_MS / 4);
+        return run(lookup, MEASURE_TIME_MS);
+    }
+
+    private static double run(Lookup lookup, long durationMs) {
+        int hits = 0;
+        long lookups = 0;
+        long start = System.nanoTime();
+        long elapsed = 0;
+        while (elapsed < durationMs * 1000000) {
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (lookup.run(i)) hits++;
+            }
+            lookups += LOOKUPS;
+            elapsed = System.nanoTime() - start;
+        }
+        if (hits < 0) System.out.println();
+        return (double) elapsed / lookups;
+    }
+
+    /**
+     * The lookup done before the trie was introduced.
+     */
+    private static Subnet scan(List<Subnet> subnets, String host) {
+        for (Subnet subnet : subnets) {
+            if (subnet.inRange(host)) return subnet;
+        }
+        return null;
+    }
+
+    /**
+     * Generate prefixes with lengths spread like the AWS list: mostly /16 to
+     * /24, some shorter, and a few longer ones.
+     */
+    private static List<Subnet> randomSubnets(Random random, int size) {
+        List<Subnet> subnets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int r = random.nextInt(100);
+            int length;
+            if (r < 70) length = 16 + random.nextInt(9);
+            else if (r < 85) length = 10 + random.nextInt(6);
+            else length = 25 + random.nextInt(8);
+            int mask = -(1 << (32 - length));
+            subnets.add(new Subnet(toDottedQuad(random.nextInt() & mask) + "/" + length + ","
+                    + REGIONS[random.nextInt(REGIONS.length)]));
+        }
+        return subnets;
+    }
+
+    /**
+     * Generate hosts, half of which fall inside known prefixes.
+     */
+    private static String[] randomHosts(Random random, List<Subnet> subnets) {
+        String[] hosts = new String[LOOKUPS];
+        for (int i = 0; i < hosts.length; i++) {
+            int ip = random.nextInt();
+            if (random.nextBoolean()) {
+                Subnet subnet = subnets.get(random.nextInt(subnets.size()));
+                int mask = -(1 << (32 - subnet.getPrefixLength()));
+                ip = subnet.getAddress() | (ip & ~mask);
+            }
+            hosts[i] = toDottedQuad(ip);
+        }
+        return hosts;
+    }
+
+    private static String toDottedQuad(int ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+}
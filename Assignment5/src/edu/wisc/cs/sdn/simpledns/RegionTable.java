@@ -0,0 +1,76 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * EC2 regions loaded from a CSV file. The file is compiled into a
+ * {@link RegionTrie}, and a new trie replaces the old one whenever the file
+ * changes, so lookups never wait for a reload.
+ */
+class RegionTable {
+    private final Path path;
+    private volatile RegionTrie trie;
+
+    RegionTable(String filename) throws IOException {
+        this.path = Paths.get(filename).toAbsolutePath();
+        this.trie = new RegionTrie(CSVParser.parse(this.path.toString()));
+    }
+
+    /**
+     * @return the most specific EC2 subnet containing the address, or null
+     */
+    Subnet lookup(InetAddress address) {
+        if (!(address instanceof Inet4Address)) return null;
+        return trie.lookup(ByteBuffer.wrap(address.getAddress()).getInt());
+    }
+
+    /**
+     * Start a daemon thread that reloads the table whenever the file changes.
+     */
+    void watch() throws IOException {
+        WatchService watcher = path.getFileSystem().newWatchService();
+        path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context())) changed = true;
+                }
+                if (changed) reload();
+                if (!key.reset()) return;
+            }
+        }, "ec2-reload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Rebuild the trie from the file, keeping the current one if the file
+     * cannot be read or parsed.
+     */
+    void reload() {
+        try {
+            RegionTrie trie = new RegionTrie(CSVParser.parse(path.toString()));
+            this.trie = trie;
+            System.out.println("Reloaded EC2 regions from " + path);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Keeping previous EC2 regions: " + e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable binary trie over IPv4 addresses that maps an address to the
+ * most specific EC2 subnet containing it. A lookup reads at most one node
+ * per address bit.
+ */
+class RegionTrie {
+    /** Child node indexes, two per node; 0 means no child, since node 0 is the root */
+    private final int[] children;
+    /** Subnet whose prefix ends at each node, or null */
+    private final Subnet[] subnets;
+
+    RegionTrie(List<Subnet> subnetList) {
+        int[] children = new int[64];
+        Subnet[] subnets = new Subnet[32];
+        int size = 1;
+
+        for (Subnet subnet : subnetList) {
+            int address = subnet.getAddress();
+            int node = 0;
+            for (int bit = 0; bit < subnet.getPrefixLength(); bit++) {
+                int slot = 2 * node + ((address >>> (31 - bit)) & 1);
+                if (children[slot] == 0) {
+                    if (size == subnets.length) {
+                        subnets = Arrays.copyOf(subnets, size * 2);
+                        children = Arrays.copyOf(children, size * 4);
+                    }
+                    children[slot] = size++;
+                }
+                node = children[slot];
+            }
+            // The first subnet listed for a prefix wins, as with a linear scan
+            if (subnets[node] == null) subnets[node] = subnet;
+        }
+
+        this.children = Arrays.copyOf(children, size * 2);
+        this.subnets = Arrays.copyOf(subnets, size);
+    }
+
+    /**
+     * @return the most specific subnet containing the address, or null
+     */
+    Subnet lookup(int ip) {
+        Subnet best = subnets[0];
+        int node = 0;
+        for (int bit = 0; bit < 32; bit++) {
+            node = children[2 * node + ((ip >>> (31 - bit)) & 1)];
+            if (node == 0) break;
+            if (subnets[node] != null) best = subnets[node];
+        }
+        return best;
+    }
+
+    int size() {
+        return subnets.length;
+    }
+}
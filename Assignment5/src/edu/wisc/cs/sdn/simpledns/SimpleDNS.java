@@ -4,9 +4,36 @@ import java.io.IOException;
 
 public class SimpleDNS {
     public static void main(String[] args) throws IOException {
-        String rootServerIp = args[1];
-        String ec2Csv = args[3];
-        DNSServer server = new DNSServer(rootServerIp, ec2Csv);
+        String rootServerIp = null;
+        String ec2Csv = null;
+        int port = 8053;
+        int upstreamPort = 53;
+        int cacheSize = DNSCache.DEFAULT_CAPACITY;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-r":
+                    rootServerIp = args[i + 1];
+                    break;
+                case "-e":
+                    ec2Csv = args[i + 1];
+                    break;
+                case "-p":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-u":
+                    upstreamPort = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-c":
+                    cacheSize = Integer.parseInt(args[i + 1]);
+                    break;
+            }
+        }
+        if (rootServerIp == null || ec2Csv == null) {
+            System.err.println("usage: SimpleDNS -r <root server ip> -e <ec2 csv> "
+                    + "[-p <port>] [-u <upstream port>] [-c <cache entries>]");
+            System.exit(1);
+        }
+        DNSServer server = new DNSServer(rootServerIp, ec2Csv, port, upstreamPort, cacheSize);
         server.start();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,220 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Stand-in authoritative server for trying out the resolver without the
+ * Internet. It serves one zone from a file and prints every query it gets,
+ * so repeated queries that the resolver answers from its cache are easy to
+ * spot.
+ *
+ * Each line of the zone file is "name ttl type value", where type is SOA, NS,
+ * A or CNAME. The SOA line names the zone apex and its value is the negative
+ * caching TTL. NS records below the apex are delegations and are answered
+ * with a referral that carries the A records of the name servers as glue.
+ *
+ * Several instances can form a hierarchy on one machine by binding to
+ * different loopback addresses, for example:
+ *   java edu.wisc.cs.sdn.simpledns.StubAuthority -a 127.0.0.1 -p 5300 -z root.zone
+ *   java edu.wisc.cs.sdn.simpledns.StubAuthority -a 127.0.0.2 -p 5300 -z example.zone
+ *   java edu.wisc.cs.sdn.simpledns.SimpleDNS -r 127.0.0.1 -u 5300 -e ec2.csv
+ */
+public class StubAuthority {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String apex;
+    private final DNSResourceRecord soa;
+    private final Map<String, List<DNSResourceRecord>> records = new LinkedHashMap<>();
+    private long queries = 0;
+
+    StubAuthority(List<String> zone) {
+        DNSResourceRecord soa = null;
+        for (String line : zone) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+");
+            DNSResourceRecord record = parseRecord(parts);
+            if (record.getType() == DNS.TYPE_SOA) soa = record;
+            else add(record);
+        }
+        if (soa == null) throw new IllegalArgumentException("Zone has no SOA record");
+        this.soa = soa;
+        this.apex = soa.getName();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String address = "127.0.0.1";
+        int port = 5300;
+        String zoneFile = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-a":
+                    address = args[i + 1];
+                    break;
+                case "-p":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-z":
+                    zoneFile = args[i + 1];
+                    break;
+            }
+        }
+        if (zoneFile == null) {
+            System.err.println("usage: StubAuthority -z <zone file> [-a <address>] [-p <port>]");
+            System.exit(1);
+        }
+
+        StubAuthority authority = new StubAuthority(
+                Files.readAllLines(Paths.get(zoneFile), StandardCharsets.UTF_8));
+        try (DatagramSocket socket = new DatagramSocket(port, InetAddress.getByName(address))) {
+            while (true) {
+                DatagramPacket request = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+                socket.receive(request);
+                DNS response = authority.answer(DNS.deserialize(request.getData(), request.getLength()));
+                if (response == null) continue;
+                byte[] buffer = response.serialize();
+                socket.send(new DatagramPacket(buffer, buffer.length, request.getSocketAddress()));
+            }
+        }
+    }
+
+    /**
+     * @return the response to a query, or null if the query is not for a
+     * name in this zone
+     */
+    DNS answer(DNS query) {
+        if (query.getQuestions().size() != 1) return null;
+        DNSQuestion question = query.getQuestions().get(0);
+        String name = normalize(question.getName());
+        if (!isSubdomain(name, apex)) return null;
+
+        DNS response = new DNS();
+        response.setId(query.getId());
+        response.setQuery(false);
+        response.setRecursionAvailable(false);
+        response.addQuestion(question);
+
+        String result = answer(response, name, question.getType());
+        System.out.println(String.format("Query %d: %s -> %s", ++queries, question, result));
+        return response;
+    }
+
+    private String answer(DNS response, String name, short type) {
+        // Delegations take precedence over anything at or below the zone cut
+        for (String cut = name; !cut.equals(apex); cut = parent(cut)) {
+            List<DNSResourceRecord> ns = find(cut, DNS.TYPE_NS);
+            if (ns.isEmpty()) continue;
+            for (DNSResourceRecord record : ns) {
+                response.addAuthority(record);
+                String server = ((DNSRdataName) record.getData()).getName();
+                for (DNSResourceRecord glue : find(server, DNS.TYPE_A)) response.addAdditional(glue);
+            }
+            return "referral to " + cut;
+        }
+
+        response.setAuthoritative(true);
+        List<DNSResourceRecord> answers = find(name, type);
+        if (answers.isEmpty() && type != DNS.TYPE_CNAME) answers = find(name, DNS.TYPE_CNAME);
+        if (!answers.isEmpty()) {
+            response.setAnswers(answers);
+            return answers.size() + " answers";
+        }
+
+        response.addAuthority(soa);
+        if (records.containsKey(name) || name.equals(apex)) return "NODATA";
+        response.setRcode(DNS.RCODE_NAME_ERROR);
+        return "NXDOMAIN";
+    }
+
+    private List<DNSResourceRecord> find(String name, short type) {
+        List<DNSResourceRecord> result = new ArrayList<>();
+        List<DNSResourceRecord> candidates = records.get(normalize(name));
+        if (candidates == null) return result;
+        for (DNSResourceRecord record : candidates) {
+            if (record.getType() == type) result.add(record);
+        }
+        return result;
+    }
+
+    private void add(DNSResourceRecord record) {
+        List<DNSResourceRecord> list = records.get(record.getName());
+        if (list == null) {
+            list = new ArrayList<>();
+            records.put(record.getName(), list);
+        }
+        list.add(record);
+    }
+
+    private static DNSResourceRecord parseRecord(String[] parts) {
+        if (parts.length != 4) throw new IllegalArgumentException("Bad record: " + String.join(" ", parts));
+        String name = normalize(parts[0]);
+        int ttl = Integer.parseInt(parts[1]);
+        DNSResourceRecord record;
+        switch (parts[2].toUpperCase(Locale.ROOT)) {
+            case "A":
+                try {
+                    record = new DNSResourceRecord(name, DNS.TYPE_A,
+                            new DNSRdataAddress(InetAddress.getByName(parts[3])));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                break;
+            case "NS":
+                record = new DNSResourceRecord(name, DNS.TYPE_NS, new DNSRdataName(normalize(parts[3])));
+                break;
+            case "CNAME":
+                record = new DNSResourceRecord(name, DNS.TYPE_CNAME, new DNSRdataName(normalize(parts[3])));
+                break;
+            case "SOA":
+                record = new DNSResourceRecord(name, DNS.TYPE_SOA, soaData(name, Integer.parseInt(parts[3])));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported type: " + parts[2]);
+        }
+        record.setTtl(ttl);
+        return record;
+    }
+
+    private static DNSRdata soaData(String apex, int minimum) {
+        byte[] mname = DNS.serializeName(apex.isEmpty() ? "ns" : "ns." + apex);
+        byte[] rname = DNS.serializeName(apex.isEmpty() ? "hostmaster" : "hostmaster." + apex);
+        ByteBuffer bb = ByteBuffer.allocate(mname.length + rname.length + 20);
+        bb.put(mname);
+        bb.put(rname);
+        bb.putInt(1);       // serial
+        bb.putInt(3600);    // refresh
+        bb.putInt(600);     // retry
+        bb.putInt(86400);   // expire
+        bb.putInt(minimum);
+        return new DNSRdataBytes(bb.array());
+    }
+
+    private static boolean isSubdomain(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        if (name.equals(".")) return "";
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+}
@@ -4,19 +4,21 @@ public class Subnet {
     private String region;
     private int ipValue;
     private int mask;
+    private int prefixLength;
 
     Subnet(String line) {
         String[] parts = line.split("[,/]");
         this.ipValue = parseIp(parts[0]);
-        this.mask = prefixToMask(Short.parseShort(parts[1]));
+        this.prefixLength = Short.parseShort(parts[1]);
+        this.mask = prefixToMask(this.prefixLength);
         this.region = parts[2];
     }
 
-    private int prefixToMask(short prefix) {
-        return -(1 << (32 - prefix));
+    private int prefixToMask(int prefix) {
+        return prefix == 0 ? 0 : -(1 << (32 - prefix));
     }
 
-    private int parseIp(String ipString) {
+    static int parseIp(String ipString) {
         String[] parts = ipString.split("\\.");
         int result = 0;
 
@@ -28,6 +30,14 @@ public class Subnet {
         return result;
     }
 
+    int getAddress() {
+        return ipValue & mask;
+    }
+
+    int getPrefixLength() {
+        return prefixLength;
+    }
+
     public boolean inRange(String ipString) {
         return (parseIp(ipString) & this.mask) == (this.ipValue & this.mask);
     }
@@ -0,0 +1,139 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking queries to upstream name servers. Every query is sent from a
+ * socket of its own, bound to a port the operating system picks at random
+ * and connected to the name server, and carries a random transaction ID, so
+ * a spoofed response has to guess both. Sockets are registered with the
+ * selector by the selector thread, and closed once their query completes.
+ */
+class UpstreamChannel {
+    private final Selector selector;
+    private final int port;
+    private final ByteBuffer buffer;
+    private final Random random = new SecureRandom();
+    private final Queue<Query> registrations = new ConcurrentLinkedQueue<>();
+    private final Set<Query> open = ConcurrentHashMap.newKeySet();
+
+    UpstreamChannel(Selector selector, int port, int bufferSize) {
+        this.selector = selector;
+        this.port = port;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Send a query to a name server; may be called from any thread.
+     *
+     * @return a future completed with the response; cancelling it abandons
+     * the query and closes its socket
+     */
+    CompletableFuture<DNS> query(InetAddress dnsServer, DNS dnsPacket) {
+        final Query query = new Query((short) random.nextInt());
+        open.add(query);
+        query.future.whenComplete((response, error) -> {
+            open.remove(query);
+            query.close();
+        });
+
+        DNS packet = dnsPacket.clone();
+        packet.setId(query.id);
+        try {
+            query.channel = DatagramChannel.open();
+            query.channel.configureBlocking(false);
+            query.channel.connect(new InetSocketAddress(dnsServer, port));
+            query.channel.write(ByteBuffer.wrap(packet.serialize()));
+        } catch (IOException e) {
+            query.future.completeExceptionally(e);
+            return query.future;
+        }
+        registrations.add(query);
+        selector.wakeup();
+        return query.future;
+    }
+
+    /**
+     * Register the sockets of new queries; called by the selector thread
+     * before it selects.
+     */
+    void register() {
+        Query query;
+        while ((query = registrations.poll()) != null) {
+            try {
+                query.channel.register(selector, SelectionKey.OP_READ, query);
+            } catch (ClosedChannelException e) {
+                // The query completed before its socket was registered
+            }
+        }
+    }
+
+    /**
+     * Read the response to a query; called by the selector thread.
+     */
+    void receive(SelectionKey key) {
+        Query query = (Query) key.attachment();
+        try {
+            while (!query.future.isDone() && query.channel.receive(buffer) != null) {
+                try {
+                    DNS response = DNS.deserialize(buffer.array(), buffer.position());
+                    if (response.getId() == query.id && !response.isQuery()) {
+                        query.future.complete(response);
+                    }
+                } catch (RuntimeException e) {
+                    // Ignore malformed responses; the query will time out
+                } finally {
+                    buffer.clear();
+                }
+            }
+        } catch (IOException e) {
+            // The socket was closed when the query completed, or the
+            // name server's port is unreachable; the query will time out
+        }
+    }
+
+    /**
+     * Abandon the queries in flight and close their sockets.
+     */
+    void close() {
+        for (Query query : open) {
+            query.future.cancel(false);
+        }
+    }
+
+    private static final class Query {
+        private final short id;
+        private final CompletableFuture<DNS> future = new CompletableFuture<>();
+        private volatile DatagramChannel channel;
+
+        Query(short id) {
+            this.id = id;
+        }
+
+        private void close() {
+            DatagramChannel channel = this.channel;
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more to release
+            }
+        }
+    }
+}
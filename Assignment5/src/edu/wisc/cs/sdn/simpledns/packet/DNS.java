@@ -3,6 +3,7 @@ package edu.wisc.cs.sdn.simpledns.packet;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class DNS implements Cloneable
@@ -10,6 +11,7 @@ public class DNS implements Cloneable
 	public static final short TYPE_A = 1;
 	public static final short TYPE_NS = 2;
 	public static final short TYPE_CNAME = 5;
+	public static final short TYPE_SOA = 6;
 	public static final short TYPE_TXT = 16;
 	public static final short TYPE_AAAA = 28;
 	public static final short TYPE_CDN = 258;
@@ -21,8 +23,13 @@ public class DNS implements Cloneable
 
 	public static final byte RCODE_NO_ERROR = 0;
 	public static final byte RCODE_FORMAT_ERROR = 1;
+	public static final byte RCODE_SERVER_FAILURE = 2;
+	public static final byte RCODE_NAME_ERROR = 3;
 	public static final byte RCODE_NOT_IMPLEMENTED = 4;
 
+	/** Maximum number of compression pointers followed in one name */
+	static final int MAX_POINTERS = 64;
+
 	private short id;
 	private boolean query;
 	private byte opcode;
@@ -156,10 +163,14 @@ public class DNS implements Cloneable
 	public void removeAdditional(DNSResourceRecord additional)
 	{ this.additional.remove(additional); }
 
+	/**
+	 * Parse a message. Names are not decoded until they are asked for, so
+	 * the message is copied and the caller may reuse its buffer.
+	 */
 	public static DNS deserialize(byte[] data, int length)
 	{
 		DNS dns = new DNS();
-		ByteBuffer bb = ByteBuffer.wrap(data, 0, length);
+		ByteBuffer bb = ByteBuffer.wrap(Arrays.copyOf(data, length));
 
 		dns.id = bb.getShort();
 
@@ -198,8 +209,19 @@ public class DNS implements Cloneable
 
 	public byte[] serialize()
 	{
-		byte[] data = new byte[this.getLength()];
-		ByteBuffer bb = ByteBuffer.wrap(data);
+		ByteBuffer bb = ByteBuffer.allocate(this.getLength());
+		this.serialize(bb, new DNSNameCompressor());
+		return Arrays.copyOf(bb.array(), bb.position());
+	}
+
+	/**
+	 * Write the message at the buffer's position, compressing names.
+	 * @param bb buffer with at least {@link #getLength()} bytes remaining
+	 * @param names compressor to use; it is reset for this message
+	 */
+	public void serialize(ByteBuffer bb, DNSNameCompressor names)
+	{
+		names.reset(bb, bb.position());
 		bb.putShort(this.id);
 
 		byte tmp = 0;
@@ -223,17 +245,19 @@ public class DNS implements Cloneable
 		bb.putShort((short)(this.additional.size()));
 
 		for (DNSQuestion question : this.questions)
-		{ bb.put(question.serialize()); }
+		{ question.serialize(bb, names); }
 		for (DNSResourceRecord record : this.answers)
-		{ bb.put(record.serialize()); }
+		{ record.serialize(bb, names); }
 		for (DNSResourceRecord record : this.authorities)
-		{ bb.put(record.serialize()); }
+		{ record.serialize(bb, names); }
 		for (DNSResourceRecord record : this.additional)
-		{ bb.put(record.serialize()); }
-
-		return data;
+		{ record.serialize(bb, names); }
 	}
 
+	/**
+	 * @return the length of the message without name compression, which is
+	 *         an upper bound on the length of the serialized message
+	 */
 	public int getLength()
 	{
 		int length = 12;
@@ -270,6 +294,12 @@ public class DNS implements Cloneable
 		case DNS.RCODE_FORMAT_ERROR:
 			strRcode = "Format error";
 			break;
+		case DNS.RCODE_SERVER_FAILURE:
+			strRcode = "Server failure";
+			break;
+		case DNS.RCODE_NAME_ERROR:
+			strRcode = "Name error";
+			break;
 		case DNS.RCODE_NOT_IMPLEMENTED:
 			strRcode = "Not implemented";
 			break;
@@ -298,46 +328,62 @@ public class DNS implements Cloneable
 		return result;
 	}
 
+	/**
+	 * Read the name at the buffer's position and move past it.
+	 */
 	public static String deserializeName(ByteBuffer bb)
 	{
-		String name = new String();
+		String name = readName(bb, bb.position());
+		skipName(bb);
+		return name;
+	}
 
-		// Continue while there is another label, or a pointer
-		byte labelLength = bb.get();
-		while ((labelLength > 0)
-				|| ((labelLength & 0b11000000) == 0b11000000))
+	/**
+	 * Decode the name at an offset in a message, following compression
+	 * pointers. The buffer's position is not changed.
+	 */
+	public static String readName(ByteBuffer bb, int offset)
+	{
+		StringBuilder name = new StringBuilder();
+		int hops = 0;
+		int labelLength = bb.get(offset) & 0xFF;
+		while (labelLength != 0)
 		{
 			if ((labelLength & 0b11000000) == 0b11000000)
 			{
-				// Reader pointer
-				bb.position(bb.position()-1);
-				short ptr = (short)(bb.getShort() & 0b0011111111111111);
-
-				// Go to pointer, saving place to return
-				int returnPtr = bb.position();
-				bb.position(ptr);
-
-				name += "." + DNS.deserializeName(bb);
-
-				// Return to location after pointer
-				bb.position(returnPtr);
-				break;
+				if (++hops > MAX_POINTERS)
+				{ throw new IllegalArgumentException("Compression loop in name"); }
+				offset = ((labelLength & 0b00111111) << 8) | (bb.get(offset + 1) & 0xFF);
 			}
 			else
 			{
-				byte[] labelBytes = new byte[labelLength];
-				bb.get(labelBytes);
-				name += "."
-						+ new String(labelBytes, StandardCharsets.US_ASCII);
+				if (name.length() > 0)
+				{ name.append('.'); }
+				for (int i = 1; i <= labelLength; i++)
+				{ name.append((char)(bb.get(offset + i) & 0xFF)); }
+				offset += labelLength + 1;
 			}
-			labelLength = bb.get();
+			labelLength = bb.get(offset) & 0xFF;
 		}
+		return name.toString();
+	}
 
-		// Remove leading period
-		if (name.length() > 0)
-		{ name = name.substring(1); }
-
-		return name;
+	/**
+	 * Move the buffer's position past the name at its position.
+	 */
+	static void skipName(ByteBuffer bb)
+	{
+		int labelLength = bb.get() & 0xFF;
+		while (labelLength != 0)
+		{
+			if ((labelLength & 0b11000000) == 0b11000000)
+			{
+				bb.get();
+				return;
+			}
+			bb.position(bb.position() + labelLength);
+			labelLength = bb.get() & 0xFF;
+		}
 	}
 
 	public static byte[] serializeName(String name)
@@ -360,8 +406,27 @@ public class DNS implements Cloneable
 	}
 
 	@Override
-	public DNS clone(){
-		byte[] data = this.serialize();
-		return DNS.deserialize(data, data.length);
+	public DNS clone()
+	{
+		DNS dns = new DNS();
+		dns.id = this.id;
+		dns.query = this.query;
+		dns.opcode = this.opcode;
+		dns.authoritative = this.authoritative;
+		dns.truncated = this.truncated;
+		dns.recursionDesired = this.recursionDesired;
+		dns.recursionAvailable = this.recursionAvailable;
+		dns.authenticated = this.authenticated;
+		dns.checkingDisabled = this.checkingDisabled;
+		dns.rcode = this.rcode;
+		for (DNSQuestion question : this.questions)
+		{ dns.questions.add(question.clone()); }
+		for (DNSResourceRecord record : this.answers)
+		{ dns.answers.add(record.clone()); }
+		for (DNSResourceRecord record : this.authorities)
+		{ dns.authorities.add(record.clone()); }
+		for (DNSResourceRecord record : this.additional)
+		{ dns.additional.add(record.clone()); }
+		return dns;
 	}
 }
@@ -0,0 +1,186 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes domain names into a message, replacing any suffix that was already
+ * written with an RFC 1035 compression pointer. The suffix table holds only
+ * the offset and a case-insensitive hash of each suffix in the message;
+ * candidates with a matching hash are compared against the message bytes,
+ * so no strings are built while writing. A compressor can be reused for
+ * any number of messages.
+ */
+public class DNSNameCompressor
+{
+	/** Largest offset a compression pointer can refer to */
+	private static final int MAX_POINTER = 0x3FFF;
+
+	private ByteBuffer bb;
+	private int messageStart;
+
+	/** Offsets of the suffixes written so far, and their hashes */
+	private int[] offsets;
+	private int[] hashes;
+	private int count;
+
+	/** Label start indexes and suffix hashes of the name being written */
+	private int[] labelStarts;
+	private int[] labelHashes;
+
+	public DNSNameCompressor()
+	{
+		this.offsets = new int[64];
+		this.hashes = new int[64];
+		this.labelStarts = new int[16];
+		this.labelHashes = new int[16];
+	}
+
+	/**
+	 * Start a new message.
+	 * @param bb buffer the message is written to
+	 * @param messageStart position of the first byte of the message in bb
+	 */
+	public void reset(ByteBuffer bb, int messageStart)
+	{
+		this.bb = bb;
+		this.messageStart = messageStart;
+		this.count = 0;
+	}
+
+	/**
+	 * Write a name at the buffer's position, compressing it if possible.
+	 */
+	public void writeName(String name)
+	{
+		int length = name.length();
+		if (length > 0 && name.charAt(length - 1) == '.')
+		{ length--; }
+		int labels = this.splitLabels(name, length);
+
+		for (int label = 0; label < labels; label++)
+		{
+			int start = this.labelStarts[label];
+			int pointer = this.find(name, length, label);
+			if (pointer >= 0)
+			{
+				this.bb.putShort((short)(0xC000 | pointer));
+				return;
+			}
+
+			int offset = this.bb.position() - this.messageStart;
+			if (offset <= MAX_POINTER)
+			{ this.remember(offset, this.labelHashes[label]); }
+
+			int end = (label + 1 < labels) ? this.labelStarts[label + 1] - 1 : length;
+			this.bb.put((byte)(end - start));
+			for (int i = start; i < end; i++)
+			{ this.bb.put((byte)name.charAt(i)); }
+		}
+		this.bb.put((byte)0);
+	}
+
+	/**
+	 * Record where each label starts and the hash of each suffix.
+	 * @return the number of labels
+	 */
+	private int splitLabels(String name, int length)
+	{
+		int labels = 0;
+		for (int i = 0; i < length; i++)
+		{
+			if (0 == i || name.charAt(i - 1) == '.')
+			{
+				if (labels == this.labelStarts.length)
+				{
+					this.labelStarts = Arrays.copyOf(this.labelStarts, labels * 2);
+					this.labelHashes = Arrays.copyOf(this.labelHashes, labels * 2);
+				}
+				this.labelStarts[labels++] = i;
+			}
+		}
+
+		int hash = 0;
+		int end = length;
+		for (int label = labels - 1; label >= 0; label--)
+		{
+			int start = this.labelStarts[label];
+			hash = 31 * hash + (end - start);
+			for (int i = start; i < end; i++)
+			{ hash = 31 * hash + lower(name.charAt(i)); }
+			this.labelHashes[label] = hash;
+			end = start - 1;
+		}
+		return labels;
+	}
+
+	private void remember(int offset, int hash)
+	{
+		if (this.count == this.offsets.length)
+		{
+			this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+			this.hashes = Arrays.copyOf(this.hashes, this.count * 2);
+		}
+		this.offsets[this.count] = offset;
+		this.hashes[this.count] = hash;
+		this.count++;
+	}
+
+	/**
+	 * @return the offset of an earlier copy of the suffix of a name that
+	 *         starts at a given label, or -1 if there is none
+	 */
+	private int find(String name, int length, int label)
+	{
+		int hash = this.labelHashes[label];
+		for (int i = 0; i < this.count; i++)
+		{
+			if (this.hashes[i] == hash
+					&& this.matches(this.offsets[i], name, length, this.labelStarts[label]))
+			{ return this.offsets[i]; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Compare the name at an offset in the message, following pointers, with
+	 * the suffix of a name. Labels are compared case-insensitively.
+	 */
+	private boolean matches(int offset, String name, int length, int start)
+	{
+		int position = this.messageStart + offset;
+		int hops = 0;
+		while (true)
+		{
+			int labelLength = this.bb.get(position) & 0xFF;
+			if ((labelLength & 0xC0) == 0xC0)
+			{
+				if (++hops > DNS.MAX_POINTERS)
+				{ return false; }
+				position = this.messageStart
+						+ (((labelLength & 0x3F) << 8) | (this.bb.get(position + 1) & 0xFF));
+				continue;
+			}
+			if (0 == labelLength)
+			{ return start >= length; }
+			if (start + labelLength > length
+					|| (start + labelLength < length && name.charAt(start + labelLength) != '.'))
+			{ return false; }
+			for (int i = 0; i < labelLength; i++)
+			{
+				char expected = lower(name.charAt(start + i));
+				char actual = lower((char)(this.bb.get(position + 1 + i) & 0xFF));
+				if (expected != actual)
+				{ return false; }
+			}
+			position += labelLength + 1;
+			start += labelLength + 1;
+		}
+	}
+
+	/**
+	 * Names are ASCII, so only ASCII letters need folding.
+	 */
+	private static char lower(char c)
+	{ return (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c; }
+}
@@ -2,9 +2,12 @@ package edu.wisc.cs.sdn.simpledns.packet;
 
 import java.nio.ByteBuffer;
 
-public class DNSQuestion 
+public class DNSQuestion implements Cloneable
 {
+	/** Name, or null if it has not been decoded from the message yet */
 	private String name;
+	private ByteBuffer message;
+	private int nameOffset;
 	private short type;
 	private short cls;
 	
@@ -22,7 +25,11 @@ public class DNSQuestion
 	}
 	
 	public String getName()
-	{ return this.name; }
+	{
+		if (null == this.name)
+		{ this.name = DNS.readName(this.message, this.nameOffset); }
+		return this.name;
+	}
 	
 	public void setName(String name)
 	{ this.name = name; }
@@ -43,7 +50,10 @@ public class DNSQuestion
 	{
 		DNSQuestion question = new DNSQuestion();
 
-		question.name = DNS.deserializeName(bb);		
+		question.name = null;
+		question.message = bb;
+		question.nameOffset = bb.position();
+		DNS.skipName(bb);
 		question.type = bb.getShort();
 		question.cls = bb.getShort();
 		
@@ -55,16 +65,36 @@ public class DNSQuestion
 		byte[] data = new byte[this.getLength()];
 		ByteBuffer bb = ByteBuffer.wrap(data);
 		
-		bb.put(DNS.serializeName(this.name));
+		bb.put(DNS.serializeName(this.getName()));
 		bb.putShort(this.type);
 		bb.putShort(this.cls);
 		
 		return data;
 	}
+
+	public void serialize(ByteBuffer bb, DNSNameCompressor names)
+	{
+		names.writeName(this.getName());
+		bb.putShort(this.type);
+		bb.putShort(this.cls);
+	}
 	
 	public int getLength()
 	{
-		return this.name.length() + 1 + (name.length() > 0 ? 1 : 0) + 4;
+		String name = this.getName();
+		return name.length() + 1 + (name.length() > 0 ? 1 : 0) + 4;
+	}
+
+	@Override
+	public DNSQuestion clone()
+	{
+		DNSQuestion question = new DNSQuestion();
+		question.name = this.name;
+		question.message = this.message;
+		question.nameOffset = this.nameOffset;
+		question.type = this.type;
+		question.cls = this.cls;
+		return question;
 	}
 	
 	public String toString()
@@ -104,7 +134,7 @@ public class DNSQuestion
 			strClass = String.format("Unknown (%d)", this.cls);
 			break;
 		}
-		return String.format("Name: %s, Type: %s, Class: %s", this.name,
+		return String.format("Name: %s, Type: %s, Class: %s", this.getName(),
 				strType, strClass);
 	}
 }
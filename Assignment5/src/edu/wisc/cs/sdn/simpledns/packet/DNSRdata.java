@@ -1,7 +1,20 @@
 package edu.wisc.cs.sdn.simpledns.packet;
 
+import java.nio.ByteBuffer;
+
 public interface DNSRdata 
 {
 	public byte[] serialize();
 	public int getLength();
+
+	/**
+	 * Write the data at the buffer's position; names in the data may be
+	 * compressed.
+	 */
+	public void serialize(ByteBuffer bb, DNSNameCompressor names);
+
+	/**
+	 * @return a copy that can be modified independently
+	 */
+	public DNSRdata copy();
 }
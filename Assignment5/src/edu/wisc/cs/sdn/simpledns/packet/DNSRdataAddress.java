@@ -47,6 +47,12 @@ public class DNSRdataAddress implements DNSRdata
 		return data;
 	}
 	
+	public void serialize(ByteBuffer bb, DNSNameCompressor names)
+	{ bb.put(this.address.getAddress()); }
+
+	public DNSRdata copy()
+	{ return new DNSRdataAddress(this.address); }
+	
 	public int getLength()
 	{
 		if (this.address instanceof Inet4Address)
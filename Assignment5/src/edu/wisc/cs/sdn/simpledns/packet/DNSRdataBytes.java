@@ -29,6 +29,12 @@ public class DNSRdataBytes implements DNSRdata
 	public byte[] serialize()
 	{ return this.bytes; }
 	
+	public void serialize(ByteBuffer bb, DNSNameCompressor names)
+	{ bb.put(this.bytes); }
+
+	public DNSRdata copy()
+	{ return new DNSRdataBytes(this.bytes.clone()); }
+	
 	public int getLength()
 	{ return this.bytes.length; }
 
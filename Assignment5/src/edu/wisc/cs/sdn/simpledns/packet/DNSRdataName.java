@@ -5,7 +5,10 @@ import java.util.Objects;
 
 public class DNSRdataName implements DNSRdata
 {
+	/** Name, or null if it has not been decoded from the message yet */
 	private String name;
+	private ByteBuffer message;
+	private int nameOffset;
 
 	public DNSRdataName()
 	{ this.name = new String(); }
@@ -14,7 +17,11 @@ public class DNSRdataName implements DNSRdata
 	{ this.name = name; }
 
 	public String getName()
-	{ return this.name; }
+	{
+		if (null == this.name)
+		{ this.name = DNS.readName(this.message, this.nameOffset); }
+		return this.name;
+	}
 
 	public void setName(String name)
 	{ this.name = name; }
@@ -22,29 +29,47 @@ public class DNSRdataName implements DNSRdata
 	public static DNSRdata deserialize(ByteBuffer bb)
 	{
 		DNSRdataName rdata = new DNSRdataName();
-		rdata.name = DNS.deserializeName(bb);
+		rdata.name = null;
+		rdata.message = bb;
+		rdata.nameOffset = bb.position();
+		DNS.skipName(bb);
 		return rdata;
 	}
 
 	public byte[] serialize()
-	{ return DNS.serializeName(this.name); }
+	{ return DNS.serializeName(this.getName()); }
+
+	public void serialize(ByteBuffer bb, DNSNameCompressor names)
+	{ names.writeName(this.getName()); }
 
 	public int getLength()
-	{ return this.name.length() + (this.name.length() > 0 ? 2 : 0); }
+	{
+		String name = this.getName();
+		return name.length() + 1 + (name.length() > 0 ? 1 : 0);
+	}
+
+	public DNSRdata copy()
+	{
+		DNSRdataName rdata = new DNSRdataName();
+		rdata.name = this.name;
+		rdata.message = this.message;
+		rdata.nameOffset = this.nameOffset;
+		return rdata;
+	}
 
 	public String toString()
-	{ return this.name; }
+	{ return this.getName(); }
 
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
 		if (o == null || getClass() != o.getClass()) return false;
 		DNSRdataName that = (DNSRdataName) o;
-		return Objects.equals(name, that.name);
+		return Objects.equals(getName(), that.getName());
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(name);
+		return Objects.hash(getName());
 	}
 }
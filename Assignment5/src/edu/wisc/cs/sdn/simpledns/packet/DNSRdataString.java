@@ -38,6 +38,16 @@ public class DNSRdataString implements DNSRdata
 		return data; 
 	}
 	
+	public void serialize(ByteBuffer bb, DNSNameCompressor names)
+	{
+		bb.put((byte)(this.string.length()));
+		for (int i = 0; i < this.string.length(); i++)
+		{ bb.put((byte)this.string.charAt(i)); }
+	}
+
+	public DNSRdata copy()
+	{ return new DNSRdataString(this.string); }
+	
 	public int getLength()
 	{ return this.string.length() + 1; }
 
@@ -3,9 +3,12 @@ package edu.wisc.cs.sdn.simpledns.packet;
 import java.nio.ByteBuffer;
 import java.util.Objects;
 
-public class DNSResourceRecord
+public class DNSResourceRecord implements Cloneable
 {
+	/** Name, or null if it has not been decoded from the message yet */
 	private String name;
+	private ByteBuffer message;
+	private int nameOffset;
 	private short type;
 	private short cls;
 	private int ttl;
@@ -27,7 +30,11 @@ public class DNSResourceRecord
 	}
 
 	public String getName()
-	{ return this.name; }
+	{
+		if (null == this.name)
+		{ this.name = DNS.readName(this.message, this.nameOffset); }
+		return this.name;
+	}
 
 	public void setName(String name)
 	{ this.name = name; }
@@ -57,7 +64,10 @@ public class DNSResourceRecord
 	{
 		DNSResourceRecord record = new DNSResourceRecord();
 
-		record.name = DNS.deserializeName(bb);
+		record.name = null;
+		record.message = bb;
+		record.nameOffset = bb.position();
+		DNS.skipName(bb);
 		record.type = bb.getShort();
 		record.cls = bb.getShort();
 		record.ttl = bb.getInt();
@@ -76,6 +86,9 @@ public class DNSResourceRecord
 			case DNS.TYPE_CNAME:
 				record.data = DNSRdataName.deserialize(bb);
 				break;
+			case DNS.TYPE_SOA:
+				record.data = deserializeSOA(bb);
+				break;
 			default:
 				record.data = DNSRdataBytes.deserialize(bb, rdataLength);
 			}
@@ -84,12 +97,28 @@ public class DNSResourceRecord
 		return record;
 	}
 
+	/**
+	 * Read SOA data, expanding compressed names so that the record can be
+	 * copied into other messages.
+	 */
+	private static DNSRdata deserializeSOA(ByteBuffer bb)
+	{
+		byte[] mname = DNS.serializeName(DNS.deserializeName(bb));
+		byte[] rname = DNS.serializeName(DNS.deserializeName(bb));
+		byte[] data = new byte[mname.length + rname.length + 20];
+		ByteBuffer soa = ByteBuffer.wrap(data);
+		soa.put(mname);
+		soa.put(rname);
+		bb.get(data, soa.position(), 20);
+		return new DNSRdataBytes(data);
+	}
+
 	public byte[] serialize()
 	{
 		byte[] data = new byte[this.getLength()];
 		ByteBuffer bb = ByteBuffer.wrap(data);
 
-		bb.put(DNS.serializeName(this.name));
+		bb.put(DNS.serializeName(this.getName()));
 		bb.putShort(this.type);
 		bb.putShort(this.cls);
 		bb.putInt(this.ttl);
@@ -99,12 +128,41 @@ public class DNSResourceRecord
 		return data;
 	}
 
+	public void serialize(ByteBuffer bb, DNSNameCompressor names)
+	{
+		names.writeName(this.getName());
+		bb.putShort(this.type);
+		bb.putShort(this.cls);
+		bb.putInt(this.ttl);
+
+		// Data length is only known once names in the data are compressed
+		int lengthPosition = bb.position();
+		bb.putShort((short)0);
+		this.data.serialize(bb, names);
+		bb.putShort(lengthPosition, (short)(bb.position() - lengthPosition - 2));
+	}
+
 	public int getLength()
 	{
-		return 1 + this.name.length() + (this.name.length() > 0 ? 1 : 0)
+		String name = this.getName();
+		return 1 + name.length() + (name.length() > 0 ? 1 : 0)
 				+ 10 + this.data.getLength();
 	}
 
+	@Override
+	public DNSResourceRecord clone()
+	{
+		DNSResourceRecord record = new DNSResourceRecord();
+		record.name = this.name;
+		record.message = this.message;
+		record.nameOffset = this.nameOffset;
+		record.type = this.type;
+		record.cls = this.cls;
+		record.ttl = this.ttl;
+		record.data = this.data.copy();
+		return record;
+	}
+
 	public String toString()
 	{
 		String strType;
@@ -119,6 +177,9 @@ public class DNSResourceRecord
 		case DNS.TYPE_CNAME:
 			strType = "CNAME";
 			break;
+		case DNS.TYPE_SOA:
+			strType = "SOA";
+			break;
 		case DNS.TYPE_AAAA:
 			strType = "AAAA";
 			break;
@@ -145,7 +206,7 @@ public class DNSResourceRecord
 		}
 
 		return String.format("Name: %s, Type: %s, Class: %s, TTL: %d, Data: %s",
-				this.name, strType, strClass, this.ttl, this.data.toString());
+				this.getName(), strType, strClass, this.ttl, this.data.toString());
 	}
 
 	@Override
@@ -156,11 +217,11 @@ public class DNSResourceRecord
 		return type == record.type &&
 				cls == record.cls &&
 				Objects.equals(data, record.data) &&
-				Objects.equals(name, record.name);
+				Objects.equals(getName(), record.getName());
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(name, cls, type, data);
+		return Objects.hash(getName(), cls, type, data);
 	}
 }
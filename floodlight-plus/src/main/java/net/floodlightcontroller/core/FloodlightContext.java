@@ -17,19 +17,112 @@
 
 package net.floodlightcontroller.core;
 
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is a context object where floodlight listeners can register 
  * and later retrieve context information associated with an
  * event
+ *
+ * Keys registered with {@link #registerSlot} are given a small integer
+ * slot and their values are kept in a plain array indexed by it, so that
+ * reading and writing them costs no hashing and allocates nothing.  The
+ * values of other keys are kept in a map as before.  A context is meant to
+ * be used by one thread at a time, the one dispatching its event, and can
+ * be {@link #reset} and reused for the next one.
  * @author readams
  */
 public class FloodlightContext {
-    protected ConcurrentHashMap<String, Object> storage =
-            new ConcurrentHashMap<String, Object>();
+    private static final ConcurrentHashMap<String, Integer> slots =
+            new ConcurrentHashMap<String, Integer>();
+    private static volatile int slotCount;
 
+    private static final Object[] NO_VALUES = new Object[0];
+
+    protected ConcurrentHashMap<String, Object> storage;
+    protected Object[] values = NO_VALUES;
+    /** One past the highest slot that may hold a value */
+    protected int used;
+
+    /**
+     * Give a key a slot in every context.  Registering a key again returns
+     * the same slot.  Keys should be registered once, when the module or
+     * store that owns them is initialized, as slots are never freed.
+     * @param key the key
+     * @return the slot of the key
+     */
+    public static int registerSlot(String key) {
+        Integer slot = slots.get(key);
+        if (slot != null)
+            return slot;
+        synchronized (slots) {
+            slot = slots.get(key);
+            if (slot == null) {
+                slot = slotCount;
+                slots.put(key, slot);
+                slotCount = slot + 1;
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * @return the slot of a key, or -1 if it has not been registered
+     */
+    public static int getSlot(String key) {
+        Integer slot = slots.get(key);
+        return (slot == null) ? -1 : slot;
+    }
+
+    public static int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * @return the value in a slot, or null if there is none
+     */
+    public Object get(int slot) {
+        return (slot < values.length) ? values[slot] : null;
+    }
+
+    /**
+     * Set the value in a slot.  A null value clears it.
+     */
+    public void set(int slot, Object value) {
+        if (slot >= values.length) {
+            if (value == null)
+                return;
+            values = Arrays.copyOf(values, Math.max(slot + 1, slotCount));
+        }
+        values[slot] = value;
+        if (slot >= used)
+            used = slot + 1;
+    }
+
+    public void remove(int slot) {
+        set(slot, null);
+    }
+
+    /**
+     * Clear the context, so it can be used for another event
+     */
+    public void reset() {
+        if (used > 0) {
+            Arrays.fill(values, 0, used, null);
+            used = 0;
+        }
+        if (storage != null && !storage.isEmpty())
+            storage.clear();
+    }
+
+    /**
+     * @return the map holding the values of keys without a slot.  Values
+     * of registered keys are not in it.
+     */
     public ConcurrentHashMap<String, Object> getStorage() {
+        if (storage == null)
+            storage = new ConcurrentHashMap<String, Object>();
         return storage;
     }
 }
@@ -17,18 +17,110 @@
 
 package net.floodlightcontroller.core;
 
+/**
+ * Typed access to values in a {@link FloodlightContext}.
+ *
+ * The keys given to the constructor are registered as context slots, and
+ * the store remembers the slot of each key it has seen, so accessing those
+ * keys is an array index.  A key is normally one of a few string constants,
+ * so it is compared by reference before its contents.  Keys that were not
+ * registered are stored by name as before.
+ * @param <V> the type of the values
+ */
 public class FloodlightContextStore<V> {
-    
+    /**
+     * Keys seen by a store and their slots, -1 if they have none.  Replaced
+     * rather than changed, so it can be read without locking.
+     */
+    private static final class Keys {
+        final String[] names;
+        final int[] slots;
+        /** The number of context slots when the keys were looked up.  A
+         * key without a slot may have been given one since it changed. */
+        final int slotCount;
+
+        Keys(String[] names, int[] slots, int slotCount) {
+            this.names = names;
+            this.slots = slots;
+            this.slotCount = slotCount;
+        }
+    }
+
+    private volatile Keys keys = new Keys(new String[0], new int[0], -1);
+
+    public FloodlightContextStore() {
+    }
+
+    /**
+     * @param slotKeys keys to register as context slots
+     */
+    public FloodlightContextStore(String... slotKeys) {
+        for (String key : slotKeys)
+            FloodlightContext.registerSlot(key);
+    }
+
+    private int slot(String key) {
+        Keys k = keys;
+        if (k.slotCount == FloodlightContext.getSlotCount()) {
+            String[] names = k.names;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] == key)
+                    return k.slots[i];
+            }
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(key))
+                    return k.slots[i];
+            }
+        }
+        return addKey(key);
+    }
+
+    private synchronized int addKey(String key) {
+        int count = FloodlightContext.getSlotCount();
+        int slot = FloodlightContext.getSlot(key);
+        Keys k = keys;
+        if (k.slotCount != count) {
+            k = new Keys(new String[0], new int[0], count);
+        }
+        // Only remember a few keys, in case they are built on the fly
+        int n = k.names.length;
+        if (n < 8) {
+            String[] names = new String[n + 1];
+            int[] slots = new int[n + 1];
+            System.arraycopy(k.names, 0, names, 0, n);
+            System.arraycopy(k.slots, 0, slots, 0, n);
+            names[n] = key;
+            slots[n] = slot;
+            k = new Keys(names, slots, count);
+        }
+        keys = k;
+        return slot;
+    }
+
     @SuppressWarnings("unchecked")
     public V get(FloodlightContext bc, String key) {
-        return (V)bc.storage.get(key);
+        int slot = slot(key);
+        if (slot >= 0)
+            return (V)bc.get(slot);
+        return (bc.storage == null) ? null : (V)bc.storage.get(key);
     }
     
     public void put(FloodlightContext bc, String key, V value) {
-        bc.storage.put(key, value);
+        int slot = slot(key);
+        if (slot >= 0) {
+            if (value == null)
+                throw new NullPointerException();
+            bc.set(slot, value);
+        } else {
+            bc.getStorage().put(key, value);
+        }
     }
     
     public void remove(FloodlightContext bc, String key) {
-        bc.storage.remove(key);
+        int slot = slot(key);
+        if (slot >= 0)
+            bc.remove(slot);
+        else if (bc.storage != null)
+            bc.storage.remove(key);
     }
 }
@@ -83,7 +83,7 @@ public interface IFloodlightProviderService extends
      * packet-in payload
      */
     public static final FloodlightContextStore<Ethernet> bcStore =
-            new FloodlightContextStore<Ethernet>();
+            new FloodlightContextStore<Ethernet>(CONTEXT_PI_PAYLOAD);
 
     /**
      * Adds an OpenFlow message listener
@@ -25,8 +25,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
@@ -155,11 +157,22 @@ public abstract class OFSwitchBase implements IOFSwitch {
     private static final String PACKAGE = OFSwitchBase.class.getPackage().getName();
 
 
-    protected final static ThreadLocal<Map<IOFSwitch,List<OFMessage>>> local_msg_buffer =
-            new ThreadLocal<Map<IOFSwitch,List<OFMessage>>>() {
+    /**
+     * The messages waiting to be written to the switch, by any thread
+     */
+    protected final OFSwitchWriteQueue writeQueue =
+            new OFSwitchWriteQueue(this, Controller.BATCH_MAX_SIZE,
+                                   OFSwitchWriteQueue.DEFAULT_FLUSH_DELAY_NS);
+
+    /**
+     * The switches this thread has left messages waiting for, to be
+     * written by flush_all
+     */
+    protected final static ThreadLocal<Set<OFSwitchBase>> local_pending_writes =
+            new ThreadLocal<Set<OFSwitchBase>>() {
         @Override
-        protected Map<IOFSwitch,List<OFMessage>> initialValue() {
-            return new HashMap<IOFSwitch,List<OFMessage>>();
+        protected Set<OFSwitchBase> initialValue() {
+            return new HashSet<OFSwitchBase>();
         }
     };
 
@@ -770,21 +783,11 @@ public abstract class OFSwitchBase implements IOFSwitch {
         if (channel == null || !isConnected())
             return;
             //throws IOException {
-        Map<IOFSwitch,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        List<OFMessage> msg_buffer = msg_buffer_map.get(this);
-        if (msg_buffer == null) {
-            msg_buffer = new ArrayList<OFMessage>();
-            msg_buffer_map.put(this, msg_buffer);
-        }
-
         this.floodlightProvider.handleOutgoingMessage(this, m, bc);
-        msg_buffer.add(m);
-
-        if ((msg_buffer.size() >= Controller.BATCH_MAX_SIZE) ||
-            ((m.getType() != OFType.PACKET_OUT) && (m.getType() != OFType.FLOW_MOD))) {
-            this.write(msg_buffer);
-            msg_buffer.clear();
-        }
+        boolean urgent = (m.getType() != OFType.PACKET_OUT) &&
+                         (m.getType() != OFType.FLOW_MOD);
+        if (writeQueue.add(m, urgent))
+            local_pending_writes.get().add(this);
     }
     @Override
     @LogMessageDoc(level="WARN",
@@ -813,7 +816,8 @@ public abstract class OFSwitchBase implements IOFSwitch {
             }
             this.floodlightProvider.handleOutgoingMessage(this, m, bc);
         }
-        this.write(msglist);
+        // Behind any messages waiting, to keep them in order
+        writeQueue.addAll(msglist);
     }
 
     /**
@@ -1178,33 +1182,29 @@ public abstract class OFSwitchBase implements IOFSwitch {
 
     @Override
     public void flush() {
-        Map<IOFSwitch,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        List<OFMessage> msglist = msg_buffer_map.get(this);
-        if ((msglist != null) && (msglist.size() > 0)) {
-            /* ============================ BIG CAVEAT ===============================
-             * This code currently works, but relies on undocumented behavior of
-             * netty.
-             *
-             * The method org.jboss.netty.channel.Channel.write(Object)
-             * (invoked from this.write(List<OFMessage> msg) is currently
-             * documented to be <emph>asynchronous</emph>. If the method /were/ truely
-             * asynchronous, this would break our code (because we are clearing the
-             * msglist right after calling write.
-             *
-             * For now, Netty actually invokes the conversion pipeline before doing
-             * anything asynchronous, so we are safe. But we should probably change
-             * that behavior.
-             */
-            this.write(msglist);
-            msglist.clear();
-        }
+        writeQueue.flush();
     }
 
+    /**
+     * Write the messages this thread has left waiting for any switch
+     */
     public static void flush_all() {
-        Map<IOFSwitch,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        for (IOFSwitch sw : msg_buffer_map.keySet()) {
+        Set<OFSwitchBase> switches = local_pending_writes.get();
+        if (switches.isEmpty())
+            return;
+        for (OFSwitchBase sw : switches) {
             sw.flush();
         }
+        switches.clear();
+    }
+
+    /**
+     * @return the depth of the switch's write queue and statistics of the
+     * batches written to it
+     */
+    @JsonIgnore
+    public Map<String, Object> getWriteQueueInfo() {
+        return writeQueue.getInfo();
     }
 
 
@@ -0,0 +1,187 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.LatencyHistogram;
+
+import org.jboss.netty.channel.Channel;
+import org.openflow.protocol.OFMessage;
+
+/**
+ * The messages waiting to be sent to a switch, shared by all the threads
+ * that write to it.
+ *
+ * Messages are coalesced into one channel write by size, time and channel
+ * writability:
+ * <ul>
+ * <li>a batch is written as soon as it reaches maxBatch messages, or when
+ * an urgent message (anything but a flow-mod or packet-out) is added;</li>
+ * <li>otherwise it is written when the writer flushes, typically at the end
+ * of a message dispatch, or at the latest flushDelay after its first
+ * message, so writers that never flush do not leave messages waiting;</li>
+ * <li>while the channel is not writable, because its send queue is above the
+ * high water mark, flushes are put off and the batch keeps growing, up to
+ * maxHeld messages, until the channel becomes writable again.</li>
+ * </ul>
+ * The order of messages is kept across threads, as they are written in the
+ * order they were added, under the queue's lock.
+ */
+public class OFSwitchWriteQueue {
+    public static final long DEFAULT_FLUSH_DELAY_NS = 100000;
+    /** Batches are only held back for writability up to this many times
+     * the batch size */
+    private static final int HOLD_FACTOR = 10;
+
+    private final OFSwitchBase sw;
+    private final int maxBatch;
+    private final int maxHeld;
+    private final long flushDelay;
+
+    private List<OFMessage> pending;
+    private boolean flushScheduled;
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (OFSwitchWriteQueue.this) {
+                flushScheduled = false;
+                if (!pending.isEmpty() && flushLocked(false))
+                    timedFlushes++;
+            }
+        }
+    };
+
+    // Statistics
+    private final LatencyHistogram flushSizes = new LatencyHistogram();
+    private long messages;
+    private long flushes;
+    private long timedFlushes;
+    private long heldFlushes;
+
+    /**
+     * @param sw the switch whose channel to write to
+     * @param maxBatch the most messages to send in one batch unless the
+     * channel is not writable
+     * @param flushDelay the longest time in nanoseconds to hold a batch for
+     * more messages, 0 to wait for an explicit flush
+     */
+    OFSwitchWriteQueue(OFSwitchBase sw, int maxBatch, long flushDelay) {
+        this.sw = sw;
+        this.maxBatch = maxBatch;
+        this.maxHeld = maxBatch * HOLD_FACTOR;
+        this.flushDelay = flushDelay;
+        this.pending = new ArrayList<OFMessage>(maxBatch);
+    }
+
+    /**
+     * Add a message to the batch.
+     * @param urgent whether to write the batch right away
+     * @return true if the message is waiting to be written, false if it
+     * was written
+     */
+    synchronized boolean add(OFMessage m, boolean urgent) {
+        pending.add(m);
+        messages++;
+        if (urgent) {
+            flushLocked(true);
+            return false;
+        }
+        if (pending.size() >= maxBatch && flushLocked(false))
+            return false;
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Add messages to the batch and write it.
+     */
+    synchronized void addAll(List<OFMessage> msglist) {
+        pending.addAll(msglist);
+        messages += msglist.size();
+        flushLocked(true);
+    }
+
+    /**
+     * Write the batch, unless the channel is not writable.
+     */
+    public synchronized void flush() {
+        flushLocked(false);
+    }
+
+    /**
+     * @param force write even if the channel is not writable
+     * @return whether the batch was written
+     */
+    private boolean flushLocked(boolean force) {
+        if (pending.isEmpty())
+            return true;
+        Channel channel = sw.channel;
+        if (!force && channel != null && !channel.isWritable() &&
+            pending.size() < maxHeld) {
+            // Wait for OFChannelHandler to flush when the channel's send
+            // queue has drained below the low water mark
+            heldFlushes++;
+            return false;
+        }
+        List<OFMessage> batch = pending;
+        pending = new ArrayList<OFMessage>(maxBatch);
+        flushSizes.record(batch.size());
+        flushes++;
+        sw.write(batch);
+        return true;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled || flushDelay <= 0 || sw.threadPool == null)
+            return;
+        ScheduledExecutorService ses = sw.threadPool.getScheduledExecutor();
+        if (ses == null)
+            return;
+        flushScheduled = true;
+        ses.schedule(scheduledFlush, flushDelay, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized int getDepth() {
+        return pending.size();
+    }
+
+    /**
+     * @return the queue depth, the number of messages and batches written,
+     * how often flushes were put off, and percentiles of the batch size
+     */
+    public synchronized Map<String, Object> getInfo() {
+        Map<String, Object> info = new LinkedHashMap<String, Object>();
+        long[] p = flushSizes.getPercentiles(50, 90, 99);
+        info.put("depth", pending.size());
+        info.put("messages", messages);
+        info.put("flushes", flushes);
+        info.put("timed-flushes", timedFlushes);
+        info.put("held-flushes", heldFlushes);
+        info.put("flush-size-p50", p[0]);
+        info.put("flush-size-p90", p[1]);
+        info.put("flush-size-p99", p[2]);
+        info.put("flush-size-max", flushSizes.getMax());
+        return info;
+    }
+}
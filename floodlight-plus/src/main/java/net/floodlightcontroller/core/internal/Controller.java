@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Arrays;
@@ -169,6 +170,13 @@ public class Controller implements IFloodlightProviderService,
     protected String openFlowHost = null;
     protected int openFlowPort = 6633;
     protected int workerThreads = 0;
+    // Dispatch messages to listeners on this many threads, or on the I/O
+    // threads if 0
+    protected int dispatchLaneCount = 0;
+    protected int dispatchQueueSize = OFDispatchLanes.DEFAULT_QUEUE_SIZE;
+    protected OFDispatchLanes.OverflowPolicy dispatchOverflowPolicy =
+            OFDispatchLanes.OverflowPolicy.DROP;
+    protected OFDispatchLanes dispatchLanes;
 
 
     // This controller's current role that modules can use/query to decide
@@ -312,6 +320,7 @@ public class Controller implements IFloodlightProviderService,
         public IDebugCounter controllerNodeIpsChanged;
         public IDebugCounter messageReceived;
         public IDebugCounter messageInputThrottled;
+        public IDebugCounter dispatchLaneFull;
         public IDebugCounter switchDisconnectReadTimeout;
         public IDebugCounter switchDisconnectHandshakeTimeout;
         public IDebugCounter switchDisconnectIOError;
@@ -582,6 +591,13 @@ public class Controller implements IFloodlightProviderService,
                             "throttled due to high load from the sender",
                             CounterType.ALWAYS_COUNT,
                             IDebugCounterService.CTR_MDATA_WARN);
+            dispatchLaneFull =
+                debugCounters.registerCounter(
+                            prefix, "dispatch-lane-full",
+                            "Number of packet-ins dropped because the " +
+                            "dispatch lane of their switch was full",
+                            CounterType.ALWAYS_COUNT,
+                            IDebugCounterService.CTR_MDATA_WARN);
         // TODO: more counters in messageReceived ??
 
             switchDisconnectReadTimeout =
@@ -1733,7 +1749,7 @@ public class Controller implements IFloodlightProviderService,
      * @param flcontext
      */
     protected void flcontext_free(FloodlightContext flcontext) {
-        flcontext.getStorage().clear();
+        flcontext.reset();
         flcontext_cache.get().push(flcontext);
     }
 
@@ -1781,7 +1797,7 @@ public class Controller implements IFloodlightProviderService,
             case PACKET_IN:
                 OFPacketIn pi = (OFPacketIn)m;
 
-                if (pi.getPacketData().length <= 0) {
+                if (pi.getPacketDataLength() <= 0) {
                     log.error("Ignoring PacketIn (Xid = " + pi.getXid() +
                               ") because the data field is empty.");
                     return;
@@ -1789,8 +1805,17 @@ public class Controller implements IFloodlightProviderService,
 
                 if (Controller.ALWAYS_DECODE_ETH) {
                     eth = new Ethernet();
-                    eth.deserialize(pi.getPacketData(), 0,
-                            pi.getPacketData().length);
+                    // Decode from the buffer the message was read from, if
+                    // it is still there, to save copying the data out
+                    ByteBuffer data = pi.getPacketDataBuffer();
+                    if (data.hasArray()) {
+                        eth.deserialize(data.array(),
+                                data.arrayOffset() + data.position(),
+                                data.remaining());
+                    } else {
+                        eth.deserialize(pi.getPacketData(), 0,
+                                pi.getPacketData().length);
+                    }
                     counterStore.updatePacketInCountersLocal(sw, m, eth);
                 }
                 // fall through to default case...
@@ -2162,8 +2187,14 @@ public class Controller implements IFloodlightProviderService,
             bootstrap.setOption("child.tcpNoDelay", true);
             bootstrap.setOption("child.sendBufferSize", Controller.SEND_BUFFER_SIZE);
 
+            if (dispatchLaneCount > 0) {
+                dispatchLanes = new OFDispatchLanes(this, dispatchLaneCount,
+                                                    dispatchQueueSize,
+                                                    dispatchOverflowPolicy);
+                dispatchLanes.start();
+            }
             ChannelPipelineFactory pfact =
-                    new OpenflowPipelineFactory(this, null);
+                    new OpenflowPipelineFactory(this, null, dispatchLanes);
             bootstrap.setPipelineFactory(pfact);
             InetSocketAddress sa =
             		(openFlowHost == null)
@@ -2221,6 +2252,20 @@ public class Controller implements IFloodlightProviderService,
             this.workerThreads = Integer.parseInt(threads);
         }
         log.debug("Number of worker threads set to {}", this.workerThreads);
+        String lanes = configParams.get("dispatchlanes");
+        if (lanes != null) {
+            this.dispatchLaneCount = Integer.parseInt(lanes);
+        }
+        String queueSize = configParams.get("dispatchqueuesize");
+        if (queueSize != null) {
+            this.dispatchQueueSize = Integer.parseInt(queueSize);
+        }
+        String overflow = configParams.get("dispatchoverflow");
+        if (overflow != null) {
+            this.dispatchOverflowPolicy = OFDispatchLanes.OverflowPolicy
+                    .valueOf(overflow.toUpperCase());
+        }
+        log.debug("Number of dispatch lanes set to {}", this.dispatchLaneCount);
 
     }
 
@@ -2345,6 +2390,7 @@ public class Controller implements IFloodlightProviderService,
         }
 
         addInfoProvider("summary", this);
+        addInfoProvider("dispatch", this);
 
         registerControllerDebugEvents();
     }
@@ -2686,6 +2732,12 @@ public class Controller implements IFloodlightProviderService,
 
     @Override
     public Map<String, Object> getInfo(String type) {
+        if ("dispatch".equals(type)) {
+            Map<String, Object> info = new HashMap<String, Object>();
+            info.put("lanes", (dispatchLanes == null)
+                     ? Collections.emptyList() : dispatchLanes.getInfo());
+            return info;
+        }
         if (!"summary".equals(type)) return null;
 
         Map<String, Object> info = new HashMap<String, Object>();
@@ -1,6 +1,7 @@
 package net.floodlightcontroller.core.internal;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -84,6 +85,8 @@ class OFChannelHandler
 
     private final Controller controller;
     private final Counters counters;
+    /** Where to dispatch messages to listeners, null to do it inline */
+    private final OFDispatchLanes dispatchLanes;
     private IOFSwitch sw;
     private Channel channel;
     // State needs to be volatile because the HandshakeTimeoutHandler
@@ -1357,7 +1360,16 @@ class OFChannelHandler
      * @param controller
      */
     OFChannelHandler(Controller controller) {
+        this(controller, null);
+    }
+
+    /**
+     * @param dispatchLanes the lanes to dispatch messages to listeners on,
+     * or null to dispatch them on the thread that reads them
+     */
+    OFChannelHandler(Controller controller, OFDispatchLanes dispatchLanes) {
         this.controller = controller;
+        this.dispatchLanes = dispatchLanes;
         this.counters = controller.getCounters();
         this.roleChanger = new RoleChanger(DEFAULT_ROLE_TIMEOUT_MS);
         this.state = ChannelState.INIT;
@@ -1537,6 +1549,17 @@ class OFChannelHandler
         e.getChannel().write(Collections.singletonList(m));
     }
 
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx,
+                                       ChannelStateEvent e)
+            throws Exception {
+        // The switch's write queue holds back batches while the channel is
+        // not writable. Send them once it is again.
+        if (sw != null && e.getChannel().isWritable())
+            sw.flush();
+        super.channelInterestChanged(ctx, e);
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
             throws Exception {
@@ -1575,12 +1598,14 @@ class OFChannelHandler
                                 continue;
                             case HIGH:
                                 // Drop all packet-ins, except LLDP/BDDPs
-                                byte[] data = ((OFPacketIn)ofm).getPacketData();
-                                if (data.length > 14) {
-                                    if (((data[12] == (byte)0x88) &&
-                                         (data[13] == (byte)0xcc)) ||
-                                        ((data[12] == (byte)0x89) &&
-                                         (data[13] == (byte)0x42))) {
+                                ByteBuffer data =
+                                        ((OFPacketIn)ofm).getPacketDataBuffer();
+                                if (data != null && data.remaining() > 14) {
+                                    int p = data.position();
+                                    if (((data.get(p + 12) == (byte)0x88) &&
+                                         (data.get(p + 13) == (byte)0xcc)) ||
+                                        ((data.get(p + 12) == (byte)0x89) &&
+                                         (data.get(p + 13) == (byte)0x42))) {
                                         lldps_allowed++;
                                         packets_allowed++;
                                         break;
@@ -1626,6 +1651,11 @@ class OFChannelHandler
             // Flush all thread local queues etc. generated by this train
             // of messages.
             this.controller.flushAll();
+
+            // The messages have been dispatched, so pooled ones can be
+            // reused
+            if (msglist instanceof OFMessageBatch)
+                ((OFMessageBatch) msglist).release();
         }
         else {
             Channels.fireExceptionCaught(ctx.getChannel(),
@@ -1712,7 +1742,12 @@ class OFChannelHandler
 
     private void dispatchMessage(OFMessage m) throws IOException {
         // handleMessage will count
-        this.controller.handleMessage(this.sw, m, null);
+        if (this.dispatchLanes != null) {
+            if (!this.dispatchLanes.dispatch(this.sw, m))
+                counters.dispatchLaneFull.updateCounterNoFlush();
+        } else {
+            this.controller.handleMessage(this.sw, m, null);
+        }
     }
 
     /**
@@ -0,0 +1,265 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+import net.floodlightcontroller.util.LatencyHistogram;
+import net.floodlightcontroller.util.MpscArrayQueue;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the message listeners on a fixed set of dispatch threads instead of
+ * the netty I/O thread that read the message.
+ *
+ * Each switch is assigned a lane by hashing its DPID, and each lane is a
+ * bounded lock-free queue drained by a single thread, so the messages of a
+ * switch reach the listeners in the order the switch sent them while
+ * different switches are processed in parallel.  A slow listener then only
+ * delays the switches that share its lane, rather than every switch on the
+ * same I/O thread.
+ *
+ * When a lane is full, packet-ins are dropped if the policy is
+ * {@link OverflowPolicy#DROP}.  All other messages, and packet-ins under
+ * {@link OverflowPolicy#BLOCK}, wait for room, which stops the I/O thread
+ * from reading and so pushes back on the switches through TCP.
+ */
+public class OFDispatchLanes {
+    protected static final Logger log =
+            LoggerFactory.getLogger(OFDispatchLanes.class);
+
+    public enum OverflowPolicy {
+        /** Drop packet-ins that find their lane full */
+        DROP,
+        /** Wait for room in the lane */
+        BLOCK,
+    }
+
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+    /** Flush the thread local write buffers at least this often */
+    private static final int FLUSH_INTERVAL = 64;
+    private static final long BLOCK_WAIT_NANOS = 50000;
+
+    private static class Entry {
+        final IOFSwitch sw;
+        final OFMessage m;
+        final long enqueued;
+
+        Entry(IOFSwitch sw, OFMessage m, long enqueued) {
+            this.sw = sw;
+            this.m = m;
+            this.enqueued = enqueued;
+        }
+    }
+
+    class Lane implements Runnable {
+        final int index;
+        final MpscArrayQueue<Entry> queue;
+        /** Time from enqueueing a message to the end of its dispatch */
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong blocked = new AtomicLong();
+        volatile long dispatched;
+        volatile boolean parked;
+        Thread thread;
+
+        Lane(int index, int queueSize) {
+            this.index = index;
+            this.queue = new MpscArrayQueue<Entry>(queueSize);
+        }
+
+        void wake() {
+            if (parked)
+                LockSupport.unpark(thread);
+        }
+
+        @Override
+        @LogMessageDoc(level="ERROR",
+                message="Exception dispatching {message} from {switch}",
+                explanation="A message listener failed to process a message",
+                recommendation=LogMessageDoc.GENERIC_ACTION)
+        public void run() {
+            int unflushed = 0;
+            while (running) {
+                Entry e = queue.poll();
+                if (e == null) {
+                    if (unflushed > 0) {
+                        controller.flushAll();
+                        unflushed = 0;
+                        continue;
+                    }
+                    parked = true;
+                    // Producers read parked after adding to the queue, so
+                    // either they wake us up or we see what they added
+                    if (queue.isEmpty() && running)
+                        LockSupport.park(this);
+                    parked = false;
+                    continue;
+                }
+                try {
+                    controller.handleMessage(e.sw, e.m, null);
+                } catch (Exception ex) {
+                    log.error("Exception dispatching " + e.m.getType() +
+                              " from " + e.sw, ex);
+                }
+                latency.record(System.nanoTime() - e.enqueued);
+                dispatched++;
+                if (++unflushed >= FLUSH_INTERVAL) {
+                    controller.flushAll();
+                    unflushed = 0;
+                }
+            }
+        }
+
+        Map<String, Object> getInfo() {
+            Map<String, Object> info = new LinkedHashMap<String, Object>();
+            long[] p = latency.getPercentiles(50, 90, 99, 99.9);
+            info.put("lane", index);
+            info.put("depth", queue.size());
+            info.put("capacity", queue.capacity());
+            info.put("dispatched", dispatched);
+            info.put("dropped", dropped.get());
+            info.put("blocked", blocked.get());
+            info.put("latency-p50-us", p[0] / 1000);
+            info.put("latency-p90-us", p[1] / 1000);
+            info.put("latency-p99-us", p[2] / 1000);
+            info.put("latency-p999-us", p[3] / 1000);
+            info.put("latency-max-us", latency.getMax() / 1000);
+            return info;
+        }
+    }
+
+    private final Controller controller;
+    private final Lane[] lanes;
+    private final OverflowPolicy policy;
+    private volatile boolean running;
+
+    /**
+     * @param controller the controller whose listeners to run
+     * @param lanes the number of lanes, and so of dispatch threads
+     * @param queueSize the most messages a lane holds, rounded up to a power
+     * of two
+     * @param policy what to do with packet-ins that find their lane full
+     */
+    public OFDispatchLanes(Controller controller, int lanes, int queueSize,
+                           OverflowPolicy policy) {
+        if (lanes < 1)
+            throw new IllegalArgumentException("Need at least one lane");
+        this.controller = controller;
+        this.policy = policy;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++)
+            this.lanes[i] = new Lane(i, queueSize);
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        for (Lane lane : lanes) {
+            lane.thread = new Thread(lane, "OFDispatch-" + lane.index);
+            lane.thread.setDaemon(true);
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * Stop the dispatch threads.  Messages still queued are not dispatched.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Lane lane : lanes) {
+            if (lane.thread != null)
+                LockSupport.unpark(lane.thread);
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return the lane the messages of a switch go through
+     */
+    int getLane(long dpid) {
+        // Mix the bits, since DPIDs often differ only in a few of them
+        long h = dpid;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) ((h & Long.MAX_VALUE) % lanes.length);
+    }
+
+    /**
+     * Queue a message for dispatch on the lane of its switch.  Messages from
+     * one switch must be queued from one thread at a time, as netty does,
+     * for their order to be kept.
+     * @return false if the message was dropped because its lane was full
+     */
+    public boolean dispatch(IOFSwitch sw, OFMessage m) {
+        Lane lane = lanes[getLane(sw.getId())];
+        Entry e = new Entry(sw, m, System.nanoTime());
+        if (!lane.queue.offer(e)) {
+            if (policy == OverflowPolicy.DROP &&
+                m.getType() == OFType.PACKET_IN) {
+                lane.dropped.incrementAndGet();
+                return false;
+            }
+            lane.blocked.incrementAndGet();
+            do {
+                lane.wake();
+                LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+            } while (!lane.queue.offer(e) && running);
+        }
+        lane.wake();
+        return true;
+    }
+
+    /**
+     * @return the queue depth, drop counts and latency percentiles of each
+     * lane
+     */
+    public List<Map<String, Object>> getInfo() {
+        List<Map<String, Object>> info =
+                new ArrayList<Map<String, Object>>(lanes.length);
+        for (Lane lane : lanes)
+            info.add(lane.getInfo());
+        return info;
+    }
+
+    /**
+     * Forget the latencies recorded so far
+     */
+    public void resetLatencies() {
+        for (Lane lane : lanes)
+            lane.latency.reset();
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayList;
+
+import org.openflow.protocol.OFMessage;
+
+/**
+ * The messages decoded from one read of a channel, taken from an
+ * {@link OFMessagePool}.  Whoever dispatches the batch must call
+ * {@link #release} when done with it.
+ */
+class OFMessageBatch extends ArrayList<OFMessage> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient OFMessagePool pool;
+
+    OFMessageBatch(OFMessagePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Give the batch and its packet-ins back to the pool.  Neither may be
+     * used afterwards.
+     */
+    void release() {
+        pool.release(this);
+    }
+}
@@ -17,53 +17,164 @@
 
 package net.floodlightcontroller.core.internal;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.nio.ByteBuffer;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.channel.Channel;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
 import org.openflow.protocol.factory.FloodlightFactory;
 import org.openflow.protocol.factory.OFMessageFactory;
 
 /**
- * Decode an openflow message from a Channel, for use in a netty
- * pipeline
+ * Decode openflow messages from a Channel, for use in a netty
+ * pipeline.  Each read is passed on as a List of the messages it completes.
+ *
+ * Messages are found from the length in their header and read straight
+ * from the buffer netty read them into.  Packet-ins and statistics replies
+ * keep a view of that buffer instead of copying their body out of it, which
+ * is safe because netty reads into a new buffer every time and this decoder
+ * never writes to a buffer it has handed out views of: the start of a
+ * message that continues in the next read is copied into a buffer of its
+ * own.
+ *
+ * If pooling is on, packet-ins are recycled, and the lists passed on are
+ * {@link OFMessageBatch}es that the next handler must release once it has
+ * dispatched them.  This requires the messages to be dispatched before the
+ * channel is read again, without an executor in between.
  * @author readams
  */
-public class OFMessageDecoder extends FrameDecoder {
+public class OFMessageDecoder extends SimpleChannelUpstreamHandler {
 
     OFMessageFactory factory = FloodlightFactory.getInstance();
-    
+    protected final OFMessagePool pool;
+
+    /** The start of a message that continues in the next read */
+    protected ChannelBuffer partial;
+
+    public OFMessageDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param pooled whether to recycle packet-ins
+     */
+    public OFMessageDecoder(boolean pooled) {
+        this.pool = pooled ? new OFMessagePool() : null;
+    }
+
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel,
-                            ChannelBuffer buffer) throws Exception {
-        if (!channel.isConnected()) {
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        if (!ctx.getChannel().isConnected()) {
             // In testing, I see decode being called AFTER decode last.
             // This check avoids that from reading curroupted frames
-            return null;
+            partial = null;
+            return;
+        }
+
+        ChannelBuffer input = (ChannelBuffer) e.getMessage();
+        List<OFMessage> messages = decode(input);
+        if (messages != null)
+            Channels.fireMessageReceived(ctx, messages, e.getRemoteAddress());
+    }
+
+    /**
+     * Decode the messages that a read completes, and keep the start of an
+     * incomplete message at its end.
+     * @return the messages, or null if there are none
+     */
+    protected List<OFMessage> decode(ChannelBuffer input)
+            throws CorruptedFrameException {
+        List<OFMessage> messages = null;
+        if (partial != null) {
+            OFMessage m = completePartial(input);
+            if (m == null)
+                return null;
+            messages = newList();
+            messages.add(m);
         }
 
-        ByteBuffer data = buffer.toByteBuffer();
-        List<OFMessage> message = factory.parseMessages(data);
-        if (message.size() == 0)
-        	return null;
-        else {
-            //Following call to readerIndex is necessary in case of 
-            // channelBuffer to byteBuffer conversion above
-            buffer.readerIndex(data.position());
-	        return message;
+        while (input.readableBytes() >= OFMessage.MINIMUM_LENGTH) {
+            int index = input.readerIndex();
+            int length = messageLength(input, index);
+            if (length > input.readableBytes())
+                break;
+            if (messages == null)
+                messages = newList();
+            messages.add(decodeMessage(input, index, length));
+            input.readerIndex(index + length);
         }
+
+        if (input.readable()) {
+            int length = (input.readableBytes() >= OFMessage.MINIMUM_LENGTH)
+                    ? messageLength(input, input.readerIndex())
+                    : OFMessage.MINIMUM_LENGTH;
+            partial = ChannelBuffers.dynamicBuffer(length);
+            partial.writeBytes(input);
+        }
+        return messages;
     }
 
-    @Override
-    protected Object decodeLast(ChannelHandlerContext ctx, Channel channel,
-                            ChannelBuffer buffer) throws Exception {
-        // This is not strictly needed atthis time. It is used to detect
-        // connection reset detection from netty (for debug)
-        return null;
+    /**
+     * Add the bytes of a read to the partial message.
+     * @return the message if the read completes it, otherwise null
+     */
+    private OFMessage completePartial(ChannelBuffer input)
+            throws CorruptedFrameException {
+        if (partial.readableBytes() < OFMessage.MINIMUM_LENGTH) {
+            partial.writeBytes(input, Math.min(input.readableBytes(),
+                    OFMessage.MINIMUM_LENGTH - partial.readableBytes()));
+            if (partial.readableBytes() < OFMessage.MINIMUM_LENGTH)
+                return null;
+        }
+        int length = messageLength(partial, partial.readerIndex());
+        partial.writeBytes(input, Math.min(input.readableBytes(),
+                length - partial.readableBytes()));
+        if (partial.readableBytes() < length)
+            return null;
+        OFMessage m = decodeMessage(partial, partial.readerIndex(), length);
+        partial = null;
+        return m;
+    }
+
+    private OFMessage decodeMessage(ChannelBuffer buffer, int index,
+                                    int length) {
+        OFMessage reuse = null;
+        if (pool != null && buffer.getByte(index + 1) ==
+                OFType.PACKET_IN.getTypeValue())
+            reuse = pool.getPacketIn();
+        return factory.parseMessage(buffer.toByteBuffer(index, length), reuse);
     }
 
+    private static int messageLength(ChannelBuffer buffer, int index)
+            throws CorruptedFrameException {
+        int length = buffer.getUnsignedShort(index + 2);
+        if (length < OFMessage.MINIMUM_LENGTH)
+            throw new CorruptedFrameException("OpenFlow message length " +
+                    length + " is shorter than its header");
+        return length;
+    }
+
+    private List<OFMessage> newList() {
+        return (pool != null) ? pool.getBatch() : new ArrayList<OFMessage>();
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        partial = null;
+        super.channelClosed(ctx, e);
+    }
 }
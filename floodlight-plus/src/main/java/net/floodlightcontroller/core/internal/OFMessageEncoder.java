@@ -17,22 +17,92 @@
 
 package net.floodlightcontroller.core.internal;
 
+import java.util.ArrayDeque;
 import java.util.List;
 import java.nio.ByteBuffer;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 import org.openflow.protocol.OFMessage;
 
 /**
  * Encode an openflow message for output into a ChannelBuffer, for use in a
  * netty pipeline
+ *
+ * Batches that fit are encoded into one of a few heap buffers kept by the
+ * encoder, which is taken back once the write has completed.  Netty copies
+ * heap buffers into its own pool of direct buffers as it writes them, so
+ * this saves allocating a direct buffer for every batch.
  * @author readams
  */
 public class OFMessageEncoder extends OneToOneEncoder {
+    static final int POOLED_BUFFER_SIZE = 16384;
+    private static final int POOL_SIZE = 4;
+
+    /**
+     * A pooled buffer, which goes back to the pool when the write of its
+     * contents completes
+     */
+    private class PooledBuffer implements ChannelFutureListener {
+        final ChannelBuffer buffer =
+                ChannelBuffers.buffer(POOLED_BUFFER_SIZE);
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            release(this);
+        }
+    }
+
+    private final ArrayDeque<PooledBuffer> pool =
+            new ArrayDeque<PooledBuffer>(POOL_SIZE);
+
+    private synchronized PooledBuffer acquire() {
+        PooledBuffer b = pool.poll();
+        if (b == null)
+            b = new PooledBuffer();
+        b.buffer.clear();
+        return b;
+    }
+
+    private synchronized void release(PooledBuffer b) {
+        if (pool.size() < POOL_SIZE)
+            pool.add(b);
+    }
+
+    synchronized int getPooledBuffers() {
+        return pool.size();
+    }
+
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent evt)
+            throws Exception {
+        if (!(evt instanceof MessageEvent) ||
+            !(((MessageEvent) evt).getMessage() instanceof List)) {
+            ctx.sendDownstream(evt);
+            return;
+        }
+        MessageEvent e = (MessageEvent) evt;
+        @SuppressWarnings("unchecked")
+        List<OFMessage> msglist = (List<OFMessage>) e.getMessage();
+        int size = computeLength(msglist);
+        if (size > POOLED_BUFFER_SIZE) {
+            Channels.write(ctx, e.getFuture(), encode(msglist, size),
+                           e.getRemoteAddress());
+            return;
+        }
+        PooledBuffer b = acquire();
+        writeTo(msglist, b.buffer, size);
+        e.getFuture().addListener(b);
+        Channels.write(ctx, e.getFuture(), b.buffer, e.getRemoteAddress());
+    }
 
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel,
@@ -42,6 +112,10 @@ public class OFMessageEncoder extends OneToOneEncoder {
 
         @SuppressWarnings("unchecked")
         List<OFMessage> msglist = (List<OFMessage>)msg;
+        return encode(msglist, computeLength(msglist));
+    }
+
+    private static int computeLength(List<OFMessage> msglist) {
         int size = 0;
         for (OFMessage ofm :  msglist) {
         	/* Many OF1.3+ messages are variable in length. So, call 
@@ -50,8 +124,17 @@ public class OFMessageEncoder extends OneToOneEncoder {
             ofm.computeLength(); 
             size += ofm.getLengthU();
         }
+        return size;
+    }
+
+    private static ChannelBuffer encode(List<OFMessage> msglist, int size) {
+        ChannelBuffer buf = ChannelBuffers.buffer(size);
+        writeTo(msglist, buf, size);
+        return buf;
+    }
 
-        ChannelBuffer buf = ChannelBuffers.directBuffer(size);
+    private static void writeTo(List<OFMessage> msglist, ChannelBuffer buf,
+                                int size) {
         ByteBuffer data = buf.toByteBuffer(0, size);
         for (OFMessage ofm :  msglist) {
             ofm.writeTo(data);
@@ -59,7 +142,6 @@ public class OFMessageEncoder extends OneToOneEncoder {
         //Following call to writerIndex is necessary in case of 
         // channelBuffer to byteBuffer conversion above
         buf.writerIndex(data.position());
-        return buf;
     }
 
 }
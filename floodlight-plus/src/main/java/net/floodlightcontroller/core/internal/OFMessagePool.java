@@ -0,0 +1,91 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayDeque;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+
+/**
+ * Recycles the packet-ins and message lists decoded from one channel.  The
+ * decoder takes them from the pool, and the channel handler gives them back
+ * through {@link OFMessageBatch#release} once it has dispatched a batch, so
+ * listeners must not keep a packet-in after they return.  Other messages are
+ * left to the garbage collector, since handlers keep some of them.
+ */
+class OFMessagePool {
+    static final int DEFAULT_CAPACITY = 64;
+    private static final int BATCHES = 4;
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final int capacity;
+    private final ArrayDeque<OFPacketIn> packetIns;
+    private final ArrayDeque<OFMessageBatch> batches;
+
+    OFMessagePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the most packet-ins to keep for reuse
+     */
+    OFMessagePool(int capacity) {
+        this.capacity = capacity;
+        this.packetIns = new ArrayDeque<OFPacketIn>(capacity);
+        this.batches = new ArrayDeque<OFMessageBatch>(BATCHES);
+    }
+
+    /**
+     * @return a packet-in to read into, or null if there is none to reuse
+     */
+    synchronized OFPacketIn getPacketIn() {
+        return packetIns.poll();
+    }
+
+    /**
+     * @return an empty batch
+     */
+    synchronized OFMessageBatch getBatch() {
+        OFMessageBatch batch = batches.poll();
+        return (batch == null) ? new OFMessageBatch(this) : batch;
+    }
+
+    /**
+     * Take back the packet-ins of a batch and the batch itself.
+     */
+    synchronized void release(OFMessageBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            OFMessage m = batch.get(i);
+            if (m.getType() == OFType.PACKET_IN &&
+                packetIns.size() < capacity) {
+                // Let go of the buffer the packet was read from
+                OFPacketIn pi = (OFPacketIn) m;
+                pi.setPacketData(NO_DATA);
+                packetIns.add(pi);
+            }
+        }
+        batch.clear();
+        if (batches.size() < BATCHES)
+            batches.add(batch);
+    }
+
+    synchronized int getAvailablePacketIns() {
+        return packetIns.size();
+    }
+}
@@ -38,15 +38,27 @@ public class OpenflowPipelineFactory
 
     protected Controller controller;
     protected ThreadPoolExecutor pipelineExecutor;
+    protected OFDispatchLanes dispatchLanes;
     protected Timer timer;
     protected IdleStateHandler idleHandler;
     protected ReadTimeoutHandler readTimeoutHandler;
     
     public OpenflowPipelineFactory(Controller controller,
                                    ThreadPoolExecutor pipelineExecutor) {
+        this(controller, pipelineExecutor, null);
+    }
+
+    /**
+     * @param dispatchLanes the lanes to run message listeners on, or null
+     * to run them on the I/O thread (or the pipeline executor)
+     */
+    public OpenflowPipelineFactory(Controller controller,
+                                   ThreadPoolExecutor pipelineExecutor,
+                                   OFDispatchLanes dispatchLanes) {
         super();
         this.controller = controller;
         this.pipelineExecutor = pipelineExecutor;
+        this.dispatchLanes = dispatchLanes;
         this.timer = new HashedWheelTimer();
         this.idleHandler = new IdleStateHandler(timer, 20, 25, 0);
         this.readTimeoutHandler = new ReadTimeoutHandler(timer, 30);
@@ -54,10 +66,15 @@ public class OpenflowPipelineFactory
  
     @Override
     public ChannelPipeline getPipeline() throws Exception {
-        OFChannelHandler handler = new OFChannelHandler(controller);
+        OFChannelHandler handler =
+                new OFChannelHandler(controller, dispatchLanes);
         
         ChannelPipeline pipeline = Channels.pipeline();
-        pipeline.addLast("ofmessagedecoder", new OFMessageDecoder());
+        // Packet-ins can only be recycled if they are dispatched on the
+        // thread that reads them
+        pipeline.addLast("ofmessagedecoder",
+                new OFMessageDecoder(pipelineExecutor == null &&
+                                     dispatchLanes == null));
         pipeline.addLast("ofmessageencoder", new OFMessageEncoder());
         pipeline.addLast("idle", idleHandler);
         pipeline.addLast("timeout", readTimeoutHandler);
@@ -95,6 +95,14 @@ public class AppCookie {
         return (int)((cookie >>> APP_ID_SHIFT) & APP_ID_MASK);
     }
 
+    /**
+     * @return the bits of a flow cookie that hold the application id, for
+     * use as a cookie mask to select the flows of an application
+     */
+    static public long getAppMask() {
+        return APP_ID_MASK << APP_ID_SHIFT;
+    }
+
     static public int extractUser(long cookie) {
         return (int)(cookie & USER_MASK);
     }
@@ -19,11 +19,13 @@ package net.floodlightcontroller.core.web;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.OFSwitchBase;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 
 import org.openflow.protocol.OFFeaturesReply;
@@ -153,4 +155,19 @@ public class SwitchResourceBase extends ServerResource {
         return getSwitchFeaturesReply(HexString.toLong(switchId));
     }
 
+    /**
+     * @return the depth of the switch's write queue and statistics of the
+     * batches written to it, or null if the switch is not connected
+     */
+    protected Map<String, Object> getSwitchWriteQueue(String switchId) {
+        IFloodlightProviderService floodlightProvider =
+                (IFloodlightProviderService)getContext().getAttributes().
+                get(IFloodlightProviderService.class.getCanonicalName());
+
+        IOFSwitch sw = floodlightProvider.getSwitch(HexString.toLong(switchId));
+        if (sw instanceof OFSwitchBase)
+            return ((OFSwitchBase) sw).getWriteQueueInfo();
+        return null;
+    }
+
 }
@@ -55,6 +55,8 @@ public class SwitchStatisticsResource extends SwitchResourceBase {
             values = getSwitchStatistics(switchId, OFStatisticsType.TABLE);
         } else if (statType.equals("features")) {
             values = getSwitchFeaturesReply(switchId);
+        } else if (statType.equals("writequeue")) {
+            values = getSwitchWriteQueue(switchId);
         }
 
         result.put(switchId, values);
@@ -149,7 +149,9 @@ public class Device implements IDevice {
         this.macAddressString =
                 HexString.toHexString(this.entities[0].getMacAddress(), 6);
         this.entityClass = entityClass;
-        Arrays.sort(this.entities);
+        // Entities usually come from another device, already sorted
+        if (!isSorted(this.entities))
+            Arrays.sort(this.entities);
         vlanIds = computeVlandIds();
     }
 
@@ -216,6 +218,14 @@ public class Device implements IDevice {
         vlanIds = computeVlandIds();
     }
 
+    private static boolean isSorted(Entity[] entities) {
+        for (int i = 1; i < entities.length; i++) {
+            if (entities[i - 1].compareTo(entities[i]) > 0)
+                return false;
+        }
+        return true;
+    }
+
     private Short[]  computeVlandIds() {
         if (entities.length == 1) {
             if (entities[0].getVlan() != null) {
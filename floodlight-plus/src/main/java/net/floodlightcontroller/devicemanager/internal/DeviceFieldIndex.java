@@ -0,0 +1,348 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+import net.floodlightcontroller.util.LongHashSet;
+
+/**
+ * An index of device keys by a single field of their entities, the MAC
+ * address, IPv4 address, VLAN or attachment switch and port, each reduced
+ * to a long.
+ *
+ * The field values are kept in an open addressing table that maps each
+ * value to a {@link LongHashSet} of device keys, so neither the values nor
+ * the device keys are boxed, and the number of devices for a value can be
+ * read without walking them, which lets a query start from the most
+ * selective of several indices and only check its devices against the
+ * others.  A switch and port is folded into one long that may collide with
+ * another switch and port, so the devices found for it are candidates that
+ * must still be checked against the query, as {@link DeviceIterator} does.
+ * An entity without a VLAN is indexed under VLAN -1, as
+ * {@link Device#getVlanId()} reports it.
+ */
+public class DeviceFieldIndex extends DeviceIndex {
+    private static final int MIN_CAPACITY = 16;
+    private static final Iterator<Long> EMPTY = new LongIterator(new long[0]);
+
+    private final DeviceField field;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long[] keys;
+    private LongHashSet[] devices;
+    private int size;
+
+    /**
+     * @param field the field to index: MAC, IPV4, VLAN, or SWITCH for the
+     * switch and port together
+     * @throws IllegalArgumentException for PORT, which is only indexed
+     * together with its switch
+     */
+    public DeviceFieldIndex(DeviceField field) {
+        super(field == DeviceField.SWITCH
+              ? EnumSet.of(DeviceField.SWITCH, DeviceField.PORT)
+              : EnumSet.of(field));
+        if (field == DeviceField.PORT)
+            throw new IllegalArgumentException("Ports are indexed with " +
+                                               "their switch");
+        this.field = field;
+        this.keys = new long[MIN_CAPACITY];
+        this.devices = new LongHashSet[MIN_CAPACITY];
+    }
+
+    public DeviceField getField() {
+        return field;
+    }
+
+    /**
+     * @return whether the entity has a value for the indexed field
+     */
+    protected boolean hasKey(Entity entity) {
+        switch (field) {
+            case IPV4:
+                return entity.getIpv4Address() != null;
+            case SWITCH:
+                return entity.getSwitchDPID() != null &&
+                       entity.getSwitchPort() != null;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return the value of the indexed field of the entity
+     */
+    protected long key(Entity entity) {
+        switch (field) {
+            case MAC:
+                return entity.getMacAddress();
+            case IPV4:
+                return entity.getIpv4Address().longValue() & 0xffffffffL;
+            case VLAN:
+                return entity.getVlan() == null ? -1 :
+                       entity.getVlan().longValue();
+            case SWITCH:
+                return entity.getSwitchDPID().longValue() * 31 +
+                       entity.getSwitchPort().longValue();
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int i = LongHashSet.hash(key) & mask;
+        while (devices[i] != null) {
+            if (keys[i] == key)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of devices with an entity that has the field of
+     * the given entity
+     */
+    public int count(Entity entity) {
+        if (!hasKey(entity))
+            return 0;
+        lock.readLock().lock();
+        try {
+            int i = find(key(entity));
+            return (i < 0) ? 0 : devices[i].size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether the device has an entity that has the field of the
+     * given entity
+     */
+    public boolean contains(Entity entity, long deviceKey) {
+        if (!hasKey(entity))
+            return false;
+        lock.readLock().lock();
+        try {
+            int i = find(key(entity));
+            return i >= 0 && devices[i].contains(deviceKey);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the keys of the devices with an entity that has the field of
+     * the given entity
+     */
+    public long[] getDeviceKeys(Entity entity) {
+        if (!hasKey(entity))
+            return new long[0];
+        lock.readLock().lock();
+        try {
+            int i = find(key(entity));
+            return (i < 0) ? new long[0] : devices[i].toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct values in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ***********
+    // DeviceIndex
+    // ***********
+
+    @Override
+    public Iterator<Long> queryByEntity(Entity entity) {
+        long[] keys = getDeviceKeys(entity);
+        return (keys.length == 0) ? EMPTY : new LongIterator(keys);
+    }
+
+    @Override
+    public Iterator<Long> getAll() {
+        LongHashSet all = new LongHashSet();
+        lock.readLock().lock();
+        try {
+            for (LongHashSet d : devices) {
+                if (d == null)
+                    continue;
+                for (long deviceKey : d.toArray())
+                    all.add(deviceKey);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new LongIterator(all.toArray());
+    }
+
+    @Override
+    public boolean updateIndex(Device device, Long deviceKey) {
+        for (Entity e : device.entities) {
+            updateIndex(e, deviceKey);
+        }
+        return true;
+    }
+
+    @Override
+    public void updateIndex(Entity entity, Long deviceKey) {
+        if (!hasKey(entity))
+            return;
+        long key = key(entity);
+        lock.writeLock().lock();
+        try {
+            int i = find(key);
+            if (i < 0) {
+                if ((size + 1) * 2 > keys.length)
+                    resize(keys.length * 2);
+                int mask = keys.length - 1;
+                i = LongHashSet.hash(key) & mask;
+                while (devices[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = key;
+                devices[i] = new LongHashSet();
+                size++;
+            }
+            devices[i].add(deviceKey);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeEntity(Entity entity) {
+        if (!hasKey(entity))
+            return;
+        lock.writeLock().lock();
+        try {
+            int i = find(key(entity));
+            if (i >= 0)
+                removeSlot(i);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeEntity(Entity entity, Long deviceKey) {
+        if (!hasKey(entity))
+            return;
+        lock.writeLock().lock();
+        try {
+            int i = find(key(entity));
+            if (i >= 0 && devices[i].remove(deviceKey) &&
+                devices[i].isEmpty())
+                removeSlot(i);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeEntityIfNeeded(Entity entity, Long deviceKey,
+                                     Collection<Entity> others) {
+        if (!hasKey(entity))
+            return;
+        long key = key(entity);
+        for (Entity o : others) {
+            if (hasKey(o) && key(o) == key)
+                return;
+        }
+        removeEntity(entity, deviceKey);
+    }
+
+    private void removeSlot(int i) {
+        int mask = keys.length - 1;
+        int hole = i;
+        for (int j = (i + 1) & mask; devices[j] != null; j = (j + 1) & mask) {
+            int home = LongHashSet.hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                devices[hole] = devices[j];
+                hole = j;
+            }
+        }
+        devices[hole] = null;
+        size--;
+        if (keys.length > MIN_CAPACITY && size * 8 < keys.length)
+            resize(keys.length / 2);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        LongHashSet[] oldDevices = devices;
+        keys = new long[capacity];
+        devices = new LongHashSet[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldDevices[j] == null)
+                continue;
+            int i = LongHashSet.hash(oldKeys[j]) & mask;
+            while (devices[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            devices[i] = oldDevices[j];
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of device keys
+     */
+    private static class LongIterator implements Iterator<Long> {
+        private final long[] values;
+        private int next;
+
+        LongIterator(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        @Override
+        public Long next() {
+            if (next >= values.length)
+                throw new NoSuchElementException();
+            return values[next++];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
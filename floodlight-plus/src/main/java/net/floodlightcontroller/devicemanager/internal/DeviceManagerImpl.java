@@ -238,6 +238,16 @@ IFlowReconcileListener, IInfoProvider {
      */
     protected Map<EnumSet<DeviceField>, DeviceIndex> secondaryIndexMap;
 
+    /**
+     * These index all devices by a single field each, for queries that no
+     * secondary index covers exactly
+     */
+    protected DeviceFieldIndex macIndex;
+    protected DeviceFieldIndex vlanIndex;
+    protected DeviceFieldIndex ipv4Index;
+    protected DeviceFieldIndex switchPortIndex;
+    protected DeviceFieldIndex[] fieldIndices;
+
     /**
      * This map contains state for each of the {@ref IEntityClass}
      * that exist
@@ -511,39 +521,8 @@ IFlowReconcileListener, IInfoProvider {
                                                     Integer ipv4Address,
                                                     Long switchDPID,
                                                     Integer switchPort) {
-        DeviceIndex index = null;
-        if (secondaryIndexMap.size() > 0) {
-            EnumSet<DeviceField> keys =
-                    getEntityKeys(macAddress, vlan, ipv4Address,
-                                  switchDPID, switchPort);
-            index = secondaryIndexMap.get(keys);
-        }
-
-        Iterator<Device> deviceIterator = null;
-        if (index == null) {
-            // Do a full table scan
-            deviceIterator = deviceMap.values().iterator();
-        } else {
-            // index lookup
-            Entity entity = new Entity((macAddress == null ? 0 : macAddress),
-                                       vlan,
-                                       ipv4Address,
-                                       switchDPID,
-                                       switchPort,
-                                       null);
-            deviceIterator =
-                    new DeviceIndexInterator(this, index.queryByEntity(entity));
-        }
-
-        DeviceIterator di =
-                new DeviceIterator(deviceIterator,
-                                   null,
-                                   macAddress,
-                                   vlan,
-                                   ipv4Address,
-                                   switchDPID,
-                                   switchPort);
-        return di;
+        return getDeviceIteratorForQuery(macAddress, vlan, ipv4Address,
+                                         switchDPID, switchPort);
     }
 
     @Override
@@ -569,8 +548,12 @@ IFlowReconcileListener, IInfoProvider {
         if (index == null) {
             index = classState.classIndex;
             if (index == null) {
-                // scan all devices
-                return new DeviceIterator(deviceMap.values().iterator(),
+                // look the devices up in the field indices, or scan them all
+                iter = queryFieldIndices(macAddress, vlan, ipv4Address,
+                                         switchDPID, switchPort);
+                if (iter == null)
+                    iter = deviceMap.values().iterator();
+                return new DeviceIterator(iter,
                                           new IEntityClass[] { entityClass },
                                           macAddress, vlan, ipv4Address,
                                           switchDPID, switchPort);
@@ -610,8 +593,12 @@ IFlowReconcileListener, IInfoProvider {
 
         Iterator<Device> deviceIterator = null;
         if (index == null) {
-            // Do a full table scan
-            deviceIterator = deviceMap.values().iterator();
+            deviceIterator = queryFieldIndices(macAddress, vlan, ipv4Address,
+                                               switchDPID, switchPort);
+            if (deviceIterator == null) {
+                // Do a full table scan
+                deviceIterator = deviceMap.values().iterator();
+            }
         } else {
             // index lookup
             Entity entity = new Entity((macAddress == null ? 0 : macAddress),
@@ -635,6 +622,65 @@ IFlowReconcileListener, IInfoProvider {
         return di;
     }
 
+    /**
+     * Find the devices that have entities matching a query on every field
+     * that has a field index.  The keys of the most selective index are
+     * looked up, and kept if the other indices also hold them, so the cost
+     * depends on the smallest set of devices rather than on all of them.
+     * The devices found must still be checked against the query.
+     * @return the devices found, or null if none of the fields given is
+     * indexed
+     */
+    protected Iterator<Device> queryFieldIndices(Long macAddress,
+                                                 Short vlan,
+                                                 Integer ipv4Address,
+                                                 Long switchDPID,
+                                                 Integer switchPort) {
+        DeviceFieldIndex[] indices = new DeviceFieldIndex[fieldIndices.length];
+        int n = 0;
+        if (macAddress != null) indices[n++] = macIndex;
+        if (vlan != null) indices[n++] = vlanIndex;
+        if (ipv4Address != null) indices[n++] = ipv4Index;
+        if (switchDPID != null && switchPort != null)
+            indices[n++] = switchPortIndex;
+        if (n == 0)
+            return null;
+
+        Entity entity = new Entity((macAddress == null ? 0 : macAddress),
+                                   vlan,
+                                   ipv4Address,
+                                   switchDPID,
+                                   switchPort,
+                                   null);
+        int best = 0;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            int count = indices[i].count(entity);
+            if (count < bestCount) {
+                best = i;
+                bestCount = count;
+            }
+        }
+        if (bestCount == 0)
+            return Collections.<Device>emptySet().iterator();
+
+        long[] deviceKeys = indices[best].getDeviceKeys(entity);
+        List<Device> devices = new ArrayList<Device>(deviceKeys.length);
+        for (long deviceKey : deviceKeys) {
+            boolean match = true;
+            for (int i = 0; i < n && match; i++) {
+                if (i != best)
+                    match = indices[i].contains(entity, deviceKey);
+            }
+            if (!match)
+                continue;
+            Device device = deviceMap.get(deviceKey);
+            if (device != null)
+                devices.add(device);
+        }
+        return devices.iterator();
+    }
+
     @Override
     public void addListener(IDeviceListener listener) {
          deviceListeners.addListener("device", listener);
@@ -934,6 +980,13 @@ IFlowReconcileListener, IInfoProvider {
         isMaster = (floodlightProvider.getRole() == Role.MASTER);
         primaryIndex = new DeviceUniqueIndex(entityClassifier.getKeyFields());
         secondaryIndexMap = new HashMap<EnumSet<DeviceField>, DeviceIndex>();
+        macIndex = new DeviceFieldIndex(DeviceField.MAC);
+        vlanIndex = new DeviceFieldIndex(DeviceField.VLAN);
+        ipv4Index = new DeviceFieldIndex(DeviceField.IPV4);
+        switchPortIndex = new DeviceFieldIndex(DeviceField.SWITCH);
+        fieldIndices = new DeviceFieldIndex[] {
+            macIndex, vlanIndex, ipv4Index, switchPortIndex
+        };
 
         deviceMap = new ConcurrentHashMap<Long, Device>();
         classStateMap =
@@ -1976,6 +2029,9 @@ IFlowReconcileListener, IInfoProvider {
         for (DeviceIndex index : secondaryIndexMap.values()) {
             index.updateIndex(entity, deviceKey);
         }
+        for (DeviceIndex index : fieldIndices) {
+            index.updateIndex(entity, deviceKey);
+        }
         ClassState state = getClassState(entityClass);
         for (DeviceIndex index : state.secondaryIndexMap.values()) {
             index.updateIndex(entity, deviceKey);
@@ -2090,6 +2146,9 @@ IFlowReconcileListener, IInfoProvider {
         for (DeviceIndex index : secondaryIndexMap.values()) {
             index.removeEntityIfNeeded(removed, deviceKey, others);
         }
+        for (DeviceIndex index : fieldIndices) {
+            index.removeEntityIfNeeded(removed, deviceKey, others);
+        }
         ClassState classState = getClassState(entityClass);
         for (DeviceIndex index : classState.secondaryIndexMap.values()) {
             index.removeEntityIfNeeded(removed, deviceKey, others);
@@ -68,7 +68,10 @@ public class Firewall implements IFirewallService, IOFMessageListener,
     protected IRestApiService restApi;
     protected static Logger logger;
 
-    protected List<FirewallRule> rules; // protected by synchronized
+    // copy-on-write: addRule and deleteRule swap in a new list and its
+    // classifier through setRules, so packet-ins read them without the lock
+    protected volatile List<FirewallRule> rules;
+    protected volatile FirewallClassifier classifier;
     protected boolean enabled;
     protected int subnet_mask = IPv4.toIPv4Address("255.255.255.0");
 
@@ -341,7 +344,7 @@ public class Firewall implements IFirewallService, IOFMessageListener,
                 .getServiceImpl(IFloodlightProviderService.class);
         storageSource = context.getServiceImpl(IStorageSourceService.class);
         restApi = context.getServiceImpl(IRestApiService.class);
-        rules = new ArrayList<FirewallRule>();
+        setRules(new ArrayList<FirewallRule>());
         logger = LoggerFactory.getLogger(Firewall.class);
 
         // start disabled
@@ -359,7 +362,7 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // storage, create table and read rules
         storageSource.createTable(TABLE_NAME, null);
         storageSource.setTablePrimaryKeyName(TABLE_NAME, COLUMN_RULEID);
-        this.rules = readRulesFromStorage();
+        setRules(readRulesFromStorage());
     }
 
     @Override
@@ -437,18 +440,20 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // may want to check conflict
         rule.ruleid = rule.genID();
         
+        List<FirewallRule> newRules = new ArrayList<FirewallRule>(this.rules);
         int i = 0;
         // locate the position of the new rule in the sorted arraylist
-        for (i = 0; i < this.rules.size(); i++) {
-            if (this.rules.get(i).priority >= rule.priority)
+        for (i = 0; i < newRules.size(); i++) {
+            if (newRules.get(i).priority >= rule.priority)
                 break;
         }
         // now, add rule to the list
-        if (i <= this.rules.size()) {
-            this.rules.add(i, rule);
+        if (i <= newRules.size()) {
+            newRules.add(i, rule);
         } else {
-            this.rules.add(rule);
+            newRules.add(rule);
         }
+        setRules(newRules);
         // add rule to database
         Map<String, Object> entry = new HashMap<String, Object>();
         entry.put(COLUMN_RULEID, Integer.toString(rule.ruleid));
@@ -491,7 +496,8 @@ public class Firewall implements IFirewallService, IOFMessageListener,
 
     @Override
     public synchronized void deleteRule(int ruleid) {
-        Iterator<FirewallRule> iter = this.rules.iterator();
+        List<FirewallRule> newRules = new ArrayList<FirewallRule>(this.rules);
+        Iterator<FirewallRule> iter = newRules.iterator();
         while (iter.hasNext()) {
             FirewallRule r = iter.next();
             if (r.ruleid == ruleid) {
@@ -500,14 +506,29 @@ public class Firewall implements IFirewallService, IOFMessageListener,
                 break;
             }
         }
+        setRules(newRules);
         // delete from database
         storageSource.deleteRow(TABLE_NAME, Integer.toString(ruleid));
     }
 
     /**
-     * Iterates over the firewall rules and tries to match them with the
-     * incoming packet (flow). Uses the FirewallRule class's matchWithFlow
-     * method to perform matching. It maintains a pair of wildcards (allow and
+     * Replace the rules and the classifier compiled from them
+     * 
+     * @param newRules
+     *            the rules sorted by priority, which must not be modified
+     *            afterwards
+     */
+    protected synchronized void setRules(List<FirewallRule> newRules) {
+        this.classifier = new FirewallClassifier(newRules);
+        this.rules = newRules;
+    }
+
+    /**
+     * Matches the incoming packet (flow) with the firewall rules. The
+     * result is the same as iterating over the rules and calling the
+     * FirewallRule class's matchesFlow method on each, but is found by the
+     * classifier compiled from the rules, without locking. It maintains a
+     * pair of wildcards (allow and
      * deny) which are assigned later to the firewall's decision, where 'allow'
      * wildcards are applied if the matched rule turns out to be an ALLOW rule
      * and 'deny' wildcards are applied otherwise. Wildcards are applied to
@@ -523,8 +544,8 @@ public class Firewall implements IFirewallService, IOFMessageListener,
      * priority rules override the wildcarding of those fields in lower priority
      * rules of the opposite type). So, to ensure that wildcards are
      * appropriately set for different types of rules (allow vs. deny), separate
-     * wildcards are maintained. Iteration is performed on the sorted list of
-     * rules (sorted in decreasing order of priority).
+     * wildcards are maintained. Rules are tried in the order of the sorted
+     * list of rules (sorted in decreasing order of priority).
      * 
      * @param sw
      *            the switch instance
@@ -537,38 +558,12 @@ public class Firewall implements IFirewallService, IOFMessageListener,
      */
     protected RuleWildcardsPair matchWithRule(IOFSwitch sw, OFPacketIn pi,
             FloodlightContext cntx) {
-        FirewallRule matched_rule = null;
         Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
                 IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
-        NonWildcardsPair nonWildcards = new NonWildcardsPair();
-
-        synchronized (rules) {
-            Iterator<FirewallRule> iter = this.rules.iterator();
-            FirewallRule rule = null;
-            // iterate through list to find a matching firewall rule
-            while (iter.hasNext()) {
-                // get next rule from list
-                rule = iter.next();
-
-                // check if rule matches
-                if (rule.matchesFlow(sw.getId(), pi.getInPort(), eth, nonWildcards) == true) {
-                    matched_rule = rule;
-                    break;
-                }
-            }
-        }
 
-        // make a pair of rule and wildcards, then return it
         // TODO: Fix rule such that it only drops this flow,
         // and not blanket block this switch
-        RuleWildcardsPair ret = new RuleWildcardsPair();
-        ret.rule = matched_rule;
-        if (matched_rule == null || matched_rule.action == FirewallRule.FirewallAction.DENY) {
-            ret.nonWildcards = nonWildcards.drop;
-        } else {
-            ret.nonWildcards = nonWildcards.allow;
-        }
-        return ret;
+        return this.classifier.match(sw.getId(), pi.getInPort(), eth);
     }
 
     /**
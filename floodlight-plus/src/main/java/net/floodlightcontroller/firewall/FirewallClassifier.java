@@ -0,0 +1,624 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFOXMFieldType;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A compiled form of the firewall rules that finds the rule matching a
+ * packet, and the fields that may not be wildcarded in the decision, by
+ * tuple space search instead of trying each rule in turn.
+ *
+ * {@link FirewallRule#matchesFlow} checks the fields of a rule in a fixed
+ * order and, as each check passes, adds fields to the non-wildcarded
+ * fields for the rule's action.  The firewall takes the first rule that
+ * matches, with the fields added by it and by every rule before it.  So
+ * each rule is compiled into stages, where a stage is the conjunction of
+ * the checks up to some point together with the fields added once they
+ * pass, and the rule matches when its last stage passes.  Stages that
+ * constrain the same packet fields, with the same prefix lengths for the
+ * network addresses, share a tuple: a hash table from those packet fields
+ * to the stages that require them.  A lookup probes each tuple once, takes
+ * the first matching rule from the stages it finds, and then collects the
+ * fields of the stages found that belong to that rule or an earlier one.
+ * Tuples are probed in the order of the first rule with a stage in them,
+ * so the probes stop at the first tuple whose rules all come after a rule
+ * that has already matched.  Each tuple is an open addressing table probed
+ * with the fields of the packet under its mask, the fields of each stage
+ * are kept as a bit set of {@link OFOXMFieldType} ordinals, and the packet
+ * key and the buckets found are kept per thread, so a lookup only
+ * allocates its result.
+ *
+ * A classifier is immutable.  The firewall builds a new one when the
+ * rules change, so packet-ins can use it without locking.
+ */
+public class FirewallClassifier {
+    // The packet fields a stage can require an exact value for
+    private static final int DPID = 1 << 0;
+    private static final int IN_PORT = 1 << 1;
+    private static final int DL_SRC = 1 << 2;
+    private static final int DL_DST = 1 << 3;
+    private static final int DL_TYPE = 1 << 4;
+    private static final int NW_PROTO = 1 << 5;
+
+    // by ordinal; there are fewer than 64, so a long holds a set of them
+    private static final OFOXMFieldType[] FIELDS = OFOXMFieldType.values();
+
+    private final FirewallRule[] rules;
+    private final Tuple[] tuples;
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(tuples.length);
+        }
+    };
+
+    /**
+     * Compile the rules
+     * @param rules the rules, in the order in which the firewall tries them
+     */
+    public FirewallClassifier(List<FirewallRule> rules) {
+        this.rules = rules.toArray(new FirewallRule[rules.size()]);
+
+        Map<Mask, Tuple> tupleMap = new LinkedHashMap<Mask, Tuple>();
+        for (int i = 0; i < this.rules.length; i++) {
+            for (Stage stage : compile(this.rules[i])) {
+                Tuple tuple = tupleMap.get(stage.mask);
+                if (tuple == null) {
+                    tuple = new Tuple(stage.mask);
+                    tupleMap.put(stage.mask, tuple);
+                }
+                tuple.add(i, stage);
+            }
+        }
+        tuples = tupleMap.values().toArray(new Tuple[tupleMap.size()]);
+        for (Tuple tuple : tuples)
+            tuple.freeze();
+        Arrays.sort(tuples, new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple a, Tuple b) {
+                return a.firstRule - b.firstRule;
+            }
+        });
+    }
+
+    /**
+     * Find the first rule that matches a packet
+     * @param switchDpid the switch the packet arrived on
+     * @param inPort the port the packet arrived on
+     * @param packet the packet
+     * @return the matching rule, or <code>null</code>, and the fields that
+     * may not be wildcarded, as the firewall would find by calling
+     * {@link FirewallRule#matchesFlow} on each rule in turn
+     */
+    public RuleWildcardsPair match(long switchDpid, int inPort,
+                                   Ethernet packet) {
+        Scratch s = scratch.get();
+        Key key = s.key;
+        Bucket[] found = s.found;
+        setPacketKey(key, switchDpid, inPort, packet);
+        int count = 0;
+        int first = Integer.MAX_VALUE;
+        for (Tuple tuple : tuples) {
+            if (tuple.firstRule > first) break;
+            Bucket b = tuple.get(key);
+            if (b == null) continue;
+            found[count++] = b;
+            if (b.firstMatch < first)
+                first = b.firstMatch;
+        }
+
+        RuleWildcardsPair ret = new RuleWildcardsPair();
+        ret.rule = (first == Integer.MAX_VALUE) ? null : rules[first];
+        boolean drop = ret.rule == null ||
+                ret.rule.action == FirewallRule.FirewallAction.DENY;
+        long fields = 0;
+        for (int i = 0; i < count; i++) {
+            fields |= found[i].fields(first, drop);
+        }
+        for (; fields != 0; fields &= fields - 1) {
+            ret.nonWildcards.add(FIELDS[Long.numberOfTrailingZeros(fields)]);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of tuples, each of which a lookup probes once
+     */
+    public int getTupleCount() {
+        return tuples.length;
+    }
+
+    // *************
+    // Local methods
+    // *************
+
+    private static void setPacketKey(Key key, long switchDpid, int inPort,
+                                     Ethernet packet) {
+        key.dpid = switchDpid;
+        key.inPort = inPort;
+        key.dlSrc = packet.getSourceMAC().toLong();
+        key.dlDst = packet.getDestinationMAC().toLong();
+        key.dlType = packet.getEtherType();
+        key.nwSrc = 0;
+        key.nwDst = 0;
+        key.nwProto = 0;
+        if (packet.getPayload() instanceof ARP) {
+            ARP arp = (ARP) packet.getPayload();
+            key.nwSrc = toInt(arp.getSenderProtocolAddress());
+            key.nwDst = toInt(arp.getTargetProtocolAddress());
+        } else if (packet.getPayload() instanceof IPv4) {
+            IPv4 ip = (IPv4) packet.getPayload();
+            key.nwSrc = ip.getSourceAddress();
+            key.nwDst = ip.getDestinationAddress();
+            key.nwProto = ip.getProtocol();
+        }
+    }
+
+    private static long toBits(EnumSet<OFOXMFieldType> fields) {
+        long bits = 0;
+        for (OFOXMFieldType field : fields)
+            bits |= 1L << field.ordinal();
+        return bits;
+    }
+
+    private static int toInt(byte[] address) {
+        if (address == null || address.length < 4) return 0;
+        return ByteBuffer.wrap(address).getInt();
+    }
+
+    /**
+     * @return the number of leading bits of the address that
+     * {@link FirewallRule#matchIPAddress} compares for the given mask bits
+     */
+    private static int prefixLength(int maskbits) {
+        // the shift distance is taken modulo 32, so a /0 compares the
+        // whole address
+        int shift = 32 - maskbits;
+        shift = (shift > 0) ? (shift & 31) : 0;
+        return 32 - shift;
+    }
+
+    private static int prefixMask(int length) {
+        return (length == 0) ? 0 : -1 << (32 - length);
+    }
+
+    /**
+     * Compile a rule into the stages that {@link FirewallRule#matchesFlow}
+     * goes through.  This must follow the order of the checks there.
+     */
+    private static List<Stage> compile(FirewallRule rule) {
+        Compiler c = new Compiler(rule);
+
+        if (!rule.wildcard_dpid)
+            c.constrain(DPID).dpid = rule.dpid;
+        if (!rule.wildcard_in_port)
+            c.constrain(IN_PORT).inPort = rule.in_port;
+        c.add(OFOXMFieldType.IN_PORT);
+
+        if (!rule.wildcard_dl_src)
+            c.constrain(DL_SRC).dlSrc = rule.dl_src;
+        c.add(OFOXMFieldType.ETH_SRC);
+
+        if (!rule.wildcard_dl_dst)
+            c.constrain(DL_DST).dlDst = rule.dl_dst;
+        c.add(OFOXMFieldType.ETH_DST);
+
+        if (!rule.wildcard_dl_type) {
+            OFOXMFieldType srcField, dstField;
+            if (rule.dl_type == Ethernet.TYPE_ARP) {
+                srcField = OFOXMFieldType.ARP_SHA;
+                dstField = OFOXMFieldType.ARP_THA;
+            } else if (rule.dl_type == Ethernet.TYPE_IPv4) {
+                srcField = OFOXMFieldType.IPV4_SRC;
+                dstField = OFOXMFieldType.IPV4_DST;
+            } else {
+                // never matches
+                return c.stages;
+            }
+            c.constrain(DL_TYPE).dlType = rule.dl_type;
+            c.add(OFOXMFieldType.ETH_TYPE);
+
+            if (!rule.wildcard_nw_src) {
+                int length = prefixLength(rule.nw_src_maskbits);
+                c.constrain(0).nwSrc = rule.nw_src_prefix & prefixMask(length);
+                c.mask.nwSrcLength = length;
+            }
+            c.add(srcField);
+
+            if (!rule.wildcard_nw_dst) {
+                int length = prefixLength(rule.nw_dst_maskbits);
+                c.constrain(0).nwDst = rule.nw_dst_prefix & prefixMask(length);
+                c.mask.nwDstLength = length;
+            }
+            c.add(dstField);
+
+            if (!rule.wildcard_nw_proto && rule.dl_type == Ethernet.TYPE_IPv4) {
+                boolean ports = rule.nw_proto == IPv4.PROTOCOL_TCP ||
+                                rule.nw_proto == IPv4.PROTOCOL_UDP;
+                if (ports || rule.nw_proto == IPv4.PROTOCOL_ICMP)
+                    c.constrain(NW_PROTO).nwProto = rule.nw_proto;
+                c.addDrop(OFOXMFieldType.ETH_TYPE);
+                c.add(OFOXMFieldType.IP_PROTO);
+                // matchesFlow rejects every TCP and UDP packet at the
+                // port checks
+                if (ports)
+                    return c.stages;
+            }
+        }
+        c.add(OFOXMFieldType.ETH_TYPE);
+        c.stage().matches = true;
+        return c.stages;
+    }
+
+    /**
+     * The packet fields that a stage constrains
+     */
+    private static class Mask {
+        int exact;
+        /**
+         * The number of leading bits of the network addresses compared,
+         * or -1 if the address is not constrained
+         */
+        int nwSrcLength = -1;
+        int nwDstLength = -1;
+
+        Mask copy() {
+            Mask m = new Mask();
+            m.exact = exact;
+            m.nwSrcLength = nwSrcLength;
+            m.nwDstLength = nwDstLength;
+            return m;
+        }
+
+        /**
+         * @return the hash code of the fields of the key under this mask,
+         * which is the hash code of a value with those fields
+         */
+        int hash(Key key) {
+            long h = ((exact & DPID) != 0) ? key.dpid : 0;
+            h = h * 31 + (((exact & IN_PORT) != 0) ? key.inPort : 0);
+            h = h * 31 + (((exact & DL_SRC) != 0) ? key.dlSrc : 0);
+            h = h * 31 + (((exact & DL_DST) != 0) ? key.dlDst : 0);
+            h = h * 31 + (((exact & DL_TYPE) != 0) ? key.dlType : 0);
+            h = h * 31 + ((nwSrcLength >= 0)
+                    ? key.nwSrc & prefixMask(nwSrcLength) : 0);
+            h = h * 31 + ((nwDstLength >= 0)
+                    ? key.nwDst & prefixMask(nwDstLength) : 0);
+            h = h * 31 + (((exact & NW_PROTO) != 0) ? key.nwProto : 0);
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /**
+         * @return whether the fields of the key under this mask are those
+         * of the value, whose other fields are 0
+         */
+        boolean matches(Key key, Key value) {
+            return (((exact & DPID) != 0) ? key.dpid : 0) == value.dpid &&
+                   (((exact & IN_PORT) != 0) ? key.inPort : 0) == value.inPort &&
+                   (((exact & DL_SRC) != 0) ? key.dlSrc : 0) == value.dlSrc &&
+                   (((exact & DL_DST) != 0) ? key.dlDst : 0) == value.dlDst &&
+                   (((exact & DL_TYPE) != 0) ? key.dlType : 0) == value.dlType &&
+                   (((exact & NW_PROTO) != 0) ? key.nwProto : 0) == value.nwProto &&
+                   ((nwSrcLength >= 0)
+                       ? key.nwSrc & prefixMask(nwSrcLength) : 0) == value.nwSrc &&
+                   ((nwDstLength >= 0)
+                       ? key.nwDst & prefixMask(nwDstLength) : 0) == value.nwDst;
+        }
+
+        @Override
+        public int hashCode() {
+            return (exact * 31 + nwSrcLength) * 31 + nwDstLength;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Mask)) return false;
+            Mask other = (Mask) obj;
+            return exact == other.exact &&
+                   nwSrcLength == other.nwSrcLength &&
+                   nwDstLength == other.nwDstLength;
+        }
+    }
+
+    /**
+     * Packet fields, with the fields a mask does not constrain set to 0
+     */
+    private static class Key {
+        long dpid;
+        int inPort;
+        long dlSrc;
+        long dlDst;
+        int dlType;
+        int nwSrc;
+        int nwDst;
+        int nwProto;
+
+        Key copy() {
+            Key k = new Key();
+            k.dpid = dpid;
+            k.inPort = inPort;
+            k.dlSrc = dlSrc;
+            k.dlDst = dlDst;
+            k.dlType = dlType;
+            k.nwSrc = nwSrc;
+            k.nwDst = nwDst;
+            k.nwProto = nwProto;
+            return k;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = dpid;
+            h = h * 31 + inPort;
+            h = h * 31 + dlSrc;
+            h = h * 31 + dlDst;
+            h = h * 31 + dlType;
+            h = h * 31 + nwSrc;
+            h = h * 31 + nwDst;
+            h = h * 31 + nwProto;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return dpid == other.dpid && inPort == other.inPort &&
+                   dlSrc == other.dlSrc && dlDst == other.dlDst &&
+                   dlType == other.dlType && nwSrc == other.nwSrc &&
+                   nwDst == other.nwDst && nwProto == other.nwProto;
+        }
+    }
+
+    /**
+     * The checks of a rule up to some point, and the fields added once
+     * they pass
+     */
+    private static class Stage {
+        final Mask mask;
+        final Key value;
+        final NonWildcardsPair fields = new NonWildcardsPair();
+        /**
+         * Whether the rule matches once this stage passes
+         */
+        boolean matches;
+
+        Stage(Mask mask, Key value) {
+            this.mask = mask;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Builds the stages of a rule.  A new stage starts when a check is
+     * added after fields have been added.
+     */
+    private static class Compiler {
+        final FirewallRule rule;
+        final List<Stage> stages = new ArrayList<Stage>();
+        Mask mask = new Mask();
+        Key value = new Key();
+        Stage current;
+
+        Compiler(FirewallRule rule) {
+            this.rule = rule;
+        }
+
+        /**
+         * Add an exact match check on the given fields
+         * @return the values checked, to be updated by the caller
+         */
+        Key constrain(int fields) {
+            if (current != null) {
+                mask = mask.copy();
+                value = value.copy();
+                current = null;
+            }
+            mask.exact |= fields;
+            return value;
+        }
+
+        Stage stage() {
+            if (current == null) {
+                current = new Stage(mask, value);
+                stages.add(current);
+            }
+            return current;
+        }
+
+        /**
+         * Add a field for the rule's action
+         */
+        void add(OFOXMFieldType field) {
+            if (rule.action == FirewallRule.FirewallAction.DENY)
+                stage().fields.drop.add(field);
+            else
+                stage().fields.allow.add(field);
+        }
+
+        void addDrop(OFOXMFieldType field) {
+            stage().fields.drop.add(field);
+        }
+    }
+
+    /**
+     * The keys and buckets a thread uses during a lookup
+     */
+    private static class Scratch {
+        final Key key = new Key();
+        final Bucket[] found;
+
+        Scratch(int tuples) {
+            found = new Bucket[tuples];
+        }
+    }
+
+    /**
+     * The stages that share a mask, by the values they require
+     */
+    private static class Tuple {
+        final Mask mask;
+        private HashMap<Key, Bucket> buckets = new HashMap<Key, Bucket>();
+        /**
+         * The index of the first rule with a stage in the tuple
+         */
+        int firstRule = Integer.MAX_VALUE;
+        /**
+         * The buckets by the hash code of their values, with linear
+         * probing; the length is a power of two and at least twice the
+         * number of buckets
+         */
+        Bucket[] table;
+
+        Tuple(Mask mask) {
+            this.mask = mask;
+        }
+
+        void add(int ruleIndex, Stage stage) {
+            if (ruleIndex < firstRule)
+                firstRule = ruleIndex;
+            Bucket b = buckets.get(stage.value);
+            if (b == null) {
+                b = new Bucket(stage.value);
+                buckets.put(stage.value, b);
+            }
+            b.add(ruleIndex, stage);
+        }
+
+        void freeze() {
+            int capacity = Integer.highestOneBit(buckets.size() * 2 - 1) << 1;
+            table = new Bucket[capacity];
+            for (Bucket b : buckets.values()) {
+                int i = slot(b.hash);
+                while (table[i] != null)
+                    i = (i + 1) & (capacity - 1);
+                table[i] = b;
+                b.freeze();
+            }
+            buckets = null;
+        }
+
+        /**
+         * @return the bucket for the fields of the packet key under the
+         * mask, or <code>null</code>
+         */
+        Bucket get(Key key) {
+            int hash = mask.hash(key);
+            int i = slot(hash);
+            Bucket b;
+            while ((b = table[i]) != null) {
+                if (b.hash == hash && mask.matches(key, b.value))
+                    return b;
+                i = (i + 1) & (table.length - 1);
+            }
+            return null;
+        }
+
+        private int slot(int hash) {
+            return (hash ^ (hash >>> 16)) & (table.length - 1);
+        }
+    }
+
+    /**
+     * The stages that require the same values, in rule order
+     */
+    private static class Bucket {
+        final Key value;
+        final int hash;
+        int firstMatch = Integer.MAX_VALUE;
+        private List<Integer> indexList = new ArrayList<Integer>();
+        private List<NonWildcardsPair> fieldList =
+                new ArrayList<NonWildcardsPair>();
+
+        int[] ruleIndex;
+        /**
+         * The fields of the stages up to and including each one, as bit
+         * sets of field ordinals
+         */
+        long[] drop;
+        long[] allow;
+
+        Bucket(Key value) {
+            this.value = value;
+            this.hash = value.hashCode();
+        }
+
+        void add(int index, Stage stage) {
+            // stages are added in rule order
+            indexList.add(index);
+            fieldList.add(stage.fields);
+            if (stage.matches && index < firstMatch)
+                firstMatch = index;
+        }
+
+        void freeze() {
+            int n = indexList.size();
+            ruleIndex = new int[n];
+            drop = new long[n];
+            allow = new long[n];
+            long d = 0;
+            long a = 0;
+            for (int i = 0; i < n; i++) {
+                ruleIndex[i] = indexList.get(i);
+                d |= toBits(fieldList.get(i).drop);
+                a |= toBits(fieldList.get(i).allow);
+                drop[i] = d;
+                allow[i] = a;
+            }
+            indexList = null;
+            fieldList = null;
+        }
+
+        /**
+         * @return the fields of the stages of rules up to the given rule,
+         * for a drop or an allow
+         */
+        long fields(int lastRule, boolean drop) {
+            int lo = 0;
+            int hi = ruleIndex.length - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ruleIndex[mid] <= lastRule) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (found < 0) return 0;
+            return drop ? this.drop[found] : this.allow[found];
+        }
+    }
+}
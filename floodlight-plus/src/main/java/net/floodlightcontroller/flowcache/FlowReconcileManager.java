@@ -16,16 +16,21 @@
 
 package net.floodlightcontroller.flowcache;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IInfoProvider;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
@@ -46,13 +51,15 @@ import net.floodlightcontroller.flowcache.IFlowReconcileListener;
 import net.floodlightcontroller.flowcache.OFMatchReconcile;
 import net.floodlightcontroller.flowcache.PriorityPendingQueue.EventPriority;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.util.LatencyHistogram;
 
+import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class FlowReconcileManager
-        implements IFloodlightModule, IFlowReconcileService {
+        implements IFloodlightModule, IFlowReconcileService, IInfoProvider {
 
     /** The logger. */
     private static Logger logger =
@@ -73,6 +80,7 @@ public class FlowReconcileManager
 
     /** A FIFO queue to keep all outstanding flows for reconciliation */
     PriorityPendingQueue <OFMatchReconcile> flowQueue;
+    protected final static int DEFAULT_QUEUE_SIZE = 100000;
 
     /** Asynchronous task to feed the flowReconcile pipeline */
     protected SingletonTask flowReconcileTask;
@@ -89,8 +97,22 @@ public class FlowReconcileManager
     protected final static int FLOW_RECONCILE_DELAY_MILLISEC = 10;
     protected Date lastReconcileTime;
 
+    /** the most flows fed to the pipeline in one run */
+    protected final static int MAX_FLOW_RECONCILE_PER_RUN = 10000;
+    /** the share of each run's period the pipeline may take when there
+     *  are no packet-ins */
+    protected final static double FLOW_RECONCILE_TIME_SHARE = 0.5;
+    /** moving average of the nanoseconds the pipeline takes per flow, or 0
+     *  until a run has been measured */
+    protected volatile long reconcileNanosPerFlow;
+    protected volatile int lastDrainLimit;
+    /** nanoseconds the pipeline took per run */
+    protected final LatencyHistogram runTimes = new LatencyHistogram();
+
     /** Config to enable or disable flowReconcile */
     protected static final String EnableConfigKey = "enable";
+    /** Config for the most flows waiting for reconciliation */
+    protected static final String QueueSizeConfigKey = "queuesize";
 
     /*
      * Debug Counters
@@ -98,6 +120,7 @@ public class FlowReconcileManager
     public static final String PACKAGE = FlowReconcileManager.class.getPackage().getName();
     private IDebugCounter ctrFlowReconcileRequest;
     private IDebugCounter ctrReconciledFlows;
+    private IDebugCounter ctrFlowReconcileDropped;
     protected boolean flowReconcileEnabled;
 
     public AtomicInteger flowReconcileThreadRunCount;
@@ -142,7 +165,12 @@ public class FlowReconcileManager
         // Make a copy before putting on the queue.
         OFMatchReconcile myOfmRc = new OFMatchReconcile(ofmRcIn);
 
-        flowQueue.offer(myOfmRc, priority);
+        if (!flowQueue.offer(myOfmRc, priority, reconcileKey(myOfmRc))) {
+            ctrFlowReconcileDropped.updateCounterWithFlush();
+            if (logger.isTraceEnabled()) {
+                logger.trace("Flow reconcile queue full, dropped {}", myOfmRc);
+            }
+        }
         ctrFlowReconcileRequest.updateCounterWithFlush();
 
         Date currTime = new Date();
@@ -165,6 +193,57 @@ public class FlowReconcileManager
         }
     }
 
+    /**
+     * A key that is equal for requests that reconcile the same flow in the
+     * same way, so that a request made while an equal one is waiting can
+     * be dropped.  The match is compared in its wire format since OFMatch
+     * compares by identity.
+     */
+    protected static Object reconcileKey(OFMatchReconcile ofmRc) {
+        OFMatch match = ofmRc.ofmWithSwDpid.getOfMatch();
+        ByteBuffer bb = ByteBuffer.allocate(28 + match.getLengthU());
+        bb.putLong(ofmRc.ofmWithSwDpid.getSwitchDataPathId());
+        bb.putLong(ofmRc.cookie);
+        bb.putInt(ofmRc.outPort);
+        bb.putShort(ofmRc.priority);
+        bb.put(ofmRc.action);
+        bb.put((byte) ((ofmRc.rcAction == null) ? -1 : ofmRc.rcAction.ordinal()));
+        match.writeTo(bb);
+        bb.flip();
+        return Arrays.<Object>asList(bb, ofmRc.appInstName, ofmRc.newAppInstName);
+    }
+
+    // IInfoProvider
+
+    @Override
+    public Map<String, Object> getInfo(String type) {
+        if (!"flowreconcile".equals(type)) return null;
+
+        Map<String, Object> info = new LinkedHashMap<String, Object>();
+        info.put("depth", flowQueue.size());
+        info.put("capacity", flowQueue.capacity());
+        for (EventPriority p : EventPriority.values()) {
+            String name = p.name().toLowerCase();
+            LatencyHistogram waits = flowQueue.getWaitTimes(p);
+            long[] w = waits.getPercentiles(50, 90, 99);
+            info.put(name + "-depth", flowQueue.size(p));
+            info.put(name + "-wait-p50-us", w[0] / 1000);
+            info.put(name + "-wait-p90-us", w[1] / 1000);
+            info.put(name + "-wait-p99-us", w[2] / 1000);
+            info.put(name + "-wait-max-us", waits.getMax() / 1000);
+        }
+        info.put("coalesced", flowQueue.getCoalesced());
+        info.put("dropped", flowQueue.getRejected());
+        long[] r = runTimes.getPercentiles(50, 90, 99);
+        info.put("run-p50-us", r[0] / 1000);
+        info.put("run-p90-us", r[1] / 1000);
+        info.put("run-p99-us", r[2] / 1000);
+        info.put("run-max-us", runTimes.getMax() / 1000);
+        info.put("ns-per-flow", reconcileNanosPerFlow);
+        info.put("flows-per-run", lastDrainLimit);
+        return info;
+    }
+
     // IFloodlightModule
 
     @Override
@@ -202,12 +281,23 @@ public class FlowReconcileManager
         threadPool = context.getServiceImpl(IThreadPoolService.class);
         counterStore = context.getServiceImpl(ICounterStoreService.class);
         debugCounters = context.getServiceImpl(IDebugCounterService.class);
-        flowQueue = new PriorityPendingQueue<OFMatchReconcile>();
         flowReconcileListeners =
                 new ListenerDispatcher<OFType, IFlowReconcileListener>();
 
         Map<String, String> configParam = context.getConfigParams(this);
         String enableValue = configParam.get(EnableConfigKey);
+        int queueSize = DEFAULT_QUEUE_SIZE;
+        String queueSizeValue = configParam.get(QueueSizeConfigKey);
+        if (queueSizeValue != null) {
+            try {
+                queueSize = Integer.parseInt(queueSizeValue);
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid {} {}; using {}", new Object[] {
+                        QueueSizeConfigKey, queueSizeValue, queueSize });
+            }
+        }
+        flowQueue = new PriorityPendingQueue<OFMatchReconcile>(queueSize,
+                PriorityPendingQueue.DEFAULT_LOW_SHARE);
         registerFlowReconcileManagerDebugCounters();
         // Set flowReconcile default to true
         flowReconcileEnabled = true;
@@ -232,6 +322,9 @@ public class FlowReconcileManager
             ctrReconciledFlows = debugCounters.registerCounter(PACKAGE, "reconciled-flows",
                 "All flows reconciled successfully by this module",
                 CounterType.ALWAYS_COUNT);
+            ctrFlowReconcileDropped = debugCounters.registerCounter(PACKAGE, "flow-reconcile-dropped",
+                "Flow reconcile requests dropped because the queue was full",
+                CounterType.ALWAYS_COUNT);
         } catch (CounterException e) {
             throw new FloodlightModuleException(e.getMessage());
         }
@@ -240,6 +333,11 @@ public class FlowReconcileManager
 
     @Override
     public void startUp(FloodlightModuleContext context) {
+        IFloodlightProviderService floodlightProvider =
+                context.getServiceImpl(IFloodlightProviderService.class);
+        if (floodlightProvider != null)
+            floodlightProvider.addInfoProvider("flowreconcile", this);
+
         // thread to do flow reconcile
         ScheduledExecutorService ses = threadPool.getScheduledExecutor();
         flowReconcileTask = new SingletonTask(ses, new Runnable() {
@@ -287,23 +385,13 @@ public class FlowReconcileManager
                         new ArrayList<OFMatchReconcile>();
 
         // Get the maximum number of flows that can be reconciled.
-        int reconcileCapacity = getCurrentCapacity();
+        int reconcileCapacity = getDrainLimit();
         if (logger.isTraceEnabled()) {
             logger.trace("Reconcile capacity {} flows", reconcileCapacity);
         }
-        while (!flowQueue.isEmpty() && reconcileCapacity > 0) {
-            OFMatchReconcile ofmRc = flowQueue.poll();
-            reconcileCapacity--;
-            if (ofmRc != null) {
-                ofmRcList.add(ofmRc);
-                ctrReconciledFlows.updateCounterWithFlush();
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Add flow {} to be the reconcileList", ofmRc.cookie);
-                }
-            } else {
-                break;
-            }
-        }
+        flowQueue.drainTo(ofmRcList, reconcileCapacity);
+        for (int i = 0; i < ofmRcList.size(); i++)
+            ctrReconciledFlows.updateCounterWithFlush();
 
         // Run the flow through all the flow reconcile listeners
         IFlowReconcileListener.Command retCmd;
@@ -317,6 +405,7 @@ public class FlowReconcileManager
                 return false;
             }
 
+            long start = System.nanoTime();
             for (IFlowReconcileListener flowReconciler :
                 flowReconcileListeners.getOrderedListeners()) {
                 if (logger.isTraceEnabled())
@@ -329,6 +418,7 @@ public class FlowReconcileManager
                     break;
                 }
             }
+            updateReconcileCost(System.nanoTime() - start, ofmRcList.size());
             for (OFMatchReconcile ofmRc : ofmRcList) {
                 if (ofmRc.origReconcileQueryEvent != null) {
                     ofmRc.origReconcileQueryEvent.evType.getDebugEvent()
@@ -417,6 +507,48 @@ public class FlowReconcileManager
         return capacity;
     }
 
+    /**
+     * Compute the number of flows to feed the pipeline in this run from
+     * the measured load.
+     *
+     * The packet-in rate leaves a share of the system's capacity for
+     * reconciliation, as in getCurrentCapacity().  Once the pipeline's
+     * cost per flow has been measured, that share of the run's period is
+     * spent at the measured cost, rather than at the rate assumed by
+     * MAX_SYSTEM_LOAD_PER_SECOND, so the drain follows how expensive the
+     * listeners actually are.
+     * @return
+     */
+    protected int getDrainLimit() {
+        int capacity = getCurrentCapacity();
+        long nanosPerFlow = reconcileNanosPerFlow;
+        if (nanosPerFlow > 0) {
+            int maxCapacity = MAX_SYSTEM_LOAD_PER_SECOND *
+                              FLOW_RECONCILE_DELAY_MILLISEC / 1000;
+            int minFlows = MIN_FLOW_RECONCILE_PER_SECOND *
+                           FLOW_RECONCILE_DELAY_MILLISEC / 1000;
+            double budget = FLOW_RECONCILE_DELAY_MILLISEC * 1000000L *
+                            FLOW_RECONCILE_TIME_SHARE * capacity / maxCapacity;
+            capacity = (int) Math.min(MAX_FLOW_RECONCILE_PER_RUN,
+                                      Math.max(minFlows, budget / nanosPerFlow));
+        }
+        lastDrainLimit = capacity;
+        return capacity;
+    }
+
+    /**
+     * Record the time the pipeline took for a run
+     * @param nanos the time taken
+     * @param flows the number of flows in the run
+     */
+    protected void updateReconcileCost(long nanos, int flows) {
+        runTimes.record(nanos);
+        long cost = Math.max(1, nanos / flows);
+        long average = reconcileNanosPerFlow;
+        reconcileNanosPerFlow = (average == 0) ? cost
+                                               : average + (cost - average) / 8;
+    }
+
     protected int getPktInRate(ICounter newCnt, Date currentTime) {
         if (newCnt == null ||
             newCnt.getCounterDate() == null ||
@@ -1,9 +1,17 @@
 package net.floodlightcontroller.flowcache;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.util.LatencyHistogram;
 
 /**
  * PriorityPendingQueue class - This class is a variant implementation for PriorityBlockingQueue
@@ -14,185 +22,259 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * PriorityPendingQueue has three separate queues: High Priority, Medium Priority and Low Priority.
  * the requirements here are:
- * 1. dequeue from the Queue will always return the event with the highest priority
+ * 1. dequeue from the Queue will always return the event with the highest priority,
+ *    except that one dequeue in every lowShare serves the lowest priority
+ *    waiting so that low priority events are not starved
  * 2. events with the same priority will be dequeued in their inserting order
  * 3. enqueue and dequeue have O(1) complexity
- *
- * current only support offer() and take() methods
+ * <p>
+ * The queues are lock-free and the total number of events is bounded; an
+ * offer to a full queue fails.  An event offered with a key is dropped
+ * while an event with an equal key is still waiting; if it has a higher
+ * priority, the waiting event is moved up to it first.  The time events
+ * wait is recorded per priority.
  *
  * @author meiyang
  *
  */
 public class PriorityPendingQueue<E> {
-    private LinkedBlockingQueue<E> highPriorityQueue;
-    private LinkedBlockingQueue<E> mediumPriorityQueue;
-    private LinkedBlockingQueue<E> lowPriorityQueue;
-    private final AtomicInteger count = new AtomicInteger(0);
-    private final ReentrantLock takeLock = new ReentrantLock();
-    private final Condition notEmpty = takeLock.newCondition();
-    private final ReentrantLock putLock = new ReentrantLock();
-    private final Condition notFull = putLock.newCondition();
-    private final int capacity;
     public enum EventPriority {
         HIGH,
         MEDIUM,
         LOW,
     }
+    private static final EventPriority[] priorities = EventPriority.values();
+
+    public static final int DEFAULT_LOW_SHARE = 8;
+
+    protected static class Entry<E> {
+        protected static final int WAITING = 0;
+        protected static final int TAKEN = 1;
+        protected static final int SUPERSEDED = 2;
+
+        protected final E event;
+        protected final Object key;
+        protected final int level;
+        protected final long enqueued;
+        protected final AtomicInteger state = new AtomicInteger(WAITING);
+
+        protected Entry(E event, Object key, int level, long enqueued) {
+            this.event = event;
+            this.key = key;
+            this.level = level;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final List<ConcurrentLinkedQueue<Entry<E>>> queues;
+    private final AtomicIntegerArray depths =
+            new AtomicIntegerArray(priorities.length);
+    private final LatencyHistogram[] waits =
+            new LatencyHistogram[priorities.length];
+    private final ConcurrentMap<Object, Entry<E>> pending =
+            new ConcurrentHashMap<Object, Entry<E>>();
+    // events reserved by offers, including those not yet in a queue
+    private final AtomicInteger count = new AtomicInteger(0);
+    // events in a queue that no poll has claimed
+    private final Semaphore available = new Semaphore(0);
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final int capacity;
+    private final int lowShare;
+
     public PriorityPendingQueue() {
-        highPriorityQueue=   new LinkedBlockingQueue<E>();
-        mediumPriorityQueue= new LinkedBlockingQueue<E>();
-        lowPriorityQueue=    new LinkedBlockingQueue<E>();
-        capacity= Integer.MAX_VALUE;
+        this(Integer.MAX_VALUE, DEFAULT_LOW_SHARE);
     }
 
-    public E take() throws InterruptedException {
-        E x;
-        int c = -1;
-        final AtomicInteger count = this.count;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lockInterruptibly();
-        try {
-            try {
-                while (count.get() == 0)
-                    notEmpty.await();
-            } catch (InterruptedException ie) {
-                notEmpty.signal(); // propagate to a non-interrupted thread
-                throw ie;
-            }
-            x = extract();
-            c = count.getAndDecrement();
-            if (c > 1)
-               notEmpty.signal();
-            } finally {
-            takeLock.unlock();
+    /**
+     * @param capacity the most events the queue holds
+     * @param lowShare one dequeue in lowShare serves the lowest priority
+     * waiting first
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityPendingQueue(int capacity, int lowShare) {
+        if (capacity <= 0 || lowShare <= 0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+        this.lowShare = lowShare;
+        queues = new ArrayList<ConcurrentLinkedQueue<Entry<E>>>(
+                priorities.length);
+        for (int i = 0; i < priorities.length; i++) {
+            queues.add(new ConcurrentLinkedQueue<Entry<E>>());
+            waits[i] = new LatencyHistogram();
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
+    }
+
+    public E take() throws InterruptedException {
+        available.acquire();
+        return extract();
     }
 
     public E poll() {
-        final AtomicInteger count = this.count;
-        if (count.get() == 0)
+        if (!available.tryAcquire())
             return null;
-        E x = null;
-        int c = -1;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
-        try {
-            if (count.get() > 0) {
-                x = extract();
-                c = count.getAndDecrement();
-                if (c > 1)
-                    notEmpty.signal();
-            }
-        } finally {
-            takeLock.unlock();
+        return extract();
+    }
+
+    /**
+     * Dequeue up to maxEvents events in the order poll() would
+     * @return the number of events added to c
+     */
+    public int drainTo(Collection<? super E> c, int maxEvents) {
+        int n = 0;
+        while (n < maxEvents && available.tryAcquire()) {
+            c.add(extract());
+            n++;
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
+        return n;
     }
 
+    /**
+     * @return the event with the highest priority, or null if there is none
+     */
     public E peek() {
-        //todo
-        return null;
+        for (ConcurrentLinkedQueue<Entry<E>> q : queues) {
+            for (Entry<E> entry : q) {
+                if (entry.state.get() == Entry.WAITING)
+                    return entry.event;
+            }
         }
+        return null;
+    }
 
     public boolean offer(E e, EventPriority p) {
+        return offer(e, p, null);
+    }
+
+    /**
+     * Enqueue an event unless an event with an equal key is waiting, in
+     * which case the waiting event is given the higher of the two
+     * priorities
+     * @param key the key to coalesce the event by, or null
+     * @return false if the queue is full, true if the event was enqueued
+     * or coalesced
+     */
+    public boolean offer(E e, EventPriority p, Object key) {
         if (e == null) throw new NullPointerException();
-        final AtomicInteger count = this.count;
-        if (count.get() == capacity)
-            return false;
-        int c = -1;
-        final ReentrantLock putLock = this.putLock;
-        putLock.lock();
-        try {
-            if (count.get() < capacity) {
-                insert(e,p);
-                c = count.getAndIncrement();
-                if (c + 1 < capacity)
-                    notFull.signal();
+        int level = p.ordinal();
+        Entry<E> entry = new Entry<E>(e, key, level, System.nanoTime());
+        while (key != null) {
+            Entry<E> prev = pending.putIfAbsent(key, entry);
+            if (prev == null)
+                break;
+            if (prev.level <= level) {
+                coalesced.incrementAndGet();
+                return true;
+            }
+            // move the waiting event up: a copy of its entry is enqueued
+            // at the higher level, and the entry is left to be skipped
+            Entry<E> promoted =
+                    new Entry<E>(prev.event, key, level, prev.enqueued);
+            if (!pending.replace(key, prev, promoted))
+                continue;
+            if (prev.state.compareAndSet(Entry.WAITING, Entry.SUPERSEDED)) {
+                // the copy takes over the place of the entry in the count
+                // and its permit
+                depths.decrementAndGet(prev.level);
+                queues.get(level).offer(promoted);
+                depths.incrementAndGet(level);
+                coalesced.incrementAndGet();
+                return true;
             }
-        } finally {
-            putLock.unlock();
+            // the entry was taken meanwhile, so enqueue the copy as new
+            entry = promoted;
+            break;
         }
-        if (c == 0)
-            signalNotEmpty();
-        return c >= 0;
+        int c;
+        do {
+            c = count.get();
+            if (c >= capacity) {
+                if (key != null)
+                    pending.remove(key, entry);
+                rejected.incrementAndGet();
+                return false;
+            }
+        } while (!count.compareAndSet(c, c + 1));
+        queues.get(level).offer(entry);
+        depths.incrementAndGet(level);
+        available.release();
+        return true;
     }
 
     public boolean offer(E e) {
-        return false;
+        return offer(e, EventPriority.LOW);
     }
 
+    /**
+     * Remove an event after a permit has been claimed for it.  The permit
+     * guarantees an event is in one of the queues, though perhaps not the
+     * one another thread is removing from, so this retries until it finds
+     * it.
+     */
     private E extract() {
-        E first = highPriorityQueue.poll();
-        if (first==null)
-            first = mediumPriorityQueue.poll();
-        if (first==null)
-            first = lowPriorityQueue.poll();
-        return first;
-    }
-
-    private boolean insert(E e, EventPriority p) {
-        boolean result = false;
-        switch (p) {
-            case HIGH:
-                result = highPriorityQueue.offer(e);
-                break;
-            case MEDIUM:
-                result = mediumPriorityQueue.offer(e);
-                break;
-            case LOW:
-                result = lowPriorityQueue.offer(e);
-                break;
+        boolean lowFirst = polls.incrementAndGet() % lowShare == 0;
+        while (true) {
+            for (int i = 0; i < queues.size(); i++) {
+                int level = lowFirst ? queues.size() - 1 - i : i;
+                Entry<E> entry;
+                while ((entry = queues.get(level).poll()) != null &&
+                       !entry.state.compareAndSet(Entry.WAITING, Entry.TAKEN))
+                    ; // superseded by a copy at a higher level
+                if (entry != null) {
+                    depths.decrementAndGet(level);
+                    count.decrementAndGet();
+                    if (entry.key != null)
+                        pending.remove(entry.key, entry);
+                    waits[level].record(System.nanoTime() - entry.enqueued);
+                    return entry.event;
+                }
+            }
         }
-        return result;
-    }
-
-    private void signalNotFull() {
-         final ReentrantLock putLock = this.putLock;
-         putLock.lock();
-         try {
-             notFull.signal();
-         } finally {
-             putLock.unlock();
-         }
-     }
-
-    private void signalNotEmpty() {
-         final ReentrantLock takeLock = this.takeLock;
-         takeLock.lock();
-         try {
-             notEmpty.signal();
-         } finally {
-             takeLock.unlock();
-         }
-     }
-    private void fullyLock() {
-        putLock.lock();
-        takeLock.lock();
-    }
-    private void fullyUnlock() {
-        takeLock.unlock();
-        putLock.unlock();
     }
+
     public int size() {
         return count.get();
     }
+
+    /**
+     * @return the number of events waiting with a priority
+     */
+    public int size(EventPriority p) {
+        return depths.get(p.ordinal());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of events dropped because an equal event was
+     * waiting
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of events rejected because the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the nanoseconds events with a priority waited in the queue
+     */
+    public LatencyHistogram getWaitTimes(EventPriority p) {
+        return waits[p.ordinal()];
+    }
+
     public void clear() {
-        fullyLock();
-        try {
-            highPriorityQueue.clear();
-            mediumPriorityQueue.clear();
-            lowPriorityQueue.clear();
-            count.set(0);
-        } finally {
-            fullyUnlock();
-        }
+        while (poll() != null);
     }
+
     public boolean isEmpty() {
         return count.get() == 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+/**
+ * Remembers which member each client flow was sent to, so that later
+ * packets of the flow go to the same member.  Each entry counts as an
+ * active connection of its member from the time it is added until it is
+ * released: when it has not been used for the idle timeout, when it is
+ * the least recently used entry of a full table, or when its member is
+ * removed.
+ *
+ * Entries hold the id of their member and look it up in the load
+ * balancer's members on every use, since updating a member replaces its
+ * object; a flow then goes to the member's current address, and to no
+ * member once it is removed.
+ */
+public class LBAffinityTable {
+    protected static class Affinity {
+        protected final String poolId;
+        protected final String memberId;
+        // the counter of the member when the entry was added, which an
+        // update of the member carries over
+        protected final AtomicInteger connections;
+        protected volatile long lastSeen;
+
+        protected Affinity(String poolId, LBMember member, long now) {
+            this.poolId = poolId;
+            this.memberId = member.id;
+            this.connections = member.connections;
+            this.lastSeen = now;
+        }
+    }
+
+    private final long idleTimeout;
+    private final Map<String, LBMember> members;
+    private final ConcurrentMap<IPClient, Affinity> table;
+
+    /**
+     * @param capacity the maximum number of entries, after which the least
+     * recently used entry is released
+     * @param idleTimeout time in milliseconds after which an unused entry
+     * is released
+     * @param members the members by id
+     */
+    public LBAffinityTable(int capacity, long idleTimeout,
+                           Map<String, LBMember> members) {
+        this.idleTimeout = idleTimeout;
+        this.members = members;
+        this.table = new ConcurrentLinkedHashMap.Builder<IPClient, Affinity>()
+                .maximumWeightedCapacity(capacity)
+                .listener(new EvictionListener<IPClient, Affinity>() {
+                    @Override
+                    public void onEviction(IPClient client,
+                                           Affinity affinity) {
+                        release(affinity);
+                    }
+                })
+                .build();
+    }
+
+    private void release(Affinity affinity) {
+        affinity.connections.decrementAndGet();
+    }
+
+    /**
+     * @return the current member of a live entry for the pool, or null
+     */
+    private LBMember liveMember(Affinity affinity, String poolId, long now) {
+        if (!affinity.poolId.equals(poolId) ||
+            now - affinity.lastSeen > idleTimeout)
+            return null;
+        return members.get(affinity.memberId);
+    }
+
+    /**
+     * Get the member a flow was sent to
+     * @param client the flow
+     * @param poolId the pool the flow is being sent to
+     * @param now the current time in milliseconds
+     * @return the member, or null if the flow has no live entry for the
+     * pool
+     */
+    public LBMember get(IPClient client, String poolId, long now) {
+        Affinity affinity = table.get(client);
+        if (affinity == null) return null;
+        LBMember member = liveMember(affinity, poolId, now);
+        if (member != null) {
+            affinity.lastSeen = now;
+            return member;
+        }
+        if (table.remove(client, affinity))
+            release(affinity);
+        return null;
+    }
+
+    /**
+     * Send a flow to a member, unless another thread has just sent it
+     * somewhere else
+     * @param client the flow
+     * @param poolId the pool the flow is being sent to
+     * @param member the member chosen for the flow
+     * @param now the current time in milliseconds
+     * @return the member the flow is sent to
+     */
+    public LBMember put(IPClient client, String poolId, LBMember member,
+                        long now) {
+        Affinity affinity = new Affinity(poolId, member, now);
+        member.connections.incrementAndGet();
+        while (true) {
+            Affinity prev = table.putIfAbsent(client, affinity);
+            if (prev == null)
+                return member;
+            LBMember prevMember = liveMember(prev, poolId, now);
+            if (prevMember != null) {
+                release(affinity);
+                prev.lastSeen = now;
+                return prevMember;
+            }
+            if (table.replace(client, prev, affinity)) {
+                release(prev);
+                return member;
+            }
+        }
+    }
+
+    /**
+     * Release the entry for a flow
+     * @param client the flow
+     * @return true if there was an entry
+     */
+    public boolean remove(IPClient client) {
+        Affinity affinity = table.remove(client);
+        if (affinity == null) return false;
+        release(affinity);
+        return true;
+    }
+
+    /**
+     * Release the entries for a member that has been removed
+     * @param memberId the id of the member
+     */
+    public void removeMember(String memberId) {
+        for (Map.Entry<IPClient, Affinity> e : table.entrySet()) {
+            if (e.getValue().memberId.equals(memberId) &&
+                table.remove(e.getKey(), e.getValue()))
+                release(e.getValue());
+        }
+    }
+
+    /**
+     * Release the entries that have not been used for the idle timeout
+     * @param now the current time in milliseconds
+     * @return the number of entries released
+     */
+    public int expire(long now) {
+        int expired = 0;
+        for (Map.Entry<IPClient, Affinity> e : table.entrySet()) {
+            if (now - e.getValue().lastSeen > idleTimeout &&
+                table.remove(e.getKey(), e.getValue())) {
+                release(e.getValue());
+                expired += 1;
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return table.size();
+    }
+}
@@ -16,6 +16,8 @@
 
 package net.floodlightcontroller.loadbalancer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 /**
@@ -33,11 +35,15 @@ public class LBMember {
     protected String macString;
     
     protected int connectionLimit;
+    protected int weight;
     protected short adminState;
     protected short status;
 
     protected String poolId;
     protected String vipId;
+
+    // client flows currently assigned to this member
+    protected AtomicInteger connections;
     
     public LBMember() {
         id = String.valueOf((int) (Math.random()*10000));
@@ -46,9 +52,11 @@ public class LBMember {
         port = 0;
         
         connectionLimit = 0;
+        weight = 1;
         adminState = 0;
         status = 0;
         poolId = null;
         vipId = null;
+        connections = new AtomicInteger();
     }
 }
@@ -0,0 +1,281 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+/**
+ * Chooses the pool member for a new client flow.  A selector is built for
+ * a snapshot of the members of a pool and is replaced rather than modified
+ * when the members change, so packet-in threads can use it without
+ * locking.  The pool's lb_method chooses the policy:
+ * <ul>
+ * <li>{@link #ROUND_ROBIN}: each member in turn
+ * <li>{@link #MAGLEV}: Maglev consistent hashing of the flow, so a flow
+ * keeps its member when other members are added or removed
+ * <li>{@link #LEAST_CONNECTIONS}: the member with the fewest active
+ * connections for its weight
+ * <li>{@link #POWER_OF_TWO_CHOICES}: the less loaded of two members drawn
+ * at random in proportion to their weights
+ * </ul>
+ */
+public abstract class LBMemberSelector {
+    public static final short ROUND_ROBIN = 0;
+    public static final short MAGLEV = 1;
+    public static final short LEAST_CONNECTIONS = 2;
+    public static final short POWER_OF_TWO_CHOICES = 3;
+
+    /**
+     * Size of the Maglev lookup table.  It must be prime, and much larger
+     * than the number of members so that each member's share of the table
+     * is close to its share of the weight.
+     */
+    public static final int MAGLEV_TABLE_SIZE = 65537;
+
+    protected final LBMember[] members;
+
+    protected LBMemberSelector(List<LBMember> members) {
+        this.members = members.toArray(new LBMember[members.size()]);
+    }
+
+    /**
+     * Choose a member for a flow
+     * @param client the flow
+     * @return the member, or null if the pool has no members
+     */
+    public abstract LBMember pickMember(IPClient client);
+
+    /**
+     * Build a selector for the given members
+     * @param lbMethod the pool's lb_method
+     * @param members the members of the pool
+     * @param previous the selector being replaced, or null
+     * @return the selector
+     */
+    public static LBMemberSelector create(short lbMethod,
+                                          List<LBMember> members,
+                                          LBMemberSelector previous) {
+        switch (lbMethod) {
+            case MAGLEV:
+                return new Maglev(members, MAGLEV_TABLE_SIZE);
+            case LEAST_CONNECTIONS:
+                return new LeastConnections(members);
+            case POWER_OF_TWO_CHOICES:
+                return new PowerOfTwoChoices(members);
+            case ROUND_ROBIN:
+            default:
+                AtomicInteger next = (previous instanceof RoundRobin)
+                        ? ((RoundRobin) previous).next
+                        : new AtomicInteger();
+                return new RoundRobin(members, next);
+        }
+    }
+
+    /**
+     * Parse an lb_method given either by name or by number
+     * @param s the lb_method
+     * @return the lb_method
+     * @throws NumberFormatException if the lb_method is not recognized
+     */
+    public static short parseMethod(String s) {
+        if (s.equalsIgnoreCase("ROUND_ROBIN"))
+            return ROUND_ROBIN;
+        if (s.equalsIgnoreCase("MAGLEV"))
+            return MAGLEV;
+        if (s.equalsIgnoreCase("LEAST_CONNECTIONS"))
+            return LEAST_CONNECTIONS;
+        if (s.equalsIgnoreCase("POWER_OF_TWO_CHOICES"))
+            return POWER_OF_TWO_CHOICES;
+        return Short.parseShort(s);
+    }
+
+    /**
+     * Hash the fields of a flow that the load balancer matches on
+     */
+    protected static long hash(IPClient client) {
+        long k = ((client.ipAddress & 0xffffffffL) << 32) |
+                 ((client.srcPort & 0xffffL) << 16) |
+                 (client.targetPort & 0xffffL);
+        return mix(k ^ ((client.nw_proto & 0xffL) * 0x9e3779b97f4a7c15L));
+    }
+
+    protected static long hash(String s, long seed) {
+        long h = seed;
+        for (int i = 0; i < s.length(); i++)
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        return mix(h);
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer
+     */
+    protected static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    protected static int weight(LBMember member) {
+        return Math.max(1, member.weight);
+    }
+
+    /**
+     * @return true if a carries less load for its weight than b
+     */
+    protected static boolean lessLoaded(LBMember a, LBMember b) {
+        return (long) a.connections.get() * weight(b) <
+               (long) b.connections.get() * weight(a);
+    }
+
+    protected static class RoundRobin extends LBMemberSelector {
+        /* Shared with the selectors this one replaces, so that the
+         * rotation carries on when members change */
+        protected final AtomicInteger next;
+
+        protected RoundRobin(List<LBMember> members, AtomicInteger next) {
+            super(members);
+            this.next = next;
+        }
+
+        @Override
+        public LBMember pickMember(IPClient client) {
+            if (members.length == 0) return null;
+            int i = next.getAndIncrement() & Integer.MAX_VALUE;
+            return members[i % members.length];
+        }
+    }
+
+    /**
+     * Maglev hashing, from Eisenbud et al., "Maglev: A Fast and Reliable
+     * Software Network Load Balancer", NSDI 2016.  Each member has its own
+     * permutation of the lookup table, determined by a hash of its id, and
+     * the members take turns claiming the next free entry in their
+     * permutation.  A member claims as many entries per turn as its
+     * weight.  Adding or removing a member moves few entries between the
+     * other members.
+     */
+    protected static class Maglev extends LBMemberSelector {
+        protected final int[] table;
+
+        protected Maglev(List<LBMember> members, int size) {
+            super(members);
+            this.table = new int[size];
+            if (this.members.length == 0) return;
+
+            int n = this.members.length;
+            long[] offset = new long[n];
+            long[] skip = new long[n];
+            long[] next = new long[n];
+            for (int i = 0; i < n; i++) {
+                String id = this.members[i].id;
+                offset[i] = (hash(id, 0xcbf29ce484222325L) >>> 1) % size;
+                skip[i] = (hash(id, 0x84222325cbf29ce4L) >>> 1) % (size - 1)
+                          + 1;
+            }
+
+            Arrays.fill(table, -1);
+            int filled = 0;
+            while (true) {
+                for (int i = 0; i < n; i++) {
+                    for (int w = weight(this.members[i]); w > 0; w--) {
+                        int c;
+                        do {
+                            c = (int) ((offset[i] + next[i] * skip[i]) % size);
+                            next[i] += 1;
+                        } while (table[c] >= 0);
+                        table[c] = i;
+                        if (++filled == size) return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public LBMember pickMember(IPClient client) {
+            if (members.length == 0) return null;
+            return members[table[(int) ((hash(client) >>> 1) % table.length)]];
+        }
+    }
+
+    protected static class LeastConnections extends LBMemberSelector {
+        /* Where to start scanning, so that ties do not all go to the
+         * first member */
+        protected final AtomicInteger start = new AtomicInteger();
+
+        protected LeastConnections(List<LBMember> members) {
+            super(members);
+        }
+
+        @Override
+        public LBMember pickMember(IPClient client) {
+            int n = members.length;
+            if (n == 0) return null;
+            int s = (start.getAndIncrement() & Integer.MAX_VALUE) % n;
+            LBMember best = members[s];
+            for (int k = 1; k < n; k++) {
+                LBMember m = members[(s + k) % n];
+                if (lessLoaded(m, best))
+                    best = m;
+            }
+            return best;
+        }
+    }
+
+    protected static class PowerOfTwoChoices extends LBMemberSelector {
+        protected final Random random = new Random();
+        /* cumulative[i] is the total weight of members 0..i */
+        protected final long[] cumulative;
+
+        protected PowerOfTwoChoices(List<LBMember> members) {
+            super(members);
+            cumulative = new long[this.members.length];
+            long total = 0;
+            for (int i = 0; i < this.members.length; i++) {
+                total += weight(this.members[i]);
+                cumulative[i] = total;
+            }
+        }
+
+        protected int draw() {
+            long total = cumulative[cumulative.length - 1];
+            long r = (random.nextLong() >>> 1) % total;
+            int i = Arrays.binarySearch(cumulative, r + 1);
+            return (i >= 0) ? i : -i - 1;
+        }
+
+        @Override
+        public LBMember pickMember(IPClient client) {
+            int n = members.length;
+            if (n == 0) return null;
+            if (n == 1) return members[0];
+            int a = draw();
+            int b = draw();
+            if (a == b)
+                b = (a + 1 + random.nextInt(n - 1)) % n;
+            return lessLoaded(members[b], members[a]) ? members[b]
+                                                      : members[a];
+        }
+    }
+}
@@ -36,6 +36,8 @@ public class LBMemberSerializer extends JsonSerializer<LBMember>{
         jGen.writeStringField("port", Short.toString(member.port));
         jGen.writeStringField("poolId", member.poolId);
         jGen.writeStringField("vipId", member.vipId);
+        jGen.writeNumberField("weight", member.weight);
+        jGen.writeNumberField("connections", member.connections.get());
 
         jGen.writeEndObject();
     }
@@ -17,6 +17,7 @@
 package net.floodlightcontroller.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
@@ -45,7 +46,8 @@ public class LBPool {
     
     protected String vipId;
     
-    protected int previousMemberIndex;
+    // rebuilt by setMembers, so member picks never see a half-updated pool
+    protected volatile LBMemberSelector selector;
     
     public LBPool() {
         id = String.valueOf((int) (Math.random()*10000));
@@ -58,17 +60,21 @@ public class LBPool {
         monitors = new ArrayList<String>();
         adminState = 0;
         status = 0;
-        previousMemberIndex = -1;
+        selector = LBMemberSelector.create(lbMethod,
+                                           new ArrayList<LBMember>(), null);
+    }
+    
+    /**
+     * Rebuild the member selector after the members or lbMethod changed
+     * @param poolMembers the members of this pool
+     */
+    public synchronized void setMembers(List<LBMember> poolMembers) {
+        selector = LBMemberSelector.create(lbMethod, poolMembers, selector);
     }
     
     public String pickMember(IPClient client) {
-        // simple round robin for now; add different lbmethod later
-        if (members.size() > 0) {
-            previousMemberIndex = (previousMemberIndex + 1) % members.size();
-            return members.get(previousMemberIndex);
-        } else {
-            return null;
-        }
+        LBMember member = selector.pickMember(client);
+        return (member == null) ? null : member.id;
     }
 
 }
@@ -24,9 +24,12 @@ import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,6 +62,7 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.counter.ICounterStoreService;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
@@ -74,6 +78,7 @@ import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.Route;
 import net.floodlightcontroller.staticflowentry.IStaticFlowEntryPusherService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.util.MACAddress;
@@ -87,7 +92,10 @@ import net.floodlightcontroller.util.OFMessageDamper;
  * 
  * Limitations:
  * - client records and static flows not purged after use, will exhaust switch flow tables over time
- * - round robin policy among servers based on connections, not traffic volume
+ * - members are chosen per connection (round robin, consistent hashing,
+ *   least connections or power of two choices), not by traffic volume; a
+ *   connection counts as active until its client has not been seen for
+ *   LB_AFFINITY_IDLE_TIMEOUT
  * - health monitoring feature not implemented yet
  *  
  * @author kcwang
@@ -107,6 +115,7 @@ public class LoadBalancer implements IFloodlightModule,
     protected IRoutingService routingEngine;
     protected ITopologyService topology;
     protected IStaticFlowEntryPusherService sfp;
+    protected IThreadPoolService threadPool;
     
     protected HashMap<String, LBVip> vips;
     protected HashMap<String, LBPool> pools;
@@ -114,13 +123,16 @@ public class LoadBalancer implements IFloodlightModule,
     protected HashMap<Integer, String> vipIpToId;
     protected HashMap<Integer, MACAddress> vipIpToMac;
     protected HashMap<Integer, String> memberIpToId;
-    protected HashMap<IPClient, LBMember> clientToMember;
+    protected LBAffinityTable clientToMember;
+    protected SingletonTask affinityExpiryTask;
     
     //Copied from Forwarding with message damper routine for pushing proxy Arp 
     protected static int OFMESSAGE_DAMPER_CAPACITY = 10000; // ms. 
     protected static int OFMESSAGE_DAMPER_TIMEOUT = 250; // ms 
     protected static String LB_ETHER_TYPE = "0x800";
     protected static int LB_PRIORITY = 32768;
+    protected static int LB_AFFINITY_CAPACITY = 1000000;
+    protected static int LB_AFFINITY_IDLE_TIMEOUT = 60000; // ms
     
     // Comparator for sorting by SwitchCluster
     public Comparator<SwitchPort> clusterIdComparator =
@@ -136,7 +148,7 @@ public class LoadBalancer implements IFloodlightModule,
             };
 
     // data structure for storing connected
-    public class IPClient {
+    public static class IPClient {
         int ipAddress;
         byte nw_proto;
         short srcPort; // tcp/udp src port. icmp type (OFMatch convention)
@@ -148,6 +160,28 @@ public class LoadBalancer implements IFloodlightModule,
             srcPort = -1;
             targetPort = -1;
         }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ipAddress;
+            result = prime * result + nw_proto;
+            result = prime * result + srcPort;
+            result = prime * result + targetPort;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof IPClient)) return false;
+            IPClient other = (IPClient) obj;
+            return ipAddress == other.ipAddress &&
+                   nw_proto == other.nw_proto &&
+                   srcPort == other.srcPort &&
+                   targetPort == other.targetPort;
+        }
     }
     
     @Override
@@ -233,7 +267,9 @@ public class LoadBalancer implements IFloodlightModule,
                     
                     LBVip vip = vips.get(vipIpToId.get(destIpAddress));
                     LBPool pool = pools.get(vip.pickPool(client));
-                    LBMember member = members.get(pool.pickMember(client));
+                    LBMember member = pickMember(pool, client);
+                    if (member == null)
+                        return Command.CONTINUE;
 
                     // for chosen member, check device manager and find and push routes, in both directions                    
                     pushBidirectionalVipRoutes(sw, pi, cntx, client, member);
@@ -250,6 +286,40 @@ public class LoadBalancer implements IFloodlightModule,
         return Command.CONTINUE;
     }
 
+    /**
+     * used to choose the member for a client, keeping the member chosen
+     * for earlier packets of the same client flow
+     * @param LBPool pool
+     * @param IPClient client
+     * @return the member, or null if the pool has no members
+     */
+    protected LBMember pickMember(LBPool pool, IPClient client) {
+        long now = System.currentTimeMillis();
+        LBMember member = clientToMember.get(client, pool.id, now);
+        if (member != null)
+            return member;
+        String memberId = pool.pickMember(client);
+        member = (memberId == null) ? null : members.get(memberId);
+        if (member == null)
+            return null;
+        return clientToMember.put(client, pool.id, member, now);
+    }
+
+    /**
+     * used to rebuild the member selector of a pool after its members or
+     * lb method changed
+     * @param LBPool pool
+     */
+    protected void updatePoolMembers(LBPool pool) {
+        List<LBMember> poolMembers = new ArrayList<LBMember>();
+        for (String memberId : pool.members) {
+            LBMember member = members.get(memberId);
+            if (member != null)
+                poolMembers.add(member);
+        }
+        pool.setMembers(poolMembers);
+    }
+
     /**
      * used to send proxy Arp for load balanced service requests
      * @param IOFSwitch sw
@@ -360,6 +430,36 @@ public class LoadBalancer implements IFloodlightModule,
         }
     }
 
+    /**
+     * Find the device that currently holds an IP address.  queryDevices
+     * also returns devices that held the address once, since their entities
+     * keep it; getIPv4Addresses() leaves out addresses a more recently seen
+     * device has taken over.  Of the devices that still hold it, the most
+     * recently seen one is returned.
+     * @param ipAddress
+     * @return the device, or null if no device holds the address
+     */
+    protected IDevice findDeviceByIPv4Address(int ipAddress) {
+        IDevice found = null;
+        Iterator<? extends IDevice> devices =
+                deviceManager.queryDevices(null, null, ipAddress, null, null);
+        while (devices.hasNext()) {
+            IDevice d = devices.next();
+            boolean holds = false;
+            for (Integer addr : d.getIPv4Addresses()) {
+                if (addr.intValue() == ipAddress) {
+                    holds = true;
+                    break;
+                }
+            }
+            if (!holds) continue;
+            if (found == null ||
+                    d.getLastSeen().after(found.getLastSeen()))
+                found = d;
+        }
+        return found;
+    }
+
     /**
      * used to find and push in-bound and out-bound routes using StaticFlowEntryPusher
      * @param IOFSwitch sw
@@ -375,22 +475,11 @@ public class LoadBalancer implements IFloodlightModule,
         IDevice srcDevice = null;
         IDevice dstDevice = null;
         
-        // retrieve all known devices
-        Collection<? extends IDevice> allDevices = deviceManager
-                .getAllDevices();
-        
-        for (IDevice d : allDevices) {
-            for (int j = 0; j < d.getIPv4Addresses().length; j++) {
-                    if (srcDevice == null && client.ipAddress == d.getIPv4Addresses()[j])
-                        srcDevice = d;
-                    if (dstDevice == null && member.address == d.getIPv4Addresses()[j]) {
-                        dstDevice = d;
-                        member.macString = dstDevice.getMACAddressString();
-                    }
-                    if (srcDevice != null && dstDevice != null)
-                        break;
-            }
-        }  
+        // look up the client and member by IP address
+        srcDevice = findDeviceByIPv4Address(client.ipAddress);
+        dstDevice = findDeviceByIPv4Address(member.address);
+        if (dstDevice != null)
+            member.macString = dstDevice.getMACAddressString();
         
         // srcDevice and/or dstDevice is null, no route can be pushed
         if (srcDevice == null || dstDevice == null) return;
@@ -645,6 +734,7 @@ public class LoadBalancer implements IFloodlightModule,
             pool = new LBPool();
         
         pools.put(pool.id, pool);
+        updatePoolMembers(pool);
         if (pool.vipId != null && vips.containsKey(pool.vipId))
             vips.get(pool.vipId).pools.add(pool.id);
         else {
@@ -658,6 +748,7 @@ public class LoadBalancer implements IFloodlightModule,
     @Override
     public LBPool updatePool(LBPool pool) {
         pools.put(pool.id, pool);
+        updatePoolMembers(pool);
         return null;
     }
 
@@ -711,6 +802,7 @@ public class LoadBalancer implements IFloodlightModule,
             member.vipId = pools.get(member.poolId).vipId;
             if (!pools.get(member.poolId).members.contains(member.id))
                 pools.get(member.poolId).members.add(member.id);
+            updatePoolMembers(pools.get(member.poolId));
         } else
             log.error("member must be specified with non-null pool_id");
         
@@ -719,7 +811,11 @@ public class LoadBalancer implements IFloodlightModule,
 
     @Override
     public LBMember updateMember(LBMember member) {
-        members.put(member.id, member);
+        LBMember old = members.put(member.id, member);
+        if (old != null)
+            member.connections = old.connections;
+        if (member.poolId != null && pools.get(member.poolId) != null)
+            updatePoolMembers(pools.get(member.poolId));
         return member;
     }
 
@@ -729,9 +825,12 @@ public class LoadBalancer implements IFloodlightModule,
         member = members.get(memberId);
         
         if(member != null){
-            if (member.poolId != null)
-                pools.get(member.poolId).members.remove(memberId);
             members.remove(memberId);
+            if (member.poolId != null) {
+                pools.get(member.poolId).members.remove(memberId);
+                updatePoolMembers(pools.get(member.poolId));
+            }
+            clientToMember.removeMember(memberId);
             return 0;
         } else {
             return -1;
@@ -799,6 +898,7 @@ public class LoadBalancer implements IFloodlightModule,
         l.add(ITopologyService.class);
         l.add(IRoutingService.class);
         l.add(IStaticFlowEntryPusherService.class);
+        l.add(IThreadPoolService.class);
 
         return l;
     }
@@ -813,6 +913,7 @@ public class LoadBalancer implements IFloodlightModule,
         routingEngine = context.getServiceImpl(IRoutingService.class);
         topology = context.getServiceImpl(ITopologyService.class);
         sfp = context.getServiceImpl(IStaticFlowEntryPusherService.class);
+        threadPool = context.getServiceImpl(IThreadPoolService.class);
         
         messageDamper = new OFMessageDamper(OFMESSAGE_DAMPER_CAPACITY, 
                                             EnumSet.of(OFType.FLOW_MOD),
@@ -824,12 +925,27 @@ public class LoadBalancer implements IFloodlightModule,
         vipIpToId = new HashMap<Integer, String>();
         vipIpToMac = new HashMap<Integer, MACAddress>();
         memberIpToId = new HashMap<Integer, String>();
+        clientToMember = new LBAffinityTable(LB_AFFINITY_CAPACITY,
+                                             LB_AFFINITY_IDLE_TIMEOUT,
+                                             members);
     }
 
     @Override
     public void startUp(FloodlightModuleContext context) {
         floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
         restApi.addRestletRoutable(new LoadBalancerWebRoutable());
+
+        ScheduledExecutorService ses = threadPool.getScheduledExecutor();
+        affinityExpiryTask = new SingletonTask(ses, new Runnable() {
+            @Override
+            public void run() {
+                clientToMember.expire(System.currentTimeMillis());
+                affinityExpiryTask.reschedule(LB_AFFINITY_IDLE_TIMEOUT,
+                                              TimeUnit.MILLISECONDS);
+            }
+        });
+        affinityExpiryTask.reschedule(LB_AFFINITY_IDLE_TIMEOUT,
+                                      TimeUnit.MILLISECONDS);
     }
     
     /**
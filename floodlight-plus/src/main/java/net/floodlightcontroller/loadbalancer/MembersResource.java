@@ -125,6 +125,10 @@ public class MembersResource extends ServerResource {
                 member.connectionLimit = Integer.parseInt(jp.getText());
                 continue;
             } else
+            if (n.equals("weight")) {
+                member.weight = Integer.parseInt(jp.getText());
+                continue;
+            } else
             if (n.equals("admin_state")) {
                 member.adminState = Short.parseShort(jp.getText());
                 continue;
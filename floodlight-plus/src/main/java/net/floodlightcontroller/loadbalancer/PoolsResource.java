@@ -128,7 +128,7 @@ public class PoolsResource extends ServerResource {
                 continue;
             }
             if (n.equals("lb_method")) {
-                pool.lbMethod = Short.parseShort(jp.getText());
+                pool.lbMethod = LBMemberSelector.parseMethod(jp.getText());
                 continue;
             }
             if (n.equals("protocol")) {
@@ -45,10 +45,10 @@ public interface IRoutingDecision {
         NONE, DROP, FORWARD, FORWARD_OR_FLOOD, MULTICAST
     }
 
-    public static final FloodlightContextStore<IRoutingDecision> rtStore =
-        new FloodlightContextStore<IRoutingDecision>();
     public static final String CONTEXT_DECISION =
             "net.floodlightcontroller.routing.decision";
+    public static final FloodlightContextStore<IRoutingDecision> rtStore =
+        new FloodlightContextStore<IRoutingDecision>(CONTEXT_DECISION);
 
     public void addToContext(FloodlightContext cntx);
     public RoutingAction getRoutingAction();
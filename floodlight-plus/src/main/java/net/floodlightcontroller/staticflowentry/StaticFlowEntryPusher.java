@@ -28,6 +28,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.HAListenerTypeMarker;
@@ -39,6 +46,7 @@ import net.floodlightcontroller.core.IOFSwitchListener;
 import net.floodlightcontroller.core.ImmutablePort;
 import net.floodlightcontroller.core.annotations.LogMessageCategory;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
+import net.floodlightcontroller.core.annotations.LogMessageDocs;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
@@ -55,7 +63,12 @@ import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.OFType;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
 import org.openflow.util.HexString;
 import org.openflow.util.U16;
 import org.slf4j.Logger;
@@ -116,6 +129,39 @@ public class StaticFlowEntryPusher
 
     private IHAListener haListener;
 
+    // Config to reconcile the flows on a connecting switch with the
+    // static flows instead of pushing every static flow
+    protected static final String ReconcileConfigKey = "reconcile";
+    protected boolean reconcileOnConnect = false;
+    // Flow mods sent between barriers when reconciling
+    protected static int RECONCILE_BATCH_SIZE = 1000;
+    // Batches a switch may be working on at once
+    protected static int RECONCILE_WINDOW = 4;
+    // Seconds to wait for the flow statistics or a barrier reply
+    protected static int RECONCILE_TIMEOUT = 30;
+    // DPID -> progress of the last reconciliation of the switch
+    protected Map<String, StaticFlowReconciler.Status> reconcileStatus =
+            new ConcurrentHashMap<String, StaticFlowReconciler.Status>();
+    // DPID -> barriers of the reconciliation in progress on the switch
+    protected ConcurrentMap<Long, BarrierWindow> barrierWindows =
+            new ConcurrentHashMap<Long, BarrierWindow>();
+    // DPID -> whether the entries of a switch being reconciled changed
+    // since its flows were diffed; guarded by itself
+    protected final Map<Long, Boolean> reconciling =
+            new HashMap<Long, Boolean>();
+    // Runs reconciliations, which wait on their switch for up to
+    // RECONCILE_TIMEOUT at a time, off the shared scheduled executor
+    protected ExecutorService reconcileExecutor;
+
+    /**
+     * Barriers sent to a switch that it has not replied to yet
+     */
+    protected static class BarrierWindow {
+        protected final Set<Integer> xids =
+                Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        protected final Semaphore free = new Semaphore(RECONCILE_WINDOW);
+    }
+
     // Map<DPID, Map<Name, FlowMod>>; FlowMod can be null to indicate non-active
     protected Map<String, Map<String, OFFlowMod>> entriesFromStorage;
     // Entry Name -> DPID of Switch it's on
@@ -124,13 +170,20 @@ public class StaticFlowEntryPusher
     // Class to sort FlowMod's by priority, from lowest to highest
     class FlowModSorter implements Comparator<String> {
         private String dpid;
+        private Map<String, OFFlowMod> entries;
         public FlowModSorter(String dpid) {
             this.dpid = dpid;
         }
+        // sort a copy of a switch's entries
+        public FlowModSorter(Map<String, OFFlowMod> entries) {
+            this.entries = entries;
+        }
         @Override
         public int compare(String o1, String o2) {
-            OFFlowMod f1 = entriesFromStorage.get(dpid).get(o1);
-            OFFlowMod f2 = entriesFromStorage.get(dpid).get(o2);
+            Map<String, OFFlowMod> m =
+                    (entries != null) ? entries : entriesFromStorage.get(dpid);
+            OFFlowMod f1 = m.get(o1);
+            OFFlowMod f2 = m.get(o2);
             if (f1 == null || f2 == null) // sort active=false flows by key
                 return o1.compareTo(o2);
             return U16.f(f1.getPriority()) - U16.f(f2.getPriority());
@@ -200,6 +253,224 @@ public class StaticFlowEntryPusher
         }
     }
 
+    /**
+     * Brings the static flows on a switch in line with our entries for it.
+     * Reads the switch's static flows and sends only the flow mods needed
+     * to delete, modify and add flows, in batches each followed by a
+     * barrier.  Pushes every entry instead if the flows cannot be read.
+     *
+     * Changes to the entries made while the switch is being reconciled
+     * are sent to it as usual, and may be overtaken by flow mods diffed
+     * from the entries before the change, so the switch is reconciled
+     * again until no entry of it changed during a pass.  A switch that
+     * reconnects during a pass is reconciled again the same way.  If a
+     * pass throws, the switch is no longer marked as being reconciled.
+     *
+     * @param switchId The switch to reconcile
+     */
+    protected void reconcileSwitch(long switchId) {
+        synchronized (reconciling) {
+            if (reconciling.containsKey(switchId)) {
+                reconciling.put(switchId, true);
+                return;
+            }
+            reconciling.put(switchId, false);
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                reconcileSwitchOnce(switchId);
+                synchronized (reconciling) {
+                    if (!reconciling.get(switchId)) {
+                        reconciling.remove(switchId);
+                        done = true;
+                        return;
+                    }
+                    reconciling.put(switchId, false);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Static entries of switch {} changed while " +
+                              "it was reconciled; reconciling it again",
+                              HexString.toHexString(switchId));
+                }
+            }
+        } finally {
+            // a pass that failed must not keep the switch from being
+            // reconciled when it next connects
+            if (!done) {
+                synchronized (reconciling) {
+                    reconciling.remove(switchId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a switch whose entries changed for another pass, if it is
+     * being reconciled
+     * @param dpid The switch
+     */
+    protected void entriesChanged(String dpid) {
+        long switchId = HexString.toLong(dpid);
+        synchronized (reconciling) {
+            if (reconciling.containsKey(switchId))
+                reconciling.put(switchId, true);
+        }
+    }
+
+    /**
+     * Reads the static flows of a switch and sends the flow mods that
+     * bring them in line with its entries
+     * @param switchId The switch to reconcile
+     */
+    @LogMessageDocs({
+        @LogMessageDoc(level="WARN",
+            message="Could not read the flows on switch {switch}; pushing " +
+                    "all its static entries",
+            explanation="The switch did not reply to a flow statistics " +
+                    "request, so every static flow is sent to it",
+            recommendation=LogMessageDoc.CHECK_SWITCH),
+        @LogMessageDoc(level="WARN",
+            message="Reconciling switch {switch} stopped after {sent} of " +
+                    "{total} flow mods",
+            explanation="The switch disconnected or did not reply to a " +
+                    "barrier in time",
+            recommendation=LogMessageDoc.CHECK_SWITCH)
+    })
+    protected void reconcileSwitchOnce(long switchId) {
+        IOFSwitch sw = floodlightProvider.getSwitch(switchId);
+        if (sw == null)
+            return;
+        String stringId = sw.getStringId();
+        StaticFlowReconciler.Status status = new StaticFlowReconciler.Status();
+        reconcileStatus.put(stringId, status);
+
+        List<OFFlowStatisticsReply> installed = getStaticFlows(sw);
+        status.queryTime = System.currentTimeMillis() - status.startTime;
+        if (installed == null) {
+            status.state = StaticFlowReconciler.Status.State.FAILED;
+            log.warn("Could not read the flows on switch {}; pushing all " +
+                     "its static entries", stringId);
+            sendEntriesToSwitch(switchId);
+            return;
+        }
+
+        Map<String, OFFlowMod> entries = new HashMap<String, OFFlowMod>();
+        if ((entriesFromStorage != null) && (entriesFromStorage.containsKey(stringId)))
+            entries.putAll(entriesFromStorage.get(stringId));
+        List<OFMessage> messages = new StaticFlowReconciler().diff(
+                entries, installed, new FlowModSorter(entries), status);
+        status.state = StaticFlowReconciler.Status.State.PUSHING;
+        log.info("Reconciling switch {}, flows read in {} ms: {}",
+                 new Object[] { stringId, status.queryTime, status });
+
+        if (writeWithBarriers(sw, messages, status)) {
+            status.convergeTime = System.currentTimeMillis() - status.startTime;
+            status.state = StaticFlowReconciler.Status.State.CONVERGED;
+            log.info("Switch {} converged on its static flows in {} ms " +
+                     "with {} flow mods", new Object[] { stringId,
+                     status.convergeTime, status.sent });
+        } else {
+            status.state = StaticFlowReconciler.Status.State.FAILED;
+            log.warn("Reconciling switch {} stopped after {} of {} flow mods",
+                     new Object[] { stringId, status.sent, status.getTotal() });
+        }
+    }
+
+    /**
+     * Reads the flows with the static flow cookie from a switch
+     * @param sw The switch to read from
+     * @return the flows, or null if the switch did not reply
+     */
+    @LogMessageDoc(level="ERROR",
+            message="Failure retrieving static flows from switch {switch}",
+            explanation="An error occurred while reading the flows on a " +
+                    "switch",
+            recommendation=LogMessageDoc.CHECK_SWITCH)
+    protected List<OFFlowStatisticsReply> getStaticFlows(IOFSwitch sw) {
+        OFStatisticsRequest req = new OFStatisticsRequest();
+        req.setStatisticsType(OFStatisticsType.FLOW);
+        OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
+        specificReq.setMatch(new OFMatch());
+        specificReq.setCookie(AppCookie.makeCookie(STATIC_FLOW_APP_ID, 0));
+        specificReq.setCookieMask(AppCookie.getAppMask());
+        req.setStatistics(specificReq);
+        req.setLengthU(req.getLengthU() + specificReq.getLength());
+
+        try {
+            List<OFStatistics> values = sw.queryStatistics(req)
+                    .get(RECONCILE_TIMEOUT, TimeUnit.SECONDS);
+            List<OFFlowStatisticsReply> flows =
+                    new ArrayList<OFFlowStatisticsReply>();
+            if (values != null) {
+                for (OFStatistics stat : values)
+                    flows.add((OFFlowStatisticsReply) stat);
+            }
+            return flows;
+        } catch (Exception e) {
+            log.error("Failure retrieving static flows from switch " + sw, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes flow mods to a switch in batches, each followed by a barrier,
+     * with at most RECONCILE_WINDOW batches awaiting their barrier reply.
+     * @param sw The switch to write to
+     * @param messages The flow mods, in order
+     * @param status Counts the flow mods sent
+     * @return true if the switch replied to every barrier
+     */
+    protected boolean writeWithBarriers(IOFSwitch sw, List<OFMessage> messages,
+                                        StaticFlowReconciler.Status status) {
+        BarrierWindow window = new BarrierWindow();
+        barrierWindows.put(sw.getId(), window);
+        try {
+            for (int i = 0; i < messages.size(); i += RECONCILE_BATCH_SIZE) {
+                if (!window.free.tryAcquire(RECONCILE_TIMEOUT, TimeUnit.SECONDS) ||
+                    !sw.isConnected())
+                    return false;
+                int end = Math.min(i + RECONCILE_BATCH_SIZE, messages.size());
+                List<OFMessage> batch = new ArrayList<OFMessage>(end - i + 1);
+                batch.addAll(messages.subList(i, end));
+                OFMessage barrier = floodlightProvider.getOFMessageFactory()
+                        .getMessage(OFType.BARRIER_REQUEST);
+                barrier.setXid(sw.getNextTransactionId());
+                window.xids.add(barrier.getXid());
+                batch.add(barrier);
+                sw.write(batch, null);
+                sw.flush();
+                status.sent = end;
+                if (log.isDebugEnabled()) {
+                    log.debug("Reconciling switch {}: sent {} of {} flow mods",
+                              new Object[] { sw.getStringId(), end,
+                                             messages.size() });
+                }
+            }
+            // wait for the last batches
+            return window.free.tryAcquire(RECONCILE_WINDOW, RECONCILE_TIMEOUT,
+                                          TimeUnit.SECONDS);
+        } catch (IOException e) {
+            log.error("Tried to write to switch {} but got {}",
+                      sw.getStringId(), e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            barrierWindows.remove(sw.getId(), window);
+        }
+    }
+
+    /**
+     * @param dpid The switch
+     * @return the progress of the last reconciliation of the switch, or
+     * null if it has not been reconciled
+     */
+    public StaticFlowReconciler.Status getReconcileStatus(String dpid) {
+        return reconcileStatus.get(dpid);
+    }
+
     /**
      * Used only for bundle-local indexing
      *
@@ -338,10 +609,20 @@ public class StaticFlowEntryPusher
     }
 
     @Override
-    public void switchAdded(long switchId) {
+    public void switchAdded(final long switchId) {
         log.debug("Switch {} connected; processing its static entries",
                   HexString.toHexString(switchId));
-        sendEntriesToSwitch(switchId);
+        if (reconcileOnConnect && reconcileExecutor != null) {
+            // the flow statistics are waited for, so not on an I/O thread
+            reconcileExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reconcileSwitch(switchId);
+                }
+            });
+        } else {
+            sendEntriesToSwitch(switchId);
+        }
     }
 
     @Override
@@ -385,6 +666,7 @@ public class StaticFlowEntryPusher
         }
         // batch updates by switch and blast them out
         for (String dpid : entriesToAdd.keySet()) {
+            entriesChanged(dpid);
             if (!entriesFromStorage.containsKey(dpid))
                 entriesFromStorage.put(dpid, new HashMap<String, OFFlowMod>());
 
@@ -396,6 +678,7 @@ public class StaticFlowEntryPusher
                 String dpidOldFlowMod = entry2dpid.get(entry);
                 if (dpidOldFlowMod != null) {
                     oldFlowMod = entriesFromStorage.get(dpidOldFlowMod).remove(entry);
+                    entriesChanged(dpidOldFlowMod);
                 }
                 if (oldFlowMod != null && newFlowMod != null) {
                     // set the new flow mod to modify a pre-existing rule if these fields match
@@ -459,6 +742,7 @@ public class StaticFlowEntryPusher
         if (log.isDebugEnabled()) {
             log.debug("Sending delete flow mod for flow {} for switch {}", entryName, dpid);
         }
+        entriesChanged(dpid);
 
         // send flow_mod delete
         OFFlowMod flowMod = entriesFromStorage.get(dpid).get(entryName);
@@ -607,6 +891,11 @@ public class StaticFlowEntryPusher
         switch (msg.getType()) {
         case FLOW_REMOVED:
             return handleFlowRemoved(sw, (OFFlowRemoved) msg, cntx);
+        case BARRIER_REPLY:
+            BarrierWindow window = barrierWindows.get(sw.getId());
+            if (window != null && window.xids.remove(msg.getXid()))
+                window.free.release();
+            return Command.CONTINUE;
         default:
             return Command.CONTINUE;
         }
@@ -662,11 +951,31 @@ public class StaticFlowEntryPusher
         restApi =
             context.getServiceImpl(IRestApiService.class);
         haListener = new HAListenerDelegate();
+
+        Map<String, String> configParams = context.getConfigParams(this);
+        String reconcile = configParams.get(ReconcileConfigKey);
+        if (reconcile != null)
+            reconcileOnConnect = Boolean.parseBoolean(reconcile);
     }
 
     @Override
     public void startUp(FloodlightModuleContext context) {
         floodlightProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
+        if (reconcileOnConnect) {
+            floodlightProvider.addOFMessageListener(OFType.BARRIER_REPLY, this);
+            ThreadFactory f = new ThreadFactory() {
+                AtomicInteger id = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread t = new Thread(runnable, "StaticFlowReconciler-" +
+                                          id.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            reconcileExecutor = Executors.newCachedThreadPool(f);
+        }
         floodlightProvider.addOFSwitchListener(this);
         floodlightProvider.addHAListener(this.haListener);
 
@@ -0,0 +1,223 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.staticflowentry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.core.util.AppCookie;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroup;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMatchField;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+
+/**
+ * Works out the flow mods that bring the static flows installed on a switch,
+ * as reported by a flow statistics reply, to the static flows we want on
+ * it.  Flows are identified by cookie, priority and match; an installed
+ * flow whose instructions differ is modified in place, a wanted flow that
+ * is not installed is added and an installed static flow that is not
+ * wanted is deleted.
+ *
+ * The OpenFlow message classes compare matches and instructions by
+ * identity, so both are compared in their wire format.  The fields of a
+ * match are compared in any order, since a switch need not report them in
+ * the order they were sent.
+ */
+public class StaticFlowReconciler {
+    /**
+     * Progress of the reconciliation of one switch
+     */
+    public static class Status {
+        public enum State { QUERYING, PUSHING, CONVERGED, FAILED }
+
+        protected volatile State state = State.QUERYING;
+        protected final long startTime = System.currentTimeMillis();
+        protected volatile long queryTime;
+        protected volatile long convergeTime;
+        protected int installed;
+        protected int unchanged;
+        protected int added;
+        protected int modified;
+        protected int deleted;
+        protected volatile int sent;
+
+        public State getState() { return state; }
+        /** @return milliseconds taken to read the switch's flows */
+        public long getQueryTime() { return queryTime; }
+        /** @return milliseconds from the start until the last barrier reply */
+        public long getConvergeTime() { return convergeTime; }
+        public int getInstalled() { return installed; }
+        public int getUnchanged() { return unchanged; }
+        public int getAdded() { return added; }
+        public int getModified() { return modified; }
+        public int getDeleted() { return deleted; }
+        /** @return the number of flow mods sent so far */
+        public int getSent() { return sent; }
+        /** @return the number of flow mods needed */
+        public int getTotal() { return added + modified + deleted; }
+
+        @Override
+        public String toString() {
+            return state + ": " + installed + " installed, " + unchanged +
+                   " unchanged, " + added + " to add, " + modified +
+                   " to modify, " + deleted + " to delete, " + sent +
+                   " sent";
+        }
+    }
+
+    /* Room for the largest OpenFlow message */
+    private final ByteBuffer scratch = ByteBuffer.allocate(65536);
+
+    /**
+     * @return whether a cookie belongs to a static flow
+     */
+    public static boolean isStaticFlow(long cookie) {
+        return AppCookie.extractApp(cookie) ==
+                StaticFlowEntryPusher.STATIC_FLOW_APP_ID;
+    }
+
+    private ByteBuffer copyScratch() {
+        scratch.flip();
+        ByteBuffer key = ByteBuffer.allocate(scratch.remaining());
+        key.put(scratch);
+        key.flip();
+        scratch.clear();
+        return key;
+    }
+
+    /**
+     * @return a key that is equal for flows with the same cookie, priority
+     * and match
+     */
+    protected ByteBuffer flowKey(long cookie, short priority, OFMatch match) {
+        List<ByteBuffer> fields = new ArrayList<ByteBuffer>();
+        int length = 10;
+        if (match != null && match.getMatchFields() != null) {
+            for (OFMatchField field : match.getMatchFields()) {
+                field.writeTo(scratch);
+                ByteBuffer f = copyScratch();
+                fields.add(f);
+                length += f.remaining();
+            }
+        }
+        // ByteBuffer compares the remaining bytes
+        Collections.sort(fields);
+        ByteBuffer key = ByteBuffer.allocate(length);
+        key.putLong(cookie);
+        key.putShort(priority);
+        for (ByteBuffer f : fields)
+            key.put(f);
+        key.flip();
+        return key;
+    }
+
+    protected ByteBuffer instructionsKey(List<OFInstruction> instructions) {
+        if (instructions != null) {
+            for (OFInstruction instruction : instructions)
+                instruction.writeTo(scratch);
+        }
+        return copyScratch();
+    }
+
+    private static OFFlowMod copy(OFFlowMod flowMod, byte command) {
+        OFFlowMod fm = flowMod.clone();
+        fm.setCommand(command);
+        return fm;
+    }
+
+    private static OFFlowMod delete(OFFlowStatisticsReply flow) {
+        OFFlowMod fm = new OFFlowMod();
+        fm.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        fm.setMatch(flow.getMatch());
+        fm.setPriority(flow.getPriority());
+        // delete this flow and not one added for a renamed entry
+        fm.setCookie(flow.getCookie());
+        fm.setCookieMask(-1L);
+        fm.setOutPort(OFPort.OFPP_ANY.getValue());
+        fm.setOutGroup(OFGroup.OFPG_ANY.getValue());
+        fm.setInstructions(new ArrayList<OFInstruction>());
+        fm.computeLength();
+        return fm;
+    }
+
+    /**
+     * Compute the flow mods that reconcile a switch
+     * @param wanted the static flows for the switch by entry name; null
+     * values are inactive entries
+     * @param installed the flows on the switch
+     * @param order the order in which to add flows
+     * @param status counts of the flows in each category are set here
+     * @return the deletes, then the modifies, then the adds
+     */
+    public List<OFMessage> diff(Map<String, OFFlowMod> wanted,
+                                List<OFFlowStatisticsReply> installed,
+                                Comparator<String> order,
+                                Status status) {
+        Map<ByteBuffer, OFFlowStatisticsReply> onSwitch =
+                new HashMap<ByteBuffer, OFFlowStatisticsReply>();
+        for (OFFlowStatisticsReply flow : installed) {
+            if (!isStaticFlow(flow.getCookie()))
+                continue;
+            onSwitch.put(flowKey(flow.getCookie(), flow.getPriority(),
+                                 flow.getMatch()), flow);
+        }
+        status.installed = onSwitch.size();
+
+        List<String> names = new ArrayList<String>(wanted.keySet());
+        Collections.sort(names, order);
+        List<OFMessage> modifies = new ArrayList<OFMessage>();
+        List<OFMessage> adds = new ArrayList<OFMessage>();
+        for (String name : names) {
+            OFFlowMod flowMod = wanted.get(name);
+            if (flowMod == null)
+                continue;
+            OFFlowStatisticsReply flow = onSwitch.remove(
+                    flowKey(flowMod.getCookie(), flowMod.getPriority(),
+                            flowMod.getMatch()));
+            if (flow == null) {
+                adds.add(copy(flowMod, OFFlowMod.OFPFC_ADD));
+            } else if (instructionsKey(flow.getInstructions()).equals(
+                           instructionsKey(flowMod.getInstructions()))) {
+                status.unchanged += 1;
+            } else {
+                modifies.add(copy(flowMod, OFFlowMod.OFPFC_MODIFY_STRICT));
+            }
+        }
+
+        List<OFMessage> messages = new ArrayList<OFMessage>(
+                onSwitch.size() + modifies.size() + adds.size());
+        for (OFFlowStatisticsReply flow : onSwitch.values())
+            messages.add(delete(flow));
+        messages.addAll(modifies);
+        messages.addAll(adds);
+        status.deleted = onSwitch.size();
+        status.modified = modifies.size();
+        status.added = adds.size();
+        return messages;
+    }
+}
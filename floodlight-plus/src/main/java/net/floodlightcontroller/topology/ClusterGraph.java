@@ -0,0 +1,231 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * The links of a cluster in compressed sparse row form.  Switches are
+ * numbered 0..n-1 in DPID order and links 0..m-1 in (source, destination,
+ * source port, destination port) order, so the links leaving a switch are
+ * contiguous.  The links entering a switch are listed separately, in the
+ * same order.  Instances are immutable once built.
+ */
+class ClusterGraph {
+    /** DPIDs of the switches, sorted; the index of a DPID is its number */
+    final long[] nodes;
+
+    /** Source, destination, weight and link of each edge */
+    final int[] src;
+    final int[] dst;
+    final int[] weight;
+    final Link[] links;
+
+    /** Edges leaving node v are outStart[v] .. outStart[v+1]-1 */
+    final int[] outStart;
+
+    /** Edges entering node v are inEdge[inStart[v] .. inStart[v+1]-1] */
+    final int[] inStart;
+    final int[] inEdge;
+
+    /**
+     * Build the graph of a cluster.
+     * @param c the cluster
+     * @param linkCost cost of links that do not have the default cost of 1;
+     *        may be null
+     * @param previous graph of the same cluster in an earlier topology; its
+     *        node array is shared if the switches are the same.  May be null.
+     */
+    ClusterGraph(Cluster c, Map<Link, Integer> linkCost,
+                 ClusterGraph previous) {
+        long[] n = new long[c.links.size()];
+        int i = 0;
+        for (long node : c.links.keySet()) n[i++] = node;
+        Arrays.sort(n);
+        if (previous != null && Arrays.equals(previous.nodes, n))
+            n = previous.nodes;
+        nodes = n;
+
+        // Every link is in the sets of both its endpoints; take it from
+        // its source's set only.
+        int m = 0;
+        for (Map.Entry<Long, Set<Link>> e : c.links.entrySet()) {
+            for (Link l : e.getValue()) {
+                if (isEdge(l, e.getKey())) m++;
+            }
+        }
+        src = new int[m];
+        dst = new int[m];
+        weight = new int[m];
+        links = new Link[m];
+
+        // Bucket the edges by source, then order each bucket
+        outStart = new int[nodes.length + 1];
+        Link[] unsorted = new Link[m];
+        int[] unsortedSrc = new int[m];
+        i = 0;
+        for (Map.Entry<Long, Set<Link>> e : c.links.entrySet()) {
+            for (Link l : e.getValue()) {
+                if (!isEdge(l, e.getKey())) continue;
+                unsorted[i] = l;
+                unsortedSrc[i] = index(l.getSrc());
+                outStart[unsortedSrc[i] + 1]++;
+                i++;
+            }
+        }
+        for (int v = 0; v < nodes.length; v++)
+            outStart[v + 1] += outStart[v];
+        int[] fill = Arrays.copyOf(outStart, nodes.length);
+        for (i = 0; i < m; i++)
+            links[fill[unsortedSrc[i]]++] = unsorted[i];
+        for (int v = 0; v < nodes.length; v++)
+            sortLinks(links, outStart[v], outStart[v + 1]);
+
+        int[] inCount = new int[nodes.length + 1];
+        for (int e = 0; e < m; e++) {
+            Link l = links[e];
+            src[e] = index(l.getSrc());
+            dst[e] = index(l.getDst());
+            Integer cost = (linkCost == null) ? null : linkCost.get(l);
+            weight[e] = (cost == null) ? 1 : cost;
+            inCount[dst[e] + 1]++;
+        }
+
+        // Edges are already ordered by source, so a stable counting sort
+        // by destination lists the edges into each node by source as well.
+        inStart = inCount;
+        for (int v = 0; v < nodes.length; v++)
+            inStart[v + 1] += inStart[v];
+        inEdge = new int[m];
+        fill = Arrays.copyOf(inStart, nodes.length);
+        for (int e = 0; e < m; e++)
+            inEdge[fill[dst[e]]++] = e;
+    }
+
+    private boolean isEdge(Link l, long node) {
+        return l.getSrc() == node && l.getSrc() != l.getDst() &&
+               index(l.getDst()) >= 0;
+    }
+
+    /**
+     * @return the number of a switch, or a negative value if the switch is
+     *         not in the cluster
+     */
+    int index(long dpid) {
+        return Arrays.binarySearch(nodes, dpid);
+    }
+
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Insertion sort of the links leaving one node.  Nodes have few links,
+     * so this is faster than a general sort.
+     */
+    private static void sortLinks(Link[] a, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            Link l = a[i];
+            int j = i - 1;
+            while (j >= from && compare(a[j], l) > 0) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = l;
+        }
+    }
+
+    private static int compare(Link a, Link b) {
+        if (a.getDst() != b.getDst()) return a.getDst() < b.getDst() ? -1 : 1;
+        if (a.getSrcPort() != b.getSrcPort())
+            return a.getSrcPort() < b.getSrcPort() ? -1 : 1;
+        if (a.getDstPort() != b.getDstPort())
+            return a.getDstPort() < b.getDstPort() ? -1 : 1;
+        return 0;
+    }
+
+    /**
+     * Differences between two graphs of a cluster with the same switches.
+     * A link whose weight changed is both removed and added.
+     */
+    static class Delta {
+        /** Links of the old graph that are not in the new graph */
+        final Link[] removed;
+        /** Source numbers of the removed links */
+        final int[] removedSrc;
+        /** Edges of the new graph that are not in the old graph */
+        final int[] added;
+
+        Delta(Link[] removed, int[] removedSrc, int[] added) {
+            this.removed = removed;
+            this.removedSrc = removedSrc;
+            this.added = added;
+        }
+
+        boolean isEmpty() {
+            return removed.length == 0 && added.length == 0;
+        }
+    }
+
+    /**
+     * Compare this graph with an earlier graph of the same cluster.  Both
+     * edge lists are sorted, so they are merged in linear time.
+     * @return the changes from the earlier graph, or null if the two graphs
+     *         do not have the same switches
+     */
+    Delta diff(ClusterGraph old) {
+        if (old.nodes != nodes && !Arrays.equals(old.nodes, nodes))
+            return null;
+
+        int[] removedEdge = new int[old.links.length];
+        int[] added = new int[links.length];
+        int nRemoved = 0, nAdded = 0;
+        int i = 0, j = 0;
+        while (i < old.links.length || j < links.length) {
+            int cmp;
+            if (i == old.links.length) cmp = 1;
+            else if (j == links.length) cmp = -1;
+            else if (old.src[i] != src[j]) cmp = old.src[i] < src[j] ? -1 : 1;
+            else cmp = compare(old.links[i], links[j]);
+
+            if (cmp < 0) {
+                removedEdge[nRemoved++] = i++;
+            } else if (cmp > 0) {
+                added[nAdded++] = j++;
+            } else {
+                if (old.weight[i] != weight[j]) {
+                    removedEdge[nRemoved++] = i;
+                    added[nAdded++] = j;
+                }
+                i++;
+                j++;
+            }
+        }
+
+        Link[] removed = new Link[nRemoved];
+        int[] removedSrc = new int[nRemoved];
+        for (int k = 0; k < nRemoved; k++) {
+            removed[k] = old.links[removedEdge[k]];
+            removedSrc[k] = old.src[removedEdge[k]];
+        }
+        return new Delta(removed, removedSrc, Arrays.copyOf(added, nAdded));
+    }
+}
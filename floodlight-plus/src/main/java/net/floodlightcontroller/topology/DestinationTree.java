@@ -0,0 +1,109 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+
+import org.openflow.util.HexString;
+
+/**
+ * A shortest path tree rooted at a destination, stored as arrays indexed by
+ * switch number.  Trees are immutable, so a tree that a topology change does
+ * not affect is shared by the old and new {@link TopologyInstance}.  The
+ * maps of {@link BroadcastTree} are only built if they are asked for.
+ */
+class DestinationTree extends BroadcastTree {
+    /** DPIDs of the switches, sorted, as in {@link ClusterGraph#nodes} */
+    final long[] nodes;
+    /** Cost from each switch to the root */
+    final int[] dist;
+    /** Next hop link from each switch toward the root */
+    final Link[] next;
+
+    private volatile boolean built;
+
+    DestinationTree(long[] nodes, int[] dist, Link[] next) {
+        super(null, null);
+        this.nodes = nodes;
+        this.dist = dist;
+        this.next = next;
+    }
+
+    private int index(long node) {
+        return Arrays.binarySearch(nodes, node);
+    }
+
+    @Override
+    public Link getTreeLink(long node) {
+        int i = index(node);
+        return (i < 0) ? null : next[i];
+    }
+
+    @Override
+    public int getCost(long node) {
+        int i = index(node);
+        return (i < 0) ? -1 : dist[i];
+    }
+
+    @Override
+    public HashMap<Long, Link> getLinks() {
+        build();
+        return links;
+    }
+
+    @Override
+    public HashMap<Long, Integer> getCosts() {
+        build();
+        return costs;
+    }
+
+    @Override
+    public void addTreeLink(long myNode, Link link) {
+        throw new UnsupportedOperationException("tree is immutable");
+    }
+
+    private void build() {
+        if (built) return;
+        synchronized (this) {
+            if (built) return;
+            HashMap<Long, Link> l = new HashMap<Long, Link>(nodes.length * 2);
+            HashMap<Long, Integer> c =
+                    new HashMap<Long, Integer>(nodes.length * 2);
+            for (int i = 0; i < nodes.length; i++) {
+                l.put(nodes[i], next[i]);
+                c.put(nodes[i], dist[i]);
+            }
+            links = l;
+            costs = c;
+            built = true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < nodes.length; i++) {
+            sb.append("[" + HexString.toHexString(nodes[i]) + ": cost=" +
+                      dist[i] + ", " + next[i] + "]");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of the integers 0..n-1 keyed by int, which records
+ * the position of every element so that a key can be lowered in
+ * O(log n).  Elements with equal keys come out lowest first.
+ */
+class IndexedMinHeap {
+    private final int[] heap;
+    private final int[] pos; // position of each element, or -1
+    private final int[] key;
+    private int size;
+
+    IndexedMinHeap(int n) {
+        heap = new int[n];
+        pos = new int[n];
+        key = new int[n];
+        Arrays.fill(pos, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Insert an element, or lower its key if it is already in the heap.
+     * A key higher than the current one is ignored.
+     */
+    void offer(int v, int k) {
+        int i = pos[v];
+        if (i < 0) {
+            i = size++;
+            heap[i] = v;
+            pos[v] = i;
+        } else if (k >= key[v]) {
+            return;
+        }
+        key[v] = k;
+        siftUp(i);
+    }
+
+    /**
+     * Remove the element with the lowest key.
+     */
+    int poll() {
+        int v = heap[0];
+        pos[v] = -1;
+        if (--size > 0) {
+            heap[0] = heap[size];
+            pos[heap[0]] = 0;
+            siftDown(0);
+        }
+        return v;
+    }
+
+    /**
+     * Remove every element.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++)
+            pos[heap[i]] = -1;
+        size = 0;
+    }
+
+    private boolean less(int a, int b) {
+        return key[a] < key[b] || (key[a] == key[b] && a < b);
+    }
+
+    private void siftUp(int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (!less(v, p)) break;
+            heap[i] = p;
+            pos[p] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        pos[v] = i;
+    }
+
+    private void siftDown(int i) {
+        int v = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int c = heap[child];
+            if (child + 1 < size && less(heap[child + 1], c))
+                c = heap[++child];
+            if (!less(c, v)) break;
+            heap[i] = c;
+            pos[c] = i;
+            i = child;
+        }
+        heap[i] = v;
+        pos[v] = i;
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Computes destination-rooted shortest path trees over a
+ * {@link ClusterGraph}, either from scratch or by repairing the tree of an
+ * earlier graph of the same cluster.
+ *
+ * Both ways produce the same tree that {@link TopologyInstance#dijkstra}
+ * would: switches are settled in (cost, DPID) order and each switch uses the
+ * link toward the first settled neighbour that gives it its cost.  That
+ * choice only depends on the costs of the switch and its neighbours, so
+ * after a change only switches whose cost, or whose neighbours' cost,
+ * changed have to choose again.
+ *
+ * An engine keeps scratch space for one graph and is not thread-safe.
+ */
+class ShortestPathEngine {
+    private static final int INF = TopologyInstance.MAX_PATH_WEIGHT;
+
+    private final ClusterGraph g;
+    private final IndexedMinHeap heap;
+
+    /** Nodes in the current update that are marked as stamp[v] == mark */
+    private final int[] stamp;
+    private int mark;
+
+    /** Nodes that lost their path to the root, then nodes to re-parent */
+    private final int[] work;
+
+    ShortestPathEngine(ClusterGraph g) {
+        this.g = g;
+        this.heap = new IndexedMinHeap(g.size());
+        this.stamp = new int[g.size()];
+        this.work = new int[g.size()];
+    }
+
+    /**
+     * Compute the tree rooted at a switch from scratch.
+     * @param root number of the switch
+     */
+    DestinationTree compute(int root) {
+        int[] dist = new int[g.size()];
+        Link[] next = new Link[g.size()];
+        Arrays.fill(dist, INF);
+        dist[root] = 0;
+        heap.offer(root, 0);
+        settle(dist, next, true);
+        return new DestinationTree(g.nodes, dist, next);
+    }
+
+    /**
+     * Bring a tree of an earlier graph of the cluster up to date with this
+     * graph.
+     * @param old the tree to update; it is not modified
+     * @param delta the changes from the earlier graph to this one
+     * @return old if the changes do not affect it, otherwise a new tree
+     */
+    DestinationTree update(DestinationTree old, ClusterGraph.Delta delta) {
+        if (!isAffected(old, delta)) return old;
+
+        int[] dist = old.dist.clone();
+        Link[] next = old.next.clone();
+        if (++mark == 0) {
+            Arrays.fill(stamp, 0);
+            mark = 1;
+        }
+
+        // Switches whose next hop link was removed lose their path, and so
+        // does everything downstream of them.
+        int lost = 0;
+        for (int i = 0; i < delta.removed.length; i++) {
+            int u = delta.removedSrc[i];
+            if (stamp[u] != mark && delta.removed[i].equals(next[u])) {
+                stamp[u] = mark;
+                work[lost++] = u;
+            }
+        }
+        for (int k = 0; k < lost; k++) {
+            int v = work[k];
+            for (int j = g.inStart[v]; j < g.inStart[v + 1]; j++) {
+                int u = g.src[g.inEdge[j]];
+                if (stamp[u] != mark && next[u] != null &&
+                    next[u].getDst() == g.nodes[v]) {
+                    stamp[u] = mark;
+                    work[lost++] = u;
+                }
+            }
+        }
+        for (int k = 0; k < lost; k++) {
+            dist[work[k]] = INF;
+            next[work[k]] = null;
+        }
+
+        // Give each of them the best cost through a switch that kept its
+        // path, then let the new links lower costs, and settle the rest.
+        for (int k = 0; k < lost; k++) {
+            int u = work[k];
+            int best = INF;
+            for (int e = g.outStart[u]; e < g.outStart[u + 1]; e++) {
+                int x = g.dst[e];
+                if (stamp[x] != mark && dist[x] < INF &&
+                    dist[x] + g.weight[e] < best)
+                    best = dist[x] + g.weight[e];
+            }
+            if (best < INF) {
+                dist[u] = best;
+                heap.offer(u, best);
+            }
+        }
+        for (int e : delta.added) {
+            int u = g.src[e], x = g.dst[e];
+            if (dist[x] < INF && dist[x] + g.weight[e] < dist[u]) {
+                dist[u] = dist[x] + g.weight[e];
+                heap.offer(u, dist[u]);
+            }
+        }
+        settle(dist, next, false);
+
+        // Choose next hops again where the choice may have changed
+        int n = lost;
+        for (int v = 0; v < dist.length; v++) {
+            if (dist[v] == old.dist[v]) continue;
+            n = mark(v, n);
+            for (int j = g.inStart[v]; j < g.inStart[v + 1]; j++)
+                n = mark(g.src[g.inEdge[j]], n);
+        }
+        for (int e : delta.added) n = mark(g.src[e], n);
+        for (int u : delta.removedSrc) n = mark(u, n);
+        for (int k = 0; k < n; k++) {
+            int u = work[k];
+            if (dist[u] > 0) next[u] = firstHop(dist, u);
+        }
+        return new DestinationTree(g.nodes, dist, next);
+    }
+
+    /**
+     * Add a node to the work list unless it was marked already.
+     * @return the new length of the work list
+     */
+    private int mark(int v, int n) {
+        if (stamp[v] == mark) return n;
+        stamp[v] = mark;
+        work[n] = v;
+        return n + 1;
+    }
+
+    /**
+     * Whether a tree could change: one of its links was removed, or an added
+     * link reaches the root at no more cost than the tree's path.
+     */
+    private boolean isAffected(DestinationTree t,
+                               ClusterGraph.Delta delta) {
+        for (int i = 0; i < delta.removed.length; i++) {
+            if (delta.removed[i].equals(t.next[delta.removedSrc[i]]))
+                return true;
+        }
+        for (int e : delta.added) {
+            int x = g.dst[e];
+            if (t.dist[x] < INF &&
+                t.dist[x] + g.weight[e] <= t.dist[g.src[e]])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Run Dijkstra's algorithm from the nodes in the heap, lowering the cost
+     * of the nodes with links into them.
+     * @param setNext whether to record next hops as costs are lowered
+     */
+    private void settle(int[] dist, Link[] next, boolean setNext) {
+        while (!heap.isEmpty()) {
+            int x = heap.poll();
+            int d = dist[x];
+            for (int j = g.inStart[x]; j < g.inStart[x + 1]; j++) {
+                int e = g.inEdge[j];
+                int u = g.src[e];
+                int nd = d + g.weight[e];
+                if (nd < dist[u]) {
+                    dist[u] = nd;
+                    if (setNext) next[u] = g.links[e];
+                    heap.offer(u, nd);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the link that Dijkstra's algorithm would choose as the next
+     *         hop of u: the first link to the cheapest neighbour on a
+     *         shortest path, or null if u cannot reach the root
+     */
+    private Link firstHop(int[] dist, int u) {
+        if (dist[u] >= INF) return null;
+        int best = -1;
+        for (int e = g.outStart[u]; e < g.outStart[u + 1]; e++) {
+            int x = g.dst[e];
+            if (dist[x] < INF && dist[x] + g.weight[e] == dist[u] &&
+                (best < 0 || dist[x] < dist[g.dst[best]]))
+                best = e;
+        }
+        return (best < 0) ? null : g.links[best];
+    }
+}
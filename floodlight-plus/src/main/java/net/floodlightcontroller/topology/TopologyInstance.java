@@ -24,7 +24,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
-
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,6 +57,8 @@ public class TopologyInstance {
     public static final int MAX_LINK_WEIGHT = 10000;
     public static final int MAX_PATH_WEIGHT = Integer.MAX_VALUE - MAX_LINK_WEIGHT - 1;
     public static final int PATH_CACHE_SIZE = 1000;
+    // Number of trees computed by each task when computing in parallel
+    protected static final int TREES_PER_TASK = 16;
 
     protected static Logger log = LoggerFactory.getLogger(TopologyInstance.class);
 
@@ -80,6 +83,11 @@ public class TopologyInstance {
     protected Map<Long, BroadcastTree> destinationRootedTrees;
     protected Map<Long, Set<NodePortTuple>> clusterBroadcastNodePorts;
     protected Map<Long, BroadcastTree> clusterBroadcastTrees;
+    // Link graph of each cluster, by cluster id, for updating the trees
+    protected Map<Long, ClusterGraph> clusterGraphs;
+    // Pool that trees and broadcast ports are computed on while compute()
+    // runs; null to compute them on the calling thread
+    protected ForkJoinPool computePool;
 
     protected class PathCacheLoader extends CacheLoader<RouteId, Route> {
         TopologyInstance ti;
@@ -152,6 +160,7 @@ public class TopologyInstance {
         destinationRootedTrees = new HashMap<Long, BroadcastTree>();
         clusterBroadcastTrees = new HashMap<Long, BroadcastTree>();
         clusterBroadcastNodePorts = new HashMap<Long, Set<NodePortTuple>>();
+        clusterGraphs = new HashMap<Long, ClusterGraph>();
 
         pathcache = CacheBuilder.newBuilder().concurrencyLevel(4)
                     .maximumSize(1000L)
@@ -164,6 +173,37 @@ public class TopologyInstance {
     }
 
     public void compute() {
+        compute(null);
+    }
+
+    /**
+     * Compute the topology, reusing the shortest path trees of an earlier
+     * instance where the links of a cluster did not change, and updating
+     * them where only some links did.
+     * @param previous the instance this one replaces; may be null
+     */
+    public void compute(TopologyInstance previous) {
+        compute(previous, null);
+    }
+
+    /**
+     * Compute the topology as {@link #compute(TopologyInstance)} does,
+     * spreading the shortest path trees of all clusters and the broadcast
+     * ports of each cluster across a pool.  The instance must not be used
+     * until this returns.
+     * @param previous the instance this one replaces; may be null
+     * @param pool pool to compute on; null to compute on this thread
+     */
+    public void compute(TopologyInstance previous, ForkJoinPool pool) {
+        computePool = pool;
+        try {
+            computeSteps(previous);
+        } finally {
+            computePool = null;
+        }
+    }
+
+    private void computeSteps(TopologyInstance previous) {
 
         // Step 1: Compute clusters ignoring broadcast domain links
         // Create nodes for clusters in the higher level topology
@@ -177,7 +217,7 @@ public class TopologyInstance {
         // Step 2. Compute shortest path trees in each cluster for
         // unicast routing.  The trees are rooted at the destination.
         // Cost for tunnel links and direct links are the same.
-        calculateShortestPathTreeInClusters();
+        calculateShortestPathTreeInClusters(previous);
 
         // Step 3. Compute broadcast tree in each cluster.
         // Cost for tunnel links are high to discourage use of
@@ -539,8 +579,19 @@ public class TopologyInstance {
     }
 
     protected void calculateShortestPathTreeInClusters() {
+        calculateShortestPathTreeInClusters(null);
+    }
+
+    /**
+     * Compute the destination rooted trees of every cluster.  A cluster
+     * with the same switches as in the previous instance only has the trees
+     * that its link changes affect recomputed; the others are shared with
+     * the previous instance, as are its cached routes to them.
+     */
+    protected void calculateShortestPathTreeInClusters(TopologyInstance previous) {
         pathcache.invalidateAll();
         destinationRootedTrees.clear();
+        clusterGraphs.clear();
 
         Map<Link, Integer> linkCost = new HashMap<Link, Integer>();
         int tunnel_weight = switchPorts.size() + 1;
@@ -553,14 +604,105 @@ public class TopologyInstance {
             }
         }
 
+        List<TreeTask> tasks = new ArrayList<TreeTask>();
         for(Cluster c: clusters) {
-            for (Long node : c.links.keySet()) {
-                BroadcastTree tree = dijkstra(c, node, linkCost, true);
-                destinationRootedTrees.put(node, tree);
+            ClusterGraph old = null;
+            if (previous != null && previous.clusterGraphs != null)
+                old = previous.clusterGraphs.get(c.id);
+            ClusterGraph g = new ClusterGraph(c, linkCost, old);
+            clusterGraphs.put(c.id, g);
+
+            ClusterGraph.Delta delta = (old == null) ? null : g.diff(old);
+            BroadcastTree[] oldTrees = new BroadcastTree[g.size()];
+            if (delta != null) {
+                for (int i = 0; i < g.size(); i++)
+                    oldTrees[i] = previous.destinationRootedTrees.get(g.nodes[i]);
+            }
+            tasks.add(new TreeTask(g, delta, oldTrees,
+                                   new BroadcastTree[g.size()], 0, g.size()));
+        }
+
+        runAll(tasks);
+        for (TreeTask t: tasks) {
+            for (int i = 0; i < t.trees.length; i++)
+                destinationRootedTrees.put(t.g.nodes[i], t.trees[i]);
+        }
+
+        if (previous != null && previous.pathcache != null) {
+            for (Map.Entry<RouteId, Route> e :
+                    previous.pathcache.asMap().entrySet()) {
+                long dst = e.getKey().getDst();
+                BroadcastTree tree = destinationRootedTrees.get(dst);
+                if (tree != null &&
+                    tree == previous.destinationRootedTrees.get(dst))
+                    pathcache.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Computes the trees rooted at a range of the switches in a cluster,
+     * splitting the range into further tasks when run on a pool.
+     */
+    protected class TreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final ClusterGraph g;
+        final ClusterGraph.Delta delta;
+        final BroadcastTree[] oldTrees;
+        final BroadcastTree[] trees;
+        final int from;
+        final int to;
+
+        TreeTask(ClusterGraph g, ClusterGraph.Delta delta,
+                 BroadcastTree[] oldTrees, BroadcastTree[] trees,
+                 int from, int to) {
+            this.g = g;
+            this.delta = delta;
+            this.oldTrees = oldTrees;
+            this.trees = trees;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (computePool != null && to - from > TREES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TreeTask(g, delta, oldTrees, trees, from, mid),
+                          new TreeTask(g, delta, oldTrees, trees, mid, to));
+                return;
+            }
+            ShortestPathEngine engine = new ShortestPathEngine(g);
+            for (int i = from; i < to; i++) {
+                if (oldTrees[i] instanceof DestinationTree)
+                    trees[i] = engine.update((DestinationTree) oldTrees[i],
+                                             delta);
+                else
+                    trees[i] = engine.compute(i);
             }
         }
     }
 
+    /**
+     * Run tasks on the compute pool and wait for them all, or run them one
+     * after another on this thread if there is no pool.
+     */
+    protected void runAll(final List<? extends RecursiveAction> tasks) {
+        if (computePool == null) {
+            for (RecursiveAction t: tasks) t.invoke();
+            return;
+        }
+        computePool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
     protected void calculateBroadcastTreeInClusters() {
         for(Cluster c: clusters) {
             // c.id is the smallest node that's in the cluster
@@ -575,23 +717,50 @@ public class TopologyInstance {
 
         calculateBroadcastTreeInClusters();
 
+        List<BroadcastPortsTask> tasks = new ArrayList<BroadcastPortsTask>();
         for(Cluster c: clusters) {
             // c.id is the smallest node that's in the cluster
             BroadcastTree tree = clusterBroadcastTrees.get(c.id);
-            //log.info("Broadcast Tree {}", tree);
+            tasks.add(new BroadcastPortsTask(c.id, tree));
+        }
 
-            Set<NodePortTuple> nptSet = new HashSet<NodePortTuple>();
+        runAll(tasks);
+        for (BroadcastPortsTask t: tasks) {
+            if (t.nptSet != null)
+                clusterBroadcastNodePorts.put(t.clusterId, t.nptSet);
+        }
+    }
+
+    /**
+     * Collects the switch ports of the links in a cluster's broadcast tree.
+     */
+    protected static class BroadcastPortsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final long clusterId;
+        final BroadcastTree tree;
+        Set<NodePortTuple> nptSet;
+
+        BroadcastPortsTask(long clusterId, BroadcastTree tree) {
+            this.clusterId = clusterId;
+            this.tree = tree;
+        }
+
+        @Override
+        protected void compute() {
+            //log.info("Broadcast Tree {}", tree);
             Map<Long, Link> links = tree.getLinks();
-            if (links == null) continue;
+            if (links == null) return;
+            Set<NodePortTuple> npts = new HashSet<NodePortTuple>();
             for(long nodeId: links.keySet()) {
                 Link l = links.get(nodeId);
                 if (l == null) continue;
                 NodePortTuple npt1 = new NodePortTuple(l.getSrc(), l.getSrcPort());
                 NodePortTuple npt2 = new NodePortTuple(l.getDst(), l.getDstPort());
-                nptSet.add(npt1);
-                nptSet.add(npt2);
+                npts.add(npt1);
+                npts.add(npt2);
             }
-            clusterBroadcastNodePorts.put(c.id, nptSet);
+            nptSet = npts;
         }
     }
 
@@ -606,8 +775,7 @@ public class TopologyInstance {
         if (destinationRootedTrees == null) return null;
         if (destinationRootedTrees.get(dstId) == null) return null;
 
-        Map<Long, Link> nexthoplinks =
-                destinationRootedTrees.get(dstId).getLinks();
+        BroadcastTree nexthoplinks = destinationRootedTrees.get(dstId);
 
         if (!switches.contains(srcId) || !switches.contains(dstId)) {
             // This is a switch that is not connected to any other switch
@@ -618,15 +786,15 @@ public class TopologyInstance {
             // The only possible non-null path for this case is
             // if srcId equals dstId --- and that too is an 'empty' path []
 
-        } else if ((nexthoplinks!=null) && (nexthoplinks.get(srcId)!=null)) {
+        } else if (nexthoplinks.getTreeLink(srcId) != null) {
             while (srcId != dstId) {
-                Link l = nexthoplinks.get(srcId);
+                Link l = nexthoplinks.getTreeLink(srcId);
 
                 npt = new NodePortTuple(l.getSrc(), l.getSrcPort());
                 switchPorts.addLast(npt);
                 npt = new NodePortTuple(l.getDst(), l.getDstPort());
                 switchPorts.addLast(npt);
-                srcId = nexthoplinks.get(srcId).getDst();
+                srcId = l.getDst();
             }
         }
         // else, no path exists, and path equals null
@@ -658,7 +826,7 @@ public class TopologyInstance {
     protected boolean routeExists(long srcId, long dstId) {
         BroadcastTree bt = destinationRootedTrees.get(dstId);
         if (bt == null) return false;
-        Link link = bt.getLinks().get(srcId);
+        Link link = bt.getTreeLink(srcId);
         if (link == null) return false;
         return true;
     }
@@ -27,6 +27,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -139,9 +141,25 @@ public class TopologyManager implements
 
     protected BlockingQueue<LDUpdate> ldUpdates;
 
-    // These must be accessed using getCurrentInstance(), not directly
-    protected TopologyInstance currentInstance;
-    protected TopologyInstance currentInstanceWithoutTunnels;
+    /**
+     * The current instances with and without tunnels.  They are replaced
+     * together, so readers never see one from an older topology than the
+     * other.
+     */
+    protected static class CurrentInstances {
+        final TopologyInstance withTunnels;
+        final TopologyInstance withoutTunnels;
+
+        CurrentInstances(TopologyInstance withTunnels,
+                         TopologyInstance withoutTunnels) {
+            this.withTunnels = withTunnels;
+            this.withoutTunnels = withoutTunnels;
+        }
+    }
+
+    // This must be accessed using getCurrentInstance(), not directly
+    protected volatile CurrentInstances currentInstances =
+            new CurrentInstances(null, null);
 
     protected SingletonTask newInstanceTask;
     private Date lastUpdateTime;
@@ -163,6 +181,13 @@ public class TopologyManager implements
 
     protected int TOPOLOGY_COMPUTE_INTERVAL_MS = 500;
 
+    /**
+     * Pool that new topology instances are computed on, with one thread
+     * per processor unless configured with "computethreads".  Null if
+     * instances are computed on a single thread.
+     */
+    protected volatile ForkJoinPool computePool;
+
     private IHAListener haListener;
 
     /**
@@ -170,6 +195,8 @@ public class TopologyManager implements
      */
     protected static final String PACKAGE = TopologyManager.class.getPackage().getName();
     protected IDebugCounter ctrIncoming;
+    protected IDebugCounter ctrComputations;
+    protected IDebugCounter ctrComputeTimeMs;
 
     /**
      * Debug Events
@@ -856,10 +883,57 @@ public class TopologyManager implements
         topologyAware = new ArrayList<ITopologyListener>();
         ldUpdates = new LinkedBlockingQueue<LDUpdate>();
         haListener = new HAListenerDelegate();
+
+        // read our config options
+        Map<String, String> configOptions = context.getConfigParams(this);
+        int computeThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            String threads = configOptions.get("computethreads");
+            if (threads != null) {
+                computeThreads = Integer.parseInt(threads);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing compute threads, using default of {}",
+                     computeThreads);
+        }
+        if (computeThreads > 1) {
+            computePool = new ForkJoinPool(computeThreads,
+                                           new ComputeThreadFactory(),
+                                           null, false);
+        }
+        log.debug("Computing topology on {} threads", computeThreads);
+
         registerTopologyDebugCounters();
         registerTopologyDebugEvents();
     }
 
+    /**
+     * Stop the compute pool once the computation in progress, if any, is
+     * done.  Later instances are computed on a single thread.
+     */
+    public void shutdown() {
+        ForkJoinPool pool = computePool;
+        computePool = null;
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Creates daemon threads named after the topology module for the
+     * compute pool.
+     */
+    protected static class ComputeThreadFactory
+            implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) { };
+            t.setName("topology-compute-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     protected void registerTopologyDebugEvents() throws FloodlightModuleException {
         if (debugEvents == null) {
             debugEvents = new NullDebugEvent();
@@ -903,6 +977,15 @@ public class TopologyManager implements
             ctrIncoming = debugCounters.registerCounter(PACKAGE, "incoming",
                 "All incoming packets seen by this module",
                 CounterType.ALWAYS_COUNT);
+            ctrComputations = debugCounters.registerCounter(PACKAGE,
+                "computations",
+                "Number of topology instances computed",
+                CounterType.ALWAYS_COUNT);
+            ctrComputeTimeMs = debugCounters.registerCounter(PACKAGE,
+                "compute-time-ms",
+                "Total wall-clock time in milliseconds spent computing " +
+                "topology instances",
+                CounterType.ALWAYS_COUNT);
         } catch (CounterException e) {
             throw new FloodlightModuleException(e.getMessage());
         }
@@ -1235,16 +1318,22 @@ public class TopologyManager implements
             }
         }
 
+        long start = System.nanoTime();
         TopologyInstance nt = new TopologyInstance(switchPorts,
                                                    blockedPorts,
                                                    openflowLinks,
                                                    broadcastDomainPorts,
                                                    tunnelPorts);
-        nt.compute();
+        // Trees the link changes do not affect are taken from the current
+        // instance instead of being computed again.
+        nt.compute(currentInstances.withTunnels, computePool);
         // We set the instances with and without tunnels to be identical.
-        // If needed, we may compute them differently.
-        currentInstance = nt;
-        currentInstanceWithoutTunnels = nt;
+        // If needed, we may compute them differently.  The instance is
+        // only published once it is complete.
+        currentInstances = new CurrentInstances(nt, nt);
+        ctrComputations.updateCounterWithFlush();
+        ctrComputeTimeMs.updateCounterWithFlush(
+                (int) ((System.nanoTime() - start) / 1000000));
 
         TopologyEventInfo topologyInfo =
                 new TopologyEventInfo(0, nt.getClusters().size(),
@@ -1520,9 +1609,10 @@ public class TopologyManager implements
     }
 
     public TopologyInstance getCurrentInstance(boolean tunnelEnabled) {
+        CurrentInstances instances = this.currentInstances;
         if (tunnelEnabled)
-            return currentInstance;
-        else return this.currentInstanceWithoutTunnels;
+            return instances.withTunnels;
+        else return instances.withoutTunnels;
     }
 
     public TopologyInstance getCurrentInstance() {
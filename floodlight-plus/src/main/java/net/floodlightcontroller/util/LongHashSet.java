@@ -0,0 +1,181 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs stored in an open addressing table, without boxing.
+ *
+ * Values are probed linearly from their mixed hash in a power of two sized
+ * array kept at most half full, and removal shifts the following values of
+ * the probe sequence back rather than leaving tombstones.  Zero marks an
+ * empty slot, so whether the set holds zero is kept apart.
+ *
+ * This class is not thread safe.
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 4;
+
+    private long[] table;
+    private int size;
+    private boolean hasZero;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected the number of values to make room for
+     */
+    public LongHashSet(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        table = new long[capacity];
+    }
+
+    /**
+     * Spread the bits of a value over the low bits of the result, which
+     * select its slot in a power of two sized table
+     */
+    public static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    /**
+     * @return true if the value was not already in the set
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (hasZero)
+                return false;
+            hasZero = true;
+            return true;
+        }
+        int mask = table.length - 1;
+        int i = hash(value) & mask;
+        while (table[i] != 0) {
+            if (table[i] == value)
+                return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        if (++size * 2 > table.length)
+            resize(table.length * 2);
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0)
+            return hasZero;
+        int mask = table.length - 1;
+        int i = hash(value) & mask;
+        while (table[i] != 0) {
+            if (table[i] == value)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the value was in the set
+     */
+    public boolean remove(long value) {
+        if (value == 0) {
+            boolean had = hasZero;
+            hasZero = false;
+            return had;
+        }
+        int mask = table.length - 1;
+        int i = hash(value) & mask;
+        while (table[i] != value) {
+            if (table[i] == 0)
+                return false;
+            i = (i + 1) & mask;
+        }
+        // Move back the values that would no longer be found across the
+        // slot being emptied
+        int hole = i;
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = hash(table[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                table[hole] = table[j];
+                hole = j;
+            }
+        }
+        table[hole] = 0;
+        size--;
+        if (table.length > MIN_CAPACITY && size * 8 < table.length)
+            resize(table.length / 2);
+        return true;
+    }
+
+    private void resize(int capacity) {
+        long[] old = table;
+        table = new long[capacity];
+        int mask = capacity - 1;
+        for (long value : old) {
+            if (value == 0)
+                continue;
+            int i = hash(value) & mask;
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = value;
+        }
+    }
+
+    public int size() {
+        return hasZero ? size + 1 : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+        hasZero = false;
+    }
+
+    /**
+     * @return the values in the set, in no particular order
+     */
+    public long[] toArray() {
+        long[] values = new long[size()];
+        int n = 0;
+        if (hasZero)
+            values[n++] = 0;
+        for (long value : table) {
+            if (value != 0)
+                values[n++] = value;
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        long[] values = toArray();
+        Arrays.sort(values);
+        return Arrays.toString(values);
+    }
+}
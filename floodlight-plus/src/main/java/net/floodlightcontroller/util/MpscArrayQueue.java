@@ -0,0 +1,125 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for any number of producer threads and a
+ * single consumer thread.
+ *
+ * Every slot of the ring carries a sequence number that says whose turn it
+ * is: a producer claims the slot for position p by moving the tail from p
+ * to p + 1 once the slot's sequence is p, stores its element and then sets
+ * the sequence to p + 1.  The consumer takes the element once it sees that
+ * sequence, and hands the slot to the producer of the next lap by setting
+ * it to p + capacity.  Producers only contend on the tail, and never wait
+ * for each other except for the instant between claiming a slot and
+ * publishing into it.
+ *
+ * @param <E> the type of the elements
+ */
+public class MpscArrayQueue<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    /** Only written by the consumer */
+    private volatile long head;
+
+    /**
+     * @param capacity the most elements the queue holds, rounded up to a
+     * power of two
+     */
+    public MpscArrayQueue(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Add an element at the tail of the queue.  Safe to call from any
+     * thread.
+     * @return false if the queue is full
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        while (true) {
+            long t = tail.get();
+            int slot = (int) t & mask;
+            long seq = sequences.get(slot);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    elements.lazySet(slot, e);
+                    sequences.set(slot, t + 1);
+                    return true;
+                }
+            } else if (seq < t) {
+                // The consumer has not taken the element of the last lap
+                return false;
+            }
+            // Another producer claimed the slot first
+        }
+    }
+
+    /**
+     * Take the element at the head of the queue.  Must only be called from
+     * the consumer thread.
+     * @return the element, or null if the queue is empty or the producer
+     * of the next element has not finished adding it
+     */
+    public E poll() {
+        long h = head;
+        int slot = (int) h & mask;
+        if (sequences.get(slot) != h + 1)
+            return null;
+        E e = elements.get(slot);
+        elements.lazySet(slot, null);
+        sequences.lazySet(slot, h + mask + 1);
+        head = h + 1;
+        return e;
+    }
+
+    /**
+     * @return the number of elements in the queue.  Only an estimate while
+     * other threads change it.
+     */
+    public int size() {
+        long size = tail.get() - head;
+        if (size < 0)
+            return 0;
+        return (int) Math.min(size, capacity());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
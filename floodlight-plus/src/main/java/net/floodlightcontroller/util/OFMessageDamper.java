@@ -17,6 +17,7 @@
 package net.floodlightcontroller.util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -27,99 +28,85 @@ import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
 
 /**
- * Dampens OFMessages sent to an OF switch. A message is only written to 
- * a switch if the same message (as defined by .equals()) has not been written
- * in the last n milliseconds. Timer granularity is based on TimedCache
+ * Dampens OFMessages sent to an OF switch. A message is only written to
+ * a switch if the same message has not been written in the last n
+ * milliseconds.
+ *
+ * Messages are the same if they encode to the same bytes and are sent to
+ * the same IOFSwitch object.  Each write is reduced to a 64 bit fingerprint
+ * of the encoded message and the switch, and the time of the last write of
+ * each fingerprint is kept in an open addressing table of longs.  A
+ * fingerprint is looked for in a bucket of WAYS slots; a new one takes an
+ * empty slot, or else the slot of the fingerprint written longest ago.
+ * Nothing is allocated per write.
+ *
+ * The switch's hashCode() rather than its DPID goes into the fingerprint,
+ * so messages are not dampened when a switch disconnects and then
+ * reconnects.
+ *
  * @author gregor
  *
  */
 public class OFMessageDamper {
-    /**
-     * An entry in the TimedCache. A cache entry consists of the sent message
-     * as well as the switch to which the message was sent. 
-     * 
-     * NOTE: We currently use the full OFMessage object. To save space, we 
-     * could use a cryptographic hash (e.g., SHA-1). However, this would 
-     * obviously be more time-consuming.... 
-     * 
-     * We also store a reference to the actual IOFSwitch object and /not/
-     * the switch DPID. This way we are guarnteed to not dampen messages if
-     * a switch disconnects and then reconnects.
-     * 
-     * @author gregor
-     */
-    protected static class DamperEntry {
-        OFMessage msg;
-        IOFSwitch sw;
-        public DamperEntry(OFMessage msg, IOFSwitch sw) {
-            super();
-            this.msg = msg;
-            this.sw = sw;
-        }
-        /* (non-Javadoc)
-         * @see java.lang.Object#hashCode()
-         */
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((msg == null) ? 0 : msg.hashCode());
-            result = prime * result + ((sw == null) ? 0 : sw.hashCode());
-            return result;
-        }
-        /* (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null) return false;
-            if (getClass() != obj.getClass()) return false;
-            DamperEntry other = (DamperEntry) obj;
-            if (msg == null) {
-                if (other.msg != null) return false;
-            } else if (!msg.equals(other.msg)) return false;
-            if (sw == null) {
-                if (other.sw != null) return false;
-            } else if (!sw.equals(other.sw)) return false;
-            return true;
-        }
-        
-      
-    }
-    TimedCache<DamperEntry> cache;
+    /** Slots a fingerprint may be in */
+    protected static final int WAYS = 8;
+    private static final int LOCKS = 64;
+
+    /** Room to encode the largest OpenFlow message */
+    private static final ThreadLocal<ByteBuffer> encodeBuffer =
+            new ThreadLocal<ByteBuffer>() {
+                @Override
+                protected ByteBuffer initialValue() {
+                    return ByteBuffer.allocate(65536);
+                }
+            };
+
+    private final long[] fingerprints;
+    private final long[] lastWritten;
+    private final Object[] locks;
+    private final int bucketMask;
+    private final int timeout;
     EnumSet<OFType> msgTypesToCache;
     /**
-     * 
-     * @param capacity the maximum number of messages that should be 
+     *
+     * @param capacity the maximum number of messages that should be
      * kept
-     * @param typesToDampen The set of OFMessageTypes that should be 
+     * @param typesToDampen The set of OFMessageTypes that should be
      * dampened by this instance. Other types will be passed through
      * @param timeout The dampening timeout. A message will only be
      * written if the last write for the an equal message more than
-     * timeout ms ago. 
+     * timeout ms ago.
      */
-    public OFMessageDamper(int capacity, 
-                           Set<OFType> typesToDampen,  
+    public OFMessageDamper(int capacity,
+                           Set<OFType> typesToDampen,
                            int timeout) {
-        cache = new TimedCache<DamperEntry>(capacity, timeout);
+        int slots = WAYS;
+        while (slots < capacity)
+            slots <<= 1;
+        fingerprints = new long[slots];
+        lastWritten = new long[slots];
+        bucketMask = slots / WAYS - 1;
+        locks = new Object[Math.min(LOCKS, slots / WAYS)];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        this.timeout = timeout;
         msgTypesToCache = EnumSet.copyOf(typesToDampen);
-    }        
-    
+    }
+
     /**
      * write the messag to the switch according to our dampening settings
      * @param sw
      * @param msg
      * @param cntx
      * @return true if the message was written to the switch, false if
-     * the message was dampened. 
+     * the message was dampened.
      * @throws IOException
      */
     public boolean write(IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
                     throws IOException {
         return write(sw, msg, cntx, false);
     }
-    
+
     /**
      * write the messag to the switch according to our dampening settings
      * @param sw
@@ -127,30 +114,103 @@ public class OFMessageDamper {
      * @param cntx
      * @param flush true to flush the packet immidiately
      * @return true if the message was written to the switch, false if
-     * the message was dampened. 
+     * the message was dampened.
      * @throws IOException
      */
     public boolean write(IOFSwitch sw, OFMessage msg,
-                        FloodlightContext cntx, boolean flush) 
+                        FloodlightContext cntx, boolean flush)
             throws IOException {
-        if (! msgTypesToCache.contains(msg.getType())) {
-            sw.writeThrottled(msg, cntx);
-            if (flush) {
-                sw.flush();
-            }
-            return true;
+        if (msgTypesToCache.contains(msg.getType()) &&
+            update(fingerprint(sw.hashCode(), msg),
+                   System.currentTimeMillis())) {
+            // written recently. Dampening.
+            return false;
         }
-        
-        DamperEntry entry = new DamperEntry(msg, sw);
-        if (cache.update(entry)) {
-            // entry exists in cache. Dampening.
-            return false; 
-        } else {
-            sw.writeThrottled(msg, cntx);
-            if (flush) {
-                sw.flush();
+        sw.writeThrottled(msg, cntx);
+        if (flush) {
+            sw.flush();
+        }
+        return true;
+    }
+
+    /**
+     * @param switchHash the hashCode() of the switch the message is for
+     * @return a fingerprint of the message's encoding and the switch,
+     * which is never 0
+     */
+    protected static long fingerprint(int switchHash, OFMessage msg) {
+        ByteBuffer bb = encodeBuffer.get();
+        bb.clear();
+        msg.writeTo(bb);
+        long h = hash(bb, bb.position(), switchHash);
+        return (h == 0) ? 1 : h;
+    }
+
+    /**
+     * A 64 bit MurmurHash3 style hash of the first length bytes of a
+     * buffer
+     */
+    static long hash(ByteBuffer bb, int length, long seed) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h = seed;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long k = bb.getLong(i);
+            k *= c1;
+            k = Long.rotateLeft(k, 31);
+            k *= c2;
+            h ^= k;
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long k = 0;
+        for (int shift = 0; i < length; i++, shift += 8)
+            k |= (bb.get(i) & 0xffL) << shift;
+        k *= c1;
+        k = Long.rotateLeft(k, 31);
+        k *= c2;
+        h ^= k;
+        h ^= length;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Record a write unless the same fingerprint was written within the
+     * timeout
+     * @param fingerprint the write
+     * @param now the current time in milliseconds
+     * @return true if the write should be dampened
+     */
+    protected boolean update(long fingerprint, long now) {
+        // the high bits choose the bucket; the low bits went into the
+        // hash's last multiply
+        int bucket = (int) (fingerprint >>> 32) & bucketMask;
+        int first = bucket * WAYS;
+        synchronized (locks[bucket & (locks.length - 1)]) {
+            int victim = first;
+            long oldest = Long.MAX_VALUE;
+            for (int i = first; i < first + WAYS; i++) {
+                if (fingerprints[i] == fingerprint) {
+                    if (now - lastWritten[i] <= timeout)
+                        return true;
+                    lastWritten[i] = now;
+                    return false;
+                }
+                long written = (fingerprints[i] == 0) ? Long.MIN_VALUE
+                                                      : lastWritten[i];
+                if (written < oldest) {
+                    oldest = written;
+                    victim = i;
+                }
             }
-            return true;
+            fingerprints[victim] = fingerprint;
+            lastWritten[victim] = now;
+            return false;
         }
     }
 }
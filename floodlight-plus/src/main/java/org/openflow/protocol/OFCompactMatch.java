@@ -0,0 +1,781 @@
+package org.openflow.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.openflow.protocol.OFMatch.OFMatchType;
+import org.openflow.util.HexString;
+
+/**
+ * An OXM match stored in fixed slots instead of a list of
+ * {@link OFMatchField} objects.  Every OpenFlow basic field has a primitive
+ * slot indexed by its OXM field number, and a 64-bit bitmap records which
+ * fields are present and which of those are masked, so reading, setting and
+ * clearing a field take constant time and never allocate.  Values are held
+ * big-endian in the low bytes of a long; the 16-byte IPv6 fields use a
+ * second slot for their last 8 bytes.
+ *
+ * An instance may be reused: {@link #loadFromPacket} clears it first, and
+ * hashing, equality and wire encoding only look at the fields present.
+ * Fields are encoded in OXM field number order, which satisfies the OXM
+ * prerequisite ordering.
+ */
+public class OFCompactMatch implements Cloneable {
+    /** Number of OpenFlow basic fields */
+    public static final int FIELD_COUNT = OFOXMFieldType.values().length;
+
+    /** Payload length of each field, and the bits a value may use */
+    private static final int[] WIDTH = new int[FIELD_COUNT];
+    private static final long[] WIDTH_MASK = new long[FIELD_COUNT];
+    /** Second slots for the last 8 bytes of 16-byte fields */
+    private static final int[] SECOND_SLOT = new int[FIELD_COUNT];
+    private static final int SLOT_COUNT;
+    static {
+        int slot = FIELD_COUNT;
+        for (OFOXMFieldType type : OFOXMFieldType.values()) {
+            int f = type.getValue();
+            int width = type.getPayloadLength();
+            WIDTH[f] = width;
+            WIDTH_MASK[f] = (width >= 8) ? -1L : (1L << (8 * width)) - 1;
+            SECOND_SLOT[f] = (width > 8) ? slot++ : -1;
+        }
+        SLOT_COUNT = slot;
+    }
+
+    protected long present;
+    protected long masked;
+    protected final long[] values;
+    protected final long[] masks;
+
+    /**
+     * Create a match that matches everything.
+     */
+    public OFCompactMatch() {
+        this.values = new long[SLOT_COUNT];
+        this.masks = new long[SLOT_COUNT];
+    }
+
+    /**
+     * Remove every field, so the match matches everything.
+     */
+    public OFCompactMatch clear() {
+        long bits = present;
+        while (bits != 0) {
+            int f = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            clearSlots(f);
+        }
+        present = 0;
+        masked = 0;
+        return this;
+    }
+
+    /**
+     * Remove a field.
+     */
+    public OFCompactMatch clear(OFOXMFieldType type) {
+        int f = type.getValue();
+        clearSlots(f);
+        present &= ~(1L << f);
+        masked &= ~(1L << f);
+        return this;
+    }
+
+    private void clearSlots(int f) {
+        values[f] = 0;
+        masks[f] = 0;
+        int s = SECOND_SLOT[f];
+        if (s >= 0) {
+            values[s] = 0;
+            masks[s] = 0;
+        }
+    }
+
+    /**
+     * Check if a particular match field exists
+     */
+    public boolean fieldExists(OFOXMFieldType type) {
+        return (present & (1L << type.getValue())) != 0;
+    }
+
+    /**
+     * Check if a particular match field exists and is masked
+     */
+    public boolean isMasked(OFOXMFieldType type) {
+        return (masked & (1L << type.getValue())) != 0;
+    }
+
+    /**
+     * @return bitmap of the fields present, by OXM field number
+     */
+    public long getPresentFields() {
+        return present;
+    }
+
+    /**
+     * @return bitmap of the fields that are masked, by OXM field number
+     */
+    public long getMaskedFields() {
+        return masked;
+    }
+
+    /**
+     * Get the value of a field of up to 8 bytes, or of the first 8 bytes of
+     * a longer field.
+     * @return the value, or 0 if the field is not present
+     */
+    public long getValue(OFOXMFieldType type) {
+        return values[type.getValue()];
+    }
+
+    /**
+     * Get the mask of a field of up to 8 bytes, or of the first 8 bytes of a
+     * longer field.
+     * @return the mask, with every bit of the field set if the field is not
+     *         masked, or 0 if the field is not present
+     */
+    public long getMask(OFOXMFieldType type) {
+        int f = type.getValue();
+        if ((masked & (1L << f)) != 0) return masks[f];
+        if ((present & (1L << f)) != 0) return WIDTH_MASK[f];
+        return 0;
+    }
+
+    /**
+     * Set a field of up to 8 bytes to an exact value.
+     */
+    public OFCompactMatch set(OFOXMFieldType type, long value) {
+        int f = type.getValue();
+        values[f] = value & WIDTH_MASK[f];
+        masks[f] = 0;
+        present |= 1L << f;
+        masked &= ~(1L << f);
+        return this;
+    }
+
+    /**
+     * Set a field of up to 8 bytes to a masked value.  As with
+     * {@link OFMatchField}, bits of the value outside the mask are cleared
+     * and a mask of 0 means an exact match.
+     */
+    public OFCompactMatch set(OFOXMFieldType type, long value, long mask) {
+        int f = type.getValue();
+        mask &= WIDTH_MASK[f];
+        if (mask == 0) return set(type, value);
+        values[f] = value & mask;
+        masks[f] = mask;
+        present |= 1L << f;
+        masked |= 1L << f;
+        return this;
+    }
+
+    /**
+     * Set a field of any length from its wire bytes.
+     * @param mask mask bytes, or null for an exact match
+     */
+    public OFCompactMatch set(OFOXMFieldType type, byte[] value, byte[] mask) {
+        int width = type.getPayloadLength();
+        if (value.length != width ||
+            (mask != null && mask.length != width))
+            throw new IllegalArgumentException("Expected " + width +
+                    " bytes for match field " + type.getName());
+        int f = type.getValue();
+        int s = SECOND_SLOT[f];
+        int first = Math.min(width, 8);
+        long v = pack(value, 0, first), m = 0;
+        long v2 = 0, m2 = 0;
+        if (mask != null) m = pack(mask, 0, first);
+        if (s >= 0) {
+            v2 = pack(value, 8, width - 8);
+            if (mask != null) m2 = pack(mask, 8, width - 8);
+        }
+        if (m == 0 && m2 == 0) {
+            set(type, v);
+            if (s >= 0) values[s] = v2;
+        } else {
+            set(type, v, m);
+            masks[f] = m;
+            values[f] = v & m;
+            masked |= 1L << f;
+            if (s >= 0) {
+                values[s] = v2 & m2;
+                masks[s] = m2;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Get the wire bytes of a field.  This allocates; use
+     * {@link #getValue} for fields of up to 8 bytes.
+     * @return the value, or null if the field is not present
+     */
+    public byte[] getBytes(OFOXMFieldType type) {
+        if (!fieldExists(type)) return null;
+        return slotBytes(type, values);
+    }
+
+    /**
+     * Get the wire bytes of the mask of a field.
+     * @return the mask, or null if the field is not present or not masked
+     */
+    public byte[] getMaskBytes(OFOXMFieldType type) {
+        if (!isMasked(type)) return null;
+        return slotBytes(type, masks);
+    }
+
+    private byte[] slotBytes(OFOXMFieldType type, long[] slots) {
+        int width = type.getPayloadLength();
+        int f = type.getValue();
+        byte[] bytes = new byte[width];
+        int first = Math.min(width, 8);
+        unpack(slots[f], bytes, 0, first);
+        if (SECOND_SLOT[f] >= 0)
+            unpack(slots[SECOND_SLOT[f]], bytes, 8, width - 8);
+        return bytes;
+    }
+
+    /*
+     * Accessors for the fields set from packets
+     */
+
+    public int getInPort() {
+        if (!fieldExists(OFOXMFieldType.IN_PORT))
+            return OFPort.OFPP_ANY.getValue();
+        return (int) values[OFOXMFieldType.IN_PORT.getValue()];
+    }
+
+    public OFCompactMatch setInPort(int inPort) {
+        return set(OFOXMFieldType.IN_PORT, inPort);
+    }
+
+    /**
+     * @return destination MAC address in the low 48 bits
+     */
+    public long getDataLayerDestination() {
+        return values[OFOXMFieldType.ETH_DST.getValue()];
+    }
+
+    public OFCompactMatch setDataLayerDestination(long mac) {
+        return set(OFOXMFieldType.ETH_DST, mac);
+    }
+
+    /**
+     * @return source MAC address in the low 48 bits
+     */
+    public long getDataLayerSource() {
+        return values[OFOXMFieldType.ETH_SRC.getValue()];
+    }
+
+    public OFCompactMatch setDataLayerSource(long mac) {
+        return set(OFOXMFieldType.ETH_SRC, mac);
+    }
+
+    public short getDataLayerType() {
+        return (short) values[OFOXMFieldType.ETH_TYPE.getValue()];
+    }
+
+    public OFCompactMatch setDataLayerType(short dataLayerType) {
+        return set(OFOXMFieldType.ETH_TYPE, dataLayerType);
+    }
+
+    /**
+     * @return vlan tag without the VLAN present bit set
+     */
+    public short getDataLayerVirtualLan() {
+        if (!fieldExists(OFOXMFieldType.VLAN_VID))
+            return OFVlanId.OFPVID_NONE.getValue();
+        return (short) (values[OFOXMFieldType.VLAN_VID.getValue()] & 0xfff);
+    }
+
+    /**
+     * @param vlan VLAN ID without the VLAN present bit set
+     */
+    public OFCompactMatch setDataLayerVirtualLan(short vlan) {
+        return set(OFOXMFieldType.VLAN_VID,
+                   vlan | OFVlanId.OFPVID_PRESENT.getValue());
+    }
+
+    public byte getNetworkProtocol() {
+        return (byte) values[OFOXMFieldType.IP_PROTO.getValue()];
+    }
+
+    public OFCompactMatch setNetworkProtocol(byte networkProtocol) {
+        return set(OFOXMFieldType.IP_PROTO, networkProtocol);
+    }
+
+    public int getNetworkSource() {
+        return (int) values[OFOXMFieldType.IPV4_SRC.getValue()];
+    }
+
+    public OFCompactMatch setNetworkSource(int networkSource) {
+        return set(OFOXMFieldType.IPV4_SRC, networkSource);
+    }
+
+    public int getNetworkDestination() {
+        return (int) values[OFOXMFieldType.IPV4_DST.getValue()];
+    }
+
+    public OFCompactMatch setNetworkDestination(int networkDestination) {
+        return set(OFOXMFieldType.IPV4_DST, networkDestination);
+    }
+
+    /**
+     * @return source port of the transport protocol in ip_proto, or 0
+     */
+    public short getTransportSource() {
+        OFOXMFieldType type = transportField(getNetworkProtocol(), true);
+        return (type == null) ? 0 : (short) values[type.getValue()];
+    }
+
+    /**
+     * @return destination port of the transport protocol in ip_proto, or 0
+     */
+    public short getTransportDestination() {
+        OFOXMFieldType type = transportField(getNetworkProtocol(), false);
+        return (type == null) ? 0 : (short) values[type.getValue()];
+    }
+
+    private static OFOXMFieldType transportField(byte networkProtocol,
+                                                 boolean source) {
+        switch (networkProtocol) {
+            case OFMatch.IP_PROTO_TCP:
+                return source ? OFOXMFieldType.TCP_SRC : OFOXMFieldType.TCP_DST;
+            case OFMatch.IP_PROTO_UDP:
+                return source ? OFOXMFieldType.UDP_SRC : OFOXMFieldType.UDP_DST;
+            case OFMatch.IP_PROTO_SCTP:
+                return source ? OFOXMFieldType.SCTP_SRC : OFOXMFieldType.SCTP_DST;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Initializes this match with the fields of a packet, as
+     * {@link OFMatch#loadFromPacket} does, without allocating.  Unlike
+     * OFMatch, the eth_type of a VLAN tagged frame is the encapsulated type
+     * and the priority goes in vlan_pcp, as OXM requires.  A truncated packet
+     * yields the fields that fit.
+     *
+     * @param packetData the packet's data
+     * @param inPort the port the packet arrived on
+     */
+    public OFCompactMatch loadFromPacket(byte[] packetData, int inPort) {
+        return loadFromPacket(packetData, 0, packetData.length, inPort);
+    }
+
+    /**
+     * Initializes this match with the fields of a packet that is part of a
+     * larger buffer.
+     *
+     * @param data buffer holding the packet
+     * @param offset offset of the packet in the buffer
+     * @param length length of the packet
+     * @param inPort the port the packet arrived on
+     */
+    public OFCompactMatch loadFromPacket(byte[] data, int offset, int length,
+                                         int inPort) {
+        clear();
+        setInPort(inPort);
+        int end = offset + length;
+        if (length < 14) return this;
+
+        set(OFOXMFieldType.ETH_DST, pack(data, offset, 6));
+        set(OFOXMFieldType.ETH_SRC, pack(data, offset + 6, 6));
+        short dataLayerType = getShort(data, offset + 12);
+        int pos = offset + 14;
+
+        if (dataLayerType == OFMatch.ETH_TYPE_VLAN) {
+            if (pos + 4 > end) {
+                setDataLayerType(dataLayerType);
+                return this;
+            }
+            short tci = getShort(data, pos);
+            setDataLayerVirtualLan((short) (tci & 0xfff));
+            set(OFOXMFieldType.VLAN_PCP, (tci >> 13) & 0x7);
+            dataLayerType = getShort(data, pos + 2);
+            pos += 4;
+        }
+        setDataLayerType(dataLayerType);
+
+        byte networkProtocol;
+        switch (dataLayerType) {
+            case OFMatch.ETH_TYPE_IPV4:
+                if (pos + 20 > end) return this;
+                int transportOffset = pos + (data[pos] & 0xf) * 4;
+                byte tos = data[pos + 1];
+                set(OFOXMFieldType.IP_DSCP, (tos >> 2) & 0x3f);
+                set(OFOXMFieldType.IP_ECN, tos & 0x3);
+                networkProtocol = data[pos + 9];
+                setNetworkProtocol(networkProtocol);
+                setNetworkSource(getInt(data, pos + 12));
+                setNetworkDestination(getInt(data, pos + 16));
+                pos = transportOffset;
+                break;
+
+            case OFMatch.ETH_TYPE_ARP:
+                if (pos + 8 > end) return this;
+                set(OFOXMFieldType.ARP_OP, getShort(data, pos + 6) & 0xff);
+                if (getShort(data, pos + 2) == 0x800 && data[pos + 5] == 4 &&
+                    pos + 28 <= end) {
+                    set(OFOXMFieldType.ARP_SPA, getInt(data, pos + 14));
+                    set(OFOXMFieldType.ARP_TPA, getInt(data, pos + 24));
+                }
+                return this;
+
+            default:
+                return this;
+        }
+
+        switch (networkProtocol) {
+            case OFMatch.IP_PROTO_ICMP:
+                if (pos + 2 > end) break;
+                set(OFOXMFieldType.ICMPV4_TYPE, data[pos]);
+                set(OFOXMFieldType.ICMPV4_CODE, data[pos + 1]);
+                break;
+            case OFMatch.IP_PROTO_TCP:
+            case OFMatch.IP_PROTO_UDP:
+            case OFMatch.IP_PROTO_SCTP:
+                if (pos + 4 > end) break;
+                set(transportField(networkProtocol, true), getShort(data, pos));
+                set(transportField(networkProtocol, false),
+                    getShort(data, pos + 2));
+                break;
+            default:
+                break;
+        }
+        return this;
+    }
+
+    /*
+     * Wire format
+     */
+
+    /**
+     * @return length of the match excluding padding
+     */
+    public short getMatchLength() {
+        int length = 4;
+        long bits = present;
+        while (bits != 0) {
+            int f = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            int width = WIDTH[f];
+            length += 4 + (((masked & (1L << f)) != 0) ? 2 * width : width);
+        }
+        return (short) length;
+    }
+
+    /**
+     * @return length of the match including padding
+     */
+    public short getLength() {
+        return (short) (8 * ((getMatchLength() + 7) / 8));
+    }
+
+    public void writeTo(ByteBuffer data) {
+        int start = data.position();
+        data.putShort((short) OFMatchType.OXM.ordinal());
+        data.putShort((short) 0);
+        long bits = present;
+        while (bits != 0) {
+            int f = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            int width = WIDTH[f];
+            boolean hasMask = (masked & (1L << f)) != 0;
+            data.putInt((OFMatch.OFMatchClass.OPENFLOW_BASIC.getValue() << 16) |
+                        (f << 9) | (hasMask ? 0x100 : 0) |
+                        (hasMask ? 2 * width : width));
+            writeSlot(data, values, f, width);
+            if (hasMask) writeSlot(data, masks, f, width);
+        }
+        int matchLength = data.position() - start;
+        data.putShort(start + 2, (short) matchLength);
+        for (int pad = 8 * ((matchLength + 7) / 8) - matchLength; pad > 0; pad--)
+            data.put((byte) 0);
+    }
+
+    private static void writeSlot(ByteBuffer data, long[] slots, int f,
+                                  int width) {
+        long v = slots[f];
+        switch (width) {
+            case 1:
+                data.put((byte) v);
+                break;
+            case 2:
+                data.putShort((short) v);
+                break;
+            case 4:
+                data.putInt((int) v);
+                break;
+            case 8:
+                data.putLong(v);
+                break;
+            case 6:
+                data.putShort((short) (v >>> 32));
+                data.putInt((int) v);
+                break;
+            case 3:
+                data.put((byte) (v >>> 16));
+                data.putShort((short) v);
+                break;
+            default:
+                data.putLong(v);
+                data.putLong(slots[SECOND_SLOT[f]]);
+                break;
+        }
+    }
+
+    /**
+     * Read an OXM match, replacing the fields of this match.  Fields of
+     * other classes are skipped.  A standard (OpenFlow 1.0 style) match is
+     * read through {@link OFMatch}.
+     */
+    public void readFrom(ByteBuffer data) {
+        int start = data.position();
+        short type = data.getShort();
+        if (type != OFMatchType.OXM.ordinal()) {
+            data.position(start);
+            OFMatch match = new OFMatch();
+            match.readFrom(data);
+            copyFrom(match);
+            return;
+        }
+
+        clear();
+        int matchLength = data.getShort() & 0xffff;
+        int end = start + matchLength;
+        while (data.position() + 4 <= end) {
+            int header = data.getInt();
+            int length = header & 0xff;
+            int next = data.position() + length;
+            OFOXMFieldType field = ((header >>> 16) ==
+                    (OFMatch.OFMatchClass.OPENFLOW_BASIC.getValue() & 0xffff))
+                    ? OFOXMFieldType.valueOf((byte) ((header >> 9) & 0x7f))
+                    : null;
+            if (field != null) {
+                int width = field.getPayloadLength();
+                boolean hasMask = (header & 0x100) != 0;
+                if (length == (hasMask ? 2 * width : width))
+                    readField(data, field, width, hasMask);
+            }
+            data.position(next);
+        }
+        data.position(start + 8 * ((matchLength + 7) / 8));
+    }
+
+    private void readField(ByteBuffer data, OFOXMFieldType type, int width,
+                           boolean hasMask) {
+        int f = type.getValue();
+        int s = SECOND_SLOT[f];
+        long v = readSlot(data, Math.min(width, 8));
+        long v2 = (s >= 0) ? readSlot(data, width - 8) : 0;
+        long m = -1, m2 = -1;
+        if (hasMask) {
+            m = readSlot(data, Math.min(width, 8));
+            m2 = (s >= 0) ? readSlot(data, width - 8) : 0;
+        }
+        if (!hasMask || (m == 0 && (s < 0 || m2 == 0))) {
+            set(type, v);
+            if (s >= 0) values[s] = v2;
+        } else {
+            values[f] = v & m;
+            masks[f] = m;
+            present |= 1L << f;
+            masked |= 1L << f;
+            if (s >= 0) {
+                values[s] = v2 & m2;
+                masks[s] = m2;
+            }
+        }
+    }
+
+    private static long readSlot(ByteBuffer data, int width) {
+        switch (width) {
+            case 1:
+                return data.get() & 0xffL;
+            case 2:
+                return data.getShort() & 0xffffL;
+            case 4:
+                return data.getInt() & 0xffffffffL;
+            case 8:
+                return data.getLong();
+            default:
+                long v = 0;
+                for (int i = 0; i < width; i++)
+                    v = (v << 8) | (data.get() & 0xff);
+                return v;
+        }
+    }
+
+    /*
+     * Conversion to and from OFMatch
+     */
+
+    /**
+     * Replace the fields of this match with those of an OFMatch.
+     */
+    public OFCompactMatch copyFrom(OFMatch match) {
+        clear();
+        List<OFMatchField> fields = match.getMatchFields();
+        if (fields == null) return this;
+        for (OFMatchField field : fields) {
+            OFOXMFieldType type = field.getType();
+            Object value = field.getValue();
+            Object mask = field.getMask();
+            if (value instanceof byte[]) {
+                set(type, (byte[]) value, (byte[]) mask);
+            } else if (mask instanceof Number) {
+                set(type, ((Number) value).longValue(),
+                    ((Number) mask).longValue());
+            } else {
+                set(type, ((Number) value).longValue());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Replace the fields of this match with those of another.
+     */
+    public OFCompactMatch copyFrom(OFCompactMatch other) {
+        System.arraycopy(other.values, 0, values, 0, SLOT_COUNT);
+        System.arraycopy(other.masks, 0, masks, 0, SLOT_COUNT);
+        present = other.present;
+        masked = other.masked;
+        return this;
+    }
+
+    /**
+     * @return an OFMatch with the same fields, in OXM field number order
+     */
+    public OFMatch toOFMatch() {
+        OFMatch match = new OFMatch();
+        long bits = present;
+        while (bits != 0) {
+            int f = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            OFOXMFieldType type = OFOXMFieldType.valueOf((byte) f);
+            boolean hasMask = (masked & (1L << f)) != 0;
+            switch (type.getPayloadLength()) {
+                case 1:
+                case 2:
+                case 4:
+                case 8:
+                    if (hasMask)
+                        match.setField(type, values[f], masks[f]);
+                    else
+                        match.setField(type, values[f]);
+                    break;
+                default:
+                    if (hasMask)
+                        match.setField(type, getBytes(type),
+                                       getMaskBytes(type));
+                    else
+                        match.setField(type, getBytes(type));
+                    break;
+            }
+        }
+        return match;
+    }
+
+    /*
+     * Object methods
+     */
+
+    @Override
+    public int hashCode() {
+        long h = present * 31 + masked;
+        long bits = present;
+        while (bits != 0) {
+            int f = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            h = h * 1000003 + values[f];
+            if ((masked & (1L << f)) != 0) h = h * 1000003 + masks[f];
+            int s = SECOND_SLOT[f];
+            if (s >= 0) h = h * 1000003 + values[s] * 31 + masks[s];
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof OFCompactMatch)) {
+            return false;
+        }
+        OFCompactMatch other = (OFCompactMatch) obj;
+        if (present != other.present || masked != other.masked) {
+            return false;
+        }
+        long bits = present;
+        while (bits != 0) {
+            int f = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            if (values[f] != other.values[f] || masks[f] != other.masks[f])
+                return false;
+            int s = SECOND_SLOT[f];
+            if (s >= 0 && (values[s] != other.values[s] ||
+                           masks[s] != other.masks[s]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public OFCompactMatch clone() {
+        return new OFCompactMatch().copyFrom(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("OFCompactMatch [");
+        long bits = present;
+        while (bits != 0) {
+            int f = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            OFOXMFieldType type = OFOXMFieldType.valueOf((byte) f);
+            sb.append(type.getName()).append('=');
+            if (type.getPayloadLength() > 8 || type.getPayloadLength() == 6)
+                sb.append(HexString.toHexString(getBytes(type)));
+            else
+                sb.append(values[f]);
+            if ((masked & (1L << f)) != 0)
+                sb.append('/').append(HexString.toHexString(getMaskBytes(type)));
+            if (bits != 0) sb.append(", ");
+        }
+        return sb.append(']').toString();
+    }
+
+    /*
+     * Helpers
+     */
+
+    private static long pack(byte[] data, int offset, int width) {
+        long v = 0;
+        for (int i = 0; i < width; i++)
+            v = (v << 8) | (data[offset + i] & 0xff);
+        return v;
+    }
+
+    private static void unpack(long v, byte[] data, int offset, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            data[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static short getShort(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8) |
+                        (data[offset + 1] & 0xff));
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) |
+               ((data[offset + 1] & 0xff) << 16) |
+               ((data[offset + 2] & 0xff) << 8) |
+               (data[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,19 @@
+package org.openflow.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message that can be read without copying its variable length body.
+ * {@link #readFromView} reads the fixed part of the message like readFrom
+ * does, but keeps a view of the buffer for the body and only decodes or
+ * copies it when the body is asked for.  The caller must not change the
+ * bytes of the buffer while the message is in use.
+ */
+public interface OFLazyMessage {
+    /**
+     * Read the message at the position of data, leaving the body in data,
+     * and advance the position past the message.
+     * @param data a buffer holding the whole message
+     */
+    public void readFromView(ByteBuffer data);
+}
@@ -12,7 +12,7 @@ import org.openflow.util.U8;
  *
  * @author David Erickson (daviderickson@cs.stanford.edu) - Feb 8, 2010
  */
-public class OFPacketIn extends OFMessage {
+public class OFPacketIn extends OFMessage implements OFLazyMessage {
     public static int MINIMUM_LENGTH = 32;
 
     public enum OFPacketInReason {
@@ -26,6 +26,8 @@ public class OFPacketIn extends OFMessage {
     protected long cookie;    
     protected OFMatch match;
     protected byte[] packetData;
+    // packet data not copied out yet, if read by readFromView
+    protected volatile ByteBuffer packetDataView;
 
     public OFPacketIn() {
         super();
@@ -106,16 +108,54 @@ public class OFPacketIn extends OFMessage {
      * @return
      */
     public byte[] getPacketData() {
+        if (this.packetDataView == null)
+            return this.packetData;
+        synchronized (this) {
+            ByteBuffer view = this.packetDataView;
+            if (view != null) {
+                byte[] data = new byte[view.remaining()];
+                view.duplicate().get(data);
+                this.packetData = data;
+                this.packetDataView = null;
+            }
+        }
         return this.packetData;
     }
 
+    /**
+     * Returns the length of the packet data, without copying it out of the
+     * buffer the message was read from
+     * @return
+     */
+    public int getPacketDataLength() {
+        ByteBuffer view = this.packetDataView;
+        if (view != null)
+            return view.remaining();
+        return (this.packetData == null) ? 0 : this.packetData.length;
+    }
+
+    /**
+     * Returns the packet data as a buffer positioned at its start.  If the
+     * message was read by {@link #readFromView} this is a view of the buffer
+     * it was read from, so the data is not copied; the buffer must not be
+     * modified.
+     * @return
+     */
+    public ByteBuffer getPacketDataBuffer() {
+        ByteBuffer view = this.packetDataView;
+        if (view != null)
+            return view.duplicate();
+        return (this.packetData == null) ? null : ByteBuffer.wrap(this.packetData);
+    }
+
     /**
      * Sets the packet data, and updates the length of this message
      * @param packetData
      */
     public OFPacketIn setPacketData(byte[] packetData) {
+        this.packetDataView = null;
         this.packetData = packetData;
-        this.length = U16.t(OFPacketIn.MINIMUM_LENGTH + packetData.length);
+        this.length = U16.t(OFPacketIn.MINIMUM_LENGTH + 2 + packetData.length);
         return this;
     }
 
@@ -167,6 +207,30 @@ public class OFPacketIn extends OFMessage {
 
     @Override
     public void readFrom(ByteBuffer data) {
+        readHeader(data);
+        // safeguard in case miss_send_len is left at default value of 128 bytes
+        this.packetData = new byte[Math.min(data.remaining(), getTotalLength())];
+        data.get(this.packetData);
+    }
+
+    /**
+     * Read the message, leaving the packet data in data until it is asked
+     * for.  The message may be read into again, so a pooled instance can be
+     * reused.
+     */
+    @Override
+    public void readFromView(ByteBuffer data) {
+        readHeader(data);
+        // safeguard in case miss_send_len is left at default value of 128 bytes
+        int dataLength = Math.min(data.remaining(), getTotalLength());
+        ByteBuffer view = data.slice();
+        view.limit(dataLength);
+        data.position(data.position() + dataLength);
+        this.packetData = null;
+        this.packetDataView = view;
+    }
+
+    private void readHeader(ByteBuffer data) {
         super.readFrom(data);
         this.bufferId = data.getInt();
         this.totalLength = data.getShort();
@@ -177,10 +241,7 @@ public class OFPacketIn extends OFMessage {
             this.match = new OFMatch();
         this.match.readFrom(data);
         data.getShort(); // pad
-
-        // safeguard in case miss_send_len is left at default value of 128 bytes
-        this.packetData = new byte[Math.min(data.remaining(), getTotalLength())];
-        data.get(this.packetData);
+        this.packetDataView = null;
     }
 
     @Override
@@ -193,7 +254,7 @@ public class OFPacketIn extends OFMessage {
         data.putLong(cookie);
         this.match.writeTo(data);
         data.putShort((short) 0x0); // pad
-        data.put(this.packetData);
+        data.put(getPacketData());
     }
 
     @Override
@@ -201,7 +262,7 @@ public class OFPacketIn extends OFMessage {
         final int prime = 283;
         int result = super.hashCode();
         result = prime * result + bufferId;
-        result = prime * result + Arrays.hashCode(packetData);
+        result = prime * result + Arrays.hashCode(getPacketData());
         result = prime * result + ((reason == null) ? 0 : reason.hashCode());
         result = prime * result + totalLength;
         result = prime * result + reason.ordinal();
@@ -225,7 +286,7 @@ public class OFPacketIn extends OFMessage {
         if (bufferId != other.bufferId) {
             return false;
         }
-        if (!Arrays.equals(packetData, other.packetData)) {
+        if (!Arrays.equals(getPacketData(), other.getPacketData())) {
             return false;
         }
         if (reason == null) {
@@ -271,7 +332,8 @@ public class OFPacketIn extends OFMessage {
     public void computeLength() {
         int l = MINIMUM_LENGTH - OFMatch.MINIMUM_LENGTH;
         l += match.getLength();
-        l += ((packetData != null) ? packetData.length : 0);
+        l += 2; // pad
+        l += getPacketDataLength();
         this.length = U16.t(l);
     }
 
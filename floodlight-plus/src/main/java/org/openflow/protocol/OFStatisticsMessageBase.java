@@ -16,13 +16,15 @@ import org.openflow.util.U16;
  * @author David Erickson (daviderickson@cs.stanford.edu) - Mar 27, 2010
  */
 public abstract class OFStatisticsMessageBase extends OFMessage implements
-        OFStatisticsFactoryAware {
+        OFStatisticsFactoryAware, OFLazyMessage {
     public static int MINIMUM_LENGTH = 16;
 
     protected OFStatisticsFactory statisticsFactory;
     protected OFStatisticsType statisticsType;
     protected short flags;
     protected List<? extends OFStatistics> statistics;
+    // body not parsed yet, if read by readFromView
+    protected volatile ByteBuffer statisticsData;
 
     /**
      * Construct a ofp_statistics_* message
@@ -63,6 +65,7 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
     }
 
     public OFStatistics getFirstStatistics() {
+        parseStatistics();
         if (statistics == null ) {
             throw new RuntimeException("No statistics statistics data available");
         }
@@ -76,6 +79,7 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
      * @param statistics the statistics to set
      */
     public void setStatistics(List<? extends OFStatistics> statistics) {
+        this.statisticsData = null;
         this.statistics = statistics;
     }
 
@@ -86,6 +90,27 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
 
     @Override
     public void readFrom(ByteBuffer data) {
+        readHeader(data);
+        this.statistics = statisticsFactory.parseStatistics(this.getType(),
+                this.statisticsType, data, super.getLengthU() - MINIMUM_LENGTH);
+    }
+
+    /**
+     * Read the header, leaving the statistics to be parsed when they are
+     * first asked for.
+     */
+    @Override
+    public void readFromView(ByteBuffer data) {
+        readHeader(data);
+        int bodyLength = super.getLengthU() - MINIMUM_LENGTH;
+        ByteBuffer body = data.slice();
+        body.limit(bodyLength);
+        data.position(data.position() + bodyLength);
+        this.statistics = null;
+        this.statisticsData = body;
+    }
+
+    private void readHeader(ByteBuffer data) {
         super.readFrom(data);
         this.statisticsType = OFStatisticsType.valueOf(data.getShort(), this
                 .getType());
@@ -93,12 +118,28 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
         data.getInt(); //pad
         if (this.statisticsFactory == null)
             throw new RuntimeException("OFStatisticsFactory not set");
-        this.statistics = statisticsFactory.parseStatistics(this.getType(),
-                this.statisticsType, data, super.getLengthU() - MINIMUM_LENGTH);
+        this.statisticsData = null;
+    }
+
+    /**
+     * Parse the statistics left by {@link #readFromView}, if any
+     */
+    protected void parseStatistics() {
+        if (statisticsData == null)
+            return;
+        synchronized (this) {
+            ByteBuffer body = statisticsData;
+            if (body == null)
+                return;
+            this.statistics = statisticsFactory.parseStatistics(this.getType(),
+                    this.statisticsType, body, body.remaining());
+            this.statisticsData = null;
+        }
     }
 
     @Override
     public void writeTo(ByteBuffer data) {
+        parseStatistics();
         super.writeTo(data);
         data.putShort(this.statisticsType.getTypeValue());
         data.putShort(this.flags);
@@ -112,6 +153,7 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
 
     @Override
     public int hashCode() {
+        parseStatistics();
         final int prime = 317;
         int result = super.hashCode();
         result = prime * result + flags;
@@ -134,6 +176,8 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
             return false;
         }
         OFStatisticsMessageBase other = (OFStatisticsMessageBase) obj;
+        parseStatistics();
+        other.parseStatistics();
         if (flags != other.flags) {
             return false;
         }
@@ -156,6 +200,7 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
 
     @Override
     public String toString() {
+        parseStatistics();
         return "OFStatisticsMessage [type=" + statisticsType + ", flags=" + flags + 
                 ", data=" + statistics + "]";
     }
@@ -165,6 +210,7 @@ public abstract class OFStatisticsMessageBase extends OFMessage implements
      */
     @Override
     public void computeLength() {
+        parseStatistics();
         int l = MINIMUM_LENGTH;
         if (statistics != null) {
             for (OFStatistics stat : statistics) {
@@ -34,6 +34,7 @@ public class OFStatisticsReply extends OFStatisticsMessageBase {
      * @return the statistics data
      */
     public List<? extends OFStatistics> getStatistics() {
+        parseStatistics();
         return this.statistics;
     }
 }
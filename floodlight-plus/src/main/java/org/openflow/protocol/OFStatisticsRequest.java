@@ -31,6 +31,7 @@ public class OFStatisticsRequest extends OFStatisticsMessageBase {
     }
 
     public OFStatistics getStatistics() {
+        parseStatistics();
         if (this.statistics == null)
             return null;
         else if (this.statistics.size() == 0)
@@ -43,6 +44,7 @@ public class OFStatisticsRequest extends OFStatisticsMessageBase {
      * @param statistics the statistics data to set
      */
     public OFStatisticsRequest setStatistics(OFStatistics statistics) {
+        this.statisticsData = null;
         this.statistics = Collections.singletonList(statistics);
         return this;
     }
@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.openflow.protocol.OFLazyMessage;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
@@ -99,6 +100,26 @@ public class BasicFactory implements OFMessageFactory, OFActionFactory,
         return results;
     }
 
+    @Override
+    public OFMessage parseMessage(ByteBuffer data, OFMessage message) {
+        int start = data.position();
+        int length = data.getShort(start + 2) & 0xffff;
+        if (message == null) {
+            message = getMessage(OFType.valueOf(data.get(start + 1)));
+        } else {
+            injectFactories(message);
+        }
+        if (message instanceof OFLazyMessage) {
+            ((OFLazyMessage) message).readFromView(data);
+        } else {
+            message.readFrom(data);
+        }
+        // skip what the message did not read, such as the body of
+        // un-implemented messages
+        data.position(start + length);
+        return message;
+    }
+
     protected void injectFactories(OFMessage ofm) {
         if (ofm instanceof OFActionFactoryAware) {
             ((OFActionFactoryAware)ofm).setActionFactory(this);
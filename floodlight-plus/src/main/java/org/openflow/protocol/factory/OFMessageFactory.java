@@ -39,6 +39,19 @@ public interface OFMessageFactory {
      */
     public List<OFMessage> parseMessages(ByteBuffer data, int limit);
 
+    /**
+     * Parse the one OFMessage that starts at the ByteBuffer's position, which
+     * the caller has checked is all in the ByteBuffer, and advance the
+     * position past it.  Messages that implement OFLazyMessage are read as
+     * views of the ByteBuffer, so it must not be changed while they are in
+     * use.
+     * @param data the ByteBuffer holding the message
+     * @param message an instance of the message's type to read into, or
+     *        null to create one
+     * @return the message
+     */
+    public OFMessage parseMessage(ByteBuffer data, OFMessage message);
+
     /**
      * Retrieves an OFInstructionFactory
      * @return an OFInstructionFactory
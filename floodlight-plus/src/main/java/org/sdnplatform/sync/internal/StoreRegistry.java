@@ -4,6 +4,7 @@ import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -19,6 +20,7 @@ import org.sdnplatform.sync.error.SyncException;
 import org.sdnplatform.sync.internal.store.IStorageEngine;
 import org.sdnplatform.sync.internal.store.InMemoryStorageEngine;
 import org.sdnplatform.sync.internal.store.JavaDBStorageEngine;
+import org.sdnplatform.sync.internal.store.LogStorageEngine;
 import org.sdnplatform.sync.internal.store.SynchronizingStorageEngine;
 import org.sdnplatform.sync.internal.util.ByteArray;
 import org.slf4j.Logger;
@@ -33,6 +35,20 @@ public class StoreRegistry {
     protected static final Logger logger =
             LoggerFactory.getLogger(StoreRegistry.class);
 
+    /**
+     * The storage engines available for persistent stores
+     */
+    public enum PersistentEngine {
+        /**
+         * Keep the store in a Java DB table
+         */
+        JAVADB,
+        /**
+         * Keep the store in an append-only log of memory-mapped files
+         */
+        LOG
+    }
+
     /**
      * The associated syncManager
      */
@@ -48,6 +64,17 @@ public class StoreRegistry {
      */
     private ConnectionPoolDataSource persistentDataSource; 
 
+    /**
+     * The engine for persistent stores with no engine of their own
+     */
+    private PersistentEngine defaultEngine = PersistentEngine.JAVADB;
+
+    /**
+     * The engine for particular persistent stores
+     */
+    private HashMap<String, PersistentEngine> storeEngines =
+            new HashMap<String, PersistentEngine>();
+
     /**
      * The storage engines that contain the locally-stored data
      */
@@ -110,7 +137,14 @@ public class StoreRegistry {
         }
                 
         IStorageEngine<ByteArray, byte[]> dstore;
-        if (persistent) {
+        if (persistent && getEngine(storeName) == PersistentEngine.LOG) {
+            Executor executor = null;
+            if (syncManager.getThreadPool() != null)
+                executor = syncManager.getThreadPool().getScheduledExecutor();
+            dstore = new LogStorageEngine(storeName,
+                             LogStorageEngine.getDirectory(dbPath, storeName),
+                             executor);
+        } else if (persistent) {
             if (persistentDataSource == null)
                 persistentDataSource = JavaDBStorageEngine.getDataSource(dbPath, false);
             dstore = new JavaDBStorageEngine(storeName, persistentDataSource);
@@ -124,6 +158,36 @@ public class StoreRegistry {
         return store;
     }
 
+    /**
+     * Set the engine for persistent stores registered after this call
+     * that have no engine of their own
+     * @param engine the engine
+     */
+    public synchronized void setDefaultEngine(PersistentEngine engine) {
+        defaultEngine = engine;
+    }
+
+    /**
+     * Set the engine for a persistent store, if it is registered after
+     * this call
+     * @param storeName the name of the store
+     * @param engine the engine
+     */
+    public synchronized void setEngine(String storeName,
+                                       PersistentEngine engine) {
+        storeEngines.put(storeName, engine);
+    }
+
+    /**
+     * Get the engine that a persistent store would be kept in
+     * @param storeName the name of the store
+     * @return the {@link PersistentEngine}
+     */
+    public synchronized PersistentEngine getEngine(String storeName) {
+        PersistentEngine engine = storeEngines.get(storeName);
+        return (engine != null) ? engine : defaultEngine;
+    }
+
     /**
      * Get a collection containing all the currently-registered stores
      * @return the {@link Collection<SynchronizingStorageEngine>}
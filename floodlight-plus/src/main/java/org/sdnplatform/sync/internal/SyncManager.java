@@ -2,6 +2,7 @@ package org.sdnplatform.sync.internal;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -27,6 +28,7 @@ import org.sdnplatform.sync.error.SyncException;
 import org.sdnplatform.sync.error.SyncRuntimeException;
 import org.sdnplatform.sync.error.UnknownStoreException;
 import org.sdnplatform.sync.internal.StoreRegistry.Hint;
+import org.sdnplatform.sync.internal.StoreRegistry.PersistentEngine;
 import org.sdnplatform.sync.internal.config.ClusterConfig;
 import org.sdnplatform.sync.internal.config.DelegatingCCProvider;
 import org.sdnplatform.sync.internal.config.FallbackCCProvider;
@@ -39,10 +41,12 @@ import org.sdnplatform.sync.internal.rpc.RPCService;
 import org.sdnplatform.sync.internal.rpc.TProtocolUtil;
 import org.sdnplatform.sync.internal.store.IStorageEngine;
 import org.sdnplatform.sync.internal.store.IStore;
+import org.sdnplatform.sync.internal.store.KeyHashTree;
 import org.sdnplatform.sync.internal.store.MappingStoreListener;
 import org.sdnplatform.sync.internal.store.SynchronizingStorageEngine;
 import org.sdnplatform.sync.internal.util.ByteArray;
 import org.sdnplatform.sync.internal.version.VectorClock;
+import org.sdnplatform.sync.thrift.SyncDigestMessage;
 import org.sdnplatform.sync.thrift.SyncMessage;
 import org.sdnplatform.sync.thrift.KeyedValues;
 import org.sdnplatform.sync.thrift.KeyedVersions;
@@ -101,6 +105,11 @@ public class SyncManager extends AbstractSyncManager {
      */
     private static final int ANTIENTROPY_INTERVAL = 5 * 60;
 
+    /**
+     * Hash tree for stores that are not known locally
+     */
+    private static final KeyHashTree EMPTY_HASH_TREE = new KeyHashTree();
+
     /**
      * Interval between configuration rescans
      */
@@ -210,7 +219,11 @@ public class SyncManager extends AbstractSyncManager {
     }
 
     /**
-     * Perform a synchronization with the node specified
+     * Perform a synchronization with the node specified.  This sends the
+     * root of the hash tree of each store; the nodes then exchange the
+     * hashes of the subtrees that differ until they reach the key ranges
+     * that differ, whose keys are offered by
+     * {@link #antientropy(Node, String, BitSet)}.
      */
     @LogMessageDoc(level="INFO",
                    message="[{id}->{id}] Synchronizing local state to remote node",
@@ -222,49 +235,75 @@ public class SyncManager extends AbstractSyncManager {
                     getLocalNodeId(), node.getNodeId());
 
         for (SynchronizingStorageEngine store : storeRegistry.values()) {
-            if (Scope.LOCAL.equals(store.getScope())) {
-                if (node.getDomainId() !=
-                        getClusterConfig().getNode().getDomainId())
-                    continue;
-            } else if (Scope.UNSYNCHRONIZED.equals(store.getScope())) {
-                continue;
-            }
-
-            IClosableIterator<Entry<ByteArray,
-                                  List<Versioned<byte[]>>>> entries =
-                    store.entries();
+            if (!shouldSynchronize(node, store)) continue;
+
+            SyncMessage bsm =
+                    TProtocolUtil.getTSyncDigestMessage(TProtocolUtil.
+                        getTStore(store.getName(), store.getScope(),
+                                  store.isPersistent()));
+            SyncDigestMessage sdm = bsm.getSyncDigest();
+            sdm.addToNodes(0);
+            sdm.addToHashes(store.getHashTree().getHash(0));
+            sdm.getHeader().setTransactionId(rpcService.getTransactionId());
             try {
-                SyncMessage bsm =
-                        TProtocolUtil.getTSyncOfferMessage(store.getName(),
-                                                           store.getScope(),
-                                                           store.isPersistent());
-                int count = 0;
-                while (entries.hasNext()) {
-                    if (!rpcService.isConnected(node.getNodeId())) return;
-
-                    Entry<ByteArray, List<Versioned<byte[]>>> pair =
-                            entries.next();
-                    KeyedVersions kv =
-                            TProtocolUtil.getTKeyedVersions(pair.getKey(),
-                                                            pair.getValue());
-                    bsm.getSyncOffer().addToVersions(kv);
-                    count += 1;
-                    if (count >= 50) {
-                        sendSyncOffer(node.getNodeId(), bsm);
-                        bsm.getSyncOffer().unsetVersions();
-                        count = 0;
-                    }
-                }
-                sendSyncOffer(node.getNodeId(), bsm);
+                rpcService.writeToNode(node.getNodeId(), bsm);
             } catch (InterruptedException e) {
                 // This can't really happen
                 throw new RuntimeException(e);
-            } finally {
-                entries.close();
             }
         }
     }
 
+    /**
+     * Offer the keys in the given leaf buckets of the hash tree of a store
+     * to the node specified
+     * @param node the node
+     * @param storeName the store
+     * @param buckets the leaf buckets, as returned by
+     * {@link KeyHashTree#getBucket(Object)}
+     */
+    public void antientropy(Node node, String storeName, BitSet buckets) {
+        if (!rpcService.isConnected(node.getNodeId())) return;
+
+        SynchronizingStorageEngine store = storeRegistry.get(storeName);
+        if (store == null || !shouldSynchronize(node, store)) return;
+
+        IClosableIterator<Entry<ByteArray,
+                              List<Versioned<byte[]>>>> entries =
+                store.entries();
+        try {
+            SyncMessage bsm =
+                    TProtocolUtil.getTSyncOfferMessage(store.getName(),
+                                                       store.getScope(),
+                                                       store.isPersistent());
+            int count = 0;
+            while (entries.hasNext()) {
+                if (!rpcService.isConnected(node.getNodeId())) return;
+
+                Entry<ByteArray, List<Versioned<byte[]>>> pair =
+                        entries.next();
+                if (!buckets.get(KeyHashTree.getBucket(pair.getKey())))
+                    continue;
+                KeyedVersions kv =
+                        TProtocolUtil.getTKeyedVersions(pair.getKey(),
+                                                        pair.getValue());
+                bsm.getSyncOffer().addToVersions(kv);
+                count += 1;
+                if (count >= 50) {
+                    sendSyncOffer(node.getNodeId(), bsm);
+                    bsm.getSyncOffer().unsetVersions();
+                    count = 0;
+                }
+            }
+            sendSyncOffer(node.getNodeId(), bsm);
+        } catch (InterruptedException e) {
+            // This can't really happen
+            throw new RuntimeException(e);
+        } finally {
+            entries.close();
+        }
+    }
+
     /**
      * Communicate with a random node and do a full synchronization of the
      * all the stores on each node that have the appropriate scope.
@@ -347,6 +386,18 @@ public class SyncManager extends AbstractSyncManager {
         return getStoreInternal(storeName);
     }
 
+    /**
+     * Get the hash tree of a store
+     * @param storeName the store name
+     * @return the {@link KeyHashTree}, which is empty if the store is not
+     * known
+     */
+    public KeyHashTree getHashTree(String storeName) {
+        SynchronizingStorageEngine store = storeRegistry.get(storeName);
+        if (store == null) return EMPTY_HASH_TREE;
+        return store.getHashTree();
+    }
+
     /**
      * Return the threadpool
      * @return the {@link IThreadPoolService}
@@ -466,6 +517,33 @@ public class SyncManager extends AbstractSyncManager {
         Map<String, String> config = context.getConfigParams(this);
         storeRegistry = new StoreRegistry(this, config.get("dbPath"));
 
+        String engineString = config.get("persistentEngine");
+        if (engineString != null) {
+            try {
+                storeRegistry.setDefaultEngine(
+                        PersistentEngine.valueOf(engineString.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new FloodlightModuleException("Unknown sync " +
+                        "manager persistent engine: " + engineString, e);
+            }
+        }
+
+        String logStoreString = config.get("logStores");
+        if (logStoreString != null) {
+            List<String> logStores = null;
+            try {
+                logStores =
+                        (new ObjectMapper()).readValue(logStoreString,
+                                         new TypeReference<List<String>>() {});
+            } catch (Exception e) {
+                throw new FloodlightModuleException("Failed to parse sync " +
+                        "manager log stores: " + logStoreString, e);
+            }
+            for (String s : logStores) {
+                storeRegistry.setEngine(s, PersistentEngine.LOG);
+            }
+        }
+
         String[] configProviders =
              {PropertyCCProvider.class.getName(),
               SyncStoreCCProvider.class.getName(),
@@ -669,6 +747,19 @@ public class SyncManager extends AbstractSyncManager {
         return store;
     }
 
+    /**
+     * Check whether a store should be synchronized to the node specified
+     * based on its scope
+     */
+    private boolean shouldSynchronize(Node node,
+                                      SynchronizingStorageEngine store) {
+        if (Scope.LOCAL.equals(store.getScope())) {
+            return node.getDomainId() ==
+                    getClusterConfig().getNode().getDomainId();
+        }
+        return !Scope.UNSYNCHRONIZED.equals(store.getScope());
+    }
+
     private void sendSyncOffer(short nodeId, SyncMessage bsm)
             throws InterruptedException {
         SyncOfferMessage som = bsm.getSyncOffer();
@@ -53,6 +53,7 @@ import org.sdnplatform.sync.thrift.RegisterRequestMessage;
 import org.sdnplatform.sync.thrift.RegisterResponseMessage;
 import org.sdnplatform.sync.thrift.SyncOfferMessage;
 import org.sdnplatform.sync.thrift.SyncRequestMessage;
+import org.sdnplatform.sync.thrift.SyncDigestMessage;
 import org.sdnplatform.sync.thrift.SyncValueMessage;
 import org.sdnplatform.sync.thrift.SyncValueResponseMessage;
 import org.slf4j.Logger;
@@ -308,6 +309,9 @@ public abstract class AbstractRPCChannelHandler
             case SYNC_REQUEST:
                 handleSyncRequest(bsm.getSyncRequest(), channel);
                 break;
+            case SYNC_DIGEST:
+                handleSyncDigest(bsm.getSyncDigest(), channel);
+                break;
             case CURSOR_REQUEST:
                 handleCursorRequest(bsm.getCursorRequest(), channel);
                 break;
@@ -485,6 +489,12 @@ public abstract class AbstractRPCChannelHandler
                           MessageType.SYNC_REQUEST, channel);
     }
 
+    protected void handleSyncDigest(SyncDigestMessage message,
+                                    Channel channel) {
+        unexpectedMessage(message.getHeader().getTransactionId(),
+                          MessageType.SYNC_DIGEST, channel);
+    }
+
     protected void handleFullSyncRequest(FullSyncRequestMessage request,
                                          Channel channel) {
         unexpectedMessage(request.getHeader().getTransactionId(),
@@ -1,6 +1,7 @@
 package org.sdnplatform.sync.internal.rpc;
 
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
@@ -30,6 +31,7 @@ import org.sdnplatform.sync.internal.config.Node;
 import org.sdnplatform.sync.internal.config.SyncStoreCCProvider;
 import org.sdnplatform.sync.internal.rpc.RPCService.NodeMessage;
 import org.sdnplatform.sync.internal.store.IStorageEngine;
+import org.sdnplatform.sync.internal.store.KeyHashTree;
 import org.sdnplatform.sync.internal.util.ByteArray;
 import org.sdnplatform.sync.internal.util.CryptoUtil;
 import org.sdnplatform.sync.internal.version.VectorClock;
@@ -371,6 +373,63 @@ public class RPCChannelHandler extends AbstractRPCChannelHandler {
         }
     }
 
+    @Override
+    protected void handleSyncDigest(SyncDigestMessage request,
+                                    Channel channel) {
+        if (!request.isSetNodes() || !request.isSetHashes()) return;
+        try {
+            final String storeName = request.getStore().getStoreName();
+            KeyHashTree tree = syncManager.getHashTree(storeName);
+            List<Integer> diff = tree.diff(request.getNodes(),
+                                           request.getHashes());
+            if (diff.size() == 0) return;
+
+            if (KeyHashTree.isLeaf(diff.get(0))) {
+                // Offer the keys in the buckets that differ.  This scans
+                // the store, so do it in a background task as with a full
+                // antientropy
+                final BitSet buckets = new BitSet(KeyHashTree.LEAVES);
+                for (int node : diff)
+                    buckets.set(node - KeyHashTree.FIRST_LEAF);
+                Runnable arTask = new Runnable() {
+                    @Override
+                    public void run() {
+                        syncManager.antientropy(remoteNode, storeName,
+                                                buckets);
+                    }
+                };
+                syncManager.getThreadPool().getScheduledExecutor().
+                    execute(arTask);
+                return;
+            }
+
+            // Reply with our hashes for the children of the subtrees that
+            // differ
+            SyncMessage bsm =
+                    TProtocolUtil.getTSyncDigestMessage(request.getStore());
+            SyncDigestMessage sdm = bsm.getSyncDigest();
+            sdm.getHeader().
+                setTransactionId(request.getHeader().getTransactionId());
+            for (int node : diff) {
+                int child = KeyHashTree.getFirstChild(node);
+                for (int i = 0; i < KeyHashTree.FANOUT; i++, child++) {
+                    sdm.addToNodes(child);
+                    sdm.addToHashes(tree.getHash(child));
+                }
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("[{}->{}] Sending SyncDigest with {} elements",
+                             new Object[]{getLocalNodeIdString(),
+                                          getRemoteNodeIdString(),
+                                          sdm.getNodesSize()});
+            }
+            channel.write(bsm);
+        } catch (Exception e) {
+            channel.write(getError(request.getHeader().getTransactionId(),
+                                   e, MessageType.SYNC_DIGEST));
+        }
+    }
+
     @Override
     protected void handleFullSyncRequest(FullSyncRequestMessage request,
                                          Channel channel) {
@@ -14,6 +14,7 @@ import org.sdnplatform.sync.thrift.KeyedValues;
 import org.sdnplatform.sync.thrift.KeyedVersions;
 import org.sdnplatform.sync.thrift.MessageType;
 import org.sdnplatform.sync.thrift.Store;
+import org.sdnplatform.sync.thrift.SyncDigestMessage;
 import org.sdnplatform.sync.thrift.SyncOfferMessage;
 import org.sdnplatform.sync.thrift.SyncValueMessage;
 import org.sdnplatform.sync.thrift.VersionedValue;
@@ -247,6 +248,23 @@ public class TProtocolUtil {
         return bsm;
     }
 
+    /**
+     * Get a partially-initialized {@link SyncDigestMessage} wrapped with a
+     * {@link SyncMessage}.
+     * @param store the thrift store associated with the message
+     * @return the {@link SyncMessage}
+     */
+    public static SyncMessage getTSyncDigestMessage(Store store) {
+        SyncMessage bsm = new SyncMessage(MessageType.SYNC_DIGEST);
+        AsyncMessageHeader header = new AsyncMessageHeader();
+        SyncDigestMessage sdm = new SyncDigestMessage();
+        sdm.setHeader(header);
+        sdm.setStore(store);
+
+        bsm.setSyncDigest(sdm);
+        return bsm;
+    }
+
     /**
      * Convert a thrift {@link org.sdnplatform.sync.thrift.VectorClock} into
      * a {@link VectorClock}.
@@ -105,4 +105,11 @@ public interface IStorageEngine<K, V> extends IStore<K, V> {
      * @param interval the interval in milliseconds
      */
     void setTombstoneInterval(int interval);
+
+    /**
+     * Get the hash tree over the keys in the store, which the store keeps
+     * up to date as its keys change
+     * @return the {@link KeyHashTree}
+     */
+    public KeyHashTree getHashTree();
 }
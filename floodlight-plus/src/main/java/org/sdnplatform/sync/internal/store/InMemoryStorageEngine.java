@@ -40,6 +40,7 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
 
     private final ConcurrentMap<K, List<Versioned<V>>> map;
     private final String name;
+    private final KeyHashTree hashTree = new KeyHashTree();
     
     /**
      * Interval in milliseconds before tombstones will be cleared.
@@ -55,6 +56,7 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
                                  ConcurrentMap<K, List<Versioned<V>>> map) {
         this.name = name;
         this.map = map;
+        hashTree.rebuild(entries());
     }
 
     // ******************
@@ -98,8 +100,11 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
             if(items == null) {
                 items = new ArrayList<Versioned<V>>();
                 items.add(new Versioned<V>(value.getValue(), version));
-                if (map.putIfAbsent(key, items) != null)
-                    continue;
+                synchronized(items) {
+                    if (map.putIfAbsent(key, items) != null)
+                        continue;
+                    hashTree.update(key, null, items);
+                }
                 return true;
             } else {
                 synchronized(items) {
@@ -110,6 +115,7 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
 
                     // Check for existing versions - remember which items to
                     // remove in case of success
+                    List<Versioned<V>> oldItems = new ArrayList<Versioned<V>>(items);
                     List<Versioned<V>> itemsToRemove = new ArrayList<Versioned<V>>(items.size());
                     for(Versioned<V> versioned: items) {
                         Occurred occurred = value.getVersion().compare(versioned.getVersion());
@@ -121,6 +127,7 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
                     }
                     items.removeAll(itemsToRemove);
                     items.add(value);
+                    hashTree.update(key, oldItems, items);
                 }
                 return true;
             }
@@ -140,7 +147,15 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
 
     @Override
     public void truncate() {
-        map.clear();
+        // Remove the keys one at a time so that the hash tree stays
+        // consistent with any concurrent writes
+        for (Entry<K, List<Versioned<V>>> e : map.entrySet()) {
+            List<Versioned<V>> items = e.getValue();
+            synchronized (items) {
+                if (map.remove(e.getKey(), items))
+                    hashTree.update(e.getKey(), items, null);
+            }
+        }
     }
 
     @Override
@@ -174,8 +189,10 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
             List<Versioned<V>> items = e.getValue();
 
             synchronized (items) {
-                if (StoreUtils.canDelete(items, tombstoneDeletion))
+                if (StoreUtils.canDelete(items, tombstoneDeletion)) {
                     iter.remove();
+                    hashTree.update(e.getKey(), items, null);
+                }
             }
         }
     }
@@ -190,6 +207,11 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
         this.tombstoneDeletion = interval;
     }
 
+    @Override
+    public KeyHashTree getHashTree() {
+        return hashTree;
+    }
+
     // *********************
     // InMemoryStorageEngine
     // *********************
@@ -212,8 +234,10 @@ public class InMemoryStorageEngine<K, V> implements IStorageEngine<K, V> {
         while (true) {
             List<Versioned<V>> items = map.get(key);
             synchronized (items) {
-                if (map.remove(key, items))
-                    return items;                
+                if (map.remove(key, items)) {
+                    hashTree.update(key, items, null);
+                    return items;
+                }
             }
         }
     }
@@ -72,6 +72,13 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
     
     private ConnectionPoolDataSource dataSource;
 
+    /**
+     * Hash tree over the keys in the table.  Writes keep it up to date,
+     * and it is rebuilt from the table by the cleanup task to correct for
+     * concurrent writes to the same key.
+     */
+    private final KeyHashTree hashTree = new KeyHashTree();
+
     /**
      * Interval in milliseconds before tombstones will be cleared.
      */
@@ -106,6 +113,7 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
             throw new PersistException("Could not initialize persistent storage",
                                        sqle);
         }
+        hashTree.rebuild(entries());
     }
     
     // *******************************
@@ -180,6 +188,8 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
                     vindex = 2;
                 }
 
+                List<Versioned<byte[]>> oldValues =
+                        new ArrayList<Versioned<byte[]>>(values);
                 List<Versioned<byte[]>> itemsToRemove = 
                         new ArrayList<Versioned<byte[]>>(values.size());
                 for(Versioned<byte[]> versioned: values) {
@@ -199,6 +209,7 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
                 update.setBinaryStream(vindex, is);
                 update.execute();
                 dbConnection.commit();
+                hashTree.update(key, oldValues, values);
             } catch (SyncException e) {
                 dbConnection.rollback();
                 throw e;
@@ -228,6 +239,7 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
             dbConnection = getConnection();
             update = dbConnection.prepareStatement(getSql(TRUNCATE));
             update.execute();
+            hashTree.clear();
         } catch (Exception e) {
             logger.error("Failed to truncate store " + getName(), e);
         } finally {
@@ -288,6 +300,7 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
         } finally {
             cleanupSQL(dbConnection, stmt);
         }
+        hashTree.rebuild(entries());
     }
 
     @Override
@@ -300,6 +313,11 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
         this.tombstoneDeletion = interval;
     }
 
+    @Override
+    public KeyHashTree getHashTree() {
+        return hashTree;
+    }
+
     // *******************
     // JavaDBStorageEngine
     // *******************
@@ -438,8 +456,11 @@ public class JavaDBStorageEngine implements IStorageEngine<ByteArray, byte[]> {
                     update = dbConnection.prepareStatement(getSql(DELETE_KEY));
                     update.setString(1, keyStr);
                     update.execute();
+                    dbConnection.commit();
+                    hashTree.update(getStringAsKey(keyStr), items, null);
+                } else {
+                    dbConnection.commit();
                 }
-                dbConnection.commit();
 
             } catch (Exception e) {
                 if (dbConnection != null)
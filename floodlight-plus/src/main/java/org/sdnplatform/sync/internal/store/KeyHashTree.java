@@ -0,0 +1,226 @@
+package org.sdnplatform.sync.internal.store;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.IVersion;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.version.ClockEntry;
+import org.sdnplatform.sync.internal.version.VectorClock;
+
+/**
+ * A hash tree over the keys of a store, used to find the key ranges in
+ * which two stores differ without exchanging the keys themselves.
+ *
+ * The tree has a fixed shape so that the nodes of two trees line up: each
+ * key hashes into one of {@link #LEAVES} leaf buckets, and each interior
+ * node covers {@link #FANOUT} children.  Nodes are numbered breadth first
+ * from the root at 0, so the children of node n are n * FANOUT + 1 through
+ * n * FANOUT + FANOUT.  The hash of a node is the sum of the digests of the
+ * keys below it, where the digest of a key covers the key and the vector
+ * clocks of its versions.  Since a sum does not depend on order, a change
+ * to a key is applied by adding the difference between its new and old
+ * digest to the nodes on its path, without locking, and the storage engine
+ * only needs to know the old and new versions of the key it changes.
+ */
+public class KeyHashTree {
+    /**
+     * The number of children of each interior node
+     */
+    public static final int FANOUT = 16;
+
+    /**
+     * The number of levels below the root
+     */
+    public static final int DEPTH = 3;
+
+    /**
+     * The number of leaf buckets
+     */
+    public static final int LEAVES = FANOUT * FANOUT * FANOUT;
+
+    /**
+     * The number of the first leaf
+     */
+    public static final int FIRST_LEAF = (LEAVES - 1) / (FANOUT - 1);
+
+    /**
+     * The total number of nodes
+     */
+    public static final int NODES = FIRST_LEAF + LEAVES;
+
+    private final AtomicLongArray hashes = new AtomicLongArray(NODES);
+
+    /**
+     * Get the hash of a node
+     * @param node the node
+     * @return the hash, which is 0 if there are no keys below the node
+     */
+    public long getHash(int node) {
+        return hashes.get(node);
+    }
+
+    /**
+     * Record a change to a key
+     * @param key the key
+     * @param oldValues the versions of the key before the change, or
+     * <code>null</code> if the key was not present
+     * @param newValues the versions of the key after the change, or
+     * <code>null</code> if the key was removed
+     */
+    public void update(Object key,
+                       List<? extends Versioned<?>> oldValues,
+                       List<? extends Versioned<?>> newValues) {
+        long keyHash = hashKey(key);
+        long delta = digest(keyHash, newValues) - digest(keyHash, oldValues);
+        if (delta == 0) return;
+        int node = FIRST_LEAF + bucketOf(keyHash);
+        while (true) {
+            hashes.addAndGet(node, delta);
+            if (node == 0) break;
+            node = getParent(node);
+        }
+    }
+
+    /**
+     * Remove all the keys from the tree
+     */
+    public void clear() {
+        for (int i = 0; i < NODES; i++)
+            hashes.set(i, 0);
+    }
+
+    /**
+     * Replace the contents of the tree with the given entries
+     * @param entries the entries.  The iterator will be closed.
+     */
+    public <K, V> void rebuild(IClosableIterator<Entry<K,
+                                                List<Versioned<V>>>> entries) {
+        long[] rebuilt = new long[LEAVES];
+        try {
+            while (entries.hasNext()) {
+                Entry<K, List<Versioned<V>>> e = entries.next();
+                long keyHash = hashKey(e.getKey());
+                rebuilt[bucketOf(keyHash)] += digest(keyHash, e.getValue());
+            }
+        } finally {
+            entries.close();
+        }
+        long[] sums = new long[NODES];
+        System.arraycopy(rebuilt, 0, sums, FIRST_LEAF, LEAVES);
+        for (int node = NODES - 1; node > 0; node--)
+            sums[getParent(node)] += sums[node];
+        for (int node = 0; node < NODES; node++)
+            hashes.set(node, sums[node]);
+    }
+
+    /**
+     * Find the nodes whose hash differs from a remote tree
+     * @param nodes the nodes to compare
+     * @param remoteHashes the hashes of the nodes in the remote tree
+     * @return the nodes that differ
+     */
+    public List<Integer> diff(List<Integer> nodes, List<Long> remoteHashes) {
+        List<Integer> result = new ArrayList<Integer>();
+        Iterator<Long> hi = remoteHashes.iterator();
+        for (Integer node : nodes) {
+            if (!hi.hasNext()) break;
+            long remote = hi.next().longValue();
+            if (node < 0 || node >= NODES) continue;
+            if (getHash(node) != remote)
+                result.add(node);
+        }
+        return result;
+    }
+
+    // **************
+    // Tree structure
+    // **************
+
+    /**
+     * @return whether the node is a leaf bucket
+     */
+    public static boolean isLeaf(int node) {
+        return node >= FIRST_LEAF;
+    }
+
+    /**
+     * @return the first child of an interior node
+     */
+    public static int getFirstChild(int node) {
+        return node * FANOUT + 1;
+    }
+
+    /**
+     * @return the parent of a node other than the root
+     */
+    public static int getParent(int node) {
+        return (node - 1) / FANOUT;
+    }
+
+    /**
+     * @return the leaf bucket, from 0 to {@link #LEAVES} - 1, that holds the
+     * key
+     */
+    public static int getBucket(Object key) {
+        return bucketOf(hashKey(key));
+    }
+
+    private static int bucketOf(long keyHash) {
+        return (int) (keyHash >>> 52);
+    }
+
+    // *******
+    // Hashing
+    // *******
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Hash a key in a way that does not change between processes.  Keys
+     * other than {@link ByteArray} must have such a hash code.
+     */
+    private static long hashKey(Object key) {
+        if (key instanceof ByteArray) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : ((ByteArray) key).get()) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        return mix(key.hashCode());
+    }
+
+    private static long hashVersion(IVersion version) {
+        if (!(version instanceof VectorClock))
+            return mix(version == null ? 0 : version.hashCode());
+        long h = 0;
+        for (ClockEntry ce : ((VectorClock) version).getEntries()) {
+            h = mix(h ^ (((long) ce.getNodeId() << 48) + ce.getVersion()));
+        }
+        return h;
+    }
+
+    private static long digest(long keyHash,
+                               List<? extends Versioned<?>> values) {
+        if (values == null || values.size() == 0) return 0;
+        long h = 0;
+        for (Versioned<?> v : values) {
+            h += hashVersion(v.getVersion());
+        }
+        return mix(keyHash ^ mix(h + values.size()));
+    }
+}
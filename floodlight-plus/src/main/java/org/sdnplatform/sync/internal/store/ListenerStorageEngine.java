@@ -132,6 +132,11 @@ public class ListenerStorageEngine
         localStorage.setTombstoneInterval(interval);
     }
 
+    @Override
+    public KeyHashTree getHashTree() {
+        return localStorage.getHashTree();
+    }
+
     // *********************
     // ListenerStorageEngine
     // *********************
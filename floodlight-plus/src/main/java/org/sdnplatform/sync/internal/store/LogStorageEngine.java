@@ -0,0 +1,913 @@
+package org.sdnplatform.sync.internal.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import net.floodlightcontroller.core.annotations.LogMessageCategory;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.IVersion;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.IVersion.Occurred;
+import org.sdnplatform.sync.error.ObsoleteVersionException;
+import org.sdnplatform.sync.error.PersistException;
+import org.sdnplatform.sync.error.SyncException;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.util.Pair;
+import org.sdnplatform.sync.internal.version.ClockEntry;
+import org.sdnplatform.sync.internal.version.VectorClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent storage engine that keeps its data in an append-only log of
+ * memory-mapped segment files, with an in-memory index from each key to
+ * the log record that holds its current versions.
+ *
+ * A write appends a record with the full list of versions of the key to
+ * the current segment and points the index at it, so it costs a copy into
+ * the mapped segment rather than a database transaction.  Writers that
+ * arrive while the log is being forced to disk wait for the next force,
+ * which then covers all of their records at once.  When a segment fills
+ * up it is sealed, and sealed segments in which most records have been
+ * superseded are compacted in the background by copying their live
+ * records to the end of the log and deleting the file.  On startup the
+ * index is rebuilt by replaying the segments in order.
+ *
+ * Each record is laid out as:
+ * <pre>
+ * int    length of what follows the header
+ * int    CRC32 of what follows the header
+ * byte   type, PUT or DELETE
+ * int    key length, followed by the key
+ * int    number of versions (PUT only), followed by for each version:
+ *   long   clock timestamp
+ *   short  number of clock entries, followed by for each entry:
+ *     short  node ID
+ *     long   version
+ *   int    value length or -1 for a tombstone, followed by the value
+ * </pre>
+ */
+@LogMessageCategory("State Synchronization")
+public class LogStorageEngine implements IStorageEngine<ByteArray, byte[]> {
+    protected static final Logger logger =
+            LoggerFactory.getLogger(LogStorageEngine.class.getName());
+
+    /**
+     * Default size of a log segment
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * A sealed segment is compacted when less than this fraction of it
+     * is live
+     */
+    private static final double COMPACT_THRESHOLD = 0.5;
+
+    private static final int HEADER_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final int LOCK_STRIPES = 64;
+
+    private final String name;
+    private final File directory;
+    private final int segmentSize;
+    private final boolean syncWrites;
+    private final Executor compactionExecutor;
+
+    /**
+     * The location of the current record for each key
+     */
+    private final ConcurrentHashMap<ByteArray, Location> index =
+            new ConcurrentHashMap<ByteArray, Location>();
+    private final KeyHashTree hashTree = new KeyHashTree();
+
+    /**
+     * Writes to a key are serialized on its lock stripe
+     */
+    private final Object[] keyLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * Held for writing only while the store is truncated
+     */
+    private final ReentrantReadWriteLock storeLock =
+            new ReentrantReadWriteLock();
+
+    /**
+     * Guards the segment list and the position in the current segment
+     */
+    private final Object appendLock = new Object();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Set<Segment> unforced = new LinkedHashSet<Segment>();
+    private Segment current;
+    private long nextSegmentId = 1;
+
+    /**
+     * Guards the log position that is known to be on disk
+     */
+    private final Object commitLock = new Object();
+    private long committed;
+    private boolean committing;
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * Interval in milliseconds before tombstones will be cleared.
+     */
+    private int tombstoneDeletion = 24 * 60 * 60 * 1000;
+
+    /**
+     * Construct a new storage engine with the default segment size that
+     * forces each write to disk before returning
+     * @param name the name of the store
+     * @param directory the directory that holds the log segments
+     * @param compactionExecutor the executor on which to compact sealed
+     * segments, or <code>null</code> to compact only in
+     * {@link #cleanupTask()}
+     * @throws PersistException
+     */
+    public LogStorageEngine(String name, File directory,
+                            Executor compactionExecutor)
+            throws PersistException {
+        this(name, directory, DEFAULT_SEGMENT_SIZE, true, compactionExecutor);
+    }
+
+    /**
+     * Construct a new storage engine, replaying any log already in the
+     * directory
+     * @param name the name of the store
+     * @param directory the directory that holds the log segments
+     * @param segmentSize the size of a log segment
+     * @param syncWrites whether writes wait for their record to be forced
+     * to disk
+     * @param compactionExecutor the executor on which to compact sealed
+     * segments, or <code>null</code> to compact only in
+     * {@link #cleanupTask()}
+     * @throws PersistException
+     */
+    public LogStorageEngine(String name, File directory, int segmentSize,
+                            boolean syncWrites, Executor compactionExecutor)
+            throws PersistException {
+        super();
+        this.name = name;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncWrites = syncWrites;
+        this.compactionExecutor = compactionExecutor;
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            keyLocks[i] = new Object();
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new PersistException("Could not create log directory " +
+                                       directory);
+        try {
+            synchronized (appendLock) {
+                recover();
+            }
+        } catch (IOException e) {
+            throw new PersistException("Could not open log in " + directory,
+                                       e);
+        }
+        hashTree.rebuild(entries());
+    }
+
+    // *******************************
+    // StorageEngine<ByteArray,byte[]>
+    // *******************************
+
+    @Override
+    public List<Versioned<byte[]>> get(ByteArray key) throws SyncException {
+        StoreUtils.assertValidKey(key);
+        Location loc = index.get(key);
+        if (loc == null)
+            return new ArrayList<Versioned<byte[]>>(0);
+        return read(loc);
+    }
+
+    @Override
+    public IClosableIterator<Entry<ByteArray, List<Versioned<byte[]>>>>
+            entries() {
+        return new LogIterator(index.entrySet().iterator());
+    }
+
+    @Override
+    public void put(ByteArray key, Versioned<byte[]> value)
+            throws SyncException {
+        commit(doPut(key, value));
+    }
+
+    @Override
+    public IClosableIterator<ByteArray> keys() {
+        return StoreUtils.keys(entries());
+    }
+
+    @Override
+    public void truncate() throws SyncException {
+        storeLock.writeLock().lock();
+        try {
+            synchronized (appendLock) {
+                for (Segment s : segments)
+                    deleteSegment(s);
+                segments.clear();
+                unforced.clear();
+                index.clear();
+                hashTree.clear();
+                current = createSegment(segmentSize);
+                segments.add(current);
+            }
+        } catch (IOException e) {
+            throw new PersistException("Could not truncate store " + name, e);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void close() throws SyncException {
+        force();
+    }
+
+    @Override
+    public boolean writeSyncValue(ByteArray key,
+                                  Iterable<Versioned<byte[]>> values) {
+        boolean success = false;
+        long position = 0;
+        for (Versioned<byte[]> value : values) {
+            try {
+                position = doPut(key, value);
+                success = true;
+            } catch (PersistException e) {
+                logger.error("Failed to sync value because of " +
+                             "persistence exception", e);
+            } catch (SyncException e) {
+                // ignore obsolete version exception
+            }
+        }
+        if (success) {
+            // One commit covers all of the values
+            try {
+                commit(position);
+            } catch (PersistException e) {
+                logger.error("Failed to sync value because of " +
+                             "persistence exception", e);
+                return false;
+            }
+        }
+        return success;
+    }
+
+    @Override
+    public List<IVersion> getVersions(ByteArray key) throws SyncException {
+        return StoreUtils.getVersions(get(key));
+    }
+
+    @Override
+    public void cleanupTask() throws SyncException {
+        // Remove tombstones that are older than the tombstone deletion
+        // threshold by logging the removal of the key
+        long position = 0;
+        storeLock.readLock().lock();
+        try {
+            for (ByteArray key : index.keySet()) {
+                synchronized (lockFor(key)) {
+                    Location loc = index.get(key);
+                    if (loc == null) continue;
+                    List<Versioned<byte[]>> items = read(loc);
+                    if (StoreUtils.canDelete(items, tombstoneDeletion)) {
+                        position = append(encode(DELETE, key, null), false)
+                                .getPosition();
+                        index.remove(key);
+                        release(loc);
+                        hashTree.update(key, items, null);
+                    }
+                }
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+        commit(position);
+        compact();
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public void setTombstoneInterval(int interval) {
+        this.tombstoneDeletion = interval;
+    }
+
+    @Override
+    public KeyHashTree getHashTree() {
+        return hashTree;
+    }
+
+    // ****************
+    // LogStorageEngine
+    // ****************
+
+    /**
+     * Get the directory in which a log storage engine keeps a store
+     * @param dbPath The path where persistent stores are located, or
+     * <code>null</code> for the working directory
+     * @param storeName the name of the store
+     * @return the directory
+     */
+    public static File getDirectory(String dbPath, String storeName) {
+        File f = (dbPath == null)
+                ? new File("SyncLog")
+                : new File(dbPath, "SyncLog");
+        return new File(f, storeName);
+    }
+
+    /**
+     * Compact the sealed segments in which less than half of the records
+     * are live.  The live records are copied to the end of the log and the
+     * segment is deleted once the copies are on disk.
+     * @throws PersistException
+     */
+    public void compact() throws PersistException {
+        if (!compacting.compareAndSet(false, true)) return;
+        try {
+            List<Segment> candidates = new ArrayList<Segment>();
+            synchronized (appendLock) {
+                for (Segment s : segments) {
+                    if (s != current && s.shouldCompact())
+                        candidates.add(s);
+                }
+            }
+            for (Segment s : candidates) {
+                compact(s);
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * @return the number of log segment files
+     */
+    public int getSegmentCount() {
+        synchronized (appendLock) {
+            return segments.size();
+        }
+    }
+
+    // *************
+    // Local methods
+    // *************
+
+    private Object lockFor(ByteArray key) {
+        return keyLocks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Append the new versions of the key to the log without waiting for
+     * them to reach the disk
+     * @return the log position that must be committed
+     */
+    private long doPut(ByteArray key, Versioned<byte[]> value)
+            throws SyncException {
+        StoreUtils.assertValidKey(key);
+        storeLock.readLock().lock();
+        try {
+            synchronized (lockFor(key)) {
+                Location loc = index.get(key);
+                List<Versioned<byte[]>> values = (loc == null)
+                        ? new ArrayList<Versioned<byte[]>>(1)
+                        : read(loc);
+
+                List<Versioned<byte[]>> oldValues =
+                        new ArrayList<Versioned<byte[]>>(values);
+                List<Versioned<byte[]>> itemsToRemove =
+                        new ArrayList<Versioned<byte[]>>(values.size());
+                for(Versioned<byte[]> versioned: values) {
+                    Occurred occurred = value.getVersion().compare(versioned.getVersion());
+                    if(occurred == Occurred.BEFORE) {
+                        throw new ObsoleteVersionException("Obsolete version for key '" + key
+                                                           + "': " + value.getVersion());
+                    } else if(occurred == Occurred.AFTER) {
+                        itemsToRemove.add(versioned);
+                    }
+                }
+                values.removeAll(itemsToRemove);
+                values.add(value);
+
+                Location nloc = append(encode(PUT, key, values), true);
+                index.put(key, nloc);
+                release(loc);
+                hashTree.update(key, oldValues, values);
+                return nloc.getPosition();
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to the given position.  If no other
+     * thread is forcing the log, this thread forces everything appended so
+     * far, which commits the records of any writers waiting behind it.
+     */
+    private void commit(long position) throws PersistException {
+        if (!syncWrites) return;
+        synchronized (commitLock) {
+            while (committed < position && committing) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PersistException("Interrupted while writing " +
+                                               "log for store " + name, e);
+                }
+            }
+            if (committed >= position) return;
+            committing = true;
+        }
+        long forced = 0;
+        try {
+            forced = force();
+        } finally {
+            synchronized (commitLock) {
+                committing = false;
+                if (forced > committed)
+                    committed = forced;
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Force the segments written since the last force to disk
+     * @return the log position covered by the force
+     */
+    private long force() {
+        List<Segment> toForce;
+        long position;
+        synchronized (appendLock) {
+            toForce = new ArrayList<Segment>(unforced);
+            unforced.clear();
+            position = current.getPosition(current.writeOffset);
+        }
+        for (Segment s : toForce) {
+            s.buffer.force();
+        }
+        return position;
+    }
+
+    /**
+     * Append a record to the current segment, starting a new segment if
+     * it does not fit
+     * @param record the record
+     * @param live whether the index will point at the record
+     * @return the location of the record
+     */
+    private Location append(ByteBuffer record, boolean live)
+            throws PersistException {
+        synchronized (appendLock) {
+            int length = record.remaining();
+            if (current.buffer.capacity() - current.writeOffset < length) {
+                try {
+                    roll(length);
+                } catch (IOException e) {
+                    throw new PersistException("Could not create log " +
+                                               "segment for store " + name, e);
+                }
+            }
+            ByteBuffer dst = current.buffer.duplicate();
+            dst.position(current.writeOffset);
+            dst.put(record);
+            Location loc = new Location(current, current.writeOffset, length);
+            current.writeOffset += length;
+            if (live)
+                current.live.addAndGet(length);
+            unforced.add(current);
+            return loc;
+        }
+    }
+
+    /**
+     * Seal the current segment and start a new one that can hold a record
+     * of the given length.  Called with the append lock held.
+     */
+    private void roll(int length) throws IOException {
+        Segment sealed = current;
+        current = createSegment(Math.max(segmentSize, length));
+        segments.add(current);
+        if (compactionExecutor != null && sealed.shouldCompact()) {
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        logger.error("Failed to compact log for store " +
+                                     name, e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Mark the record at the location as superseded
+     */
+    private static void release(Location loc) {
+        if (loc != null)
+            loc.segment.live.addAndGet(-loc.length);
+    }
+
+    private void compact(Segment segment) throws PersistException {
+        storeLock.readLock().lock();
+        try {
+            boolean oldest;
+            int end;
+            synchronized (appendLock) {
+                // the store may have been truncated
+                if (!segments.contains(segment)) return;
+                oldest = segments.get(0) == segment;
+                end = segment.writeOffset;
+            }
+            int offset = 0;
+            while (offset < end) {
+                int length = checkRecord(segment.buffer, offset);
+                if (length < 0) break;
+                ByteBuffer b = payload(segment, offset);
+                byte type = b.get();
+                ByteArray key = readKey(b);
+                synchronized (lockFor(key)) {
+                    Location loc = index.get(key);
+                    if (type == PUT && loc != null &&
+                        loc.segment == segment && loc.offset == offset) {
+                        Location nloc = append(copy(segment, offset, length),
+                                               true);
+                        index.put(key, nloc);
+                        release(loc);
+                    } else if (type == DELETE && loc == null && !oldest) {
+                        // A removal must outlive the older records it
+                        // supersedes, or replaying the log would bring the
+                        // key back
+                        append(copy(segment, offset, length), false);
+                    }
+                }
+                offset += length;
+            }
+
+            // The copies must be on disk before the segment goes away
+            long forced = force();
+            synchronized (commitLock) {
+                if (forced > committed)
+                    committed = forced;
+            }
+            synchronized (appendLock) {
+                segments.remove(segment);
+                unforced.remove(segment);
+            }
+            deleteSegment(segment);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    @LogMessageDoc(level="WARN",
+            message="Could not delete log segment {file}",
+            explanation="A log segment that is no longer needed could " +
+                    "not be removed from disk",
+            recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    private void deleteSegment(Segment segment) {
+        // The mapping stays valid for readers that still hold locations
+        // in the segment
+        if (!segment.file.delete())
+            logger.warn("Could not delete log segment {}", segment.file);
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        long id = nextSegmentId++;
+        File file = new File(directory,
+                             String.format("%s%016x", SEGMENT_PREFIX, id));
+        return mapSegment(id, file, size);
+    }
+
+    private static Segment mapSegment(long id, File file, int size)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size)
+                raf.setLength(size);
+            MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                         0, size);
+            return new Segment(id, file, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replay the segments in the log directory to rebuild the index.
+     * Called with the append lock held.
+     */
+    @LogMessageDoc(level="WARN",
+            message="Log segment {file} is corrupt after offset {offset}",
+            explanation="A log segment other than the last one ends with " +
+                    "a record that could not be read.  The records after " +
+                    "it are lost.",
+            recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    private void recover() throws IOException {
+        TreeMap<Long, File> files = new TreeMap<Long, File>();
+        File[] list = directory.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                if (!f.getName().startsWith(SEGMENT_PREFIX)) continue;
+                try {
+                    files.put(Long.parseLong(f.getName().
+                                     substring(SEGMENT_PREFIX.length()), 16),
+                              f);
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+
+        for (Entry<Long, File> e : files.entrySet()) {
+            Segment segment = mapSegment(e.getKey(), e.getValue(),
+                                         (int) e.getValue().length());
+            int offset = 0;
+            int length;
+            while ((length = checkRecord(segment.buffer, offset)) > 0) {
+                replay(segment, offset, length);
+                offset += length;
+            }
+            segment.writeOffset = offset;
+            segments.add(segment);
+            nextSegmentId = e.getKey() + 1;
+
+            if (offset + HEADER_SIZE <= segment.buffer.capacity() &&
+                segment.buffer.getInt(offset) != 0) {
+                if (e.getKey().equals(files.lastKey())) {
+                    // A record torn by a crash; clear it so that new
+                    // records are not followed by its remains
+                    for (int i = offset; i < segment.buffer.capacity(); i++)
+                        segment.buffer.put(i, (byte) 0);
+                    unforced.add(segment);
+                } else {
+                    logger.warn("Log segment {} is corrupt after offset {}",
+                                segment.file, offset);
+                }
+            }
+        }
+
+        if (segments.size() > 0) {
+            current = segments.get(segments.size() - 1);
+        } else {
+            current = createSegment(segmentSize);
+            segments.add(current);
+        }
+    }
+
+    private void replay(Segment segment, int offset, int length) {
+        ByteBuffer b = payload(segment, offset);
+        byte type = b.get();
+        ByteArray key = readKey(b);
+        Location old;
+        if (type == PUT) {
+            segment.live.addAndGet(length);
+            old = index.put(key, new Location(segment, offset, length));
+        } else {
+            old = index.remove(key);
+        }
+        release(old);
+    }
+
+    /**
+     * Check the record at the given offset
+     * @return the length of the record, or -1 if there is no valid record
+     */
+    private static int checkRecord(ByteBuffer buffer, int offset) {
+        if (offset + HEADER_SIZE > buffer.capacity()) return -1;
+        int length = buffer.getInt(offset);
+        if (length <= 0 ||
+            length > buffer.capacity() - offset - HEADER_SIZE) return -1;
+        byte[] payload = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset + HEADER_SIZE);
+        b.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) return -1;
+        return HEADER_SIZE + length;
+    }
+
+    private static ByteBuffer payload(Segment segment, int offset) {
+        ByteBuffer b = segment.buffer.duplicate();
+        b.position(offset + HEADER_SIZE);
+        return b;
+    }
+
+    private static ByteBuffer copy(Segment segment, int offset, int length) {
+        ByteBuffer b = segment.buffer.duplicate();
+        b.position(offset);
+        b.limit(offset + length);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.put(b);
+        record.flip();
+        return record;
+    }
+
+    private static ByteArray readKey(ByteBuffer b) {
+        byte[] key = new byte[b.getInt()];
+        b.get(key);
+        return new ByteArray(key);
+    }
+
+    private static List<Versioned<byte[]>> read(Location loc) {
+        ByteBuffer b = payload(loc.segment, loc.offset);
+        b.get();
+        b.position(b.getInt() + b.position());
+
+        int count = b.getInt();
+        List<Versioned<byte[]>> values =
+                new ArrayList<Versioned<byte[]>>(count);
+        for (int i = 0; i < count; i++) {
+            long timestamp = b.getLong();
+            int entryCount = b.getShort() & 0xffff;
+            List<ClockEntry> entries = new ArrayList<ClockEntry>(entryCount);
+            for (int j = 0; j < entryCount; j++) {
+                short nodeId = b.getShort();
+                entries.add(new ClockEntry(nodeId, b.getLong()));
+            }
+            int valueLength = b.getInt();
+            byte[] value = null;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                b.get(value);
+            }
+            values.add(new Versioned<byte[]>(value,
+                                             new VectorClock(entries,
+                                                             timestamp)));
+        }
+        return values;
+    }
+
+    private static ByteBuffer encode(byte type, ByteArray key,
+                                     List<Versioned<byte[]>> values) {
+        int size = HEADER_SIZE + 1 + 4 + key.length();
+        if (values != null) {
+            size += 4;
+            for (Versioned<byte[]> v : values) {
+                VectorClock vc = (VectorClock) v.getVersion();
+                size += 8 + 2 + vc.getEntries().size() * 10 + 4;
+                if (v.getValue() != null)
+                    size += v.getValue().length;
+            }
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.position(HEADER_SIZE);
+        b.put(type);
+        b.putInt(key.length());
+        b.put(key.get());
+        if (values != null) {
+            b.putInt(values.size());
+            for (Versioned<byte[]> v : values) {
+                VectorClock vc = (VectorClock) v.getVersion();
+                b.putLong(vc.getTimestamp());
+                b.putShort((short) vc.getEntries().size());
+                for (ClockEntry ce : vc.getEntries()) {
+                    b.putShort(ce.getNodeId());
+                    b.putLong(ce.getVersion());
+                }
+                if (v.getValue() == null) {
+                    b.putInt(-1);
+                } else {
+                    b.putInt(v.getValue().length);
+                    b.put(v.getValue());
+                }
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), HEADER_SIZE, size - HEADER_SIZE);
+        b.putInt(0, size - HEADER_SIZE);
+        b.putInt(4, (int) crc.getValue());
+        b.flip();
+        return b;
+    }
+
+    /**
+     * A log segment file and its mapping
+     */
+    private static class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        /**
+         * The offset of the next record.  Guarded by the append lock.
+         */
+        int writeOffset;
+        /**
+         * The number of bytes in records the index points to
+         */
+        final AtomicInteger live = new AtomicInteger();
+
+        public Segment(long id, File file, MappedByteBuffer buffer) {
+            super();
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return the position in the log of the given offset in the
+         * segment, which increases across segments
+         */
+        long getPosition(int offset) {
+            return (id << 32) | offset;
+        }
+
+        boolean shouldCompact() {
+            return live.get() < writeOffset * COMPACT_THRESHOLD;
+        }
+    }
+
+    /**
+     * The location of a record in the log
+     */
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        public Location(Segment segment, int offset, int length) {
+            super();
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the log position of the end of the record
+         */
+        long getPosition() {
+            return segment.getPosition(offset + length);
+        }
+    }
+
+    private static class LogIterator implements
+        IClosableIterator<Entry<ByteArray, List<Versioned<byte[]>>>> {
+
+        private final Iterator<Entry<ByteArray, Location>> iterator;
+
+        public LogIterator(Iterator<Entry<ByteArray, Location>> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Pair<ByteArray, List<Versioned<byte[]>>> next() {
+            Entry<ByteArray, Location> entry = iterator.next();
+            return new Pair<ByteArray, List<Versioned<byte[]>>>(
+                    entry.getKey(), read(entry.getValue()));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FloodlightContextTest {
+
+    @Test
+    public void testSlots() {
+        String key = "net.floodlightcontroller.core.test.slotted";
+        int slot = FloodlightContext.registerSlot(key);
+        assertEquals(slot, FloodlightContext.registerSlot(key));
+        assertEquals(slot, FloodlightContext.getSlot(new String(key)));
+
+        FloodlightContextStore<String> store =
+                new FloodlightContextStore<String>(key);
+        FloodlightContext cntx = new FloodlightContext();
+        assertNull(store.get(cntx, key));
+        store.put(cntx, key, "value");
+        assertEquals("value", store.get(cntx, key));
+        // Equal keys find the same slot, and the value is not in the map
+        assertEquals("value", store.get(cntx, new String(key)));
+        assertEquals("value", cntx.get(slot));
+        assertFalse(cntx.getStorage().containsKey(key));
+
+        store.remove(cntx, key);
+        assertNull(store.get(cntx, key));
+
+        store.put(cntx, key, "value");
+        cntx.reset();
+        assertNull(store.get(cntx, key));
+    }
+
+    @Test
+    public void testUnregisteredKeys() {
+        String key = "net.floodlightcontroller.core.test.unregistered";
+        FloodlightContextStore<String> store =
+                new FloodlightContextStore<String>();
+        FloodlightContext cntx = new FloodlightContext();
+        store.put(cntx, key, "value");
+        assertEquals("value", cntx.getStorage().get(key));
+        assertEquals("value", store.get(cntx, key));
+        cntx.reset();
+        assertNull(store.get(cntx, key));
+
+        // Once the key is registered elsewhere, this store uses its slot
+        // too, so both stores see the same value
+        FloodlightContextStore<String> other =
+                new FloodlightContextStore<String>(key);
+        other.put(cntx, key, "other");
+        assertEquals("other", store.get(cntx, key));
+        store.remove(cntx, key);
+        assertNull(other.get(cntx, key));
+    }
+}
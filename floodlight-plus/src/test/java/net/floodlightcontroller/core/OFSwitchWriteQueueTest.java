@@ -0,0 +1,201 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.floodlightcontroller.core.internal.Controller;
+import net.floodlightcontroller.core.internal.OFSwitchImpl;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+import org.easymock.IAnswer;
+import org.jboss.netty.channel.Channel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+
+public class OFSwitchWriteQueueTest {
+    /** Records the batches written instead of sending them */
+    private static class RecordingSwitch extends OFSwitchImpl {
+        final List<List<OFMessage>> batches = new ArrayList<List<OFMessage>>();
+
+        @Override
+        protected synchronized void write(List<OFMessage> msglist) {
+            batches.add(new ArrayList<OFMessage>(msglist));
+        }
+
+        synchronized List<List<OFMessage>> getBatches() {
+            return new ArrayList<List<OFMessage>>(batches);
+        }
+    }
+
+    private RecordingSwitch sw;
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private ScheduledExecutorService ses;
+
+    @Before
+    public void setUp() {
+        Channel channel = createNiceMock(Channel.class);
+        expect(channel.isWritable()).andStubAnswer(new IAnswer<Boolean>() {
+            @Override
+            public Boolean answer() {
+                return writable.get();
+            }
+        });
+        replay(channel);
+        sw = new RecordingSwitch();
+        sw.setChannel(channel);
+        sw.setConnected(true);
+        sw.setFloodlightProvider(createNiceMock(IFloodlightProviderService.class));
+    }
+
+    @After
+    public void tearDown() {
+        OFSwitchBase.flush_all();
+        if (ses != null)
+            ses.shutdownNow();
+    }
+
+    private static OFMessage flowMod(int xid) {
+        OFFlowMod fm = new OFFlowMod();
+        fm.setXid(xid);
+        return fm;
+    }
+
+    private static List<Integer> xids(List<OFMessage> batch) {
+        List<Integer> xids = new ArrayList<Integer>();
+        for (OFMessage m : batch)
+            xids.add(m.getXid());
+        return xids;
+    }
+
+    @Test
+    public void testCoalesceUntilFlush() {
+        sw.write(flowMod(1), null);
+        sw.write(flowMod(2), null);
+        assertTrue(sw.getBatches().isEmpty());
+        assertEquals(2, sw.writeQueue.getDepth());
+
+        OFSwitchBase.flush_all();
+        assertEquals(1, sw.getBatches().size());
+        assertEquals("[1, 2]", xids(sw.getBatches().get(0)).toString());
+        assertEquals(0, sw.writeQueue.getDepth());
+
+        // Nothing left for this thread to flush
+        OFSwitchBase.flush_all();
+        assertEquals(1, sw.getBatches().size());
+    }
+
+    @Test
+    public void testUrgentMessagesKeepOrder() {
+        sw.write(flowMod(1), null);
+        OFBarrierRequest barrier = new OFBarrierRequest();
+        barrier.setXid(2);
+        sw.write(barrier, null);
+        assertEquals(1, sw.getBatches().size());
+        assertEquals("[1, 2]", xids(sw.getBatches().get(0)).toString());
+
+        sw.write(flowMod(3), null);
+        List<OFMessage> list = new ArrayList<OFMessage>();
+        list.add(flowMod(4));
+        sw.write(list, null);
+        assertEquals(2, sw.getBatches().size());
+        assertEquals("[3, 4]", xids(sw.getBatches().get(1)).toString());
+    }
+
+    @Test
+    public void testFlushAtBatchSize() {
+        for (int i = 0; i < Controller.BATCH_MAX_SIZE; i++)
+            sw.write(flowMod(i), null);
+        assertEquals(1, sw.getBatches().size());
+        assertEquals(Controller.BATCH_MAX_SIZE,
+                     sw.getBatches().get(0).size());
+    }
+
+    @Test
+    public void testHoldWhileNotWritable() {
+        writable.set(false);
+        for (int i = 0; i < Controller.BATCH_MAX_SIZE * 2; i++)
+            sw.write(flowMod(i), null);
+        sw.flush();
+        assertTrue(sw.getBatches().isEmpty());
+        assertEquals(Controller.BATCH_MAX_SIZE * 2, sw.writeQueue.getDepth());
+
+        // OFChannelHandler flushes when the channel becomes writable
+        writable.set(true);
+        sw.flush();
+        assertEquals(1, sw.getBatches().size());
+        assertEquals(Controller.BATCH_MAX_SIZE * 2,
+                     sw.getBatches().get(0).size());
+
+        Map<String, Object> info = sw.getWriteQueueInfo();
+        assertEquals(0, info.get("depth"));
+        assertEquals(1L, info.get("flushes"));
+        assertEquals((long) Controller.BATCH_MAX_SIZE * 2,
+                     info.get("messages"));
+        assertEquals((long) Controller.BATCH_MAX_SIZE * 2,
+                     info.get("flush-size-max"));
+        assertTrue((Long) info.get("held-flushes") > 0);
+    }
+
+    @Test
+    public void testHoldIsBounded() {
+        writable.set(false);
+        for (int i = 0; i < Controller.BATCH_MAX_SIZE * 10; i++)
+            sw.write(flowMod(i), null);
+        assertEquals(1, sw.getBatches().size());
+        assertEquals(Controller.BATCH_MAX_SIZE * 10,
+                     sw.getBatches().get(0).size());
+    }
+
+    @Test
+    public void testTimedFlush() throws Exception {
+        ses = Executors.newSingleThreadScheduledExecutor();
+        IThreadPoolService threadPool = createNiceMock(IThreadPoolService.class);
+        expect(threadPool.getScheduledExecutor()).andReturn(ses).anyTimes();
+        replay(threadPool);
+        sw.setThreadPoolService(threadPool);
+
+        // A writer that never flushes
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                sw.write(flowMod(1), null);
+            }
+        };
+        writer.start();
+        writer.join();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sw.getBatches().isEmpty() &&
+               System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(1, sw.getBatches().size());
+        assertEquals(1L, sw.getWriteQueueInfo().get("timed-flushes"));
+    }
+}
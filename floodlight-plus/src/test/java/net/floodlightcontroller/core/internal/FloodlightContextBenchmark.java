@@ -0,0 +1,272 @@
+/**
+*    Copyright 2013, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.core.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.routing.IRoutingDecision;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+
+/**
+ * Runs packet-ins through a chain of listeners that use the context the way
+ * the default modules do, once with the slot based {@link FloodlightContext}
+ * and once with string keys in its map, as all keys were stored before.
+ * The chain mirrors the default pipeline: the controller stores the
+ * payload, link discovery and topology read it, the device manager adds
+ * the source and destination devices, the firewall reads the decision and
+ * stores its own, the load balancer reads the payload, and forwarding reads
+ * everything.  Contexts come from the controller's per-thread pool in both
+ * cases.  The best of several rounds is reported with the bytes allocated
+ * per packet.
+ *
+ * Run with: java net.floodlightcontroller.core.internal.FloodlightContextBenchmark [packets]
+ */
+public class FloodlightContextBenchmark {
+    private static final int ROUNDS = 10;
+
+    /** Something for results to go into, so they are not optimized away */
+    static long sink;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+
+    /**
+     * Stores every key in the context's map, as FloodlightContextStore did
+     * before contexts had slots
+     */
+    private static class MapStore<V> extends FloodlightContextStore<V> {
+        @Override
+        @SuppressWarnings("unchecked")
+        public V get(FloodlightContext bc, String key) {
+            return (V) bc.getStorage().get(key);
+        }
+
+        @Override
+        public void put(FloodlightContext bc, String key, V value) {
+            bc.getStorage().put(key, value);
+        }
+
+        @Override
+        public void remove(FloodlightContext bc, String key) {
+            bc.getStorage().remove(key);
+        }
+    }
+
+    /** The stores a chain of listeners uses */
+    private static class Stores {
+        final FloodlightContextStore<Ethernet> payload;
+        final FloodlightContextStore<Object> device;
+        final FloodlightContextStore<Object> decision;
+        final boolean slots;
+
+        Stores(boolean slots) {
+            this.slots = slots;
+            if (slots) {
+                payload = IFloodlightProviderService.bcStore;
+                device = new FloodlightContextStore<Object>(
+                        IDeviceService.CONTEXT_SRC_DEVICE,
+                        IDeviceService.CONTEXT_DST_DEVICE);
+                decision = new FloodlightContextStore<Object>(
+                        IRoutingDecision.CONTEXT_DECISION);
+            } else {
+                payload = new MapStore<Ethernet>();
+                device = new MapStore<Object>();
+                decision = new MapStore<Object>();
+            }
+        }
+    }
+
+    private abstract static class Listener implements IOFMessageListener {
+        final Stores s;
+
+        Listener(Stores s) {
+            this.s = s;
+        }
+
+        @Override
+        public String getName() {
+            return getClass().getSimpleName();
+        }
+
+        @Override
+        public boolean isCallbackOrderingPrereq(OFType type, String name) {
+            return false;
+        }
+
+        @Override
+        public boolean isCallbackOrderingPostreq(OFType type, String name) {
+            return false;
+        }
+
+        Ethernet payload(FloodlightContext cntx) {
+            return s.payload.get(cntx,
+                    IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+        }
+    }
+
+    private static List<IOFMessageListener> chain(Stores s,
+                                                  final Object srcDevice,
+                                                  final Object dstDevice,
+                                                  final Object forward) {
+        List<IOFMessageListener> chain = new ArrayList<IOFMessageListener>();
+        // Link discovery and topology
+        for (int i = 0; i < 2; i++) {
+            chain.add(new Listener(s) {
+                @Override
+                public Command receive(IOFSwitch sw, OFMessage msg,
+                                       FloodlightContext cntx) {
+                    sink += payload(cntx).getEtherType();
+                    return Command.CONTINUE;
+                }
+            });
+        }
+        // Device manager
+        chain.add(new Listener(s) {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg,
+                                   FloodlightContext cntx) {
+                sink += payload(cntx).getEtherType();
+                s.device.put(cntx, IDeviceService.CONTEXT_SRC_DEVICE,
+                             srcDevice);
+                s.device.put(cntx, IDeviceService.CONTEXT_DST_DEVICE,
+                             dstDevice);
+                return Command.CONTINUE;
+            }
+        });
+        // Firewall
+        chain.add(new Listener(s) {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg,
+                                   FloodlightContext cntx) {
+                sink += payload(cntx).getEtherType();
+                if (s.decision.get(cntx,
+                        IRoutingDecision.CONTEXT_DECISION) == null)
+                    s.decision.put(cntx, IRoutingDecision.CONTEXT_DECISION,
+                                   forward);
+                return Command.CONTINUE;
+            }
+        });
+        // Load balancer
+        chain.add(new Listener(s) {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg,
+                                   FloodlightContext cntx) {
+                sink += payload(cntx).getEtherType();
+                return Command.CONTINUE;
+            }
+        });
+        // Forwarding
+        chain.add(new Listener(s) {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg,
+                                   FloodlightContext cntx) {
+                sink += payload(cntx).getEtherType();
+                if (s.decision.get(cntx,
+                        IRoutingDecision.CONTEXT_DECISION) != null)
+                    sink++;
+                if (s.device.get(cntx,
+                        IDeviceService.CONTEXT_SRC_DEVICE) != null)
+                    sink++;
+                if (s.device.get(cntx,
+                        IDeviceService.CONTEXT_DST_DEVICE) != null)
+                    sink++;
+                return Command.CONTINUE;
+            }
+        });
+        return chain;
+    }
+
+    public static void main(String[] args) {
+        int packets = (args.length > 0) ? Integer.parseInt(args[0])
+                                        : 1000000;
+        Ethernet eth = new Ethernet();
+        eth.setEtherType(Ethernet.TYPE_IPv4);
+        OFPacketIn pi = new OFPacketIn();
+        Controller controller = new Controller();
+
+        Stores maps = new Stores(false);
+        Stores slots = new Stores(true);
+        List<IOFMessageListener> mapChain =
+                chain(maps, new Object(), new Object(), new Object());
+        List<IOFMessageListener> slotChain =
+                chain(slots, new Object(), new Object(), new Object());
+
+        long[] a = measure(controller, maps, mapChain, eth, pi, packets);
+        long[] b = measure(controller, slots, slotChain, eth, pi, packets);
+        System.out.println(String.format("%-14s %12s %12s", "context",
+                "ns/packet", "B/packet"));
+        System.out.println(String.format("%-14s %12.1f %12.1f", "string map",
+                (double) a[0] / packets, (double) a[1] / packets));
+        System.out.println(String.format("%-14s %12.1f %12.1f", "slots",
+                (double) b[0] / packets, (double) b[1] / packets));
+        System.out.println("(sink " + sink + ")");
+        System.exit(0);
+    }
+
+    /**
+     * @return best time of a round, in nanoseconds, and the bytes allocated
+     *         in that round
+     */
+    private static long[] measure(Controller controller, Stores s,
+                                  List<IOFMessageListener> chain,
+                                  Ethernet eth, OFPacketIn pi, int packets) {
+        long id = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE, allocated = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            long bytes = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            for (int i = 0; i < packets; i++) {
+                // As Controller.handleMessage does
+                FloodlightContext bc = Controller.flcontext_alloc();
+                s.payload.put(bc,
+                        IFloodlightProviderService.CONTEXT_PI_PAYLOAD, eth);
+                for (IOFMessageListener listener : chain) {
+                    if (listener.receive(null, pi, bc) ==
+                            IOFMessageListener.Command.STOP)
+                        break;
+                }
+                if (s.slots) {
+                    controller.flcontext_free(bc);
+                } else {
+                    // As flcontext_free did
+                    bc.getStorage().clear();
+                    Controller.flcontext_cache.get().push(bc);
+                }
+            }
+            long time = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(id) - bytes;
+            if (time < best) {
+                best = time;
+                allocated = bytes;
+            }
+        }
+        return new long[] { best, allocated };
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.OFDispatchLanes.OverflowPolicy;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+
+public class OFDispatchLanesTest {
+
+    /**
+     * Records the messages dispatched to it, optionally holding up the
+     * first one until released
+     */
+    private static class RecordingController extends Controller {
+        final Map<Long, List<Integer>> received =
+                new ConcurrentHashMap<Long, List<Integer>>();
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch hold;
+        final List<String> threads = new ArrayList<String>();
+
+        @Override
+        protected void handleMessage(IOFSwitch sw, OFMessage m,
+                                     FloodlightContext bContext) {
+            entered.countDown();
+            CountDownLatch h = hold;
+            if (h != null) {
+                try {
+                    h.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<Integer> xids = received.get(sw.getId());
+            if (xids == null) {
+                xids = new ArrayList<Integer>();
+                received.put(sw.getId(), xids);
+            }
+            xids.add(m.getXid());
+            synchronized (threads) {
+                if (!threads.contains(Thread.currentThread().getName()))
+                    threads.add(Thread.currentThread().getName());
+            }
+            count.incrementAndGet();
+        }
+
+        @Override
+        void flushAll() {
+        }
+    }
+
+    private OFDispatchLanes lanes;
+
+    @After
+    public void tearDown() {
+        if (lanes != null)
+            lanes.stop();
+    }
+
+    private static IOFSwitch mockSwitch(long dpid) {
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(dpid).anyTimes();
+        replay(sw);
+        return sw;
+    }
+
+    private static OFMessage packetIn(int xid) {
+        OFPacketIn pi = new OFPacketIn();
+        pi.setXid(xid);
+        return pi;
+    }
+
+    private static void waitFor(RecordingController c, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (c.count.get() < count &&
+               System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(count, c.count.get());
+    }
+
+    @Test
+    public void testPerSwitchOrdering() throws Exception {
+        final RecordingController c = new RecordingController();
+        lanes = new OFDispatchLanes(c, 4, 64, OverflowPolicy.BLOCK);
+        lanes.start();
+
+        final int switches = 8;
+        final int messages = 5000;
+        // Two I/O threads, each reading half of the switches
+        Thread[] io = new Thread[2];
+        for (int t = 0; t < io.length; t++) {
+            final int first = t;
+            io[t] = new Thread() {
+                @Override
+                public void run() {
+                    IOFSwitch[] sws = new IOFSwitch[switches];
+                    for (int s = first; s < switches; s += 2)
+                        sws[s] = mockSwitch(s + 1);
+                    for (int i = 0; i < messages; i++) {
+                        for (int s = first; s < switches; s += 2)
+                            assertTrue(lanes.dispatch(sws[s], packetIn(i)));
+                    }
+                }
+            };
+            io[t].start();
+        }
+        for (Thread t : io)
+            t.join();
+        waitFor(c, switches * messages);
+
+        for (long dpid = 1; dpid <= switches; dpid++) {
+            List<Integer> xids = c.received.get(dpid);
+            assertEquals(messages, xids.size());
+            for (int i = 0; i < messages; i++)
+                assertEquals(i, xids.get(i).intValue());
+        }
+        assertTrue(c.threads.size() > 1);
+
+        long dispatched = 0;
+        for (Map<String, Object> info : lanes.getInfo()) {
+            dispatched += (Long) info.get("dispatched");
+            assertEquals(0L, info.get("dropped"));
+            assertEquals(64, info.get("capacity"));
+        }
+        assertEquals(switches * messages, dispatched);
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        RecordingController c = new RecordingController();
+        c.hold = new CountDownLatch(1);
+        lanes = new OFDispatchLanes(c, 1, 4, OverflowPolicy.DROP);
+        lanes.start();
+        IOFSwitch sw = mockSwitch(1);
+
+        // The lane takes the first message and is held up by it
+        assertTrue(lanes.dispatch(sw, packetIn(0)));
+        assertTrue(c.entered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++)
+            assertTrue(lanes.dispatch(sw, packetIn(i)));
+        assertFalse(lanes.dispatch(sw, packetIn(5)));
+        Map<String, Object> info = lanes.getInfo().get(0);
+        assertEquals(4, info.get("depth"));
+        assertEquals(1L, info.get("dropped"));
+
+        c.hold.countDown();
+        waitFor(c, 5);
+        assertEquals(5, c.received.get(1L).size());
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        RecordingController c = new RecordingController();
+        c.hold = new CountDownLatch(1);
+        // Other messages than packet-ins wait even if dropping is allowed
+        lanes = new OFDispatchLanes(c, 1, 2, OverflowPolicy.DROP);
+        lanes.start();
+        final IOFSwitch sw = mockSwitch(1);
+
+        assertTrue(lanes.dispatch(sw, packetIn(0)));
+        assertTrue(c.entered.await(10, TimeUnit.SECONDS));
+        assertTrue(lanes.dispatch(sw, packetIn(1)));
+        assertTrue(lanes.dispatch(sw, packetIn(2)));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread io = new Thread() {
+            @Override
+            public void run() {
+                OFFlowRemoved fr = new OFFlowRemoved();
+                fr.setXid(3);
+                lanes.dispatch(sw, fr);
+                done.countDown();
+            }
+        };
+        io.start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1L, lanes.getInfo().get(0).get("blocked"));
+
+        c.hold.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        waitFor(c, 4);
+        List<Integer> xids = c.received.get(1L);
+        for (int i = 0; i < 4; i++)
+            assertEquals(i, xids.get(i).intValue());
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.junit.Test;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFHello;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.statistics.OFDescriptionStatistics;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+
+public class OFMessageDecoderTest {
+
+    private static OFPacketIn packetIn(int xid, int inPort, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (xid + i);
+        OFMatch match = new OFMatch();
+        match.setInPort(inPort);
+        OFPacketIn pi = new OFPacketIn();
+        pi.setBufferId(-1)
+            .setReason(OFPacketInReason.NO_MATCH)
+            .setTotalLength((short) size)
+            .setMatch(match)
+            .setPacketData(data)
+            .setXid(xid);
+        pi.computeLength();
+        return pi;
+    }
+
+    private static OFStatisticsReply descReply(int xid) {
+        OFDescriptionStatistics desc = new OFDescriptionStatistics();
+        desc.setManufacturerDescription("manufacturer");
+        desc.setHardwareDescription("hardware");
+        desc.setSoftwareDescription("software");
+        desc.setSerialNumber("1234");
+        desc.setDatapathDescription("datapath");
+        OFStatisticsReply reply = new OFStatisticsReply();
+        reply.setStatisticsType(OFStatisticsType.DESC);
+        reply.setStatistics(Collections.<OFStatistics>singletonList(desc));
+        reply.setXid(xid);
+        reply.computeLength();
+        return reply;
+    }
+
+    private static List<OFMessage> messages() {
+        List<OFMessage> messages = new ArrayList<OFMessage>();
+        OFHello hello = new OFHello();
+        hello.setXid(1);
+        messages.add(hello);
+        messages.add(packetIn(2, 5, 60));
+        OFEchoRequest echo = new OFEchoRequest();
+        echo.setXid(3);
+        messages.add(echo);
+        messages.add(descReply(4));
+        messages.add(packetIn(5, 7, 128));
+        return messages;
+    }
+
+    /**
+     * OFMatch.equals only holds for the same instance, so messages are
+     * compared by their encoding.
+     */
+    private static byte[] serialize(List<OFMessage> messages) {
+        int length = 0;
+        for (OFMessage m : messages)
+            length += m.getLengthU();
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        for (OFMessage m : messages)
+            m.writeTo(bb);
+        assertEquals(0, bb.remaining());
+        return bb.array();
+    }
+
+    /**
+     * Feed bytes to a decoder in reads that end at the given offsets.
+     */
+    private static List<OFMessage> decode(OFMessageDecoder decoder,
+                                          byte[] bytes, int... splits)
+            throws Exception {
+        List<OFMessage> decoded = new ArrayList<OFMessage>();
+        int start = 0;
+        for (int i = 0; i <= splits.length; i++) {
+            int end = (i < splits.length) ? splits[i] : bytes.length;
+            // Netty reads into a new buffer each time
+            ChannelBuffer read = ChannelBuffers.buffer(end - start);
+            read.writeBytes(bytes, start, end - start);
+            List<OFMessage> messages = decoder.decode(read);
+            if (messages != null)
+                decoded.addAll(messages);
+            start = end;
+        }
+        return decoded;
+    }
+
+    @Test
+    public void testDecodeInOneRead() throws Exception {
+        List<OFMessage> expected = messages();
+        byte[] bytes = serialize(expected);
+        List<OFMessage> decoded = decode(new OFMessageDecoder(), bytes);
+        assertEquals(expected.size(), decoded.size());
+        assertArrayEquals(bytes, serialize(decoded));
+    }
+
+    @Test
+    public void testDecodeSplitReads() throws Exception {
+        List<OFMessage> expected = messages();
+        byte[] bytes = serialize(expected);
+        for (int split = 1; split < bytes.length; split += 3) {
+            OFMessageDecoder decoder = new OFMessageDecoder();
+            assertArrayEquals("split at " + split, bytes,
+                              serialize(decode(decoder, bytes, split)));
+            assertNull(decoder.partial);
+        }
+
+        // A byte at a time
+        int[] splits = new int[bytes.length - 1];
+        for (int i = 0; i < splits.length; i++)
+            splits[i] = i + 1;
+        assertArrayEquals(bytes,
+                serialize(decode(new OFMessageDecoder(), bytes, splits)));
+    }
+
+    @Test
+    public void testPacketInIsAView() throws Exception {
+        OFPacketIn expected = packetIn(9, 3, 100);
+        byte[] bytes = serialize(Collections.<OFMessage>singletonList(expected));
+        ChannelBuffer read = ChannelBuffers.wrappedBuffer(bytes);
+        List<OFMessage> messages = new OFMessageDecoder().decode(read);
+        OFPacketIn pi = (OFPacketIn) messages.get(0);
+
+        assertEquals(100, pi.getPacketDataLength());
+        ByteBuffer data = pi.getPacketDataBuffer();
+        assertSame(bytes, data.array());
+        assertEquals(bytes.length - 100, data.arrayOffset() + data.position());
+        assertEquals(3, pi.getInPort());
+        assertArrayEquals(expected.getPacketData(), pi.getPacketData());
+
+        // Once copied out, the data no longer refers to the read
+        assertNotSame(bytes, pi.getPacketDataBuffer().array());
+    }
+
+    @Test
+    public void testStatisticsParsedLazily() throws Exception {
+        OFStatisticsReply expected = descReply(4);
+        byte[] bytes = serialize(Collections.<OFMessage>singletonList(expected));
+        OFStatisticsReply reply = (OFStatisticsReply) new OFMessageDecoder()
+                .decode(ChannelBuffers.wrappedBuffer(bytes)).get(0);
+        assertEquals(OFStatisticsType.DESC, reply.getStatisticsType());
+        assertEquals(expected.getStatistics(), reply.getStatistics());
+        assertEquals("manufacturer", ((OFDescriptionStatistics)
+                reply.getFirstStatistics()).getManufacturerDescription());
+    }
+
+    @Test
+    public void testPooledPacketIns() throws Exception {
+        OFMessageDecoder decoder = new OFMessageDecoder(true);
+        byte[] first = serialize(Collections.<OFMessage>singletonList(
+                packetIn(1, 1, 64)));
+        List<OFMessage> batch =
+                decoder.decode(ChannelBuffers.wrappedBuffer(first));
+        assertTrue(batch instanceof OFMessageBatch);
+        OFPacketIn pi = (OFPacketIn) batch.get(0);
+        ((OFMessageBatch) batch).release();
+        assertEquals(1, decoder.pool.getAvailablePacketIns());
+        assertEquals(0, pi.getPacketDataLength());
+
+        OFPacketIn expected = packetIn(2, 4, 80);
+        byte[] second = serialize(Collections.<OFMessage>singletonList(
+                expected));
+        List<OFMessage> next =
+                decoder.decode(ChannelBuffers.wrappedBuffer(second));
+        assertSame(batch, next);
+        assertSame(pi, next.get(0));
+        assertEquals(0, decoder.pool.getAvailablePacketIns());
+        assertArrayEquals(second,
+                serialize(Collections.<OFMessage>singletonList(pi)));
+        assertEquals(4, pi.getInPort());
+    }
+
+    @Test
+    public void testCorruptLength() throws Exception {
+        byte[] bytes = serialize(messages());
+        bytes[2] = 0;
+        bytes[3] = 4;
+        try {
+            decode(new OFMessageDecoder(), bytes);
+            fail("Expected CorruptedFrameException");
+        } catch (CorruptedFrameException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+*    Copyright 2013 Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+import org.junit.Test;
+
+public class DeviceFieldIndexTest extends TestCase {
+    protected Entity e1a;
+    protected Entity e1b;
+    protected Entity e2;
+    protected Entity e3;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        e1a = new Entity(1L, (short)1, 1, 1L, 1, new Date());
+        e1b = new Entity(1L, (short)2, 1, 1L, 2, new Date());
+        // same IP as device 1, on another switch, untagged
+        e2 = new Entity(2L, null, 1, 2L, 1, new Date());
+        // no IP
+        e3 = new Entity(3L, (short)1, null, null, null, new Date());
+    }
+
+    protected Set<Long> keys(Iterator<Long> it) {
+        Set<Long> keys = new HashSet<Long>();
+        while (it.hasNext())
+            keys.add(it.next());
+        return keys;
+    }
+
+    protected Set<Long> set(Long... keys) {
+        return new HashSet<Long>(Arrays.asList(keys));
+    }
+
+    @Test
+    public void testFields() {
+        DeviceFieldIndex mac = new DeviceFieldIndex(DeviceField.MAC);
+        DeviceFieldIndex vlan = new DeviceFieldIndex(DeviceField.VLAN);
+        DeviceFieldIndex ipv4 = new DeviceFieldIndex(DeviceField.IPV4);
+        DeviceFieldIndex sp = new DeviceFieldIndex(DeviceField.SWITCH);
+        for (DeviceFieldIndex idx : Arrays.asList(mac, vlan, ipv4, sp)) {
+            idx.updateIndex(e1a, 1L);
+            idx.updateIndex(e1b, 1L);
+            idx.updateIndex(e2, 2L);
+            idx.updateIndex(e3, 3L);
+        }
+
+        assertEquals(set(1L), keys(mac.queryByEntity(e1b)));
+        assertEquals(3, mac.size());
+
+        assertEquals(set(1L, 3L), keys(vlan.queryByEntity(e1a)));
+        assertEquals(2, vlan.count(e1a));
+        // untagged entities are found under VLAN -1
+        assertEquals(set(2L), keys(vlan.queryByEntity(
+                new Entity(0, (short)-1, null, null, null, null))));
+
+        assertEquals(set(1L, 2L), keys(ipv4.queryByEntity(e2)));
+        assertFalse(ipv4.contains(e1a, 3L));
+        assertEquals(0, ipv4.count(e3));
+        assertEquals(1, ipv4.size());
+
+        assertEquals(set(1L), keys(sp.queryByEntity(e1b)));
+        assertTrue(sp.contains(e1a, 1L));
+        assertFalse(sp.contains(e2, 1L));
+        assertEquals(0, sp.count(e3));
+        // a switch without a port is not in the index
+        assertEquals(0, sp.count(new Entity(1L, null, null, 1L, null, null)));
+
+        assertEquals(set(1L, 2L, 3L), keys(mac.getAll()));
+        assertEquals(set(1L, 2L), keys(sp.getAll()));
+    }
+
+    @Test
+    public void testPortAlone() {
+        try {
+            new DeviceFieldIndex(DeviceField.PORT);
+            fail("Expected exception not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRemove() {
+        DeviceFieldIndex ipv4 = new DeviceFieldIndex(DeviceField.IPV4);
+        ipv4.updateIndex(e1a, 1L);
+        ipv4.updateIndex(e1b, 1L);
+        ipv4.updateIndex(e2, 2L);
+
+        // e1b has the same IP, so device 1 stays
+        ipv4.removeEntityIfNeeded(e1a, 1L, Collections.singletonList(e1b));
+        assertEquals(set(1L, 2L), keys(ipv4.queryByEntity(e1a)));
+
+        ipv4.removeEntityIfNeeded(e1a, 1L, Collections.<Entity>emptyList());
+        assertEquals(set(2L), keys(ipv4.queryByEntity(e1a)));
+
+        ipv4.removeEntity(e2, 2L);
+        assertEquals(0, ipv4.count(e2));
+        assertEquals(0, ipv4.size());
+
+        ipv4.updateIndex(e1a, 1L);
+        ipv4.updateIndex(e2, 2L);
+        ipv4.removeEntity(e2);
+        assertEquals(0, ipv4.size());
+    }
+
+    @Test
+    public void testManyValues() {
+        DeviceFieldIndex mac = new DeviceFieldIndex(DeviceField.MAC);
+        int n = 10000;
+        for (int i = 0; i < n; i++)
+            mac.updateIndex(new Entity(i, null, null, null, null, null),
+                            Long.valueOf(i % 100));
+        assertEquals(n, mac.size());
+        for (int i = 0; i < n; i += 2)
+            mac.removeEntity(new Entity(i, null, null, null, null, null),
+                             Long.valueOf(i % 100));
+        assertEquals(n / 2, mac.size());
+        for (int i = 0; i < n; i++) {
+            Entity e = new Entity(i, null, null, null, null, null);
+            assertEquals(i % 2, mac.count(e));
+            assertEquals(i % 2 == 1, mac.contains(e, i % 100));
+        }
+    }
+
+    @Test
+    public void testQueryFieldIndices() {
+        DeviceManagerImpl dm = new DeviceManagerImpl();
+        dm.deviceMap = new ConcurrentHashMap<Long, Device>();
+        dm.macIndex = new DeviceFieldIndex(DeviceField.MAC);
+        dm.vlanIndex = new DeviceFieldIndex(DeviceField.VLAN);
+        dm.ipv4Index = new DeviceFieldIndex(DeviceField.IPV4);
+        dm.switchPortIndex = new DeviceFieldIndex(DeviceField.SWITCH);
+        dm.fieldIndices = new DeviceFieldIndex[] {
+            dm.macIndex, dm.vlanIndex, dm.ipv4Index, dm.switchPortIndex
+        };
+
+        List<Entity> d1Entities = new ArrayList<Entity>();
+        d1Entities.add(e1a);
+        d1Entities.add(e1b);
+        Device d1 = new Device(null, 1L, null, null, null, d1Entities, null);
+        Device d2 = new Device(null, 2L, null, null, null,
+                               Collections.singletonList(e2), null);
+        Device d3 = new Device(null, 3L, null, null, null,
+                               Collections.singletonList(e3), null);
+        for (Device d : Arrays.asList(d1, d2, d3)) {
+            dm.deviceMap.put(d.getDeviceKey(), d);
+            for (DeviceFieldIndex idx : dm.fieldIndices)
+                idx.updateIndex(d, d.getDeviceKey());
+        }
+
+        assertNull(dm.queryFieldIndices(null, null, null, 1L, null));
+        assertEquals(set(1L, 2L), devices(
+                dm.queryFieldIndices(null, null, 1, null, null)));
+        // intersection of IP and VLAN
+        assertEquals(set(1L), devices(
+                dm.queryFieldIndices(null, (short)1, 1, null, null)));
+        assertEquals(set(2L), devices(
+                dm.queryFieldIndices(null, null, 1, 2L, 1)));
+        assertEquals(set(), devices(
+                dm.queryFieldIndices(3L, null, 1, null, null)));
+        assertEquals(set(), devices(
+                dm.queryFieldIndices(4L, null, null, null, null)));
+
+        // devices removed from the map are skipped
+        dm.deviceMap.remove(2L);
+        assertEquals(set(1L), devices(
+                dm.queryFieldIndices(null, null, 1, null, null)));
+    }
+
+    protected Set<Long> devices(Iterator<Device> it) {
+        Set<Long> keys = new HashSet<Long>();
+        while (it.hasNext())
+            keys.add(it.next().getDeviceKey());
+        return keys;
+    }
+}
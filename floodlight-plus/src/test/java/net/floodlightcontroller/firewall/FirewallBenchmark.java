@@ -0,0 +1,240 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Compares matching packets against the firewall rules one at a time under
+ * a lock, as the firewall did, with the compiled classifier, for rule sets
+ * shaped like the ClassBench ACL and FW seeds: ACL rules mostly name a
+ * host or subnet on both sides, while FW rules wildcard more fields and use
+ * shorter prefixes.  Addresses are drawn from a pool of nested prefixes so
+ * that rules overlap.  Half of the packets are drawn from inside a random
+ * rule and half are random.  Every lookup is checked against the linear
+ * result.
+ *
+ * Run with: java net.floodlightcontroller.firewall.FirewallBenchmark
+ * [rules] [threads]
+ */
+public class FirewallBenchmark {
+    private static final int PACKETS = 20000;
+
+    private static int[] sites;
+
+    private static int address(Random r) {
+        // a host in a /24 under one of the sites
+        return sites[r.nextInt(sites.length)] | (r.nextInt(16) << 8) |
+               r.nextInt(256);
+    }
+
+    private static void prefix(Random r, FirewallRule rule, boolean src,
+                               int[] lengths) {
+        int bits = lengths[r.nextInt(lengths.length)];
+        if (bits == 0) return;
+        int prefix = address(r) & (-1 << (32 - bits));
+        if (src) {
+            rule.wildcard_nw_src = false;
+            rule.nw_src_prefix = prefix;
+            rule.nw_src_maskbits = bits;
+        } else {
+            rule.wildcard_nw_dst = false;
+            rule.nw_dst_prefix = prefix;
+            rule.nw_dst_maskbits = bits;
+        }
+    }
+
+    private static List<FirewallRule> rules(Random r, int count,
+                                            boolean acl) {
+        int[] srcLengths = acl ? new int[] { 0, 0, 16, 24, 24, 32 }
+                               : new int[] { 0, 0, 0, 8, 16, 24 };
+        int[] dstLengths = acl ? new int[] { 24, 32, 32, 32, 16 }
+                               : new int[] { 0, 16, 24, 32 };
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        for (int i = 0; i < count; i++) {
+            FirewallRule rule = new FirewallRule();
+            rule.wildcard_dl_type = false;
+            rule.dl_type = Ethernet.TYPE_IPv4;
+            prefix(r, rule, true, srcLengths);
+            prefix(r, rule, false, dstLengths);
+            int p = r.nextInt(10);
+            if (p < 5) {
+                rule.wildcard_nw_proto = false;
+                rule.nw_proto = IPv4.PROTOCOL_TCP;
+            } else if (p < 7) {
+                rule.wildcard_nw_proto = false;
+                rule.nw_proto = IPv4.PROTOCOL_UDP;
+            } else if (p < 8) {
+                rule.wildcard_nw_proto = false;
+                rule.nw_proto = IPv4.PROTOCOL_ICMP;
+            }
+            if (!acl && r.nextInt(8) == 0) {
+                rule.wildcard_in_port = false;
+                rule.in_port = (short) (1 + r.nextInt(48));
+            }
+            rule.priority = i;
+            rule.action = r.nextInt(3) == 0
+                    ? FirewallRule.FirewallAction.DENY
+                    : FirewallRule.FirewallAction.ALLOW;
+            rules.add(rule);
+        }
+        Collections.sort(rules);
+        return rules;
+    }
+
+    private static int inside(Random r, boolean wildcard, int prefix,
+                              int bits) {
+        if (wildcard) return address(r);
+        int k = 32 - bits;
+        if (k <= 0 || k >= 32) return prefix;
+        return prefix | (r.nextInt() & ((1 << k) - 1));
+    }
+
+    private static Ethernet[] packets(Random r, List<FirewallRule> rules) {
+        Ethernet[] packets = new Ethernet[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            int src = address(r);
+            int dst = address(r);
+            if (r.nextBoolean()) {
+                FirewallRule rule = rules.get(r.nextInt(rules.size()));
+                src = inside(r, rule.wildcard_nw_src, rule.nw_src_prefix,
+                             rule.nw_src_maskbits);
+                dst = inside(r, rule.wildcard_nw_dst, rule.nw_dst_prefix,
+                             rule.nw_dst_maskbits);
+            }
+            IPv4 ip = new IPv4().setSourceAddress(src)
+                    .setDestinationAddress(dst);
+            int p = r.nextInt(10);
+            if (p < 6) {
+                ip.setProtocol(IPv4.PROTOCOL_TCP);
+                ip.setPayload(new TCP().setSourcePort((short) 40000)
+                              .setDestinationPort((short) 80));
+            } else {
+                ip.setProtocol(IPv4.PROTOCOL_UDP);
+                ip.setPayload(new UDP().setSourcePort((short) 40000)
+                              .setDestinationPort((short) 53));
+            }
+            Ethernet eth = (Ethernet) new Ethernet()
+                .setSourceMACAddress(Ethernet.toByteArray(1 + r.nextInt(100)))
+                .setDestinationMACAddress(Ethernet.toByteArray(1 + r.nextInt(100)))
+                .setEtherType(Ethernet.TYPE_IPv4)
+                .setPayload(ip);
+            packets[i] = eth;
+        }
+        return packets;
+    }
+
+    /**
+     * @return lookups per second over all threads
+     */
+    private static double run(final List<FirewallRule> rules,
+                              final FirewallClassifier classifier,
+                              final Ethernet[] packets, int threads)
+                                      throws Exception {
+        final int rounds = (classifier == null) ? 1 : 10;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < packets.length; i++) {
+                            Ethernet eth =
+                                packets[(i + offset * 997) % packets.length];
+                            int inPort = 1 + (i % 48);
+                            if (classifier == null) {
+                                synchronized (rules) {
+                                    FirewallClassifierTest.linearMatch(
+                                            rules, 1, inPort, eth);
+                                }
+                            } else {
+                                classifier.match(1, inPort, eth);
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (double) threads * rounds * packets.length / seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = (args.length > 0)
+                ? new int[] { Integer.parseInt(args[0]) }
+                : new int[] { 500, 1000, 5000 };
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+
+        Random r = new Random(42);
+        sites = new int[64];
+        for (int i = 0; i < sites.length; i++)
+            sites[i] = r.nextInt() & 0xfff00000;
+
+        System.out.printf("%-4s %6s %7s %9s %12s %12s %12s %12s %6s%n",
+                          "set", "rules", "tuples", "build ms",
+                          "linear/s", "tuple/s",
+                          "linear/s " + threads + "t",
+                          "tuple/s " + threads + "t", "diffs");
+        for (int count : counts) {
+            for (boolean acl : new boolean[] { true, false }) {
+                List<FirewallRule> rules = rules(r, count, acl);
+                Ethernet[] packets = packets(r, rules);
+
+                long start = System.nanoTime();
+                FirewallClassifier classifier = new FirewallClassifier(rules);
+                double buildMs = (System.nanoTime() - start) / 1e6;
+
+                int diffs = 0;
+                for (int i = 0; i < packets.length; i++) {
+                    int inPort = 1 + (i % 48);
+                    RuleWildcardsPair a = FirewallClassifierTest.
+                            linearMatch(rules, 1, inPort, packets[i]);
+                    RuleWildcardsPair b =
+                            classifier.match(1, inPort, packets[i]);
+                    if (a.rule != b.rule ||
+                        !a.nonWildcards.equals(b.nonWildcards))
+                        diffs += 1;
+                }
+
+                // warm up
+                run(rules, null, packets, 1);
+                run(rules, classifier, packets, 1);
+
+                System.out.printf("%-4s %6d %7d %9.1f %12.0f %12.0f %12.0f %12.0f %6d%n",
+                                  acl ? "acl" : "fw", count,
+                                  classifier.getTupleCount(), buildMs,
+                                  run(rules, null, packets, 1),
+                                  run(rules, classifier, packets, 1),
+                                  run(rules, null, packets, threads),
+                                  run(rules, classifier, packets, threads),
+                                  diffs);
+            }
+        }
+    }
+}
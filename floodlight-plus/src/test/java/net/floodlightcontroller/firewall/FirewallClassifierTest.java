@@ -0,0 +1,231 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import org.junit.Test;
+
+public class FirewallClassifierTest {
+
+    /**
+     * Match by trying each rule in turn, as the firewall did before it
+     * compiled its rules
+     */
+    protected static RuleWildcardsPair linearMatch(List<FirewallRule> rules,
+                                                   long dpid, int inPort,
+                                                   Ethernet eth) {
+        NonWildcardsPair nonWildcards = new NonWildcardsPair();
+        RuleWildcardsPair ret = new RuleWildcardsPair();
+        for (FirewallRule rule : rules) {
+            if (rule.matchesFlow(dpid, inPort, eth, nonWildcards)) {
+                ret.rule = rule;
+                break;
+            }
+        }
+        if (ret.rule == null ||
+            ret.rule.action == FirewallRule.FirewallAction.DENY) {
+            ret.nonWildcards = nonWildcards.drop;
+        } else {
+            ret.nonWildcards = nonWildcards.allow;
+        }
+        return ret;
+    }
+
+    private static <T> T pick(Random r, T[] values) {
+        return values[r.nextInt(values.length)];
+    }
+
+    private static final Short[] DL_TYPES =
+        { Ethernet.TYPE_ARP, Ethernet.TYPE_IPv4, Ethernet.TYPE_IPv4,
+          Ethernet.TYPE_LLDP };
+    private static final Byte[] PROTOS =
+        { IPv4.PROTOCOL_TCP, IPv4.PROTOCOL_UDP, IPv4.PROTOCOL_ICMP,
+          (byte) 47 };
+    private static final Integer[] MASKBITS = { 0, 8, 16, 24, 30, 31, 32 };
+
+    private static int address(Random r) {
+        // 10.0.x.y with few distinct values so that prefixes overlap
+        return 0x0a000000 | (r.nextInt(2) << 8) | r.nextInt(4);
+    }
+
+    private static FirewallRule randomRule(Random r) {
+        FirewallRule rule = new FirewallRule();
+        if (r.nextInt(4) == 0) {
+            rule.wildcard_dpid = false;
+            rule.dpid = 1 + r.nextInt(2);
+        }
+        if (r.nextInt(4) == 0) {
+            rule.wildcard_in_port = false;
+            rule.in_port = (short) (1 + r.nextInt(2));
+        }
+        if (r.nextInt(4) == 0) {
+            rule.wildcard_dl_src = false;
+            rule.dl_src = 1 + r.nextInt(2);
+        }
+        if (r.nextInt(4) == 0) {
+            rule.wildcard_dl_dst = false;
+            rule.dl_dst = 1 + r.nextInt(2);
+        }
+        if (r.nextInt(3) != 0) {
+            rule.wildcard_dl_type = false;
+            rule.dl_type = pick(r, DL_TYPES);
+        }
+        if (r.nextInt(2) == 0) {
+            rule.wildcard_nw_src = false;
+            rule.nw_src_prefix = address(r);
+            rule.nw_src_maskbits = pick(r, MASKBITS);
+        }
+        if (r.nextInt(2) == 0) {
+            rule.wildcard_nw_dst = false;
+            rule.nw_dst_prefix = address(r);
+            rule.nw_dst_maskbits = pick(r, MASKBITS);
+        }
+        if (r.nextInt(2) == 0) {
+            rule.wildcard_nw_proto = false;
+            rule.nw_proto = pick(r, PROTOS);
+        }
+        if (r.nextInt(4) == 0) {
+            rule.wildcard_tp_dst = false;
+            rule.tp_dst = (short) (80 + r.nextInt(2));
+        }
+        rule.priority = r.nextInt(10);
+        rule.action = r.nextBoolean() ? FirewallRule.FirewallAction.ALLOW
+                                      : FirewallRule.FirewallAction.DENY;
+        return rule;
+    }
+
+    private static Ethernet randomPacket(Random r) {
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(Ethernet.toByteArray(1 + r.nextInt(2)));
+        eth.setDestinationMACAddress(Ethernet.toByteArray(1 + r.nextInt(2)));
+        int kind = r.nextInt(6);
+        if (kind == 0) {
+            eth.setEtherType(Ethernet.TYPE_ARP);
+            eth.setPayload(new ARP()
+                .setSenderProtocolAddress(address(r))
+                .setTargetProtocolAddress(address(r)));
+        } else if (kind == 1) {
+            eth.setEtherType(Ethernet.TYPE_LLDP);
+            eth.setPayload(new Data(new byte[] { 1 }));
+        } else {
+            IPv4 ip = new IPv4()
+                .setSourceAddress(address(r))
+                .setDestinationAddress(address(r));
+            if (kind == 2) {
+                ip.setProtocol(IPv4.PROTOCOL_TCP);
+                ip.setPayload(new TCP().setSourcePort((short) 81)
+                              .setDestinationPort((short) (80 + r.nextInt(2))));
+            } else if (kind == 3) {
+                ip.setProtocol(IPv4.PROTOCOL_UDP);
+                ip.setPayload(new UDP().setSourcePort((short) 81)
+                              .setDestinationPort((short) 80));
+            } else if (kind == 4) {
+                ip.setProtocol(IPv4.PROTOCOL_ICMP);
+                ip.setPayload(new ICMP());
+            } else {
+                ip.setProtocol((byte) 47);
+                ip.setPayload(new Data(new byte[] { 1 }));
+            }
+            eth.setEtherType(Ethernet.TYPE_IPv4);
+            eth.setPayload(ip);
+        }
+        return eth;
+    }
+
+    @Test
+    public void testNoRules() {
+        FirewallClassifier c =
+                new FirewallClassifier(new ArrayList<FirewallRule>());
+        Random r = new Random(1);
+        RuleWildcardsPair ret = c.match(1, 1, randomPacket(r));
+        assertNull(ret.rule);
+        assertTrue(ret.nonWildcards.isEmpty());
+    }
+
+    @Test
+    public void testMatchesLinear() {
+        Random r = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            List<FirewallRule> rules = new ArrayList<FirewallRule>();
+            int count = 1 + r.nextInt(40);
+            for (int i = 0; i < count; i++)
+                rules.add(randomRule(r));
+            Collections.sort(rules);
+            FirewallClassifier c = new FirewallClassifier(rules);
+
+            for (int p = 0; p < 100; p++) {
+                long dpid = 1 + r.nextInt(2);
+                int inPort = 1 + r.nextInt(2);
+                Ethernet eth = randomPacket(r);
+                RuleWildcardsPair expected =
+                        linearMatch(rules, dpid, inPort, eth);
+                RuleWildcardsPair actual = c.match(dpid, inPort, eth);
+                assertSame(expected.rule, actual.rule);
+                assertEquals(expected.nonWildcards, actual.nonWildcards);
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixes() {
+        // 10.0.1.0/24 allows, everything else is denied
+        FirewallRule allow = new FirewallRule();
+        allow.wildcard_dl_type = false;
+        allow.dl_type = Ethernet.TYPE_IPv4;
+        allow.wildcard_nw_src = false;
+        allow.nw_src_prefix = IPv4.toIPv4Address("10.0.1.0");
+        allow.nw_src_maskbits = 24;
+        allow.priority = 1;
+        FirewallRule deny = new FirewallRule();
+        deny.action = FirewallRule.FirewallAction.DENY;
+        deny.priority = 2;
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        rules.add(allow);
+        rules.add(deny);
+        FirewallClassifier c = new FirewallClassifier(rules);
+
+        Ethernet eth = new Ethernet()
+            .setSourceMACAddress("00:00:00:00:00:01")
+            .setDestinationMACAddress("00:00:00:00:00:02")
+            .setEtherType(Ethernet.TYPE_IPv4);
+        eth.setPayload(new IPv4().setSourceAddress("10.0.1.77")
+                       .setDestinationAddress("10.0.2.1")
+                       .setProtocol((byte) 47));
+        assertSame(allow, c.match(1, 1, eth).rule);
+        eth.setPayload(new IPv4().setSourceAddress("10.0.2.77")
+                       .setDestinationAddress("10.0.2.1")
+                       .setProtocol((byte) 47));
+        RuleWildcardsPair ret = c.match(1, 1, eth);
+        assertSame(deny, ret.rule);
+        assertEquals(linearMatch(rules, 1, 1, eth).nonWildcards,
+                     ret.nonWildcards);
+    }
+}
@@ -21,6 +21,7 @@ import static org.easymock.EasyMock.*;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.IListener.Command;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
@@ -37,6 +38,7 @@ import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
+import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.OFType;
 
@@ -51,6 +53,7 @@ public class FlowReconcileMgrTest extends FloodlightTestCase {
 
     protected int NUM_FLOWS_PER_THREAD = 100;
     protected int NUM_THREADS = 20;
+    protected AtomicInteger flowCookie = new AtomicInteger();
     
     @Before
     public void setUp() throws Exception {
@@ -477,6 +480,43 @@ public class FlowReconcileMgrTest extends FloodlightTestCase {
         verify(r1, counterStore);
     }
     
+    /** Verify a request equal to one that is waiting is dropped.
+     */
+    @Test
+    public void testCoalesceFlows() {
+        flowReconcileMgr.flowReconcileEnabled = false;
+
+        OFMatchReconcile ofmRcIn = new OFMatchReconcile();
+        ofmRcIn.ofmWithSwDpid.setOfMatch(
+                OFMatch.fromString("dl_dst=00:20:30:40:50:60"));
+        ofmRcIn.ofmWithSwDpid.setSwitchDataPathId(1L);
+        for (int i = 0; i < 10; i++) {
+            // a new match with the same fields is compared by its fields
+            ofmRcIn.ofmWithSwDpid.setOfMatch(
+                    OFMatch.fromString("dl_dst=00:20:30:40:50:60"));
+            flowReconcileMgr.reconcileFlow(ofmRcIn, EventPriority.MEDIUM);
+        }
+        assertEquals(1, flowReconcileMgr.flowQueue.size());
+        assertEquals(9, flowReconcileMgr.flowQueue.getCoalesced());
+
+        // an equal request with a higher priority moves the waiting one up
+        flowReconcileMgr.reconcileFlow(ofmRcIn, EventPriority.HIGH);
+        assertEquals(1, flowReconcileMgr.flowQueue.size());
+        assertEquals(1, flowReconcileMgr.flowQueue.size(EventPriority.HIGH));
+        assertEquals(0, flowReconcileMgr.flowQueue.size(EventPriority.MEDIUM));
+
+        ofmRcIn.ofmWithSwDpid.setSwitchDataPathId(2L);
+        flowReconcileMgr.reconcileFlow(ofmRcIn, EventPriority.MEDIUM);
+        ofmRcIn.rcAction = OFMatchReconcile.ReconcileAction.DELETE;
+        flowReconcileMgr.reconcileFlow(ofmRcIn, EventPriority.MEDIUM);
+        assertEquals(3, flowReconcileMgr.flowQueue.size());
+
+        // once dequeued, an equal request is queued again
+        flowReconcileMgr.flowQueue.clear();
+        flowReconcileMgr.reconcileFlow(ofmRcIn, EventPriority.MEDIUM);
+        assertEquals(1, flowReconcileMgr.flowQueue.size());
+    }
+
     protected void flowQueueTest(boolean enableReconcileThread) {
         flowReconcileMgr.flowReconcileEnabled = enableReconcileThread;
     
@@ -505,8 +545,10 @@ public class FlowReconcileMgrTest extends FloodlightTestCase {
     @Override
         public void run() {
             OFMatchReconcile ofmRc = new OFMatchReconcile();
-            // push large number of flows to be reconciled.
+            // push large number of flows to be reconciled. Each is a
+            // different flow, since equal requests are coalesced.
             for (int i = 0; i < NUM_FLOWS_PER_THREAD; i++) {
+                ofmRc.cookie = flowCookie.incrementAndGet();
                 flowReconcileMgr.reconcileFlow(ofmRc,EventPriority.LOW);
             }
         }
@@ -0,0 +1,222 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.flowcache;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.flowcache.PriorityPendingQueue.EventPriority;
+
+import org.junit.Test;
+
+public class PriorityPendingQueueTest {
+
+    @Test
+    public void testPriorityOrder() {
+        PriorityPendingQueue<Integer> q =
+                new PriorityPendingQueue<Integer>(100, 100);
+        q.offer(1, EventPriority.LOW);
+        q.offer(2, EventPriority.MEDIUM);
+        q.offer(3, EventPriority.HIGH);
+        q.offer(4, EventPriority.HIGH);
+        q.offer(5, EventPriority.MEDIUM);
+        assertEquals(5, q.size());
+        assertEquals(2, q.size(EventPriority.HIGH));
+        assertEquals(Integer.valueOf(3), q.peek());
+
+        List<Integer> out = new ArrayList<Integer>();
+        assertEquals(3, q.drainTo(out, 3));
+        assertEquals(Integer.valueOf(3), out.get(0));
+        assertEquals(Integer.valueOf(4), out.get(1));
+        assertEquals(Integer.valueOf(2), out.get(2));
+        assertEquals(Integer.valueOf(5), q.poll());
+        assertEquals(Integer.valueOf(1), q.poll());
+        assertNull(q.poll());
+        assertNull(q.peek());
+        assertTrue(q.isEmpty());
+        assertEquals(2, q.getWaitTimes(EventPriority.HIGH).getCount());
+    }
+
+    @Test
+    public void testLowNotStarved() {
+        PriorityPendingQueue<Integer> q = new PriorityPendingQueue<Integer>(100, 4);
+        for (int i = 0; i < 20; i++)
+            q.offer(i, EventPriority.HIGH);
+        q.offer(-1, EventPriority.LOW);
+        List<Integer> out = new ArrayList<Integer>();
+        q.drainTo(out, 4);
+        // the fourth dequeue serves the low priority event
+        assertEquals(Integer.valueOf(-1), out.get(3));
+        assertEquals(0, q.size(EventPriority.LOW));
+    }
+
+    @Test
+    public void testBoundAndCoalesce() {
+        PriorityPendingQueue<String> q = new PriorityPendingQueue<String>(2, 8);
+        assertTrue(q.offer("a", EventPriority.LOW, "a"));
+        assertTrue(q.offer("a again", EventPriority.HIGH, "a"));
+        assertEquals(1, q.size());
+        assertEquals(1, q.getCoalesced());
+        assertTrue(q.offer("b", EventPriority.LOW, "b"));
+        assertFalse(q.offer("c", EventPriority.LOW, "c"));
+        assertEquals(1, q.getRejected());
+        // a rejected key is not left pending
+        assertEquals("a", q.poll());
+        assertTrue(q.offer("c", EventPriority.LOW, "c"));
+        assertFalse(q.offer("a", EventPriority.LOW, "a"));
+        assertEquals(2, q.size());
+    }
+
+    @Test
+    public void testCoalescePromotes() {
+        PriorityPendingQueue<String> q = new PriorityPendingQueue<String>(2, 8);
+        assertTrue(q.offer("a", EventPriority.LOW, "a"));
+        assertTrue(q.offer("b", EventPriority.MEDIUM, "b"));
+        // a higher priority offer moves the waiting event up ...
+        assertTrue(q.offer("a again", EventPriority.HIGH, "a"));
+        assertEquals(2, q.size());
+        assertEquals(1, q.size(EventPriority.HIGH));
+        assertEquals(0, q.size(EventPriority.LOW));
+        assertEquals(1, q.getCoalesced());
+        assertEquals("a", q.peek());
+        // ... without taking another place
+        assertFalse(q.offer("c", EventPriority.LOW, "c"));
+        // a lower priority offer leaves it where it is
+        assertTrue(q.offer("a", EventPriority.MEDIUM, "a"));
+        assertEquals(1, q.size(EventPriority.HIGH));
+
+        assertEquals("a", q.poll());
+        assertEquals("b", q.poll());
+        // the entry left at the low level is skipped
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+        assertTrue(q.offer("a", EventPriority.LOW, "a"));
+        assertEquals("a", q.poll());
+        assertEquals(1, q.getWaitTimes(EventPriority.HIGH).getCount());
+    }
+
+    @Test
+    public void testConcurrentCoalesce() throws Exception {
+        final PriorityPendingQueue<Integer> q =
+                new PriorityPendingQueue<Integer>(16, 4);
+        final int producers = 4;
+        final int perProducer = 20000;
+        final AtomicInteger offered = new AtomicInteger();
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch producing = new CountDownLatch(producers);
+        final CountDownLatch done = new CountDownLatch(producers + 1);
+        for (int p = 0; p < producers; p++) {
+            final int seed = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        EventPriority prio =
+                                EventPriority.values()[(i + seed) % 3];
+                        Integer key = (i * 7 + seed) % 8;
+                        if (q.offer(key, prio, key))
+                            offered.incrementAndGet();
+                    }
+                    producing.countDown();
+                    done.countDown();
+                }
+            }.start();
+        }
+        new Thread() {
+            @Override
+            public void run() {
+                List<Integer> batch = new ArrayList<Integer>();
+                while (producing.getCount() > 0 || !q.isEmpty()) {
+                    batch.clear();
+                    if (q.drainTo(batch, 4) == 0)
+                        Thread.yield();
+                    for (Integer e : batch)
+                        assertNotNull(e);
+                    taken.addAndGet(batch.size());
+                }
+                done.countDown();
+            }
+        }.start();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        // every offer was either taken or coalesced into one taken
+        assertTrue(q.isEmpty());
+        assertEquals(offered.get(), taken.get() + q.getCoalesced());
+        for (EventPriority p : EventPriority.values())
+            assertEquals(0, q.size(p));
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final PriorityPendingQueue<Integer> q =
+                new PriorityPendingQueue<Integer>(1000, 8);
+        final int producers = 4;
+        final int perProducer = 20000;
+        final ConcurrentHashMap<Integer, Boolean> seen =
+                new ConcurrentHashMap<Integer, Boolean>();
+        final AtomicInteger taken = new AtomicInteger();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers + 2);
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        EventPriority prio = EventPriority.values()[i % 3];
+                        while (!q.offer(base + i, prio))
+                            Thread.yield();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        for (int c = 0; c < 2; c++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    List<Integer> batch = new ArrayList<Integer>();
+                    while (taken.get() < producers * perProducer) {
+                        batch.clear();
+                        if (q.drainTo(batch, 50) == 0) {
+                            Thread.yield();
+                            continue;
+                        }
+                        for (Integer e : batch) {
+                            if (seen.put(e, true) != null)
+                                duplicates.incrementAndGet();
+                        }
+                        taken.addAndGet(batch.size());
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(0, duplicates.get());
+        assertEquals(producers * perProducer, seen.size());
+        assertTrue(q.isEmpty());
+        for (EventPriority p : EventPriority.values())
+            assertEquals(0, q.size(p));
+    }
+}
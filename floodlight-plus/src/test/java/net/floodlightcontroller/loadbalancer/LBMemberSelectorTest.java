@@ -0,0 +1,265 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+import net.floodlightcontroller.packet.IPv4;
+
+import org.junit.Test;
+
+public class LBMemberSelectorTest {
+
+    protected static LBMember member(String id, int weight) {
+        LBMember member = new LBMember();
+        member.id = id;
+        member.weight = weight;
+        return member;
+    }
+
+    protected static List<LBMember> members(int count) {
+        List<LBMember> members = new ArrayList<LBMember>();
+        for (int i = 0; i < count; i++)
+            members.add(member("member" + i, 1));
+        return members;
+    }
+
+    protected static Map<String, LBMember> byId(List<LBMember> members) {
+        Map<String, LBMember> byId = new HashMap<String, LBMember>();
+        for (LBMember m : members)
+            byId.put(m.id, m);
+        return byId;
+    }
+
+    protected static IPClient client(Random r) {
+        IPClient client = new IPClient();
+        client.ipAddress = r.nextInt();
+        client.nw_proto = IPv4.PROTOCOL_TCP;
+        client.srcPort = (short) r.nextInt();
+        client.targetPort = 80;
+        return client;
+    }
+
+    @Test
+    public void testEmpty() {
+        List<LBMember> none = new ArrayList<LBMember>();
+        IPClient client = client(new Random(1));
+        for (short method = 0; method < 4; method++)
+            assertNull(LBMemberSelector.create(method, none, null)
+                       .pickMember(client));
+    }
+
+    @Test
+    public void testParseMethod() {
+        assertEquals(LBMemberSelector.MAGLEV,
+                     LBMemberSelector.parseMethod("maglev"));
+        assertEquals(LBMemberSelector.LEAST_CONNECTIONS,
+                     LBMemberSelector.parseMethod("LEAST_CONNECTIONS"));
+        assertEquals(LBMemberSelector.POWER_OF_TWO_CHOICES,
+                     LBMemberSelector.parseMethod("3"));
+    }
+
+    @Test
+    public void testRoundRobin() {
+        List<LBMember> members = members(3);
+        LBMemberSelector s =
+                LBMemberSelector.create(LBMemberSelector.ROUND_ROBIN,
+                                        members, null);
+        Random r = new Random(1);
+        assertSame(members.get(0), s.pickMember(client(r)));
+        assertSame(members.get(1), s.pickMember(client(r)));
+        // the rotation carries on across a change of members
+        members.add(member("member3", 1));
+        s = LBMemberSelector.create(LBMemberSelector.ROUND_ROBIN,
+                                    members, s);
+        assertSame(members.get(2), s.pickMember(client(r)));
+        assertSame(members.get(3), s.pickMember(client(r)));
+        assertSame(members.get(0), s.pickMember(client(r)));
+    }
+
+    @Test
+    public void testMaglevBalance() {
+        List<LBMember> members = members(4);
+        members.add(member("heavy", 4));
+        LBMemberSelector s =
+                LBMemberSelector.create(LBMemberSelector.MAGLEV,
+                                        members, null);
+        Map<LBMember, Integer> counts = new HashMap<LBMember, Integer>();
+        Random r = new Random(1);
+        int flows = 80000;
+        for (int i = 0; i < flows; i++) {
+            IPClient client = client(r);
+            LBMember m = s.pickMember(client);
+            assertSame(m, s.pickMember(client));
+            Integer c = counts.get(m);
+            counts.put(m, (c == null) ? 1 : c + 1);
+        }
+        // 8 units of weight in total
+        for (LBMember m : members) {
+            double expected = (double) flows * m.weight / 8;
+            assertEquals(expected, counts.get(m), expected * 0.05);
+        }
+    }
+
+    @Test
+    public void testMaglevStability() {
+        List<LBMember> members = members(10);
+        LBMemberSelector before =
+                LBMemberSelector.create(LBMemberSelector.MAGLEV,
+                                        members, null);
+        LBMember removed = members.remove(3);
+        LBMemberSelector after =
+                LBMemberSelector.create(LBMemberSelector.MAGLEV,
+                                        members, before);
+        Random r = new Random(1);
+        int kept = 0, moved = 0;
+        for (int i = 0; i < 50000; i++) {
+            IPClient client = client(r);
+            LBMember b = before.pickMember(client);
+            LBMember a = after.pickMember(client);
+            assertNotSame(removed, a);
+            if (b == removed) continue;
+            if (a == b) kept += 1;
+            else moved += 1;
+        }
+        // Maglev moves a few percent of the other flows; hashing modulo
+        // the number of members would move 90% of them
+        assertTrue(moved < (kept + moved) * 0.05);
+    }
+
+    @Test
+    public void testLeastConnections() {
+        List<LBMember> members = members(3);
+        members.get(0).connections.set(5);
+        members.get(1).connections.set(2);
+        members.get(2).connections.set(4);
+        members.get(2).weight = 3;
+        LBMemberSelector s =
+                LBMemberSelector.create(LBMemberSelector.LEAST_CONNECTIONS,
+                                        members, null);
+        Random r = new Random(1);
+        // 4/3 connections per unit of weight is the least
+        for (int i = 0; i < 3; i++)
+            assertSame(members.get(2), s.pickMember(client(r)));
+        members.get(2).connections.set(9);
+        assertSame(members.get(1), s.pickMember(client(r)));
+    }
+
+    @Test
+    public void testPowerOfTwoChoices() {
+        List<LBMember> members = members(2);
+        members.get(0).connections.set(10);
+        LBMemberSelector s =
+                LBMemberSelector.create(LBMemberSelector.POWER_OF_TWO_CHOICES,
+                                        members, null);
+        Random r = new Random(1);
+        // with two members both are always compared
+        for (int i = 0; i < 10; i++)
+            assertSame(members.get(1), s.pickMember(client(r)));
+
+        // connections stay within one of each other when every pick
+        // opens one
+        members = members(8);
+        s = LBMemberSelector.create(LBMemberSelector.POWER_OF_TWO_CHOICES,
+                                    members, null);
+        for (int i = 0; i < 8000; i++)
+            s.pickMember(client(r)).connections.incrementAndGet();
+        for (LBMember m : members)
+            assertEquals(1000, m.connections.get(), 50);
+    }
+
+    @Test
+    public void testAffinity() {
+        List<LBMember> members = members(2);
+        LBAffinityTable table = new LBAffinityTable(2, 1000, byId(members));
+        Random r = new Random(1);
+        IPClient c1 = client(r);
+        IPClient c2 = client(r);
+        IPClient c3 = client(r);
+
+        assertNull(table.get(c1, "pool", 0));
+        assertSame(members.get(0), table.put(c1, "pool", members.get(0), 0));
+        // a racing put keeps the first member
+        assertSame(members.get(0), table.put(c1, "pool", members.get(1), 0));
+        assertEquals(1, members.get(0).connections.get());
+        assertEquals(0, members.get(1).connections.get());
+        assertSame(members.get(0), table.get(c1, "pool", 500));
+        // another pool does not see the entry, and releases it
+        assertNull(table.get(c1, "other", 500));
+        assertEquals(0, members.get(0).connections.get());
+
+        // idle expiry
+        table.put(c1, "pool", members.get(0), 0);
+        table.put(c2, "pool", members.get(1), 800);
+        assertEquals(1, table.expire(1500));
+        assertEquals(0, members.get(0).connections.get());
+        assertEquals(1, members.get(1).connections.get());
+        assertNull(table.get(c1, "pool", 1500));
+
+        // eviction when full
+        table.put(c1, "pool", members.get(0), 1500);
+        table.put(c3, "pool", members.get(0), 1500);
+        assertEquals(2, table.size());
+        assertEquals(2, members.get(0).connections.get() +
+                        members.get(1).connections.get());
+
+        table.removeMember(members.get(0).id);
+        assertEquals(0, members.get(0).connections.get());
+        assertEquals(0, table.size() -
+                        members.get(1).connections.get());
+    }
+
+    @Test
+    public void testAffinityAfterMemberUpdate() {
+        List<LBMember> list = members(1);
+        Map<String, LBMember> members = byId(list);
+        LBAffinityTable table = new LBAffinityTable(10, 1000, members);
+        IPClient c1 = client(new Random(1));
+        LBMember old = list.get(0);
+        old.address = 1;
+        table.put(c1, "pool", old, 0);
+
+        // an update replaces the member, keeping its connections
+        LBMember updated = member(old.id, 1);
+        updated.address = 2;
+        updated.connections = old.connections;
+        members.put(updated.id, updated);
+        assertSame(updated, table.get(c1, "pool", 100));
+        assertEquals(1, updated.connections.get());
+
+        // once removed, the flow is no longer sent to it
+        members.remove(updated.id);
+        table.removeMember(updated.id);
+        assertEquals(0, updated.connections.get());
+        assertNull(table.get(c1, "pool", 200));
+        assertEquals(0, table.size());
+
+        // nor when the table has not been told yet
+        members.put(updated.id, updated);
+        table.put(c1, "pool", updated, 300);
+        members.remove(updated.id);
+        assertNull(table.get(c1, "pool", 400));
+        assertEquals(0, updated.connections.get());
+    }
+}
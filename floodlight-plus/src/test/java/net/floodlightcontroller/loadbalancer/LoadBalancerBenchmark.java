@@ -0,0 +1,221 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Simulates a pool of members with mixed weights receiving a stream of
+ * client flows, each of which stays open for an exponentially distributed
+ * time, and compares the member selection policies:
+ * <ul>
+ * <li>balance: the most loaded member's connections per unit of weight,
+ * relative to the pool's, sampled through the run (1.0 is perfect)
+ * <li>pick: the cost of choosing a member for a new flow
+ * <li>moved: for the hashing policies, the share of flows on the other
+ * members that change member when one member is removed or added
+ * </ul>
+ * It also measures the cost of the client affinity table.
+ *
+ * Run with: java net.floodlightcontroller.loadbalancer.LoadBalancerBenchmark
+ * [flows] [members] [mean open flows]
+ */
+public class LoadBalancerBenchmark {
+    private static final String[] NAMES =
+        { "round-robin", "maglev", "least-conn", "p2c" };
+    private static final int[] WEIGHTS = { 1, 1, 2, 4 };
+
+    private static List<LBMember> members(int count) {
+        List<LBMember> members = new ArrayList<LBMember>();
+        for (int i = 0; i < count; i++) {
+            LBMember member = new LBMember();
+            member.id = "10.0.1." + (i + 1);
+            member.weight = WEIGHTS[i % WEIGHTS.length];
+            members.add(member);
+        }
+        return members;
+    }
+
+    private static IPClient[] clients(Random r, int flows) {
+        IPClient[] clients = new IPClient[flows];
+        for (int i = 0; i < flows; i++) {
+            IPClient client = new IPClient();
+            client.ipAddress = 0x0a000000 | r.nextInt(1 << 16);
+            client.nw_proto = IPv4.PROTOCOL_TCP;
+            client.srcPort = (short) (1024 + r.nextInt(60000));
+            client.targetPort = 80;
+            clients[i] = client;
+        }
+        return clients;
+    }
+
+    /**
+     * Hashing modulo the number of members, for comparison with Maglev
+     */
+    private static LBMemberSelector modulo(List<LBMember> members) {
+        return new LBMemberSelector(members) {
+            @Override
+            public LBMember pickMember(IPClient client) {
+                return this.members[(int) ((hash(client) >>> 1) %
+                                           this.members.length)];
+            }
+        };
+    }
+
+    /**
+     * @return { mean, max } of the balance samples
+     */
+    private static double[] simulate(List<LBMember> members,
+                                     LBMemberSelector s, IPClient[] clients,
+                                     double meanOpen, Random r) {
+        int totalWeight = 0;
+        for (LBMember m : members) totalWeight += m.weight;
+        // close time in the high bits, member index in the low byte
+        PriorityQueue<Long> open = new PriorityQueue<Long>();
+        int active = 0;
+        double sum = 0, max = 0;
+        int samples = 0;
+        for (int t = 0; t < clients.length; t++) {
+            while (!open.isEmpty() && (open.peek() >> 8) <= t) {
+                members.get((int) (open.poll() & 0xff))
+                    .connections.decrementAndGet();
+                active -= 1;
+            }
+            LBMember m = s.pickMember(clients[t]);
+            m.connections.incrementAndGet();
+            active += 1;
+            long close = t + 1 + (long) (-Math.log(1 - r.nextDouble()) * meanOpen);
+            open.add((close << 8) | members.indexOf(m));
+
+            if (t > 4 * meanOpen && t % 1000 == 0) {
+                double worst = 0;
+                for (LBMember x : members)
+                    worst = Math.max(worst,
+                                     (double) x.connections.get() / x.weight);
+                double balance = worst / ((double) active / totalWeight);
+                sum += balance;
+                max = Math.max(max, balance);
+                samples += 1;
+            }
+        }
+        return new double[] { sum / samples, max };
+    }
+
+    private static double pickNanos(LBMemberSelector s, IPClient[] clients) {
+        LBMember last = null;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (IPClient c : clients)
+                last = s.pickMember(c);
+            if (round == 1)
+                return (double) (System.nanoTime() - start) / clients.length
+                       + (last == null ? 1 : 0);
+        }
+        return 0;
+    }
+
+    private static double moved(LBMemberSelector before,
+                                LBMemberSelector after, LBMember changed,
+                                IPClient[] clients) {
+        int kept = 0, moved = 0;
+        for (IPClient c : clients) {
+            LBMember b = before.pickMember(c);
+            LBMember a = after.pickMember(c);
+            if (b == changed || a == changed) continue;
+            if (a == b) kept += 1;
+            else moved += 1;
+        }
+        return 100.0 * moved / (kept + moved);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int flows = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        double meanOpen = (args.length > 2) ? Double.parseDouble(args[2])
+                                            : 20000;
+
+        Random r = new Random(42);
+        IPClient[] clients = clients(r, flows);
+
+        System.out.printf("%d flows, %d members with weights 1,1,2,4, " +
+                          "%.0f open on average%n", flows, count, meanOpen);
+        System.out.printf("%-12s %9s %9s %9s %10s %10s%n", "policy",
+                          "balance", "worst", "pick ns", "moved -1 %",
+                          "moved +1 %");
+        for (short method = -1; method < NAMES.length; method++) {
+            List<LBMember> members = members(count);
+            LBMemberSelector s = (method < 0)
+                    ? modulo(members)
+                    : LBMemberSelector.create(method, members, null);
+            double[] balance = simulate(members, s, clients, meanOpen,
+                                        new Random(7));
+            double nanos = pickNanos(s, clients);
+
+            String removed = "", added = "";
+            if (method == -1 || method == LBMemberSelector.MAGLEV) {
+                List<LBMember> fewer = new ArrayList<LBMember>(members);
+                LBMember gone = fewer.remove(count / 2);
+                List<LBMember> more = new ArrayList<LBMember>(members);
+                LBMember extra = members(count + 1).get(count);
+                more.add(extra);
+                LBMemberSelector s1 = (method < 0) ? modulo(fewer)
+                        : LBMemberSelector.create(method, fewer, s);
+                LBMemberSelector s2 = (method < 0) ? modulo(more)
+                        : LBMemberSelector.create(method, more, s);
+                removed = String.format("%.2f", moved(s, s1, gone, clients));
+                added = String.format("%.2f", moved(s, s2, extra, clients));
+            }
+            System.out.printf("%-12s %9.3f %9.3f %9.1f %10s %10s%n",
+                              (method < 0) ? "modulo" : NAMES[method],
+                              balance[0], balance[1], nanos, removed, added);
+        }
+
+        // affinity table: a new flow is a miss and a put, a later packet
+        // of the flow is a hit
+        List<LBMember> members = members(count);
+        for (int round = 0; round < 2; round++) {
+            LBAffinityTable table =
+                    new LBAffinityTable(LoadBalancer.LB_AFFINITY_CAPACITY,
+                                        LoadBalancer.LB_AFFINITY_IDLE_TIMEOUT,
+                                        LBMemberSelectorTest.byId(members));
+            long start = System.nanoTime();
+            for (int i = 0; i < flows; i++) {
+                if (table.get(clients[i], "pool", 0) == null)
+                    table.put(clients[i], "pool", members.get(i % count), 0);
+            }
+            double missNanos = (double) (System.nanoTime() - start) / flows;
+            start = System.nanoTime();
+            for (int i = 0; i < flows; i++)
+                table.get(clients[i], "pool", 1);
+            double hitNanos = (double) (System.nanoTime() - start) / flows;
+            start = System.nanoTime();
+            int expired = table.expire(LoadBalancer.LB_AFFINITY_IDLE_TIMEOUT + 2);
+            double expireMs = (System.nanoTime() - start) / 1e6;
+            if (round == 1)
+                System.out.printf("affinity: %d entries, miss+put %.0f ns, " +
+                                  "hit %.0f ns, expire all %.0f ms (%d)%n",
+                                  table.size() + expired, missNanos,
+                                  hitNanos, expireMs, expired);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.staticflowentry;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.test.MockFloodlightProvider;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Test;
+import org.openflow.protocol.OFBarrierReply;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+
+public class StaticFlowReconcilerTest {
+    private static final int batchSize =
+            StaticFlowEntryPusher.RECONCILE_BATCH_SIZE;
+    private static final int timeout = StaticFlowEntryPusher.RECONCILE_TIMEOUT;
+
+    @After
+    public void tearDown() {
+        StaticFlowEntryPusher.RECONCILE_BATCH_SIZE = batchSize;
+        StaticFlowEntryPusher.RECONCILE_TIMEOUT = timeout;
+    }
+
+    protected static List<OFInstruction> output(int port) {
+        List<OFAction> actions = new ArrayList<OFAction>();
+        actions.add(new OFActionOutput(port, Short.MAX_VALUE));
+        return Arrays.asList((OFInstruction) new OFInstructionApplyActions()
+                                                 .setActions(actions));
+    }
+
+    protected static OFFlowMod flowMod(String name, String match, int port) {
+        OFFlowMod fm = new OFFlowMod();
+        StaticFlowEntries.initDefaultFlowMod(fm, name);
+        fm.setMatch(OFMatch.fromString(match));
+        fm.setInstructions(output(port));
+        fm.computeLength();
+        return fm;
+    }
+
+    /**
+     * @return the flow as a switch would report it
+     */
+    protected static OFFlowStatisticsReply installed(OFFlowMod fm,
+                                                     String match, int port) {
+        OFFlowStatisticsReply flow = new OFFlowStatisticsReply();
+        flow.setMatch(OFMatch.fromString(match));
+        flow.setPriority(fm.getPriority());
+        flow.setCookie(fm.getCookie());
+        flow.setInstructions(output(port));
+        return flow;
+    }
+
+    @Test
+    public void testDiff() {
+        Map<String, OFFlowMod> wanted = new HashMap<String, OFFlowMod>();
+        OFFlowMod same = flowMod("same", "dl_dst=00:20:30:40:50:60,dl_vlan=4096", 1);
+        OFFlowMod changed = flowMod("changed", "nw_dst=192.168.1.0/24", 1);
+        OFFlowMod missing = flowMod("missing", "dl_dst=00:20:30:40:50:61", 3);
+        OFFlowMod stale = flowMod("stale", "dl_dst=00:20:30:40:50:62", 1);
+        wanted.put("same", same);
+        wanted.put("changed", changed);
+        wanted.put("missing", missing);
+        wanted.put("inactive", null);
+
+        List<OFFlowStatisticsReply> onSwitch =
+                new ArrayList<OFFlowStatisticsReply>();
+        // the switch reports the match fields in another order
+        onSwitch.add(installed(same, "dl_vlan=4096,dl_dst=00:20:30:40:50:60", 1));
+        onSwitch.add(installed(changed, "nw_dst=192.168.1.0/24", 2));
+        onSwitch.add(installed(stale, "dl_dst=00:20:30:40:50:62", 1));
+        // another application's flow is left alone
+        OFFlowStatisticsReply other =
+                installed(stale, "dl_dst=00:20:30:40:50:63", 1);
+        other.setCookie(0);
+        onSwitch.add(other);
+
+        StaticFlowReconciler.Status status = new StaticFlowReconciler.Status();
+        List<OFMessage> messages = new StaticFlowReconciler().diff(
+                wanted, onSwitch, new StaticFlowEntryPusher().new
+                    FlowModSorter(wanted), status);
+
+        assertEquals(3, messages.size());
+        OFFlowMod delete = (OFFlowMod) messages.get(0);
+        assertEquals(OFFlowMod.OFPFC_DELETE_STRICT, delete.getCommand());
+        assertEquals(stale.getCookie(), delete.getCookie());
+        assertEquals(-1L, delete.getCookieMask());
+        OFFlowMod modify = (OFFlowMod) messages.get(1);
+        assertEquals(OFFlowMod.OFPFC_MODIFY_STRICT, modify.getCommand());
+        assertEquals(changed.getCookie(), modify.getCookie());
+        OFFlowMod add = (OFFlowMod) messages.get(2);
+        assertEquals(OFFlowMod.OFPFC_ADD, add.getCommand());
+        assertEquals(missing.getCookie(), add.getCookie());
+        // the entries themselves are not changed
+        assertEquals(OFFlowMod.OFPFC_ADD, changed.getCommand());
+
+        assertEquals(3, status.getInstalled());
+        assertEquals(1, status.getUnchanged());
+        assertEquals(1, status.getAdded());
+        assertEquals(1, status.getModified());
+        assertEquals(1, status.getDeleted());
+    }
+
+    protected IOFSwitch mockSwitch(final StaticFlowEntryPusher pusher,
+                                   final boolean replies,
+                                   Capture<List<OFMessage>> writes)
+            throws Exception {
+        final IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        final AtomicInteger xid = new AtomicInteger();
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        expect(sw.getStringId()).andReturn("00:00:00:00:00:00:00:01").anyTimes();
+        expect(sw.isConnected()).andReturn(true).anyTimes();
+        expect(sw.getNextTransactionId()).andAnswer(new IAnswer<Integer>() {
+            @Override
+            public Integer answer() {
+                return xid.incrementAndGet();
+            }
+        }).anyTimes();
+        sw.write(capture(writes), (FloodlightContext) isNull());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object answer() {
+                if (!replies)
+                    return null;
+                for (OFMessage m : (List<OFMessage>) getCurrentArguments()[0]) {
+                    if (m.getType() == OFType.BARRIER_REQUEST) {
+                        OFBarrierReply reply = new OFBarrierReply();
+                        reply.setXid(m.getXid());
+                        pusher.receive(sw, reply, null);
+                    }
+                }
+                return null;
+            }
+        }).anyTimes();
+        replay(sw);
+        return sw;
+    }
+
+    @Test
+    public void testWriteWithBarriers() throws Exception {
+        StaticFlowEntryPusher.RECONCILE_BATCH_SIZE = 2;
+        StaticFlowEntryPusher pusher = new StaticFlowEntryPusher();
+        pusher.setFloodlightProvider(new MockFloodlightProvider());
+        List<OFMessage> messages = new ArrayList<OFMessage>();
+        for (int i = 0; i < 5; i++)
+            messages.add(flowMod("flow" + i, "in_port=" + (i + 1), 1));
+
+        Capture<List<OFMessage>> writes =
+                new Capture<List<OFMessage>>(CaptureType.ALL);
+        IOFSwitch sw = mockSwitch(pusher, true, writes);
+        StaticFlowReconciler.Status status = new StaticFlowReconciler.Status();
+        assertTrue(pusher.writeWithBarriers(sw, messages, status));
+        assertEquals(5, status.getSent());
+        // batches of 2, 2 and 1 flow mods, each ended by a barrier
+        assertEquals(3, writes.getValues().size());
+        int[] sizes = { 3, 3, 2 };
+        for (int i = 0; i < sizes.length; i++) {
+            List<OFMessage> batch = writes.getValues().get(i);
+            assertEquals(sizes[i], batch.size());
+            assertEquals(OFType.BARRIER_REQUEST,
+                         batch.get(batch.size() - 1).getType());
+        }
+        assertTrue(pusher.barrierWindows.isEmpty());
+
+        // a switch that does not reply times out
+        StaticFlowEntryPusher.RECONCILE_TIMEOUT = 1;
+        writes = new Capture<List<OFMessage>>(CaptureType.ALL);
+        sw = mockSwitch(pusher, false, writes);
+        status = new StaticFlowReconciler.Status();
+        assertFalse(pusher.writeWithBarriers(sw, messages, status));
+        assertTrue(pusher.barrierWindows.isEmpty());
+    }
+
+    @Test
+    public void testReconcileAgainAfterChange() {
+        final long dpid = 1L;
+        final AtomicInteger passes = new AtomicInteger();
+        final StaticFlowEntryPusher pusher = new StaticFlowEntryPusher() {
+            @Override
+            protected void reconcileSwitchOnce(long switchId) {
+                if (passes.incrementAndGet() == 1) {
+                    // an entry is deleted, and the switch reconnects,
+                    // while the first pass is pushing
+                    entriesChanged("00:00:00:00:00:00:00:01");
+                    reconcileSwitch(switchId);
+                }
+            }
+        };
+        pusher.reconcileSwitch(dpid);
+        assertEquals(2, passes.get());
+        assertTrue(pusher.reconciling.isEmpty());
+
+        // a change with no reconciliation in progress starts none
+        pusher.entriesChanged("00:00:00:00:00:00:00:01");
+        assertTrue(pusher.reconciling.isEmpty());
+        pusher.reconcileSwitch(dpid);
+        assertEquals(3, passes.get());
+    }
+
+    @Test
+    public void testReconcileAfterFailedPass() {
+        final long dpid = 1L;
+        final AtomicInteger passes = new AtomicInteger();
+        final StaticFlowEntryPusher pusher = new StaticFlowEntryPusher() {
+            @Override
+            protected void reconcileSwitchOnce(long switchId) {
+                if (passes.incrementAndGet() == 1)
+                    throw new IllegalStateException("pass failed");
+            }
+        };
+        try {
+            pusher.reconcileSwitch(dpid);
+            fail("Expected the pass to throw");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(pusher.reconciling.isEmpty());
+
+        // the switch reconnects and is reconciled again
+        pusher.reconcileSwitch(dpid);
+        assertEquals(2, passes.get());
+        assertTrue(pusher.reconciling.isEmpty());
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Measures how long {@link TopologyInstance} takes to compute its
+ * destination rooted trees on fat-tree and random topologies, from scratch
+ * and after a link flap, and compares it with running the HashMap based
+ * {@link TopologyInstance#dijkstra} from every switch.  Clustering is not
+ * included in the times.  The legacy time is
+ * extrapolated from a sample of roots, since it is too slow to run in full
+ * on the larger topologies.  TopologyInstanceTest checks the incrementally
+ * updated trees against dijkstra.
+ *
+ * Run with: java -Xmx3g net.floodlightcontroller.topology.ShortestPathBenchmark
+ *     [max_switches [threads]]
+ */
+public class ShortestPathBenchmark {
+    private static final int LEGACY_SAMPLE = 20;
+    private static final int FLAPS = 10;
+
+    /** Pool to compute trees on; null to compute on one thread */
+    private static ForkJoinPool pool;
+
+    /** A topology being built: ports of each switch and links on each port */
+    private static class Topology {
+        final String name;
+        final Map<Long, Set<Integer>> switchPorts =
+                new HashMap<Long, Set<Integer>>();
+        final Map<NodePortTuple, Set<Link>> switchPortLinks =
+                new HashMap<NodePortTuple, Set<Link>>();
+        final List<Link[]> cables = new ArrayList<Link[]>();
+
+        Topology(String name, int switches) {
+            this.name = name;
+            for (long sw = 1; sw <= switches; sw++)
+                switchPorts.put(sw, new HashSet<Integer>());
+        }
+
+        void connect(long a, long b) {
+            int pa = switchPorts.get(a).size() + 1;
+            int pb = switchPorts.get(b).size() + 1;
+            switchPorts.get(a).add(pa);
+            switchPorts.get(b).add(pb);
+            Link[] cable = { new Link(a, pa, b, pb), new Link(b, pb, a, pa) };
+            cables.add(cable);
+            add(cable);
+        }
+
+        void add(Link[] cable) {
+            for (Link l : cable) {
+                addTo(new NodePortTuple(l.getSrc(), l.getSrcPort()), l);
+                addTo(new NodePortTuple(l.getDst(), l.getDstPort()), l);
+            }
+        }
+
+        void remove(Link[] cable) {
+            for (Link l : cable) {
+                removeFrom(new NodePortTuple(l.getSrc(), l.getSrcPort()), l);
+                removeFrom(new NodePortTuple(l.getDst(), l.getDstPort()), l);
+            }
+        }
+
+        private void addTo(NodePortTuple npt, Link l) {
+            Set<Link> s = switchPortLinks.get(npt);
+            if (s == null) {
+                s = new HashSet<Link>();
+                switchPortLinks.put(npt, s);
+            }
+            s.add(l);
+        }
+
+        private void removeFrom(NodePortTuple npt, Link l) {
+            Set<Link> s = switchPortLinks.get(npt);
+            s.remove(l);
+            if (s.isEmpty()) switchPortLinks.remove(npt);
+        }
+
+        TopologyInstance instance() {
+            return new TopologyInstance(switchPorts,
+                                        new HashSet<NodePortTuple>(),
+                                        switchPortLinks,
+                                        new HashSet<NodePortTuple>(),
+                                        new HashSet<NodePortTuple>());
+        }
+    }
+
+    /**
+     * A k-ary fat tree: (k/2)^2 core switches and k pods of k/2
+     * aggregation and k/2 edge switches, 5k^2/4 switches in all.
+     */
+    static Topology fatTree(int k) {
+        int half = k / 2;
+        int core = half * half;
+        Topology t = new Topology("fat-tree k=" + k, core + k * k);
+        for (int pod = 0; pod < k; pod++) {
+            long aggBase = core + pod * k + 1;
+            long edgeBase = aggBase + half;
+            for (int a = 0; a < half; a++) {
+                for (int e = 0; e < half; e++)
+                    t.connect(edgeBase + e, aggBase + a);
+                for (int c = 0; c < half; c++)
+                    t.connect(aggBase + a, a * half + c + 1);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * A ring of switches with random chords, for an average of four links
+     * per switch.
+     */
+    static Topology random(int n, Random rand) {
+        Topology t = new Topology("random n=" + n, n);
+        Set<Long> pairs = new HashSet<Long>();
+        for (int i = 1; i <= n; i++) {
+            long j = (i % n) + 1;
+            t.connect(i, j);
+            pairs.add(Math.min(i, j) * (n + 1) + Math.max(i, j));
+        }
+        while (t.cables.size() < 2 * n) {
+            long a = rand.nextInt(n) + 1, b = rand.nextInt(n) + 1;
+            if (a == b || !pairs.add(Math.min(a, b) * (n + 1) + Math.max(a, b)))
+                continue;
+            t.connect(a, b);
+        }
+        return t;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int max = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+        if (threads > 1) pool = new ForkJoinPool(threads);
+        // Clustering is recursive and goes as deep as the network is wide
+        Thread t = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                runAll(max);
+            }
+        }, "benchmark", 1 << 28);
+        t.start();
+        t.join();
+    }
+
+    private static void runAll(int max) {
+        Random rand = new Random(42);
+        List<Topology> topologies = new ArrayList<Topology>();
+        for (int k : new int[] { 10, 20, 40, 62 })
+            if (5 * k * k / 4 <= max) topologies.add(fatTree(k));
+        for (int n : new int[] { 100, 500, 2000, 5000 })
+            if (n <= max) topologies.add(random(n, rand));
+
+        System.out.println("Times (ms) to compute all destination rooted " +
+                "trees on " + ((pool == null) ? 1 : pool.getParallelism()) +
+                " threads, and the average number of trees a flap changes");
+        System.out.println(String.format("%-16s %8s %10s %10s %10s %8s",
+                "topology", "switches", "legacy", "full", "flap",
+                "changed"));
+        for (Topology t : topologies) {
+            run(t, rand);
+        }
+    }
+
+    /**
+     * Compute an instance, timing only its shortest path trees.
+     * @return time (in milliseconds) spent on the trees
+     */
+    private static double compute(TopologyInstance ti,
+                                  TopologyInstance previous) {
+        ti.identifyOpenflowDomains();
+        ti.addLinksToOpenflowDomains();
+        ti.computePool = pool;
+        long start = System.nanoTime();
+        ti.calculateShortestPathTreeInClusters(previous);
+        double ms = (System.nanoTime() - start) / 1e6;
+        ti.calculateBroadcastNodePortsInClusters();
+        ti.computePool = null;
+        return ms;
+    }
+
+    private static void run(Topology t, Random rand) {
+        int n = t.switchPorts.size();
+
+        // Time the legacy code on a sample of roots
+        TopologyInstance ti = t.instance();
+        compute(ti, null);
+        Cluster c = ti.getClusters().iterator().next();
+        List<Long> roots = new ArrayList<Long>(c.getNodes());
+        Collections.shuffle(roots, rand);
+        int sample = Math.min(LEGACY_SAMPLE, roots.size());
+        long start = System.nanoTime();
+        for (int i = 0; i < sample; i++)
+            ti.dijkstra(c, roots.get(i), null, true);
+        double legacy = (System.nanoTime() - start) / 1e6 / sample * n;
+
+        // Full computation, best of three
+        double full = Double.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            ti = t.instance();
+            full = Math.min(full, compute(ti, null));
+        }
+
+        // Take a random cable down and bring it back up
+        double flap = 0;
+        long changed = 0;
+        for (int i = 0; i < FLAPS; i++) {
+            Link[] cable = t.cables.get(rand.nextInt(t.cables.size()));
+            t.remove(cable);
+            TopologyInstance down = t.instance();
+            flap += compute(down, ti);
+            t.add(cable);
+            TopologyInstance up = t.instance();
+            flap += compute(up, down);
+            changed += changedTrees(ti, down) + changedTrees(down, up);
+            ti = up;
+        }
+
+        System.out.println(String.format("%-16s %8d %10.0f %10.1f %10.2f %8.1f",
+                t.name, n, legacy, full, flap / (2 * FLAPS),
+                (double) changed / (2 * FLAPS)));
+    }
+
+    private static int changedTrees(TopologyInstance before,
+                                    TopologyInstance after) {
+        int changed = 0;
+        for (Map.Entry<Long, BroadcastTree> e :
+                after.destinationRootedTrees.entrySet()) {
+            if (before.destinationRootedTrees.get(e.getKey()) != e.getValue())
+                changed++;
+        }
+        return changed;
+    }
+}
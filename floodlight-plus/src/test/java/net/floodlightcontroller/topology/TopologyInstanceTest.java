@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import static org.junit.Assert.*;
 
@@ -29,6 +30,8 @@ import net.floodlightcontroller.core.test.MockFloodlightProvider;
 import net.floodlightcontroller.core.test.MockThreadPoolService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.topology.TopologyInstance;
@@ -467,4 +470,80 @@ public class TopologyInstanceTest {
                 verifyClusters(expectedClusters);
         }
     }
+
+    /**
+     * Check every destination rooted tree of the current instance against
+     * one computed from scratch with dijkstra().  Where parallel links tie,
+     * either may be in the tree, so a tree link only has to be a link of
+     * the cluster out of the switch to one a hop closer to the root.
+     */
+    protected void verifyTrees() {
+        TopologyInstance ti = topologyManager.getCurrentInstance();
+        for (Cluster c : ti.getClusters()) {
+            for (long root : c.getNodes()) {
+                BroadcastTree expected = ti.dijkstra(c, root, null, true);
+                BroadcastTree actual = ti.destinationRootedTrees.get(root);
+                assertNotNull(actual);
+                for (long sw : c.getNodes()) {
+                    String msg = "tree for " + root + " at " + sw;
+                    assertEquals(msg, expected.getCost(sw), actual.getCost(sw));
+                    Link l = actual.getTreeLink(sw);
+                    if (sw == root) {
+                        assertNull(msg, l);
+                        continue;
+                    }
+                    assertNotNull(msg, l);
+                    assertEquals(msg, sw, l.getSrc());
+                    assertTrue(msg, c.getLinks().get(sw).contains(l));
+                    assertEquals(msg, expected.getCost(sw) - 1,
+                                 expected.getCost(l.getDst()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalTreesMatchDijkstra() throws Exception {
+        Random rand = new Random(7);
+        int n = 30;
+        // A ring with random chords; cable i joins port i + 1 of each end
+        List<int[]> cables = new ArrayList<int[]>();
+        int[] ports = new int[n + 1];
+        for (int i = 1; i <= n; i++)
+            cables.add(new int[] { i, ++ports[i], i % n + 1, ++ports[i % n + 1] });
+        while (cables.size() < 2 * n) {
+            int a = rand.nextInt(n) + 1, b = rand.nextInt(n) + 1;
+            if (a != b)
+                cables.add(new int[] { a, ++ports[a], b, ++ports[b] });
+        }
+        for (int[] c : cables) {
+            topologyManager.addOrUpdateLink(c[0], c[1], c[2], c[3],
+                    ILinkDiscovery.LinkType.DIRECT_LINK);
+            topologyManager.addOrUpdateLink(c[2], c[3], c[0], c[1],
+                    ILinkDiscovery.LinkType.DIRECT_LINK);
+        }
+        topologyManager.createNewInstance();
+        verifyTrees();
+
+        // Take random cables down and bring them back, so clusters split
+        // and merge as well as change inside
+        List<int[]> down = new ArrayList<int[]>();
+        for (int step = 0; step < 60; step++) {
+            if (down.isEmpty() || (down.size() < n && rand.nextBoolean())) {
+                int[] c = cables.remove(rand.nextInt(cables.size()));
+                topologyManager.removeLink(c[0], c[1], c[2], c[3]);
+                topologyManager.removeLink(c[2], c[3], c[0], c[1]);
+                down.add(c);
+            } else {
+                int[] c = down.remove(rand.nextInt(down.size()));
+                topologyManager.addOrUpdateLink(c[0], c[1], c[2], c[3],
+                        ILinkDiscovery.LinkType.DIRECT_LINK);
+                topologyManager.addOrUpdateLink(c[2], c[3], c[0], c[1],
+                        ILinkDiscovery.LinkType.DIRECT_LINK);
+                cables.add(c);
+            }
+            topologyManager.createNewInstance();
+            verifyTrees();
+        }
+    }
 }
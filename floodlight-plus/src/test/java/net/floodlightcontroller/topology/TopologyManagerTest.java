@@ -16,14 +16,19 @@
 
 package net.floodlightcontroller.topology;
 
+import java.util.Map;
+import java.util.Random;
+
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.test.MockThreadPoolService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery;
+import net.floodlightcontroller.routing.BroadcastTree;
 import net.floodlightcontroller.test.FloodlightTestCase;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.TopologyManager;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -48,6 +53,13 @@ public class TopologyManagerTest extends FloodlightTestCase {
         tp.startUp(fmc);
     }
 
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        tm.shutdown();
+        super.tearDown();
+    }
+
     @Test
     public void testBasic1() throws Exception {
         tm.addOrUpdateLink(1, (short)1, 2, (short)1, ILinkDiscovery.LinkType.DIRECT_LINK);
@@ -122,4 +134,91 @@ public class TopologyManagerTest extends FloodlightTestCase {
         assertTrue(tm.getTunnelPorts().size()==0);
     }
 
+    protected TopologyManager createTopologyManager(int computeThreads)
+            throws Exception {
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addService(IFloodlightProviderService.class, getMockFloodlightProvider());
+        MockThreadPoolService tp = new MockThreadPoolService();
+        fmc.addService(IThreadPoolService.class, tp);
+        TopologyManager tm = new TopologyManager();
+        fmc.addConfigParam(tm, "computethreads",
+                           Integer.toString(computeThreads));
+        tp.init(fmc);
+        tm.init(fmc);
+        tp.startUp(fmc);
+        return tm;
+    }
+
+    protected void addCable(TopologyManager tm, int[] c) {
+        tm.addOrUpdateLink(c[0], c[1], c[2], c[3],
+                           ILinkDiscovery.LinkType.DIRECT_LINK);
+        tm.addOrUpdateLink(c[2], c[3], c[0], c[1],
+                           ILinkDiscovery.LinkType.DIRECT_LINK);
+    }
+
+    protected void verifySameInstance(TopologyInstance expected,
+                                      TopologyInstance actual) {
+        assertEquals(expected.getSwitches(), actual.getSwitches());
+        for (long sw : expected.getSwitches()) {
+            assertEquals(expected.getOpenflowDomainId(sw),
+                         actual.getOpenflowDomainId(sw));
+            assertEquals(expected.getBroadcastNodePortsInCluster(sw),
+                         actual.getBroadcastNodePortsInCluster(sw));
+        }
+        assertEquals(expected.destinationRootedTrees.keySet(),
+                     actual.destinationRootedTrees.keySet());
+        for (Map.Entry<Long, BroadcastTree> e :
+                expected.destinationRootedTrees.entrySet()) {
+            BroadcastTree tree = actual.destinationRootedTrees.get(e.getKey());
+            for (long sw : expected.getSwitches()) {
+                assertEquals(e.getValue().getCost(sw), tree.getCost(sw));
+                assertEquals(e.getValue().getTreeLink(sw),
+                             tree.getTreeLink(sw));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelCompute() throws Exception {
+        TopologyManager serial = createTopologyManager(1);
+        TopologyManager parallel = createTopologyManager(4);
+        assertNull(serial.computePool);
+        assertNotNull(parallel.computePool);
+        try {
+            // A ring with random chords, large enough to split the trees
+            // of a cluster into several tasks
+            Random rand = new Random(11);
+            int n = 100;
+            int[] ports = new int[n + 1];
+            int[][] cables = new int[2 * n][];
+            for (int i = 0; i < cables.length; i++) {
+                int a = (i < n) ? i + 1 : rand.nextInt(n) + 1;
+                int b = (i < n) ? a % n + 1 : rand.nextInt(n) + 1;
+                if (a == b) b = a % n + 1;
+                cables[i] = new int[] { a, ++ports[a], b, ++ports[b] };
+                addCable(serial, cables[i]);
+                addCable(parallel, cables[i]);
+            }
+            serial.createNewInstance();
+            parallel.createNewInstance();
+            verifySameInstance(serial.getCurrentInstance(),
+                               parallel.getCurrentInstance());
+
+            // Updates of the previous instance's trees are spread too
+            for (int i = 0; i < 10; i++) {
+                int[] c = cables[rand.nextInt(cables.length)];
+                serial.removeLink(c[0], c[1], c[2], c[3]);
+                parallel.removeLink(c[0], c[1], c[2], c[3]);
+                serial.createNewInstance();
+                parallel.createNewInstance();
+                verifySameInstance(serial.getCurrentInstance(),
+                                   parallel.getCurrentInstance());
+                addCable(serial, c);
+                addCable(parallel, c);
+            }
+        } finally {
+            parallel.shutdown();
+        }
+        assertNull(parallel.computePool);
+    }
 }
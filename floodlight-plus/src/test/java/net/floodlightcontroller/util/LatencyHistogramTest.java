@@ -0,0 +1,55 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long[] values = { 0, 1, 15, 16, 17, 31, 32, 1000, 123456789,
+                          Long.MAX_VALUE };
+        for (long v : values) {
+            int b = LatencyHistogram.bucket(v);
+            assertTrue(v <= LatencyHistogram.bucketLimit(b));
+            if (b > 0)
+                assertTrue(v > LatencyHistogram.bucketLimit(b - 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(50));
+        for (int i = 1; i <= 10000; i++)
+            h.record(i * 100);
+        assertEquals(10000, h.getCount());
+        assertEquals(1000000, h.getMax());
+
+        long[] p = h.getPercentiles(50, 99, 100);
+        assertTrue(p[0] >= 500000 && p[0] <= 500000 * 1.125);
+        assertTrue(p[1] >= 990000 && p[1] <= 990000 * 1.125);
+        assertEquals(1000000, p[2]);
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+    @Test
+    public void testBasic() {
+        LongHashSet s = new LongHashSet();
+        assertTrue(s.isEmpty());
+        assertTrue(s.add(5));
+        assertFalse(s.add(5));
+        assertTrue(s.add(0));
+        assertFalse(s.add(0));
+        assertTrue(s.add(-1));
+        assertEquals(3, s.size());
+        assertTrue(s.contains(0));
+        assertTrue(s.contains(-1));
+        assertFalse(s.contains(6));
+        assertEquals("[-1, 0, 5]", s.toString());
+
+        assertTrue(s.remove(0));
+        assertFalse(s.remove(0));
+        assertFalse(s.contains(0));
+        assertTrue(s.remove(5));
+        assertFalse(s.remove(5));
+        assertEquals(1, s.size());
+
+        s.clear();
+        assertTrue(s.isEmpty());
+        assertEquals(0, s.toArray().length);
+    }
+
+    @Test
+    public void testAgainstHashSet() {
+        // Small range of values so adds and removes collide often
+        Random r = new Random(42);
+        LongHashSet s = new LongHashSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 200000; i++) {
+            long v = r.nextInt(2000) - 1000;
+            if (r.nextInt(3) == 0)
+                assertEquals(expected.remove(v), s.remove(v));
+            else
+                assertEquals(expected.add(v), s.add(v));
+            if (i % 1000 == 0) {
+                assertEquals(expected.size(), s.size());
+                for (long w = -1000; w < 1000; w++)
+                    assertEquals(expected.contains(w), s.contains(w));
+            }
+        }
+        Set<Long> actual = new HashSet<Long>();
+        for (long v : s.toArray())
+            actual.add(v);
+        assertEquals(expected, actual);
+
+        // Shrink back down
+        for (Long v : expected)
+            assertTrue(s.remove(v));
+        assertTrue(s.isEmpty());
+    }
+}
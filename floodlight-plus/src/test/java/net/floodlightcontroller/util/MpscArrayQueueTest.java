@@ -0,0 +1,83 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MpscArrayQueueTest {
+
+    @Test
+    public void testFifo() {
+        MpscArrayQueue<Integer> q = new MpscArrayQueue<Integer>(5);
+        assertEquals(8, q.capacity());
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+
+        // Go around the ring a few times
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 8; i++)
+                assertTrue(q.offer(i));
+            assertFalse(q.offer(8));
+            assertEquals(8, q.size());
+            for (int i = 0; i < 8; i++)
+                assertEquals(Integer.valueOf(i), q.poll());
+            assertNull(q.poll());
+            assertEquals(0, q.size());
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int count = 100000;
+        final MpscArrayQueue<int[]> q = new MpscArrayQueue<int[]>(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        int[] e = new int[] { producer, i };
+                        while (!q.offer(e))
+                            Thread.yield();
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        // Each producer's elements must come out in the order it added them
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * count) {
+            int[] e = q.poll();
+            if (e == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[e[0]], e[1]);
+            next[e[0]]++;
+            received++;
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(q.poll());
+    }
+}
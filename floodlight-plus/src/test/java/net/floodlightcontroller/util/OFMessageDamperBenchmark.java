@@ -0,0 +1,206 @@
+/**
+*    Copyright 2013, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+
+/**
+ * Compares the damping decision of {@link OFMessageDamper} with the
+ * TimedCache of message and switch it replaced, for flow mods like those
+ * forwarding pushes, with the capacity and timeout forwarding uses.  The
+ * flow mods of the repeated case are built twice, as forwarding builds a
+ * new flow mod for every packet-in of a flow; the distinct case has more
+ * flows than the damper holds.  Each case is run in rounds and the best
+ * round is reported along with the bytes allocated per write and the share
+ * of writes dampened.
+ *
+ * The switch is left out, since a write that is not dampened goes to the
+ * switch the same way either way; its hashCode() stands in for it.
+ *
+ * Run with: java net.floodlightcontroller.util.OFMessageDamperBenchmark [writes]
+ */
+public class OFMessageDamperBenchmark {
+    private static final int ROUNDS = 10;
+    private static final int CAPACITY = 10000;
+    private static final int TIMEOUT = 250;
+
+    /** Something for results to go into, so they are not optimized away */
+    static long sink;
+
+    private interface Op {
+        /** @return true if the write was dampened */
+        boolean run(int i);
+    }
+
+    /** The cache entry of the TimedCache damper */
+    private static class Entry {
+        final OFMessage msg;
+        final Object sw;
+
+        Entry(OFMessage msg, Object sw) {
+            this.msg = msg;
+            this.sw = sw;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 + msg.hashCode()) + sw.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) return false;
+            Entry other = (Entry) obj;
+            return msg.equals(other.msg) && sw.equals(other.sw);
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+
+    private static OFFlowMod flowMod(int flow) {
+        OFMatch match = OFMatch.fromString(String.format(
+                "in_port=%d,dl_src=00:00:00:00:%02x:%02x," +
+                "dl_dst=00:00:00:01:00:01,dl_type=0x800," +
+                "nw_src=10.0.%d.%d,nw_dst=10.1.0.1",
+                1 + flow % 48, (flow >> 8) & 0xff, flow & 0xff,
+                (flow >> 8) & 0xff, flow & 0xff));
+        List<OFAction> actions = new ArrayList<OFAction>();
+        actions.add(new OFActionOutput(49, Short.MAX_VALUE));
+        OFFlowMod fm = new OFFlowMod();
+        fm.setIdleTimeout((short) 5)
+          .setCookie(2L << 52)
+          .setPriority((short) 0)
+          .setMatch(match)
+          .setInstructions(Arrays.asList((OFInstruction)
+                  new OFInstructionApplyActions().setActions(actions)));
+        fm.computeLength();
+        return fm;
+    }
+
+    public static void main(String[] args) {
+        final int writes = (args.length > 0) ? Integer.parseInt(args[0])
+                                             : 1000000;
+        final Object sw = new Object();
+        final int swHash = sw.hashCode();
+
+        // forwarding rebuilds the flow mod of a flow for each packet-in
+        final int flows = 4096;
+        final OFMessage[][] repeated = new OFMessage[2][flows];
+        for (int i = 0; i < flows; i++) {
+            repeated[0][i] = flowMod(i);
+            repeated[1][i] = flowMod(i);
+        }
+        final OFMessage[] distinct = new OFMessage[65536];
+        for (int i = 0; i < distinct.length; i++)
+            distinct[i] = flowMod(i);
+        final int distinctMask = distinct.length - 1;
+
+        System.out.println(String.format("%-22s %10s %10s %10s %10s %8s %8s",
+                "writes", "cache ns", "fp ns", "cache B", "fp B",
+                "cache %", "fp %"));
+
+        final TimedCache<Entry> cache1 =
+                new TimedCache<Entry>(CAPACITY, TIMEOUT);
+        final OFMessageDamper damper1 = new OFMessageDamper(CAPACITY,
+                EnumSet.of(OFType.FLOW_MOD), TIMEOUT);
+        compare("repeated flow mods", writes, new Op() {
+            @Override
+            public boolean run(int i) {
+                return cache1.update(
+                        new Entry(repeated[(i / flows) & 1][i % flows], sw));
+            }
+        }, new Op() {
+            @Override
+            public boolean run(int i) {
+                return damper1.update(OFMessageDamper.fingerprint(swHash,
+                        repeated[(i / flows) & 1][i % flows]),
+                        System.currentTimeMillis());
+            }
+        });
+
+        final TimedCache<Entry> cache2 =
+                new TimedCache<Entry>(CAPACITY, TIMEOUT);
+        final OFMessageDamper damper2 = new OFMessageDamper(CAPACITY,
+                EnumSet.of(OFType.FLOW_MOD), TIMEOUT);
+        compare("distinct flow mods", writes, new Op() {
+            @Override
+            public boolean run(int i) {
+                return cache2.update(new Entry(distinct[i & distinctMask], sw));
+            }
+        }, new Op() {
+            @Override
+            public boolean run(int i) {
+                return damper2.update(OFMessageDamper.fingerprint(swHash,
+                        distinct[i & distinctMask]),
+                        System.currentTimeMillis());
+            }
+        });
+
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void compare(String name, int writes, Op cache, Op damper) {
+        long[] a = measure(writes, cache);
+        long[] b = measure(writes, damper);
+        System.out.println(String.format(
+                "%-22s %10.1f %10.1f %10.1f %10.1f %8.1f %8.1f",
+                name, (double) a[0] / writes, (double) b[0] / writes,
+                (double) a[1] / writes, (double) b[1] / writes,
+                100.0 * a[2] / writes, 100.0 * b[2] / writes));
+    }
+
+    /**
+     * @return best time of a round, in nanoseconds, and the bytes allocated
+     *         and the writes dampened in that round
+     */
+    private static long[] measure(int writes, Op op) {
+        long id = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE, allocated = 0, dampened = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            long bytes = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            long n = 0;
+            for (int i = 0; i < writes; i++) {
+                if (op.run(i)) n++;
+            }
+            long time = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(id) - bytes;
+            if (time < best) {
+                best = time;
+                allocated = bytes;
+                dampened = n;
+            }
+        }
+        sink += dampened;
+        return new long[] { best, allocated, dampened };
+    }
+}
@@ -0,0 +1,178 @@
+/**
+*    Copyright 2013, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.util;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFHello;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+/**
+ * Tests the fingerprint slots of {@link OFMessageDamper}: which writes are
+ * dampened, when a slot's timeout has passed, and which slot a full bucket
+ * gives up.
+ */
+public class OFMessageDamperFingerprintTest {
+    private static final int TIMEOUT = 50;
+
+    OFMessageDamper damper;
+    FloodlightContext cntx;
+
+    IOFSwitch sw1;
+    IOFSwitch sw2;
+
+    OFEchoRequest echoRequest1;
+    OFEchoRequest echoRequest1Clone;
+    OFEchoRequest echoRequest2;
+    OFHello hello1;
+    OFHello hello2;
+
+    @Before
+    public void setUp() {
+        cntx = new FloodlightContext();
+        sw1 = createMock(IOFSwitch.class);
+        sw2 = createMock(IOFSwitch.class);
+
+        echoRequest1 = new OFEchoRequest();
+        echoRequest1.setPayload(new byte[] { 1 });
+        echoRequest1.computeLength();
+        echoRequest1Clone = new OFEchoRequest();
+        echoRequest1Clone.setPayload(new byte[] { 1 });
+        echoRequest1Clone.computeLength();
+        echoRequest2 = new OFEchoRequest();
+        echoRequest2.setPayload(new byte[] { 2 });
+        echoRequest2.computeLength();
+
+        hello1 = new OFHello();
+        hello1.setXid(1);
+        hello2 = new OFHello();
+        hello2.setXid(2);
+    }
+
+    protected void doWrite(boolean expectWrite, IOFSwitch sw, OFMessage msg)
+            throws IOException {
+        reset(sw);
+        if (expectWrite) {
+            sw.writeThrottled(msg, cntx);
+            expectLastCall().once();
+        }
+        replay(sw);
+        assertEquals(expectWrite, damper.write(sw, msg, cntx));
+        verify(sw);
+    }
+
+    @Test
+    public void testSameMessageSameSwitch() throws IOException {
+        damper = new OFMessageDamper(100,
+                                     EnumSet.of(OFType.ECHO_REQUEST,
+                                                OFType.HELLO),
+                                     TIMEOUT * 100);
+
+        doWrite(true, sw1, echoRequest1);
+        doWrite(false, sw1, echoRequest1);
+        // an equal message built again is the same write
+        doWrite(false, sw1, echoRequest1Clone);
+        doWrite(true, sw1, echoRequest2);
+        doWrite(false, sw1, echoRequest2);
+
+        doWrite(true, sw1, hello1);
+        doWrite(false, sw1, hello1);
+    }
+
+    @Test
+    public void testDifferentXidOrSwitch() throws IOException {
+        damper = new OFMessageDamper(100,
+                                     EnumSet.of(OFType.ECHO_REQUEST,
+                                                OFType.HELLO),
+                                     TIMEOUT * 100);
+
+        // the xid is part of the message's encoding
+        doWrite(true, sw1, hello1);
+        doWrite(true, sw1, hello2);
+        doWrite(false, sw1, hello1);
+        doWrite(false, sw1, hello2);
+
+        // another switch object gets its own fingerprints
+        doWrite(true, sw1, echoRequest1);
+        doWrite(true, sw2, echoRequest1);
+        doWrite(false, sw2, echoRequest1);
+        doWrite(true, sw2, hello1);
+    }
+
+    @Test
+    public void testTypeNotDampened() throws IOException {
+        damper = new OFMessageDamper(100,
+                                     EnumSet.of(OFType.ECHO_REQUEST),
+                                     TIMEOUT * 100);
+
+        doWrite(true, sw1, hello1);
+        doWrite(true, sw1, hello1);
+        doWrite(true, sw1, echoRequest1);
+        doWrite(false, sw1, echoRequest1);
+    }
+
+    @Test
+    public void testTimeout() {
+        damper = new OFMessageDamper(100,
+                                     EnumSet.of(OFType.ECHO_REQUEST),
+                                     TIMEOUT);
+        long fp = OFMessageDamper.fingerprint(sw1.hashCode(), echoRequest1);
+
+        assertFalse(damper.update(fp, 1000));
+        assertTrue(damper.update(fp, 1000 + TIMEOUT / 2));
+        // a dampened write does not move the slot's time on
+        assertTrue(damper.update(fp, 1000 + TIMEOUT));
+        assertFalse(damper.update(fp, 1000 + TIMEOUT + 1));
+        assertTrue(damper.update(fp, 1000 + TIMEOUT + 2));
+    }
+
+    @Test
+    public void testFullBucketEvictsOldest() {
+        damper = new OFMessageDamper(OFMessageDamper.WAYS * 4,
+                                     EnumSet.of(OFType.ECHO_REQUEST),
+                                     TIMEOUT * 100);
+
+        // the high 32 bits choose the bucket, so these all share bucket 0
+        long[] fps = new long[OFMessageDamper.WAYS + 1];
+        for (int i = 0; i < fps.length; i++)
+            fps[i] = i + 1;
+
+        for (int i = 0; i < OFMessageDamper.WAYS; i++)
+            assertFalse(damper.update(fps[i], 1000 + i));
+        for (int i = 0; i < OFMessageDamper.WAYS; i++)
+            assertTrue(damper.update(fps[i], 1000 + OFMessageDamper.WAYS));
+
+        // the bucket is full: the fingerprint written first gives up its slot
+        long last = fps[OFMessageDamper.WAYS];
+        assertFalse(damper.update(last, 1000 + OFMessageDamper.WAYS));
+        assertTrue(damper.update(last, 1000 + OFMessageDamper.WAYS));
+        for (int i = 1; i < OFMessageDamper.WAYS; i++)
+            assertTrue(damper.update(fps[i], 1000 + OFMessageDamper.WAYS));
+        assertFalse(damper.update(fps[0], 1000 + OFMessageDamper.WAYS));
+    }
+}
@@ -0,0 +1,253 @@
+/**
+*    Copyright 2013, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package org.openflow.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+public class OFCompactMatchTest extends TestCase {
+
+    private static Ethernet eth(short etherType) {
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress("00:11:22:33:44:55")
+            .setSourceMACAddress("66:77:88:99:aa:bb")
+            .setEtherType(etherType);
+        return eth;
+    }
+
+    private static byte[] tcpPacket() {
+        Ethernet eth = eth(Ethernet.TYPE_IPv4);
+        eth.setPayload(new IPv4()
+                .setSourceAddress("10.0.0.1")
+                .setDestinationAddress("10.0.0.2")
+                .setDiffServ((byte) 0xb9)
+                .setTtl((byte) 64)
+                .setProtocol(IPv4.PROTOCOL_TCP)
+                .setPayload(new TCP()
+                        .setSourcePort((short) 40000)
+                        .setDestinationPort((short) 80)
+                        .setPayload(new Data(new byte[] { 1, 2, 3 }))));
+        return eth.serialize();
+    }
+
+    private static byte[] udpPacket() {
+        Ethernet eth = eth(Ethernet.TYPE_IPv4);
+        eth.setPayload(new IPv4()
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.255")
+                .setTtl((byte) 64)
+                .setProtocol(IPv4.PROTOCOL_UDP)
+                .setPayload(new UDP()
+                        .setSourcePort((short) 68)
+                        .setDestinationPort((short) 67)
+                        .setPayload(new Data(new byte[] { 1 }))));
+        return eth.serialize();
+    }
+
+    private static byte[] arpPacket() {
+        Ethernet eth = eth(Ethernet.TYPE_ARP);
+        eth.setPayload(new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REQUEST)
+                .setSenderHardwareAddress(eth.getSourceMACAddress())
+                .setSenderProtocolAddress(IPv4.toIPv4Address("10.0.0.1"))
+                .setTargetHardwareAddress(new byte[6])
+                .setTargetProtocolAddress(IPv4.toIPv4Address("10.0.0.9")));
+        return eth.serialize();
+    }
+
+    private static byte[] bytes(OFCompactMatch match) {
+        ByteBuffer bb = ByteBuffer.allocate(match.getLength());
+        match.writeTo(bb);
+        assertEquals(0, bb.remaining());
+        return bb.array();
+    }
+
+    private static byte[] bytes(OFMatch match) {
+        ByteBuffer bb = ByteBuffer.allocate(match.getLength());
+        match.writeTo(bb);
+        return bb.array();
+    }
+
+    public void testLoadFromPacketMatchesOFMatch() {
+        for (byte[] packet : new byte[][] { tcpPacket(), udpPacket(),
+                                            arpPacket() }) {
+            OFMatch expected = new OFMatch().loadFromPacket(packet, 7);
+            OFCompactMatch actual =
+                    new OFCompactMatch().loadFromPacket(packet, 7);
+            assertEquals(new OFCompactMatch().copyFrom(expected), actual);
+        }
+    }
+
+    public void testLoadFromPacketFields() {
+        OFCompactMatch match = new OFCompactMatch().loadFromPacket(tcpPacket(), 7);
+        assertEquals(7, match.getInPort());
+        assertEquals(0x001122334455L, match.getDataLayerDestination());
+        assertEquals(0x66778899aabbL, match.getDataLayerSource());
+        assertEquals(Ethernet.TYPE_IPv4, match.getDataLayerType());
+        assertEquals(IPv4.PROTOCOL_TCP, match.getNetworkProtocol());
+        assertEquals(IPv4.toIPv4Address("10.0.0.1"), match.getNetworkSource());
+        assertEquals(IPv4.toIPv4Address("10.0.0.2"),
+                     match.getNetworkDestination());
+        assertEquals((short) 40000, match.getTransportSource());
+        assertEquals((short) 80, match.getTransportDestination());
+        assertEquals(0xb9 >> 2, match.getValue(OFOXMFieldType.IP_DSCP));
+        assertEquals(0xb9 & 3, match.getValue(OFOXMFieldType.IP_ECN));
+        assertFalse(match.fieldExists(OFOXMFieldType.VLAN_VID));
+
+        // Reusing the instance drops the fields of the earlier packet
+        match.loadFromPacket(arpPacket(), 2);
+        assertFalse(match.fieldExists(OFOXMFieldType.TCP_SRC));
+        assertFalse(match.fieldExists(OFOXMFieldType.IPV4_SRC));
+        assertEquals(IPv4.toIPv4Address("10.0.0.9"),
+                     (int) match.getValue(OFOXMFieldType.ARP_TPA));
+        assertEquals(new OFCompactMatch().loadFromPacket(arpPacket(), 2),
+                     match);
+    }
+
+    public void testLoadFromVlanPacket() {
+        Ethernet eth = eth(Ethernet.TYPE_IPv4);
+        eth.setVlanID((short) 42);
+        eth.setPriorityCode((byte) 5);
+        eth.setPayload(new IPv4()
+                .setSourceAddress("10.0.0.1")
+                .setDestinationAddress("10.0.0.2")
+                .setProtocol(IPv4.PROTOCOL_UDP)
+                .setPayload(new UDP()
+                        .setSourcePort((short) 1)
+                        .setDestinationPort((short) 2)
+                        .setPayload(new Data(new byte[] { 1 }))));
+        OFCompactMatch match =
+                new OFCompactMatch().loadFromPacket(eth.serialize(), 1);
+        assertEquals(42, match.getDataLayerVirtualLan());
+        assertEquals(42 | OFVlanId.OFPVID_PRESENT.getValue(),
+                     match.getValue(OFOXMFieldType.VLAN_VID));
+        assertEquals(5, match.getValue(OFOXMFieldType.VLAN_PCP));
+        assertEquals(Ethernet.TYPE_IPv4, match.getDataLayerType());
+        assertEquals((short) 2, match.getTransportDestination());
+    }
+
+    public void testTruncatedPacket() {
+        byte[] packet = tcpPacket();
+        OFCompactMatch match = new OFCompactMatch();
+        match.loadFromPacket(Arrays.copyOf(packet, 30), 1);
+        assertTrue(match.fieldExists(OFOXMFieldType.ETH_TYPE));
+        assertFalse(match.fieldExists(OFOXMFieldType.IPV4_SRC));
+        match.loadFromPacket(Arrays.copyOf(packet, 36), 1);
+        assertTrue(match.fieldExists(OFOXMFieldType.IPV4_DST));
+        assertFalse(match.fieldExists(OFOXMFieldType.TCP_SRC));
+    }
+
+    public void testMasksAndLongFields() {
+        OFCompactMatch match = new OFCompactMatch();
+        match.set(OFOXMFieldType.IPV4_SRC, 0x0a0102ffL, 0xffffff00L);
+        assertTrue(match.isMasked(OFOXMFieldType.IPV4_SRC));
+        assertEquals(0x0a010200L, match.getValue(OFOXMFieldType.IPV4_SRC));
+        assertEquals(0xffffff00L, match.getMask(OFOXMFieldType.IPV4_SRC));
+
+        // A zero mask is an exact match, as in OFMatchField
+        match.set(OFOXMFieldType.TCP_DST, 80, 0);
+        assertFalse(match.isMasked(OFOXMFieldType.TCP_DST));
+        assertEquals(0xffffL, match.getMask(OFOXMFieldType.TCP_DST));
+
+        byte[] ipv6 = new byte[16];
+        byte[] ipv6Mask = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            ipv6[i] = (byte) (0xf0 + i);
+            ipv6Mask[i] = (byte) ((i < 12) ? 0xff : 0);
+        }
+        match.set(OFOXMFieldType.IPV6_DST, ipv6, ipv6Mask);
+        byte[] expected = ipv6.clone();
+        Arrays.fill(expected, 12, 16, (byte) 0);
+        assertTrue(Arrays.equals(expected,
+                                 match.getBytes(OFOXMFieldType.IPV6_DST)));
+        assertTrue(Arrays.equals(ipv6Mask,
+                                 match.getMaskBytes(OFOXMFieldType.IPV6_DST)));
+
+        match.set(OFOXMFieldType.PBB_ISID, new byte[] { 1, 2, 3 }, null);
+        assertEquals(0x010203L, match.getValue(OFOXMFieldType.PBB_ISID));
+
+        match.clear(OFOXMFieldType.IPV6_DST);
+        assertNull(match.getBytes(OFOXMFieldType.IPV6_DST));
+        assertEquals(new OFCompactMatch()
+                .set(OFOXMFieldType.IPV4_SRC, 0x0a010200L, 0xffffff00L)
+                .set(OFOXMFieldType.TCP_DST, 80)
+                .set(OFOXMFieldType.PBB_ISID, 0x010203L), match);
+    }
+
+    public void testWireFormat() {
+        OFCompactMatch match = new OFCompactMatch().loadFromPacket(tcpPacket(), 7);
+        match.set(OFOXMFieldType.METADATA, 0x1234L, 0xff00ff00ff00ff00L);
+        byte[] ipv6 = new byte[16];
+        ipv6[0] = (byte) 0xfe;
+        ipv6[15] = 1;
+        match.set(OFOXMFieldType.IPV6_ND_TARGET, ipv6, null);
+
+        // Same bytes as an OFMatch with the fields in field number order
+        OFMatch converted = match.toOFMatch();
+        assertEquals(converted.getMatchLength(), match.getMatchLength());
+        assertEquals(converted.getLength(), match.getLength());
+        byte[] wire = bytes(match);
+        assertTrue(Arrays.equals(bytes(converted), wire));
+
+        OFCompactMatch read = new OFCompactMatch();
+        read.set(OFOXMFieldType.UDP_SRC, 5);
+        ByteBuffer bb = ByteBuffer.wrap(wire);
+        read.readFrom(bb);
+        assertEquals(wire.length, bb.position());
+        assertEquals(match, read);
+        assertEquals(match.hashCode(), read.hashCode());
+
+        OFMatch parsed = new OFMatch();
+        parsed.readFrom(ByteBuffer.wrap(wire));
+        assertEquals(match, new OFCompactMatch().copyFrom(parsed));
+
+        OFCompactMatch empty = new OFCompactMatch();
+        assertEquals(8, empty.getLength());
+        assertTrue(Arrays.equals(bytes(new OFMatch()), bytes(empty)));
+    }
+
+    public void testEqualsAndClone() {
+        OFCompactMatch a = new OFCompactMatch().loadFromPacket(udpPacket(), 1);
+        OFCompactMatch b = a.clone();
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        b.setInPort(2);
+        assertFalse(a.equals(b));
+        b.setInPort(1);
+        assertEquals(a, b);
+        b.set(OFOXMFieldType.UDP_SRC, 68, 0xff);
+        assertFalse(a.equals(b));
+        b.clear(OFOXMFieldType.UDP_SRC);
+        assertFalse(a.equals(b));
+        b.set(OFOXMFieldType.UDP_SRC, 68);
+        assertEquals(a, b);
+        assertFalse(a.equals(new OFCompactMatch()));
+    }
+}
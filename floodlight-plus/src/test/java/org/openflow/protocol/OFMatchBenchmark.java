@@ -0,0 +1,221 @@
+/**
+*    Copyright 2013, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package org.openflow.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+
+/**
+ * Compares {@link OFMatch} with {@link OFCompactMatch} on the operations the
+ * controller performs for every packet-in: building a match from the packet,
+ * reading fields, hashing and comparing, cloning and encoding.  Each
+ * operation is run in rounds until the time settles, and the best round is
+ * reported along with the bytes allocated per operation.
+ *
+ * OFMatch.equals only holds for the same instance, so equality of OFMatch is
+ * measured on its list of fields.
+ *
+ * Run with: java org.openflow.protocol.OFMatchBenchmark [operations]
+ */
+public class OFMatchBenchmark {
+    private static final int ROUNDS = 10;
+
+    /** Something for results to go into, so they are not optimized away */
+    static long sink;
+
+    private interface Op {
+        void run(int i);
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        final int ops = (args.length > 0) ? Integer.parseInt(args[0])
+                                          : 1000000;
+
+        // Packets from a few flows, so matches are equal some of the time
+        final byte[][] packets = new byte[16][];
+        for (int i = 0; i < packets.length; i++) {
+            Ethernet eth = new Ethernet();
+            eth.setDestinationMACAddress("00:11:22:33:44:55")
+                .setSourceMACAddress(new byte[] { 0, 0, 0, 0, 0, (byte) (i % 4) })
+                .setEtherType(Ethernet.TYPE_IPv4)
+                .setPayload(new IPv4()
+                        .setSourceAddress(0x0a000001 + i % 4)
+                        .setDestinationAddress("10.0.1.1")
+                        .setTtl((byte) 64)
+                        .setProtocol(IPv4.PROTOCOL_TCP)
+                        .setPayload(new TCP()
+                                .setSourcePort((short) (40000 + i / 4))
+                                .setDestinationPort((short) 80)
+                                .setPayload(new Data(new byte[64]))));
+            packets[i] = eth.serialize();
+        }
+        final int mask = packets.length - 1;
+
+        final OFMatch[] matches = new OFMatch[packets.length];
+        final OFCompactMatch[] compact = new OFCompactMatch[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            matches[i] = new OFMatch().loadFromPacket(packets[i], 1);
+            compact[i] = new OFCompactMatch().loadFromPacket(packets[i], 1);
+        }
+        final OFCompactMatch reused = new OFCompactMatch();
+        final ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        System.out.println(String.format("%-22s %12s %12s %12s %12s",
+                "operation", "OFMatch ns", "compact ns",
+                "OFMatch B", "compact B"));
+
+        compare("loadFromPacket", ops, new Op() {
+            @Override
+            public void run(int i) {
+                sink += new OFMatch().loadFromPacket(packets[i & mask], 1)
+                        .getMatchLength();
+            }
+        }, new Op() {
+            @Override
+            public void run(int i) {
+                sink += reused.loadFromPacket(packets[i & mask], 1)
+                        .getPresentFields();
+            }
+        });
+
+        compare("read 5-tuple", ops, new Op() {
+            @Override
+            public void run(int i) {
+                OFMatch m = matches[i & mask];
+                sink += m.getNetworkSource() + m.getNetworkDestination() +
+                        m.getNetworkProtocol() + m.getTransportSource() +
+                        m.getTransportDestination();
+            }
+        }, new Op() {
+            @Override
+            public void run(int i) {
+                OFCompactMatch m = compact[i & mask];
+                sink += m.getNetworkSource() + m.getNetworkDestination() +
+                        m.getNetworkProtocol() + m.getTransportSource() +
+                        m.getTransportDestination();
+            }
+        });
+
+        compare("hashCode + equals", ops, new Op() {
+            @Override
+            public void run(int i) {
+                OFMatch a = matches[i & mask];
+                OFMatch b = matches[(i >>> 4) & mask];
+                sink += a.hashCode();
+                if (a.getMatchFields().equals(b.getMatchFields())) sink++;
+            }
+        }, new Op() {
+            @Override
+            public void run(int i) {
+                OFCompactMatch a = compact[i & mask];
+                OFCompactMatch b = compact[(i >>> 4) & mask];
+                sink += a.hashCode();
+                if (a.equals(b)) sink++;
+            }
+        });
+
+        compare("clone", ops, new Op() {
+            @Override
+            public void run(int i) {
+                sink += matches[i & mask].clone().getMatchLength();
+            }
+        }, new Op() {
+            @Override
+            public void run(int i) {
+                sink += compact[i & mask].clone().getPresentFields();
+            }
+        });
+
+        compare("writeTo", ops, new Op() {
+            @Override
+            public void run(int i) {
+                buffer.clear();
+                matches[i & mask].writeTo(buffer);
+                sink += buffer.position();
+            }
+        }, new Op() {
+            @Override
+            public void run(int i) {
+                buffer.clear();
+                compact[i & mask].writeTo(buffer);
+                sink += buffer.position();
+            }
+        });
+
+        compare("readFrom", ops, new Op() {
+            @Override
+            public void run(int i) {
+                buffer.clear();
+                compact[i & mask].writeTo(buffer);
+                buffer.flip();
+                OFMatch m = new OFMatch();
+                m.readFrom(buffer);
+                sink += m.getMatchLength();
+            }
+        }, new Op() {
+            @Override
+            public void run(int i) {
+                buffer.clear();
+                compact[i & mask].writeTo(buffer);
+                buffer.flip();
+                reused.readFrom(buffer);
+                sink += reused.getPresentFields();
+            }
+        });
+
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void compare(String name, int ops, Op legacy, Op compact) {
+        long[] a = measure(ops, legacy);
+        long[] b = measure(ops, compact);
+        System.out.println(String.format("%-22s %12.1f %12.1f %12.1f %12.1f",
+                name, (double) a[0] / ops, (double) b[0] / ops,
+                (double) a[1] / ops, (double) b[1] / ops));
+    }
+
+    /**
+     * @return best time of a round, in nanoseconds, and the bytes allocated
+     *         in that round
+     */
+    private static long[] measure(int ops, Op op) {
+        long id = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE, allocated = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            long bytes = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++)
+                op.run(i);
+            long time = System.nanoTime() - start;
+            bytes = threads.getThreadAllocatedBytes(id) - bytes;
+            if (time < best) {
+                best = time;
+                allocated = bytes;
+            }
+        }
+        return new long[] { best, allocated };
+    }
+}
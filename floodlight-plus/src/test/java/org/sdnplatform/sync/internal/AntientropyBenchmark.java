@@ -0,0 +1,181 @@
+package org.sdnplatform.sync.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.sdnplatform.sync.IClosableIterator;
+import org.sdnplatform.sync.ISyncService.Scope;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.internal.rpc.TProtocolUtil;
+import org.sdnplatform.sync.internal.store.InMemoryStorageEngine;
+import org.sdnplatform.sync.internal.store.KeyHashTree;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.version.VectorClock;
+import org.sdnplatform.sync.thrift.SyncDigestMessage;
+import org.sdnplatform.sync.thrift.SyncMessage;
+
+/**
+ * Compares the bytes an antientropy pass puts on the wire when every key
+ * is offered, as antientropy did before stores kept hash trees, with the
+ * exchange of hash tree digests that only offers the keys in the leaf
+ * buckets that differ.  The messages are built as the sync manager and the
+ * RPC channel handler build them, and encoded as the thrift frame encoder
+ * does, for two stores that differ in a number of keys.  Hops counts the
+ * digest messages, each of which waits for the one before it, plus one for
+ * the offers.  The SyncRequest and SyncValue messages that follow the
+ * offers are the same either way and are not counted.
+ *
+ * Run with: java org.sdnplatform.sync.internal.AntientropyBenchmark [keys]
+ */
+public class AntientropyBenchmark {
+    private static final int OFFER_BATCH = 50;
+    private static final Random random = new Random(42);
+
+    private static int encodedSize(SyncMessage bsm) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        bsm.write(new TCompactProtocol(new TIOStreamTransport(os)));
+        // length prefix
+        return os.size() + 4;
+    }
+
+    private static ByteArray key(int i) {
+        return new ByteArray(String.format("device-%08x-%08x", i,
+                                           i * 0x9e3779b9).getBytes());
+    }
+
+    private static Versioned<byte[]> value(int version) {
+        byte[] value = new byte[200];
+        random.nextBytes(value);
+        VectorClock vc = new VectorClock();
+        for (int i = 0; i < version; i++)
+            vc = vc.incremented(1 + (i % 3), System.currentTimeMillis());
+        return new Versioned<byte[]>(value, vc);
+    }
+
+    /**
+     * @return the bytes and number of messages of the offers for the keys
+     * in the given buckets, or all keys if buckets is null
+     */
+    private static long[] offers(InMemoryStorageEngine<ByteArray,
+                                                      byte[]> store,
+                                 BitSet buckets) throws Exception {
+        long bytes = 0;
+        long messages = 0;
+        SyncMessage bsm = TProtocolUtil.getTSyncOfferMessage(store.getName(),
+                                                             Scope.GLOBAL,
+                                                             false);
+        bsm.getSyncOffer().getHeader().setTransactionId(1);
+        IClosableIterator<Entry<ByteArray, List<Versioned<byte[]>>>> entries =
+                store.entries();
+        int count = 0;
+        while (entries.hasNext()) {
+            Entry<ByteArray, List<Versioned<byte[]>>> e = entries.next();
+            if (buckets != null &&
+                !buckets.get(KeyHashTree.getBucket(e.getKey())))
+                continue;
+            bsm.getSyncOffer().addToVersions(
+                TProtocolUtil.getTKeyedVersions(e.getKey(), e.getValue()));
+            if (++count >= OFFER_BATCH) {
+                bytes += encodedSize(bsm);
+                messages += 1;
+                bsm.getSyncOffer().unsetVersions();
+                count = 0;
+            }
+        }
+        entries.close();
+        if (count > 0) {
+            bytes += encodedSize(bsm);
+            messages += 1;
+        }
+        return new long[] { bytes, messages };
+    }
+
+    /**
+     * @return the bytes, number of messages and hops of the digest
+     * exchange followed by the offers of the keys that differ
+     */
+    private static long[] digest(InMemoryStorageEngine<ByteArray,
+                                                      byte[]> local,
+                                 InMemoryStorageEngine<ByteArray,
+                                                      byte[]> remote)
+                                                      throws Exception {
+        long bytes = 0;
+        long messages = 0;
+        List<Integer> nodes = new ArrayList<Integer>();
+        nodes.add(0);
+        KeyHashTree sender = local.getHashTree();
+        KeyHashTree receiver = remote.getHashTree();
+        while (true) {
+            SyncMessage bsm = TProtocolUtil.getTSyncDigestMessage(
+                TProtocolUtil.getTStore(local.getName(), Scope.GLOBAL,
+                                        false));
+            SyncDigestMessage sdm = bsm.getSyncDigest();
+            sdm.getHeader().setTransactionId(1);
+            for (int node : nodes) {
+                sdm.addToNodes(node);
+                sdm.addToHashes(sender.getHash(node));
+            }
+            bytes += encodedSize(bsm);
+            messages += 1;
+
+            List<Integer> diff = receiver.diff(sdm.getNodes(),
+                                               sdm.getHashes());
+            if (diff.size() == 0)
+                return new long[] { bytes, messages, messages };
+            if (KeyHashTree.isLeaf(diff.get(0))) {
+                BitSet buckets = new BitSet(KeyHashTree.LEAVES);
+                for (int node : diff)
+                    buckets.set(node - KeyHashTree.FIRST_LEAF);
+                long[] o = offers(receiver == local.getHashTree()
+                                  ? local : remote, buckets);
+                return new long[] { bytes + o[0], messages + o[1],
+                                    messages + 1 };
+            }
+            nodes = new ArrayList<Integer>();
+            for (int node : diff) {
+                int child = KeyHashTree.getFirstChild(node);
+                for (int i = 0; i < KeyHashTree.FANOUT; i++)
+                    nodes.add(child + i);
+            }
+            KeyHashTree t = sender;
+            sender = receiver;
+            receiver = t;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+        System.out.printf("%d keys%n", keys);
+        System.out.printf("%8s %12s %8s %12s %8s %6s %10s%n",
+                          "differ", "offer bytes", "msgs",
+                          "digest bytes", "msgs", "hops", "digest ms");
+        for (int differ : new int[] { 0, 1, 10, 100, 1000 }) {
+            InMemoryStorageEngine<ByteArray, byte[]> local =
+                    new InMemoryStorageEngine<ByteArray, byte[]>("store");
+            InMemoryStorageEngine<ByteArray, byte[]> remote =
+                    new InMemoryStorageEngine<ByteArray, byte[]>("store");
+            for (int i = 0; i < keys; i++) {
+                Versioned<byte[]> v = value(1 + (i % 5));
+                local.put(key(i), v);
+                // The remote node is missing the last keys
+                if (i < keys - differ)
+                    remote.put(key(i), v);
+            }
+
+            long[] full = offers(local, null);
+            long start = System.nanoTime();
+            long[] tree = digest(local, remote);
+            double ms = (System.nanoTime() - start) / 1e6;
+            System.out.printf("%8d %12d %8d %12d %8d %6d %10.2f%n",
+                              differ, full[0], full[1],
+                              tree[0], tree[1], tree[2], ms);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Map.Entry;
 import org.junit.Test;
 import org.sdnplatform.sync.IClosableIterator;
 import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.error.ObsoleteVersionException;
 import org.sdnplatform.sync.error.SyncException;
 import org.sdnplatform.sync.internal.TUtils;
 import org.sdnplatform.sync.internal.store.IStorageEngine;
@@ -175,6 +176,49 @@ public abstract class AbstractStorageEngineT extends AbstractByteArrayStoreT {
         
     }
 
+    @Test
+    public void testHashTree() throws Exception {
+        IStorageEngine<ByteArray, byte[]> engine = getStorageEngine();
+        engine.setTombstoneInterval(500);
+        assertEquals(0, engine.getHashTree().getHash(0));
+
+        for (int i = 0; i < 100; i++) {
+            ByteArray key = new ByteArray((byte) i);
+            engine.put(key, new Versioned<byte[]>(new byte[] { 1 },
+                                                  TUtils.getClock(1)));
+            if (i % 2 == 0)
+                engine.put(key, new Versioned<byte[]>(new byte[] { 2 },
+                                                      TUtils.getClock(2)));
+            if (i % 3 == 0)
+                engine.put(key, new Versioned<byte[]>(null,
+                                                      TUtils.getClock(1, 1, 2)));
+        }
+        try {
+            engine.put(new ByteArray((byte) 1),
+                       new Versioned<byte[]>(new byte[] { 3 }));
+            fail("Expected ObsoleteVersionException");
+        } catch (ObsoleteVersionException e) {
+            // expected
+        }
+        assertTrue(engine.getHashTree().getHash(0) != 0);
+        assertHashTree(engine);
+
+        Thread.sleep(501);
+        engine.cleanupTask();
+        assertHashTree(engine);
+
+        engine.truncate();
+        assertEquals(0, engine.getHashTree().getHash(0));
+    }
+
+    private void assertHashTree(IStorageEngine<ByteArray, byte[]> engine) {
+        KeyHashTree expected = new KeyHashTree();
+        expected.rebuild(engine.entries());
+        for (int node = 0; node < KeyHashTree.NODES; node++)
+            assertEquals(expected.getHash(node),
+                         engine.getHashTree().getHash(node));
+    }
+
     @SuppressWarnings("unused")
     private boolean remove(List<byte[]> list, byte[] item) {
         Iterator<byte[]> it = list.iterator();
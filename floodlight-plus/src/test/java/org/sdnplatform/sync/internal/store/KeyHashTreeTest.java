@@ -0,0 +1,145 @@
+package org.sdnplatform.sync.internal.store;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.internal.TUtils;
+import org.sdnplatform.sync.internal.util.ByteArray;
+
+public class KeyHashTreeTest {
+
+    private static ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+
+    private static List<Versioned<byte[]>> values(int... clock) {
+        return Collections.singletonList(
+                new Versioned<byte[]>(new byte[] { 1 },
+                                      TUtils.getClock(clock)));
+    }
+
+    @Test
+    public void testShape() {
+        assertEquals(273, KeyHashTree.FIRST_LEAF);
+        assertEquals(273 + 4096, KeyHashTree.NODES);
+        assertFalse(KeyHashTree.isLeaf(KeyHashTree.FIRST_LEAF - 1));
+        assertTrue(KeyHashTree.isLeaf(KeyHashTree.FIRST_LEAF));
+        for (int node = 1; node < KeyHashTree.NODES; node++) {
+            int parent = KeyHashTree.getParent(node);
+            int first = KeyHashTree.getFirstChild(parent);
+            assertTrue(node >= first && node < first + KeyHashTree.FANOUT);
+        }
+        assertEquals(KeyHashTree.NODES - KeyHashTree.FANOUT,
+                     KeyHashTree.getFirstChild(KeyHashTree.FIRST_LEAF - 1));
+    }
+
+    @Test
+    public void testUpdate() {
+        KeyHashTree a = new KeyHashTree();
+        KeyHashTree b = new KeyHashTree();
+        for (int i = 0; i < 1000; i++)
+            a.update(key(i), null, values(1));
+        // Order and intermediate versions do not matter
+        for (int i = 999; i >= 0; i--) {
+            b.update(key(i), null, values(2));
+            b.update(key(i), values(2), values(1));
+        }
+        assertTrue(a.getHash(0) != 0);
+        for (int node = 0; node < KeyHashTree.NODES; node++)
+            assertEquals(a.getHash(node), b.getHash(node));
+
+        // A newer version of one key changes its path only
+        b.update(key(7), values(1), values(1, 1));
+        int leaf = KeyHashTree.FIRST_LEAF + KeyHashTree.getBucket(key(7));
+        Set<Integer> path = new HashSet<Integer>();
+        for (int node = leaf; node != 0; node = KeyHashTree.getParent(node))
+            path.add(node);
+        path.add(0);
+        for (int node = 0; node < KeyHashTree.NODES; node++)
+            assertEquals(path.contains(node),
+                         a.getHash(node) != b.getHash(node));
+
+        for (int i = 0; i < 1000; i++)
+            a.update(key(i), values(1), null);
+        for (int node = 0; node < KeyHashTree.NODES; node++)
+            assertEquals(0, a.getHash(node));
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        InMemoryStorageEngine<ByteArray, byte[]> store =
+                new InMemoryStorageEngine<ByteArray, byte[]>("test");
+        for (int i = 0; i < 1000; i++)
+            store.put(key(i), values(1).get(0));
+        store.put(key(3), values(1, 2).get(0));
+        store.put(key(4), values(2).get(0));
+
+        KeyHashTree rebuilt = new KeyHashTree();
+        rebuilt.update(key(0), null, values(5));
+        rebuilt.rebuild(store.entries());
+        for (int node = 0; node < KeyHashTree.NODES; node++)
+            assertEquals(store.getHashTree().getHash(node),
+                         rebuilt.getHash(node));
+
+        rebuilt.clear();
+        assertEquals(0, rebuilt.getHash(0));
+    }
+
+    /**
+     * Walk down two trees the way peers exchange digests and check that
+     * the leaf buckets found are those of the keys that differ
+     */
+    @Test
+    public void testExchange() {
+        KeyHashTree a = new KeyHashTree();
+        KeyHashTree b = new KeyHashTree();
+        for (int i = 0; i < 10000; i++) {
+            a.update(key(i), null, values(1));
+            b.update(key(i), null, values(1));
+        }
+        assertEquals(0, walk(a, b).size());
+
+        Set<Integer> expected = new HashSet<Integer>();
+        a.update(key(10000), null, values(1));
+        expected.add(KeyHashTree.getBucket(key(10000)));
+        b.update(key(5), values(1), values(1, 1));
+        expected.add(KeyHashTree.getBucket(key(5)));
+        b.update(key(6), values(1), null);
+        expected.add(KeyHashTree.getBucket(key(6)));
+        assertEquals(expected, walk(a, b));
+    }
+
+    private static Set<Integer> walk(KeyHashTree local, KeyHashTree remote) {
+        List<Integer> nodes = Collections.singletonList(0);
+        KeyHashTree sender = local;
+        KeyHashTree receiver = remote;
+        while (true) {
+            List<Long> hashes = new ArrayList<Long>();
+            for (int node : nodes)
+                hashes.add(sender.getHash(node));
+            List<Integer> diff = receiver.diff(nodes, hashes);
+            if (diff.size() == 0 || KeyHashTree.isLeaf(diff.get(0))) {
+                Set<Integer> buckets = new HashSet<Integer>();
+                for (int node : diff)
+                    buckets.add(node - KeyHashTree.FIRST_LEAF);
+                return buckets;
+            }
+            nodes = new ArrayList<Integer>();
+            for (int node : diff) {
+                int child = KeyHashTree.getFirstChild(node);
+                for (int i = 0; i < KeyHashTree.FANOUT; i++)
+                    nodes.add(child + i);
+            }
+            KeyHashTree t = sender;
+            sender = receiver;
+            receiver = t;
+        }
+    }
+}
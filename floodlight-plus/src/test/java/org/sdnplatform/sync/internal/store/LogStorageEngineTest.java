@@ -0,0 +1,182 @@
+package org.sdnplatform.sync.internal.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.internal.TUtils;
+import org.sdnplatform.sync.internal.util.ByteArray;
+
+import static org.junit.Assert.*;
+
+
+public class LogStorageEngineTest extends AbstractStorageEngineT {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private File directory;
+    private LogStorageEngine store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = TUtils.createTempDir();
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.store.truncate();
+        this.store.close();
+        this.store = null;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        directory.delete();
+    }
+
+    private LogStorageEngine open() throws Exception {
+        return new LogStorageEngine("test", directory, SEGMENT_SIZE,
+                                    true, null);
+    }
+
+    @Override
+    public IStorageEngine<ByteArray, byte[]> getStorageEngine() {
+        return store;
+    }
+
+    @Override
+    public List<ByteArray> getKeys(int numKeys) {
+        List<ByteArray> keys = new ArrayList<ByteArray>(numKeys);
+        for(int i = 0; i < numKeys; i++)
+            keys.add(new ByteArray(TUtils.randomBytes(10)));
+        return keys;
+    }
+
+    private static ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+
+    private void assertSameContents(LogStorageEngine expected,
+                                    LogStorageEngine actual,
+                                    int keys) throws Exception {
+        for (int i = 0; i < keys; i++) {
+            List<Versioned<byte[]>> e = expected.get(key(i));
+            List<Versioned<byte[]>> a = actual.get(key(i));
+            assertEquals(e.size(), a.size());
+            for (int j = 0; j < e.size(); j++) {
+                assertEquals(e.get(j).getVersion(), a.get(j).getVersion());
+                assertTrue(TUtils.bytesEqual(e.get(j).getValue(),
+                                             a.get(j).getValue()));
+            }
+        }
+        for (int node = 0; node < KeyHashTree.NODES; node++)
+            assertEquals(expected.getHashTree().getHash(node),
+                         actual.getHashTree().getHash(node));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        store.setTombstoneInterval(500);
+        for (int i = 0; i < 100; i++) {
+            store.put(key(i), new Versioned<byte[]>(new byte[] { (byte) i },
+                                                    TUtils.getClock(1)));
+            if (i % 2 == 0)
+                store.put(key(i), new Versioned<byte[]>(new byte[] { 2 },
+                                                        TUtils.getClock(2)));
+            if (i % 3 == 0)
+                store.put(key(i), new Versioned<byte[]>(null,
+                                                        TUtils.getClock(1, 1, 2)));
+        }
+        Thread.sleep(501);
+        store.cleanupTask();
+        assertEquals(0, store.get(key(0)).size());
+        assertEquals(2, store.get(key(2)).size());
+
+        LogStorageEngine reopened = open();
+        assertSameContents(store, reopened, 100);
+        assertEquals(0, reopened.get(key(0)).size());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        byte[] value = new byte[500];
+        // Overwrite the same keys until they have filled many segments
+        for (int round = 1; round <= 50; round++) {
+            for (int i = 0; i < 20; i++) {
+                int[] clock = new int[round];
+                store.put(key(i), new Versioned<byte[]>(value,
+                                                        TUtils.getClock(clock)));
+            }
+        }
+        store.put(key(20), new Versioned<byte[]>(value, TUtils.getClock(1)));
+        store.put(key(20), new Versioned<byte[]>(null, TUtils.getClock(1, 1)));
+        store.setTombstoneInterval(0);
+        Thread.sleep(1);
+        int before = store.getSegmentCount();
+        assertTrue(before > 5);
+
+        store.cleanupTask();
+        assertTrue(store.getSegmentCount() < before);
+        assertEquals(0, store.get(key(20)).size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(1, store.get(key(i)).size());
+
+        LogStorageEngine reopened = open();
+        assertEquals(store.getSegmentCount(), reopened.getSegmentCount());
+        assertSameContents(store, reopened, 21);
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        for (int i = 0; i < 10; i++)
+            store.put(key(i), new Versioned<byte[]>(new byte[] { 1 },
+                                                    TUtils.getClock(1)));
+        store.close();
+
+        // Write the start of a record that never completed after the
+        // last complete one
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        long end = findEnd(files[0]);
+        RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+        raf.seek(end);
+        raf.writeInt(100);
+        raf.writeInt(12345);
+        raf.write(new byte[] { 1, 2, 3 });
+        raf.close();
+
+        LogStorageEngine reopened = open();
+        assertSameContents(store, reopened, 10);
+        reopened.put(key(10), new Versioned<byte[]>(new byte[] { 1 },
+                                                    TUtils.getClock(1)));
+        reopened.close();
+        LogStorageEngine again = open();
+        assertSameContents(reopened, again, 11);
+        assertEquals(1, again.get(key(10)).size());
+    }
+
+    /**
+     * @return the offset after the last record in a segment file
+     */
+    private static long findEnd(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long offset = 0;
+            while (true) {
+                raf.seek(offset);
+                int length = raf.readInt();
+                if (length == 0) return offset;
+                offset += 8 + length;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
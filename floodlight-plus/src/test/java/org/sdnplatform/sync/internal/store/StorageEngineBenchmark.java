@@ -0,0 +1,96 @@
+package org.sdnplatform.sync.internal.store;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.ConnectionPoolDataSource;
+
+import org.sdnplatform.sync.Versioned;
+import org.sdnplatform.sync.internal.TUtils;
+import org.sdnplatform.sync.internal.util.ByteArray;
+import org.sdnplatform.sync.internal.version.VectorClock;
+
+/**
+ * Measures the latency of puts to the persistent storage engines from a
+ * number of writer threads, each of which writes its own keys.  Both
+ * engines keep their data on disk in a temporary directory; the log
+ * engine forces each write to disk, so concurrent writers share forces.
+ *
+ * Run with: java org.sdnplatform.sync.internal.store.StorageEngineBenchmark
+ * [threads] [puts per thread]
+ */
+public class StorageEngineBenchmark {
+
+    private static void run(final IStorageEngine<ByteArray, byte[]> store,
+                            int threads, final int puts) throws Exception {
+        final long[] latencies = new long[threads * puts];
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] value = TUtils.randomBytes(200);
+                    try {
+                        start.await();
+                        VectorClock vc = new VectorClock();
+                        for (int i = 0; i < puts; i++) {
+                            ByteArray key = new ByteArray(
+                                    ("key-" + thread + "-" + (i % 100))
+                                    .getBytes());
+                            if (i % 100 == 0)
+                                vc = vc.incremented(1, System.currentTimeMillis());
+                            long s = System.nanoTime();
+                            store.put(key, new Versioned<byte[]>(value, vc));
+                            latencies[thread * puts + i] =
+                                    System.nanoTime() - s;
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        long s = System.nanoTime();
+        start.countDown();
+        for (Thread t : writers)
+            t.join();
+        double seconds = (System.nanoTime() - s) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("%-8s %8d %10.0f %10.1f %10.1f %10.1f %6d%n",
+                          store.getClass().getSimpleName()
+                              .replace("StorageEngine", ""),
+                          threads, latencies.length / seconds,
+                          TUtils.mean(latencies) / 1e3,
+                          TUtils.quantile(latencies, 0.5) / 1e3,
+                          TUtils.quantile(latencies, 0.99) / 1e3,
+                          errors.get());
+        store.truncate();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int puts = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+
+        File dir = TUtils.createTempDir();
+        ConnectionPoolDataSource dataSource =
+                JavaDBStorageEngine.getDataSource(dir.getAbsolutePath(),
+                                                  false);
+        System.out.printf("%-8s %8s %10s %10s %10s %10s %6s%n",
+                          "engine", "threads", "puts/s", "mean us",
+                          "p50 us", "p99 us", "errors");
+        for (int t : new int[] { 1, threads }) {
+            run(new JavaDBStorageEngine("bench", dataSource), t, puts);
+            run(new LogStorageEngine("bench",
+                    LogStorageEngine.getDirectory(dir.getAbsolutePath(),
+                                                  "bench"), null),
+                t, puts);
+        }
+    }
+}